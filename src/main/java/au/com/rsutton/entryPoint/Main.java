@@ -1,6 +1,7 @@
 package au.com.rsutton.entryPoint;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStreamReader;
 import java.util.concurrent.TimeUnit;
 
@@ -37,7 +38,7 @@ public class Main
 
 		System.out.println("Press 7 to perform roomba test");
 
-		System.out.println("Press 8 to launch Map Builder UI");
+		System.out.println("Press 8 to launch Map Builder UI, starting from the sub map file given as an argument");
 
 		int ch = br.read();
 		// if (ch == '0')
@@ -127,7 +128,13 @@ public class Main
 		}
 		if (ch == '8')
 		{
-			new MapBuilder().test();
+			if (args.length > 0)
+			{
+				new MapBuilder(new File(args[0])).test();
+			} else
+			{
+				new MapBuilder().test();
+			}
 
 		}
 
@@ -0,0 +1,297 @@
+package au.com.rsutton.kalman;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.com.rsutton.hazelcast.DataLogValue;
+import au.com.rsutton.mapping.particleFilter.OdometryAccumulator;
+import au.com.rsutton.mapping.particleFilter.ParticleFilterStatus;
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.PoseRefiner;
+import au.com.rsutton.mapping.particleFilter.RobotPoseSource;
+import au.com.rsutton.mapping.particleFilter.ScanObservation;
+import au.com.rsutton.navigation.feature.DistanceXY;
+import au.com.rsutton.navigation.feature.RobotLocationDeltaListener;
+import au.com.rsutton.ui.DataSourceMap;
+import au.com.rsutton.ui.DataSourcePoint;
+import au.com.rsutton.units.Angle;
+import au.com.rsutton.units.Distance;
+import au.com.rsutton.units.DistanceUnit;
+
+/**
+ * Tracks an already localized robot with a PoseEkf, predicting from odometry
+ * and correcting with each scan fitted to the map by a PoseRefiner. A single
+ * fit per scan is far cheaper than scoring hundreds of particles.
+ *
+ * A fit that fails or disagrees with the filter (by innovation) is ignored,
+ * after MAX_REJECTED of them in a row the tracker reports POOR_MATCH and
+ * should be replaced by global localization.
+ *
+ * Scans are fitted on the tracker's own thread, so the robot's message thread
+ * isn't held up. A scan that arrives while another is waiting replaces it.
+ */
+public class EkfPoseTracker implements RobotPoseSource, RobotLocationDeltaListener
+{
+
+	/**
+	 * 99.9% of correct measurements have a smaller squared Mahalanobis
+	 * distance, with 3 degrees of freedom
+	 */
+	private static final double INNOVATION_GATE = 16.27;
+
+	private static final int MAX_REJECTED = 5;
+
+	/**
+	 * a fit scoring less than this has probably locked onto the wrong walls
+	 */
+	private static final double MIN_FIT_SCORE = 0.5;
+
+	/**
+	 * added to the covariance of each fit, which only reflects how well the
+	 * scan fits and not how well the map is known: 3cm and 1 degree
+	 */
+	private static final double[] FIT_VARIANCE_FLOOR = { 9, 9, 1 };
+
+	private final Logger logger = LogManager.getLogger();
+
+	private final PoseEkf ekf;
+	private final PoseRefiner refiner;
+	private final OdometryAccumulator odometry = new OdometryAccumulator();
+
+	private volatile Pose pose;
+	private volatile double[][] covariance;
+	private volatile ParticleFilterStatus status = ParticleFilterStatus.LOCALIZING;
+	private volatile double lastInnovation;
+	private int rejected;
+
+	private final AtomicReference<List<ScanObservation>> pendingScan = new AtomicReference<>();
+	private final Semaphore scanAvailable = new Semaphore(0);
+	private final AtomicLong skippedScans = new AtomicLong();
+	private final Thread worker;
+	private volatile boolean stop;
+
+	public EkfPoseTracker(PoseEkf ekf, PoseRefiner refiner)
+	{
+		this.ekf = ekf;
+		this.refiner = refiner;
+		publish();
+
+		worker = new Thread(this::processUpdates, "EKF Pose Tracker");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	public void shutdown()
+	{
+		stop = true;
+		worker.interrupt();
+	}
+
+	/**
+	 * start tracking from a pose
+	 *
+	 * @param covariance
+	 *            of x, y (cm) and heading (degrees)
+	 */
+	public void reset(Pose pose, double[][] covariance)
+	{
+		reset(pose, covariance, null);
+	}
+
+	/**
+	 * start tracking from a pose, then apply the motion since it
+	 *
+	 * @param covariance
+	 *            of x, y (cm) and heading (degrees)
+	 * @param sincePose
+	 *            the robot's motion since it was at the pose, or null
+	 */
+	public synchronized void reset(Pose pose, double[][] covariance, OdometryAccumulator.Displacement sincePose)
+	{
+		// motion and scans from before the pose no longer apply
+		odometry.take();
+		pendingScan.set(null);
+		ekf.reset(pose, covariance);
+		if (sincePose != null)
+		{
+			ekf.predict(sincePose.getX(), sincePose.getY(), sincePose.getDeltaHeading(),
+					sincePose.getDistanceTravelled());
+		}
+		rejected = 0;
+		status = ParticleFilterStatus.LOCALIZED;
+		publish();
+	}
+
+	@Override
+	public void onMessage(Angle deltaHeading, Distance deltaDistance, List<ScanObservation> observations,
+			boolean bump)
+	{
+		// the same conversion as the particle filter
+		double degrees = deltaHeading.getDegrees();
+		if (degrees > 180)
+		{
+			degrees = 360 - degrees;
+		} else
+		{
+			degrees = degrees * -1.0;
+		}
+		odometry.add(degrees, deltaDistance.convert(DistanceUnit.CM));
+
+		if (observations != null)
+		{
+			if (pendingScan.getAndSet(observations) == null)
+			{
+				scanAvailable.release();
+			} else
+			{
+				skippedScans.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * fit each scan as it arrives, until shutdown
+	 */
+	private void processUpdates()
+	{
+		while (!stop)
+		{
+			try
+			{
+				scanAvailable.acquire();
+			} catch (InterruptedException e)
+			{
+				return;
+			}
+			List<ScanObservation> observations = pendingScan.getAndSet(null);
+			if (observations == null)
+			{
+				continue;
+			}
+			try
+			{
+				update(observations);
+			} catch (RuntimeException e)
+			{
+				logger.error("Pose tracker update failed", e);
+			}
+			new DataLogValue("EKF skipped scans", "" + skippedScans.get()).publish();
+		}
+	}
+
+	/**
+	 * apply the odometry received so far, then correct with the scan
+	 */
+	public synchronized void update(List<ScanObservation> observations)
+	{
+		OdometryAccumulator.Displacement displacement = odometry.take();
+		ekf.predict(displacement.getX(), displacement.getY(), displacement.getDeltaHeading(),
+				displacement.getDistanceTravelled());
+
+		PoseRefiner.Result fit = refiner.refine(ekf.getPose(), observations);
+		if (fit != null && fit.getScore() >= MIN_FIT_SCORE && fit.getCovariance() != null)
+		{
+			double[][] measurementCovariance = fit.getCovariance();
+			for (int i = 0; i < 3; i++)
+			{
+				measurementCovariance[i][i] += FIT_VARIANCE_FLOOR[i];
+			}
+			lastInnovation = ekf.getInnovation(fit.getPose(), measurementCovariance);
+			if (lastInnovation <= INNOVATION_GATE)
+			{
+				ekf.update(fit.getPose(), measurementCovariance);
+				rejected = 0;
+			} else
+			{
+				rejected++;
+			}
+		} else
+		{
+			rejected++;
+		}
+
+		if (rejected > MAX_REJECTED && status == ParticleFilterStatus.LOCALIZED)
+		{
+			logger.warn("Pose tracking lost, innovation " + lastInnovation);
+			status = ParticleFilterStatus.POOR_MATCH;
+		}
+		new DataLogValue("EKF innovation", "" + lastInnovation).publish();
+		publish();
+	}
+
+	private void publish()
+	{
+		pose = ekf.getPose();
+		covariance = ekf.getCovariance();
+	}
+
+	public Pose getPose()
+	{
+		return pose;
+	}
+
+	/**
+	 *
+	 * @return the covariance of x, y (cm) and heading (degrees)
+	 */
+	public double[][] getCovariance()
+	{
+		return covariance;
+	}
+
+	/**
+	 *
+	 * @return the squared Mahalanobis distance of the last scan fit
+	 */
+	public double getLastInnovation()
+	{
+		return lastInnovation;
+	}
+
+	@Override
+	public double getHeading()
+	{
+		return pose.getHeading();
+	}
+
+	@Override
+	public DistanceXY getXyPosition()
+	{
+		Pose current = pose;
+		return new DistanceXY(current.getX(), current.getY(), DistanceUnit.CM);
+	}
+
+	/**
+	 * the standard deviation of x plus that of y, as the particle filter
+	 * reports it
+	 */
+	@Override
+	public double getStdDev()
+	{
+		double[][] current = covariance;
+		return Math.sqrt(current[0][0]) + Math.sqrt(current[1][1]);
+	}
+
+	@Override
+	public DataSourcePoint getParticlePointSource()
+	{
+		return null;
+	}
+
+	@Override
+	public DataSourceMap getHeadingMapDataSource()
+	{
+		return null;
+	}
+
+	@Override
+	public ParticleFilterStatus getParticleFilterStatus()
+	{
+		return status;
+	}
+}
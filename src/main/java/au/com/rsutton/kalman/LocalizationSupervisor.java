@@ -0,0 +1,238 @@
+package au.com.rsutton.kalman;
+
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import au.com.rsutton.mapping.particleFilter.ParticleFilterImpl;
+import au.com.rsutton.mapping.particleFilter.ParticleFilterListener;
+import au.com.rsutton.mapping.particleFilter.ParticleFilterStatus;
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.PoseHypothesis;
+import au.com.rsutton.mapping.particleFilter.PoseRefiner;
+import au.com.rsutton.mapping.particleFilter.RobotPoseSource;
+import au.com.rsutton.mapping.particleFilter.ScanObservation;
+import au.com.rsutton.navigation.feature.DistanceXY;
+import au.com.rsutton.navigation.feature.RobotLocationDeltaListener;
+import au.com.rsutton.robot.RobotInterface;
+import au.com.rsutton.ui.DataSourceMap;
+import au.com.rsutton.ui.DataSourcePoint;
+import au.com.rsutton.units.Angle;
+import au.com.rsutton.units.AngleUnits;
+import au.com.rsutton.units.Distance;
+import au.com.rsutton.units.DistanceUnit;
+
+/**
+ * Localizes with the particle filter until it has converged on a single pose,
+ * then suspends it and tracks with an EkfPoseTracker. When the tracker loses
+ * the pose the particle filter is reseeded around the tracker's last pose and
+ * resumed.
+ *
+ * The particle filter's updates are passed on to the listener while it is
+ * localizing, the pose is always available from the getters.
+ */
+public class LocalizationSupervisor implements RobotPoseSource, ParticleFilterListener, RobotLocationDeltaListener
+{
+
+	enum Mode
+	{
+		PARTICLE_FILTER, TRACKING
+	}
+
+	private static final double DISTANCE_NOISE = 0.05;
+	private static final double TURN_NOISE = 0.05;
+	private static final double DRIFT_NOISE = 0.02;
+
+	private static final int REFINEMENT_ITERATIONS = 10;
+
+	/**
+	 * the particle filter has converged when its best cluster holds this much
+	 * of the weight, with at most MAX_CONVERGED_STD_DEV of spread, for
+	 * CONVERGED_UPDATES updates in a row
+	 */
+	private static final double MIN_CONVERGED_WEIGHT = 0.95;
+	private static final double MAX_CONVERGED_STD_DEV = 30;
+	private static final int CONVERGED_UPDATES = 3;
+
+	/**
+	 * the smallest spread the particle filter is reseeded with, in cm and
+	 * degrees
+	 */
+	private static final double MIN_RESEED_POSITION_SPREAD = 20;
+	private static final double MIN_RESEED_HEADING_SPREAD = 5;
+
+	private final Logger logger = LogManager.getLogger();
+
+	private final ParticleFilterImpl pf;
+	private final RobotInterface robot;
+	private final EkfPoseTracker tracker;
+
+	private volatile Mode mode = Mode.PARTICLE_FILTER;
+	private volatile ParticleFilterListener listener;
+	private int convergedUpdates;
+
+	private volatile DistanceXY position = new DistanceXY(0, 0, DistanceUnit.CM);
+	private volatile Angle heading = new Angle(0, AngleUnits.DEGREES);
+	private volatile double stdDev = Double.MAX_VALUE;
+	private volatile ParticleFilterStatus status = ParticleFilterStatus.LOCALIZING;
+
+	public LocalizationSupervisor(ParticleFilterImpl pf, RobotInterface robot)
+	{
+		this(pf, robot, new EkfPoseTracker(new PoseEkf(DISTANCE_NOISE, TURN_NOISE, DRIFT_NOISE),
+				new PoseRefiner(pf.getMatchingMap(), REFINEMENT_ITERATIONS)));
+	}
+
+	LocalizationSupervisor(ParticleFilterImpl pf, RobotInterface robot, EkfPoseTracker tracker)
+	{
+		this.pf = pf;
+		this.robot = robot;
+		this.tracker = tracker;
+		pf.addListener(this);
+		robot.addMessageListener(this);
+	}
+
+	/**
+	 * replaces any listener already added
+	 */
+	public void addListener(ParticleFilterListener listener)
+	{
+		this.listener = listener;
+	}
+
+	public void shutdown()
+	{
+		robot.removeMessageListener(this);
+		pf.removeListener(this);
+		tracker.shutdown();
+	}
+
+	@Override
+	public synchronized void update(DistanceXY averagePosition, Angle averageHeading, double stdDev,
+			List<ScanObservation> particleFilterObservationSet, ParticleFilterStatus status)
+	{
+		if (mode != Mode.PARTICLE_FILTER)
+		{
+			return;
+		}
+		this.position = averagePosition;
+		this.heading = averageHeading;
+		this.stdDev = stdDev;
+		this.status = status;
+
+		ParticleFilterListener current = listener;
+		if (current != null)
+		{
+			current.update(averagePosition, averageHeading, stdDev, particleFilterObservationSet, status);
+		}
+
+		List<PoseHypothesis> hypotheses = pf.getHypotheses();
+		if (status == ParticleFilterStatus.LOCALIZED && stdDev < MAX_CONVERGED_STD_DEV && !hypotheses.isEmpty()
+				&& hypotheses.get(0).getWeight() >= MIN_CONVERGED_WEIGHT)
+		{
+			convergedUpdates++;
+		} else
+		{
+			convergedUpdates = 0;
+		}
+
+		if (convergedUpdates >= CONVERGED_UPDATES)
+		{
+			PoseHypothesis best = hypotheses.get(0);
+			logger.info("Particle filter converged, tracking from " + best);
+			// the particle filter stops collecting odometry once suspended,
+			// what it has collected since its pose goes to the tracker
+			pf.suspend();
+			tracker.reset(best.getPose(), best.getCovariance(), pf.takeOdometry());
+			convergedUpdates = 0;
+			mode = Mode.TRACKING;
+		}
+	}
+
+	/**
+	 * only called from the robot's thread. Not synchronized, reseeding takes
+	 * the particle filter's lock which is held while it calls update()
+	 */
+	@Override
+	public void onMessage(Angle deltaHeading, Distance deltaDistance, List<ScanObservation> observations,
+			boolean bump)
+	{
+		if (mode != Mode.TRACKING)
+		{
+			return;
+		}
+		tracker.onMessage(deltaHeading, deltaDistance, observations, bump);
+
+		if (tracker.getParticleFilterStatus() == ParticleFilterStatus.POOR_MATCH)
+		{
+			Pose last = tracker.getPose();
+			double[][] covariance = tracker.getCovariance();
+			double positionSpread = Math.max(MIN_RESEED_POSITION_SPREAD,
+					2 * Math.sqrt(Math.max(covariance[0][0], covariance[1][1])));
+			double headingSpread = Math.max(MIN_RESEED_HEADING_SPREAD, 2 * Math.sqrt(covariance[2][2]));
+			logger.warn("Pose tracking lost at " + last + ", resuming the particle filter");
+
+			pf.reseed(last, positionSpread, headingSpread);
+			mode = Mode.PARTICLE_FILTER;
+			status = ParticleFilterStatus.LOCALIZING;
+			pf.resume();
+		}
+	}
+
+	Mode getMode()
+	{
+		return mode;
+	}
+
+	@Override
+	public double getHeading()
+	{
+		if (mode == Mode.TRACKING)
+		{
+			return tracker.getHeading();
+		}
+		return heading.getDegrees();
+	}
+
+	@Override
+	public DistanceXY getXyPosition()
+	{
+		if (mode == Mode.TRACKING)
+		{
+			return tracker.getXyPosition();
+		}
+		return position;
+	}
+
+	@Override
+	public double getStdDev()
+	{
+		if (mode == Mode.TRACKING)
+		{
+			return tracker.getStdDev();
+		}
+		return stdDev;
+	}
+
+	@Override
+	public DataSourcePoint getParticlePointSource()
+	{
+		return pf.getParticlePointSource();
+	}
+
+	@Override
+	public DataSourceMap getHeadingMapDataSource()
+	{
+		return pf.getHeadingMapDataSource();
+	}
+
+	@Override
+	public ParticleFilterStatus getParticleFilterStatus()
+	{
+		if (mode == Mode.TRACKING)
+		{
+			return tracker.getParticleFilterStatus();
+		}
+		return status;
+	}
+}
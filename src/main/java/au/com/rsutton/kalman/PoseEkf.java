@@ -0,0 +1,188 @@
+package au.com.rsutton.kalman;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+
+import au.com.rsutton.mapping.particleFilter.Pose;
+
+/**
+ * An extended Kalman filter over the robot's pose (x, y, heading). Predicted
+ * from odometry displacements in the robot's frame, corrected by direct
+ * measurements of the pose such as a scan match.
+ *
+ * Headings are in degrees outside the filter and radians inside it, as is the
+ * heading part of each covariance.
+ *
+ * Not thread safe.
+ */
+public class PoseEkf
+{
+
+	private final RealVector state = new ArrayRealVector(3);
+	private RealMatrix covariance = new Array2DRowRealMatrix(3, 3);
+
+	private final double distanceNoise;
+	private final double turnNoise;
+	private final double driftNoise;
+
+	/**
+	 *
+	 * @param distanceNoise
+	 *            standard deviation of the position error, as a fraction of
+	 *            the distance travelled
+	 * @param turnNoise
+	 *            standard deviation of the heading error, as a fraction of the
+	 *            angle turned
+	 * @param driftNoise
+	 *            standard deviation of the heading error in degrees per cm
+	 *            travelled
+	 */
+	public PoseEkf(double distanceNoise, double turnNoise, double driftNoise)
+	{
+		this.distanceNoise = distanceNoise;
+		this.turnNoise = turnNoise;
+		this.driftNoise = driftNoise;
+	}
+
+	/**
+	 * start again from the given pose
+	 *
+	 * @param covariance
+	 *            of x, y (cm) and heading (degrees)
+	 */
+	public void reset(Pose pose, double[][] covariance)
+	{
+		state.setEntry(0, pose.getX());
+		state.setEntry(1, pose.getY());
+		state.setEntry(2, normalize(Math.toRadians(pose.getHeading())));
+		this.covariance = toRadians(MatrixUtils.createRealMatrix(covariance));
+	}
+
+	/**
+	 * move by a displacement in the robot's frame, then turn
+	 *
+	 * @param dx
+	 *            cm to the robot's right
+	 * @param dy
+	 *            cm ahead
+	 * @param deltaHeading
+	 *            degrees
+	 * @param distanceTravelled
+	 *            the total distance moved, which the noise grows with
+	 */
+	public void predict(double dx, double dy, double deltaHeading, double distanceTravelled)
+	{
+		double heading = state.getEntry(2);
+		double sin = Math.sin(heading);
+		double cos = Math.cos(heading);
+
+		state.setEntry(0, state.getEntry(0) + (dx * cos) - (dy * sin));
+		state.setEntry(1, state.getEntry(1) + (dx * sin) + (dy * cos));
+		state.setEntry(2, normalize(heading + Math.toRadians(deltaHeading)));
+
+		RealMatrix jacobian = MatrixUtils.createRealIdentityMatrix(3);
+		jacobian.setEntry(0, 2, (-dx * sin) - (dy * cos));
+		jacobian.setEntry(1, 2, (dx * cos) - (dy * sin));
+
+		double positionSigma = distanceNoise * distanceTravelled;
+		double headingSigma = Math.toRadians((turnNoise * Math.abs(deltaHeading)) + (driftNoise * distanceTravelled));
+		RealMatrix noise = MatrixUtils.createRealDiagonalMatrix(new double[] { positionSigma * positionSigma,
+				positionSigma * positionSigma, headingSigma * headingSigma });
+
+		covariance = jacobian.multiply(covariance).multiply(jacobian.transpose()).add(noise);
+	}
+
+	/**
+	 * the squared Mahalanobis distance of a measured pose from the filter's
+	 * pose, with 3 degrees of freedom. Above about 16 the measurement is an
+	 * outlier (99.9%).
+	 *
+	 * @param measurementCovariance
+	 *            of x, y (cm) and heading (degrees)
+	 */
+	public double getInnovation(Pose measured, double[][] measurementCovariance)
+	{
+		RealVector innovation = innovation(measured);
+		RealMatrix s = covariance.add(toRadians(MatrixUtils.createRealMatrix(measurementCovariance)));
+		return innovation.dotProduct(new LUDecomposition(s).getSolver().solve(innovation));
+	}
+
+	/**
+	 * correct the filter with a measurement of the pose
+	 *
+	 * @param measurementCovariance
+	 *            of x, y (cm) and heading (degrees)
+	 */
+	public void update(Pose measured, double[][] measurementCovariance)
+	{
+		RealVector innovation = innovation(measured);
+		RealMatrix s = covariance.add(toRadians(MatrixUtils.createRealMatrix(measurementCovariance)));
+		RealMatrix gain = covariance.multiply(new LUDecomposition(s).getSolver().getInverse());
+
+		state.combineToSelf(1, 1, gain.operate(innovation));
+		state.setEntry(2, normalize(state.getEntry(2)));
+		covariance = MatrixUtils.createRealIdentityMatrix(3).subtract(gain).multiply(covariance);
+		// keep it symmetric despite rounding
+		covariance = covariance.add(covariance.transpose()).scalarMultiply(0.5);
+	}
+
+	private RealVector innovation(Pose measured)
+	{
+		RealVector innovation = new ArrayRealVector(new double[] { measured.getX() - state.getEntry(0),
+				measured.getY() - state.getEntry(1), Math.toRadians(measured.getHeading()) - state.getEntry(2) });
+		// the shortest turn between the headings
+		innovation.setEntry(2, Math.atan2(Math.sin(innovation.getEntry(2)), Math.cos(innovation.getEntry(2))));
+		return innovation;
+	}
+
+	/**
+	 *
+	 * @return the heading between 0 and 2 pi
+	 */
+	private static double normalize(double radians)
+	{
+		double normalized = radians % (Math.PI * 2);
+		if (normalized < 0)
+		{
+			normalized += Math.PI * 2;
+		}
+		return normalized;
+	}
+
+	private RealMatrix toRadians(RealMatrix degrees)
+	{
+		RealMatrix radians = degrees.copy();
+		double scale = Math.toRadians(1);
+		for (int i = 0; i < 3; i++)
+		{
+			radians.multiplyEntry(i, 2, scale);
+			radians.multiplyEntry(2, i, scale);
+		}
+		return radians;
+	}
+
+	public Pose getPose()
+	{
+		return new Pose(state.getEntry(0), state.getEntry(1), Math.toDegrees(state.getEntry(2)));
+	}
+
+	/**
+	 *
+	 * @return the covariance of x, y (cm) and heading (degrees)
+	 */
+	public double[][] getCovariance()
+	{
+		double[][] result = covariance.getData();
+		double scale = Math.toDegrees(1);
+		for (int i = 0; i < 3; i++)
+		{
+			result[i][2] *= scale;
+			result[2][i] *= scale;
+		}
+		return result;
+	}
+}
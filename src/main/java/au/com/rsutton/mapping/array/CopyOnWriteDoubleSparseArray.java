@@ -0,0 +1,224 @@
+package au.com.rsutton.mapping.array;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A Dynamic2dDoubleSparseArray that can take cheap immutable snapshots of
+ * itself. A snapshot copies the tile directory and shares the tiles, a tile
+ * shared with a snapshot is copied the next time it is written.
+ *
+ * Not safe for concurrent writers, snapshots are safe to read from any
+ * thread.
+ */
+public class CopyOnWriteDoubleSparseArray implements DoubleSparseArray
+{
+
+	private static final class CowTile
+	{
+		double[] cells;
+		boolean shared;
+
+		CowTile(double[] cells)
+		{
+			this.cells = cells;
+		}
+	}
+
+	private final TileTable<CowTile> tiles = new TileTable<>();
+
+	private int minY = Integer.MAX_VALUE;
+
+	private int maxY = Integer.MIN_VALUE;
+
+	private int maxX = Integer.MIN_VALUE;
+
+	private int minX = Integer.MAX_VALUE;
+
+	private final double defaultValue;
+
+	private Snapshot lastSnapshot;
+
+	public CopyOnWriteDoubleSparseArray(double defaultValue)
+	{
+		this.defaultValue = defaultValue;
+	}
+
+	@Override
+	public double getDefaultValue()
+	{
+		return defaultValue;
+	}
+
+	@Override
+	public double get(int x, int y)
+	{
+		CowTile tile = tiles.get(x >> TileTable.TILE_BITS, y >> TileTable.TILE_BITS);
+		if (tile == null)
+		{
+			return defaultValue;
+		}
+		return tile.cells[TileTable.cellIndex(x, y)];
+	}
+
+	@Override
+	public void set(int x, int y, double value)
+	{
+		lastSnapshot = null;
+
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+
+		int tx = x >> TileTable.TILE_BITS;
+		int ty = y >> TileTable.TILE_BITS;
+		CowTile tile = tiles.get(tx, ty);
+		if (tile == null)
+		{
+			double[] cells = new double[TileTable.CELLS_PER_TILE];
+			Arrays.fill(cells, defaultValue);
+			tile = new CowTile(cells);
+			tiles.put(tx, ty, tile);
+		} else if (tile.shared)
+		{
+			tile.cells = tile.cells.clone();
+			tile.shared = false;
+		}
+		tile.cells[TileTable.cellIndex(x, y)] = value;
+	}
+
+	/**
+	 *
+	 * @return the current state of the array, which later changes won't
+	 *         affect
+	 */
+	public Snapshot snapshot()
+	{
+		if (lastSnapshot == null)
+		{
+			TileTable<double[]> snapshotTiles = new TileTable<>();
+			for (TileTable.Tile<CowTile> tile : tiles.getTiles())
+			{
+				tile.getCells().shared = true;
+				snapshotTiles.put(tile.getTileX(), tile.getTileY(), tile.getCells().cells);
+			}
+			lastSnapshot = new Snapshot(snapshotTiles, defaultValue, minX, minY, maxX, maxY);
+		}
+		return lastSnapshot;
+	}
+
+	/**
+	 *
+	 * @return a snapshot of the array, which must be a
+	 *         CopyOnWriteDoubleSparseArray
+	 */
+	public static Snapshot snapshotOf(DoubleSparseArray array)
+	{
+		if (!(array instanceof CopyOnWriteDoubleSparseArray))
+		{
+			throw new IllegalStateException("Only a CopyOnWriteDoubleSparseArray can be snapshotted");
+		}
+		return ((CopyOnWriteDoubleSparseArray) array).snapshot();
+	}
+
+	@Override
+	public int getMinY()
+	{
+		return minY;
+	}
+
+	@Override
+	public int getMaxY()
+	{
+		return maxY;
+	}
+
+	@Override
+	public int getMaxX()
+	{
+		return maxX;
+	}
+
+	@Override
+	public int getMinX()
+	{
+		return minX;
+	}
+
+	public static final class Snapshot implements DoubleSparseArray
+	{
+		private final TileTable<double[]> tiles;
+		private final double defaultValue;
+		private final int minX;
+		private final int minY;
+		private final int maxX;
+		private final int maxY;
+
+		Snapshot(TileTable<double[]> tiles, double defaultValue, int minX, int minY, int maxX, int maxY)
+		{
+			this.tiles = tiles;
+			this.defaultValue = defaultValue;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+		}
+
+		@Override
+		public double getDefaultValue()
+		{
+			return defaultValue;
+		}
+
+		@Override
+		public double get(int x, int y)
+		{
+			double[] tile = tiles.get(x >> TileTable.TILE_BITS, y >> TileTable.TILE_BITS);
+			if (tile == null)
+			{
+				return defaultValue;
+			}
+			return tile[TileTable.cellIndex(x, y)];
+		}
+
+		@Override
+		public void set(int x, int y, double value)
+		{
+			throw new UnsupportedOperationException("Snapshots are read only");
+		}
+
+		/**
+		 *
+		 * @return the tiles of the snapshot, the cells must not be modified
+		 */
+		public List<TileTable.Tile<double[]>> getTiles()
+		{
+			return tiles.getTiles();
+		}
+
+		@Override
+		public int getMinY()
+		{
+			return minY;
+		}
+
+		@Override
+		public int getMaxY()
+		{
+			return maxY;
+		}
+
+		@Override
+		public int getMaxX()
+		{
+			return maxX;
+		}
+
+		@Override
+		public int getMinX()
+		{
+			return minX;
+		}
+	}
+}
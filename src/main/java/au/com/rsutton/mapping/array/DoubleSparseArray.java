@@ -0,0 +1,23 @@
+package au.com.rsutton.mapping.array;
+
+/**
+ * primitive double version of {@link SparseArray}, avoids boxing each cell
+ */
+public interface DoubleSparseArray
+{
+
+	double getDefaultValue();
+
+	double get(int x, int y);
+
+	void set(int x, int y, double value);
+
+	int getMinY();
+
+	int getMaxY();
+
+	int getMaxX();
+
+	int getMinX();
+
+}
@@ -0,0 +1,89 @@
+package au.com.rsutton.mapping.array;
+
+import java.util.Arrays;
+
+/**
+ * Stores cells in square tiles of primitive floats, the tiles themselves are
+ * located via a TileTable keyed on the tile coordinates.
+ */
+public class Dynamic2dFloatSparseArray implements FloatSparseArray
+{
+
+	private final TileTable<float[]> tiles = new TileTable<>();
+
+	private int minY = Integer.MAX_VALUE;
+
+	private int maxY = Integer.MIN_VALUE;
+
+	private int maxX = Integer.MIN_VALUE;
+
+	private int minX = Integer.MAX_VALUE;
+
+	private final float defaultValue;
+
+	public Dynamic2dFloatSparseArray(float defaultValue)
+	{
+		this.defaultValue = defaultValue;
+	}
+
+	@Override
+	public float getDefaultValue()
+	{
+		return defaultValue;
+	}
+
+	@Override
+	public float get(int x, int y)
+	{
+		float[] tile = tiles.get(x >> TileTable.TILE_BITS, y >> TileTable.TILE_BITS);
+		if (tile == null)
+		{
+			return defaultValue;
+		}
+		return tile[TileTable.cellIndex(x, y)];
+	}
+
+	@Override
+	public void set(int x, int y, float value)
+	{
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+
+		int tx = x >> TileTable.TILE_BITS;
+		int ty = y >> TileTable.TILE_BITS;
+		float[] tile = tiles.get(tx, ty);
+		if (tile == null)
+		{
+			tile = new float[TileTable.CELLS_PER_TILE];
+			Arrays.fill(tile, defaultValue);
+			tiles.put(tx, ty, tile);
+		}
+		tile[TileTable.cellIndex(x, y)] = value;
+	}
+
+	@Override
+	public int getMinY()
+	{
+		return minY;
+	}
+
+	@Override
+	public int getMaxY()
+	{
+		return maxY;
+	}
+
+	@Override
+	public int getMaxX()
+	{
+		return maxX;
+	}
+
+	@Override
+	public int getMinX()
+	{
+		return minX;
+	}
+}
@@ -0,0 +1,89 @@
+package au.com.rsutton.mapping.array;
+
+import java.util.Arrays;
+
+/**
+ * Stores cells in square tiles of primitive shorts, the tiles themselves are
+ * located via a TileTable keyed on the tile coordinates.
+ */
+public class Dynamic2dShortSparseArray implements ShortSparseArray
+{
+
+	private final TileTable<short[]> tiles = new TileTable<>();
+
+	private int minY = Integer.MAX_VALUE;
+
+	private int maxY = Integer.MIN_VALUE;
+
+	private int maxX = Integer.MIN_VALUE;
+
+	private int minX = Integer.MAX_VALUE;
+
+	private final short defaultValue;
+
+	public Dynamic2dShortSparseArray(short defaultValue)
+	{
+		this.defaultValue = defaultValue;
+	}
+
+	@Override
+	public short getDefaultValue()
+	{
+		return defaultValue;
+	}
+
+	@Override
+	public short get(int x, int y)
+	{
+		short[] tile = tiles.get(x >> TileTable.TILE_BITS, y >> TileTable.TILE_BITS);
+		if (tile == null)
+		{
+			return defaultValue;
+		}
+		return tile[TileTable.cellIndex(x, y)];
+	}
+
+	@Override
+	public void set(int x, int y, short value)
+	{
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+
+		int tx = x >> TileTable.TILE_BITS;
+		int ty = y >> TileTable.TILE_BITS;
+		short[] tile = tiles.get(tx, ty);
+		if (tile == null)
+		{
+			tile = new short[TileTable.CELLS_PER_TILE];
+			Arrays.fill(tile, defaultValue);
+			tiles.put(tx, ty, tile);
+		}
+		tile[TileTable.cellIndex(x, y)] = value;
+	}
+
+	@Override
+	public int getMinY()
+	{
+		return minY;
+	}
+
+	@Override
+	public int getMaxY()
+	{
+		return maxY;
+	}
+
+	@Override
+	public int getMaxX()
+	{
+		return maxX;
+	}
+
+	@Override
+	public int getMinX()
+	{
+		return minX;
+	}
+}
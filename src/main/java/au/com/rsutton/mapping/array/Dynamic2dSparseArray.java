@@ -1,12 +1,15 @@
 package au.com.rsutton.mapping.array;
 
+import java.util.Arrays;
+
+/**
+ * Cells are held in square tiles located via a TileTable, so there is no limit
+ * on the coordinate range and each access is at most one hash probe.
+ */
 public class Dynamic2dSparseArray<T> implements SparseArray<T>
 {
 
-	private int cellSize;
-
-	@SuppressWarnings("unchecked")
-	Sparse2dSegment<T>[][] maps = new Sparse2dSegment[2][2];
+	private final TileTable<Object[]> tiles = new TileTable<>();
 
 	private int minY = Integer.MAX_VALUE;
 
@@ -20,17 +23,7 @@ public class Dynamic2dSparseArray<T> implements SparseArray<T>
 
 	public Dynamic2dSparseArray(T defaultValue)
 	{
-		// +-(50^3) is the maximum array size
-		this.cellSize = 50;
-		int levels = 3;
-
 		this.defaultValue = defaultValue;
-
-		maps[0][0] = new Sparse2dSegment<>(cellSize, levels, defaultValue);
-		maps[0][1] = new Sparse2dSegment<>(cellSize, levels, defaultValue);
-		maps[1][0] = new Sparse2dSegment<>(cellSize, levels, defaultValue);
-		maps[1][1] = new Sparse2dSegment<>(cellSize, levels, defaultValue);
-
 	}
 
 	/*
@@ -49,11 +42,16 @@ public class Dynamic2dSparseArray<T> implements SparseArray<T>
 	 * 
 	 * @see au.com.rsutton.mapping.array.SparseArray#get(int, int)
 	 */
+	@SuppressWarnings("unchecked")
 	@Override
 	public T get(int x, int y)
 	{
-		Sparse2dSegment<T> map = maps[(int) Math.max(0, Math.signum(x))][(int) Math.max(0, Math.signum(y))];
-		return map.get(Math.abs(x), Math.abs(y));
+		Object[] tile = tiles.get(x >> TileTable.TILE_BITS, y >> TileTable.TILE_BITS);
+		if (tile == null)
+		{
+			return defaultValue;
+		}
+		return (T) tile[TileTable.cellIndex(x, y)];
 	}
 
 	/*
@@ -69,9 +67,16 @@ public class Dynamic2dSparseArray<T> implements SparseArray<T>
 		maxX = Math.max(maxX, x);
 		maxY = Math.max(maxY, y);
 
-		Sparse2dSegment<T> map = maps[(int) Math.max(0, Math.signum(x))][(int) Math.max(0, Math.signum(y))];
-		map.set(Math.abs(x), Math.abs(y), value);
-
+		int tx = x >> TileTable.TILE_BITS;
+		int ty = y >> TileTable.TILE_BITS;
+		Object[] tile = tiles.get(tx, ty);
+		if (tile == null)
+		{
+			tile = new Object[TileTable.CELLS_PER_TILE];
+			Arrays.fill(tile, defaultValue);
+			tiles.put(tx, ty, tile);
+		}
+		tile[TileTable.cellIndex(x, y)] = value;
 	}
 
 	/*
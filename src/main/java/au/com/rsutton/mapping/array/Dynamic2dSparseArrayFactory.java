@@ -7,4 +7,19 @@ public class Dynamic2dSparseArrayFactory
 	{
 		return new Dynamic2dSparseArray<>(defaultValue);
 	}
+
+	public static DoubleSparseArray getDynamic2dDoubleSparseArray(double defaultValue)
+	{
+		return new Dynamic2dDoubleSparseArray(defaultValue);
+	}
+
+	public static FloatSparseArray getDynamic2dFloatSparseArray(float defaultValue)
+	{
+		return new Dynamic2dFloatSparseArray(defaultValue);
+	}
+
+	public static ShortSparseArray getDynamic2dShortSparseArray(short defaultValue)
+	{
+		return new Dynamic2dShortSparseArray(defaultValue);
+	}
 }
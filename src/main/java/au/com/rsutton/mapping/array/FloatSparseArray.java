@@ -0,0 +1,23 @@
+package au.com.rsutton.mapping.array;
+
+/**
+ * primitive float version of {@link SparseArray}, avoids boxing each cell
+ */
+public interface FloatSparseArray
+{
+
+	float getDefaultValue();
+
+	float get(int x, int y);
+
+	void set(int x, int y, float value);
+
+	int getMinY();
+
+	int getMaxY();
+
+	int getMaxX();
+
+	int getMinX();
+
+}
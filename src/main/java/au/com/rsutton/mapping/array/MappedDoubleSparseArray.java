@@ -0,0 +1,163 @@
+package au.com.rsutton.mapping.array;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A DoubleSparseArray whose tiles start out in a (usually memory mapped)
+ * buffer, a tile is only copied out of the buffer the first time one of its
+ * cells is read or written. Tiles that are never used are never paged in.
+ *
+ * Not safe for concurrent writers, concurrent readers may each fault in the
+ * same tile but will see the same values.
+ */
+public class MappedDoubleSparseArray implements DoubleSparseArray
+{
+
+	private static final class MappedTile
+	{
+		final int offset;
+		volatile double[] cells;
+
+		MappedTile(int offset)
+		{
+			this.offset = offset;
+		}
+	}
+
+	private final ByteBuffer buffer;
+
+	private final TileTable<MappedTile> tiles = new TileTable<>();
+
+	private int minY;
+
+	private int maxY;
+
+	private int maxX;
+
+	private int minX;
+
+	private final double defaultValue;
+
+	/**
+	 *
+	 * @param buffer
+	 *            holding the tile payloads, each being TileTable.CELLS_PER_TILE
+	 *            doubles in cell index order
+	 */
+	public MappedDoubleSparseArray(ByteBuffer buffer, double defaultValue, int minX, int minY, int maxX, int maxY)
+	{
+		this.buffer = buffer;
+		this.defaultValue = defaultValue;
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+	}
+
+	/**
+	 * add a tile whose cells are in the buffer
+	 *
+	 * @param offset
+	 *            of the tile's payload within the buffer
+	 */
+	public void addTile(int tileX, int tileY, int offset)
+	{
+		tiles.put(tileX, tileY, new MappedTile(offset));
+	}
+
+	@Override
+	public double getDefaultValue()
+	{
+		return defaultValue;
+	}
+
+	@Override
+	public double get(int x, int y)
+	{
+		MappedTile tile = tiles.get(x >> TileTable.TILE_BITS, y >> TileTable.TILE_BITS);
+		if (tile == null)
+		{
+			return defaultValue;
+		}
+		return getCells(tile)[TileTable.cellIndex(x, y)];
+	}
+
+	@Override
+	public void set(int x, int y, double value)
+	{
+		minX = Math.min(minX, x);
+		minY = Math.min(minY, y);
+		maxX = Math.max(maxX, x);
+		maxY = Math.max(maxY, y);
+
+		int tx = x >> TileTable.TILE_BITS;
+		int ty = y >> TileTable.TILE_BITS;
+		MappedTile tile = tiles.get(tx, ty);
+		if (tile == null)
+		{
+			tile = new MappedTile(-1);
+			double[] cells = new double[TileTable.CELLS_PER_TILE];
+			Arrays.fill(cells, defaultValue);
+			tile.cells = cells;
+			tiles.put(tx, ty, tile);
+		}
+		getCells(tile)[TileTable.cellIndex(x, y)] = value;
+	}
+
+	private double[] getCells(MappedTile tile)
+	{
+		double[] cells = tile.cells;
+		if (cells == null)
+		{
+			cells = new double[TileTable.CELLS_PER_TILE];
+			ByteBuffer source = buffer.duplicate();
+			source.position(tile.offset);
+			source.asDoubleBuffer().get(cells);
+			tile.cells = cells;
+		}
+		return cells;
+	}
+
+	/**
+	 *
+	 * @return the number of tiles that have been copied out of the buffer or
+	 *         created since
+	 */
+	public int getLoadedTileCount()
+	{
+		int count = 0;
+		for (TileTable.Tile<MappedTile> tile : tiles.getTiles())
+		{
+			if (tile.getCells().cells != null)
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public int getMinY()
+	{
+		return minY;
+	}
+
+	@Override
+	public int getMaxY()
+	{
+		return maxY;
+	}
+
+	@Override
+	public int getMaxX()
+	{
+		return maxX;
+	}
+
+	@Override
+	public int getMinX()
+	{
+		return minX;
+	}
+}
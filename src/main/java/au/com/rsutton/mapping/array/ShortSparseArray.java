@@ -0,0 +1,23 @@
+package au.com.rsutton.mapping.array;
+
+/**
+ * primitive short version of {@link SparseArray}, avoids boxing each cell
+ */
+public interface ShortSparseArray
+{
+
+	short getDefaultValue();
+
+	short get(int x, int y);
+
+	void set(int x, int y, short value);
+
+	int getMinY();
+
+	int getMaxY();
+
+	int getMaxX();
+
+	int getMinX();
+
+}
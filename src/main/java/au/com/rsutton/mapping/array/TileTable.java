@@ -0,0 +1,197 @@
+package au.com.rsutton.mapping.array;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressed hash table of fixed size square tiles, keyed on the tile
+ * coordinates packed into a long. There is no limit on the coordinate range,
+ * and a lookup is a single hash probe (usually none, as the last tile used is
+ * cached - successive accesses tend to be close together).
+ *
+ * The table is not safe for concurrent writers, concurrent readers will see
+ * either the old or the new slot array while it is being resized.
+ *
+ * @param <P>
+ *            the cell payload of each tile, eg double[]
+ */
+public class TileTable<P>
+{
+
+	public static final int TILE_BITS = 5;
+	public static final int TILE_SIZE = 1 << TILE_BITS;
+	public static final int TILE_MASK = TILE_SIZE - 1;
+	public static final int CELLS_PER_TILE = TILE_SIZE * TILE_SIZE;
+
+	private static final int INITIAL_CAPACITY_BITS = 6;
+
+	public static final class Tile<P>
+	{
+		final long key;
+		final int tileX;
+		final int tileY;
+		final P cells;
+
+		Tile(int tileX, int tileY, P cells)
+		{
+			this.key = key(tileX, tileY);
+			this.tileX = tileX;
+			this.tileY = tileY;
+			this.cells = cells;
+		}
+
+		public int getTileX()
+		{
+			return tileX;
+		}
+
+		public int getTileY()
+		{
+			return tileY;
+		}
+
+		public P getCells()
+		{
+			return cells;
+		}
+	}
+
+	private volatile Tile<P>[] slots;
+	private int size;
+
+	private Tile<P> lastTile;
+
+	public TileTable()
+	{
+		slots = newSlots(1 << INITIAL_CAPACITY_BITS);
+	}
+
+	/**
+	 *
+	 * @param tileX
+	 * @param tileY
+	 * @return the cells of the tile, or null if the tile has never been
+	 *         created
+	 */
+	public P get(int tileX, int tileY)
+	{
+		long key = key(tileX, tileY);
+		Tile<P> tile = lastTile;
+		if (tile != null && tile.key == key)
+		{
+			return tile.cells;
+		}
+		tile = find(slots, key);
+		if (tile == null)
+		{
+			return null;
+		}
+		lastTile = tile;
+		return tile.cells;
+	}
+
+	/**
+	 * add a tile, the caller must have checked that it doesn't already exist
+	 */
+	public void put(int tileX, int tileY, P cells)
+	{
+		Tile<P> tile = new Tile<>(tileX, tileY, cells);
+		if ((size + 1) * 2 > slots.length)
+		{
+			grow();
+		}
+		insert(slots, tile);
+		size++;
+		lastTile = tile;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 *
+	 * @return a copy of the current set of tiles, in no particular order
+	 */
+	public List<Tile<P>> getTiles()
+	{
+		List<Tile<P>> result = new ArrayList<>(size);
+		for (Tile<P> tile : slots)
+		{
+			if (tile != null)
+			{
+				result.add(tile);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 
+	 * @return the index within a tile's cells of the cell x,y
+	 */
+	public static int cellIndex(int x, int y)
+	{
+		return ((y & TILE_MASK) << TILE_BITS) | (x & TILE_MASK);
+	}
+
+	static long key(int tileX, int tileY)
+	{
+		return (((long) tileX) << 32) | (tileY & 0xffffffffL);
+	}
+
+	/**
+	 * fibonacci hash of the key into a power of two sized slot array
+	 */
+	private static int hash(long key, int capacity)
+	{
+		return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(capacity)));
+	}
+
+	private static <P> Tile<P> find(Tile<P>[] slots, long key)
+	{
+		int mask = slots.length - 1;
+		int index = hash(key, slots.length);
+		while (true)
+		{
+			Tile<P> tile = slots[index];
+			if (tile == null || tile.key == key)
+			{
+				return tile;
+			}
+			index = (index + 1) & mask;
+		}
+	}
+
+	private static <P> void insert(Tile<P>[] slots, Tile<P> tile)
+	{
+		int mask = slots.length - 1;
+		int index = hash(tile.key, slots.length);
+		while (slots[index] != null)
+		{
+			index = (index + 1) & mask;
+		}
+		slots[index] = tile;
+	}
+
+	private void grow()
+	{
+		Tile<P>[] newSlots = newSlots(slots.length * 2);
+		for (Tile<P> tile : slots)
+		{
+			if (tile != null)
+			{
+				insert(newSlots, tile);
+			}
+		}
+		// only publish the new slots once they are fully populated
+		slots = newSlots;
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static <P> Tile<P>[] newSlots(int capacity)
+	{
+		return new Tile[capacity];
+	}
+}
@@ -5,40 +5,56 @@ import java.awt.image.BufferedImage;
 import java.util.LinkedList;
 import java.util.List;
 
+import au.com.rsutton.kalman.LocalizationSupervisor;
 import au.com.rsutton.mapping.particleFilter.ParticleFilterIfc;
+import au.com.rsutton.mapping.particleFilter.ParticleFilterImpl;
 import au.com.rsutton.mapping.particleFilter.ParticleFilterListener;
 import au.com.rsutton.mapping.particleFilter.ParticleFilterObservationSet;
 import au.com.rsutton.mapping.particleFilter.ParticleFilterStatus;
+import au.com.rsutton.mapping.particleFilter.PoseHypothesis;
+import au.com.rsutton.mapping.particleFilter.RobotPoseSource;
 import au.com.rsutton.mapping.particleFilter.ScanObservation;
 import au.com.rsutton.navigation.feature.DistanceXY;
+import au.com.rsutton.robot.RobotInterface;
 import au.com.rsutton.ui.DataSourceMap;
 import au.com.rsutton.ui.DataSourcePoint;
 import au.com.rsutton.units.Angle;
-
-public class ParticleFilterProxy implements ParticleFilterIfc, ParticleFilterListener
+import au.com.rsutton.units.DistanceUnit;
+
+/**
+ * Stands in for whichever particle filter is current. Each filter is wrapped
+ * in a LocalizationSupervisor, which hands over to an EKF once the filter has
+ * converged, and the pose reported is the supervisor's.
+ */
+public class ParticleFilterProxy implements ParticleFilterIfc, ParticleFilterListener, RobotPoseSource
 {
 
-	private ParticleFilterIfc pf;
+	private final RobotInterface robot;
+	private volatile ParticleFilterImpl pf;
+	private volatile LocalizationSupervisor supervisor;
 	private List<ParticleFilterListener> listeners = new LinkedList<>();
 
-	public ParticleFilterProxy(ParticleFilterIfc pf)
+	public ParticleFilterProxy(RobotInterface robot)
 	{
-		this.pf = pf;
-		if (pf != null)
-		{
-			pf.addListener(this);
-		}
+		this.robot = robot;
 	}
 
-	public void changeParticleFilter(ParticleFilterIfc pf)
+	/**
+	 * shut down the current particle filter and its supervisor, and
+	 * supervise pf instead
+	 */
+	public void changeParticleFilter(ParticleFilterImpl pf)
 	{
 		if (this.pf != null)
 		{
+			supervisor.addListener(null);
+			supervisor.shutdown();
 			this.pf.shutdown();
-			pf.removeListener(this);
 		}
+		LocalizationSupervisor newSupervisor = new LocalizationSupervisor(pf, robot);
+		newSupervisor.addListener(this);
 		this.pf = pf;
-		pf.addListener(this);
+		supervisor = newSupervisor;
 	}
 
 	@Override
@@ -93,6 +109,7 @@ public class ParticleFilterProxy implements ParticleFilterIfc, ParticleFilterLis
 	@Override
 	public void shutdown()
 	{
+		supervisor.shutdown();
 		pf.shutdown();
 
 	}
@@ -128,4 +145,37 @@ public class ParticleFilterProxy implements ParticleFilterIfc, ParticleFilterLis
 
 	}
 
+	@Override
+	public List<PoseHypothesis> getHypotheses()
+	{
+		return pf.getHypotheses();
+	}
+
+	@Override
+	public double getHeading()
+	{
+		LocalizationSupervisor current = supervisor;
+		return current == null ? 0 : current.getHeading();
+	}
+
+	@Override
+	public DistanceXY getXyPosition()
+	{
+		LocalizationSupervisor current = supervisor;
+		return current == null ? new DistanceXY(0, 0, DistanceUnit.CM) : current.getXyPosition();
+	}
+
+	@Override
+	public double getStdDev()
+	{
+		LocalizationSupervisor current = supervisor;
+		return current == null ? 0 : current.getStdDev();
+	}
+
+	@Override
+	public ParticleFilterStatus getParticleFilterStatus()
+	{
+		LocalizationSupervisor current = supervisor;
+		return current == null ? ParticleFilterStatus.POOR_MATCH : current.getParticleFilterStatus();
+	}
 }
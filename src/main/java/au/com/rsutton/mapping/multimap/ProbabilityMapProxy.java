@@ -1,10 +1,16 @@
 package au.com.rsutton.mapping.multimap;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.util.List;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.ScanObservation;
+import au.com.rsutton.mapping.probability.CellVisitor;
+import au.com.rsutton.mapping.probability.InverseSensorModel;
+import au.com.rsutton.mapping.probability.MapPyramid;
 import au.com.rsutton.mapping.probability.Occupancy;
 import au.com.rsutton.mapping.probability.ProbabilityMap;
 import au.com.rsutton.mapping.probability.ProbabilityMapIIFc;
@@ -19,8 +25,15 @@ public class ProbabilityMapProxy implements ProbabilityMapIIFc
 		this.map = map;
 	}
 
+	/**
+	 * versions of the proxy carry on from the previous map, so they only ever
+	 * increase
+	 */
+	private long versionBase = 0;
+
 	void changeMap(ProbabilityMap map)
 	{
+		versionBase = getVersion() + 1;
 		this.map = map;
 	}
 
@@ -42,6 +55,12 @@ public class ProbabilityMapProxy implements ProbabilityMapIIFc
 		map.updatePoint(x, y, occupied, certainty, gausianRadius);
 	}
 
+	@Override
+	public void integrateScan(Pose origin, ScanObservation[] beams, InverseSensorModel model)
+	{
+		map.integrateScan(origin, beams, model);
+	}
+
 	@Override
 	public List<Vector3D> getFeatures()
 	{
@@ -102,6 +121,12 @@ public class ProbabilityMapProxy implements ProbabilityMapIIFc
 		return map.get(x, y);
 	}
 
+	@Override
+	public MapPyramid getPyramid()
+	{
+		return map.getPyramid();
+	}
+
 	@Override
 	public int getBlockSize()
 	{
@@ -114,6 +139,35 @@ public class ProbabilityMapProxy implements ProbabilityMapIIFc
 		return map.getOccupiedPoints();
 	}
 
+	@Override
+	public void visitOccupied(CellVisitor visitor)
+	{
+		map.visitOccupied(visitor);
+	}
+
+	@Override
+	public void visitVacant(CellVisitor visitor)
+	{
+		map.visitVacant(visitor);
+	}
+
+	@Override
+	public long getVersion()
+	{
+		return versionBase + map.getVersion();
+	}
+
+	@Override
+	public List<Rectangle> getChangedRegions(long sinceVersion)
+	{
+		if (sinceVersion < versionBase)
+		{
+			// the map has been swapped since
+			return null;
+		}
+		return map.getChangedRegions(sinceVersion - versionBase);
+	}
+
 	@Override
 	public int hashCode()
 	{
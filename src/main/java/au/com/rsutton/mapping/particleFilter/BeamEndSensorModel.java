@@ -0,0 +1,95 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.stream.IntStream;
+
+/**
+ * Base of the sensor models that only look at the map around each beam end,
+ * so the beam ends are all that needs to be moved to each particle's pose.
+ *
+ * The scan is rotated once per heading bin rather than once per particle,
+ * particles with nearly the same heading share the rotated scan.
+ */
+abstract class BeamEndSensorModel implements SensorModel
+{
+
+	private final RotatedScanCache rotatedScans;
+
+	/**
+	 * the heading bin of each particle being scored
+	 */
+	private int[] particleBins = new int[0];
+
+	/**
+	 *
+	 * @param headingBinSize
+	 *            in degrees, or 0 to rotate the scan exactly to each
+	 *            particle's heading
+	 */
+	BeamEndSensorModel(double headingBinSize)
+	{
+		rotatedScans = headingBinSize > 0 ? new RotatedScanCache(headingBinSize) : null;
+	}
+
+	/**
+	 *
+	 * @param beamX
+	 *            the beam ends rotated to the particle's heading, but not yet
+	 *            translated to its position
+	 * @return the rating of the particle
+	 */
+	abstract double rate(double particleX, double particleY, double[] beamX, double[] beamY, int count);
+
+	@Override
+	public void score(ParticleSet particles, Scan scan, double[] ratings)
+	{
+		if (rotatedScans != null)
+		{
+			scoreBinned(particles, scan, ratings);
+		} else
+		{
+			scoreExact(particles, scan, ratings);
+		}
+	}
+
+	private void scoreBinned(ParticleSet particles, Scan scan, double[] ratings)
+	{
+		int size = particles.size();
+		rotatedScans.setScan(scan.x, scan.y, scan.size);
+		if (particleBins.length < size)
+		{
+			particleBins = new int[size];
+		}
+		for (int i = 0; i < size; i++)
+		{
+			int bin = rotatedScans.getBin(particles.getHeading(i));
+			particleBins[i] = bin;
+			rotatedScans.require(bin);
+		}
+		rotatedScans.rotate();
+
+		int[] bins = particleBins;
+		int count = scan.size;
+		IntStream.range(0, size).parallel().forEach(i -> ratings[i] = rate(particles.getX(i), particles.getY(i),
+				rotatedScans.getX(bins[i]), rotatedScans.getY(bins[i]), count));
+	}
+
+	private void scoreExact(ParticleSet particles, Scan scan, double[] ratings)
+	{
+		int count = scan.size;
+		double[] ox = scan.x;
+		double[] oy = scan.y;
+		IntStream.range(0, particles.size()).parallel().forEach(i -> {
+			double radians = Math.toRadians(particles.getHeading(i));
+			double sin = Math.sin(radians);
+			double cos = Math.cos(radians);
+			double[] rx = new double[count];
+			double[] ry = new double[count];
+			for (int j = 0; j < count; j++)
+			{
+				rx[j] = (ox[j] * cos) - (oy[j] * sin);
+				ry[j] = (ox[j] * sin) + (oy[j] * cos);
+			}
+			ratings[i] = rate(particles.getX(i), particles.getY(i), rx, ry, count);
+		});
+	}
+}
@@ -0,0 +1,98 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.stream.IntStream;
+
+import au.com.rsutton.mapping.probability.ProbabilityMapReader;
+
+/**
+ * The beam model (Thrun et al., Probabilistic Robotics 6.3), each beam is
+ * ray cast through the map from the particle to find the range it should have
+ * measured, the measured range is then a mixture of a gaussian around the
+ * expected range and a random reading. Beams at or beyond the maximum range
+ * are ignored.
+ *
+ * Unlike the beam end models this knows a beam can't pass through a wall, but
+ * ray casting is far more expensive, so only every beamStep'th beam is used.
+ * Ray casting skips empty space using the map's pyramid when it has one, so
+ * pass the occupancy map rather than a LikelihoodField.
+ *
+ * The rating is the geometric mean of the beams' probabilities, normalised so
+ * a perfect fit rates 1.
+ */
+public class BeamSensorModel implements SensorModel
+{
+
+	private final ProbabilityMapReader map;
+	private final double maxRange;
+	private final double occupancyThreshold;
+	private final double sigma;
+	private final double zHit;
+	private final double zRandom;
+	private final int beamStep;
+
+	/**
+	 *
+	 * @param map
+	 *            the occupancy map
+	 * @param maxRange
+	 *            in cm
+	 * @param occupancyThreshold
+	 *            a ray stops at the first cell at least this occupied
+	 * @param sigma
+	 *            in cm, of the error in a measured range
+	 * @param zHit
+	 *            the weight of a measurement near the expected range
+	 * @param zRandom
+	 *            the weight of a random reading
+	 * @param beamStep
+	 *            use every beamStep'th beam of the scan
+	 */
+	public BeamSensorModel(ProbabilityMapReader map, double maxRange, double occupancyThreshold, double sigma,
+			double zHit, double zRandom, int beamStep)
+	{
+		this.map = map;
+		this.maxRange = maxRange;
+		this.occupancyThreshold = occupancyThreshold;
+		this.sigma = sigma;
+		this.zHit = zHit;
+		this.zRandom = zRandom;
+		this.beamStep = Math.max(1, beamStep);
+	}
+
+	@Override
+	public void score(ParticleSet particles, Scan scan, double[] ratings)
+	{
+		int beams = (scan.size() + beamStep - 1) / beamStep;
+		double[] angles = new double[beams];
+		double[] ranges = new double[beams];
+		for (int b = 0; b < beams; b++)
+		{
+			int index = b * beamStep;
+			// the beam's angle as simulateObservation measures it, from the
+			// robot's y axis
+			angles[b] = Math.toDegrees(Math.atan2(-scan.getX(index), scan.getY(index)));
+			ranges[b] = scan.getRange(index);
+		}
+
+		double best = Math.log(zHit + zRandom);
+		double scale = -1.0 / (2 * sigma * sigma);
+		IntStream.range(0, particles.size()).parallel().forEach(i -> {
+			Particle particle = new Particle(particles.getX(i), particles.getY(i), particles.getHeading(i), 0, 0);
+			double total = 0;
+			int used = 0;
+			for (int b = 0; b < beams; b++)
+			{
+				if (ranges[b] >= maxRange)
+				{
+					continue;
+				}
+				double expected = particle.simulateObservation(map, angles[b], maxRange, occupancyThreshold);
+				double error = ranges[b] - expected;
+				double p = (zHit * Math.exp(error * error * scale)) + zRandom;
+				total += Math.log(p) - best;
+				used++;
+			}
+			ratings[i] = used == 0 ? 0 : Math.exp(total / used);
+		});
+	}
+}
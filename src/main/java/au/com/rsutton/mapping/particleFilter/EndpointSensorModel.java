@@ -0,0 +1,42 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import au.com.rsutton.mapping.probability.ProbabilityMapReader;
+
+/**
+ * The cheapest model, a particle's rating is the average value of the map at
+ * its beam ends. Against a LikelihoodField this is a smoothed count of the
+ * beams that hit something.
+ */
+public class EndpointSensorModel extends BeamEndSensorModel
+{
+
+	private final ProbabilityMapReader map;
+
+	/**
+	 *
+	 * @param headingBinSize
+	 *            in degrees, or 0 to rotate the scan exactly to each
+	 *            particle's heading
+	 */
+	public EndpointSensorModel(ProbabilityMapReader map, double headingBinSize)
+	{
+		super(headingBinSize);
+		this.map = map;
+	}
+
+	ProbabilityMapReader getMap()
+	{
+		return map;
+	}
+
+	@Override
+	double rate(double particleX, double particleY, double[] beamX, double[] beamY, int count)
+	{
+		double total = 0;
+		for (int j = 0; j < count; j++)
+		{
+			total += map.get(particleX + beamX[j], particleY + beamY[j]);
+		}
+		return total / Math.max(1, count);
+	}
+}
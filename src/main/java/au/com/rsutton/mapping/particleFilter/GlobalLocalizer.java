@@ -0,0 +1,380 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+import au.com.rsutton.mapping.probability.ProbabilityMapReader;
+
+/**
+ * Finds where on the map a scan could have been taken from, with no prior
+ * idea of the pose, by branch-and-bound correlative scan matching (Hess et al.
+ * 2016).
+ *
+ * The map is copied into a grid, then into a stack of grids where each cell
+ * of level n holds the maximum of the 2^n x 2^n cells of level 0 starting at
+ * that cell. Scoring a scan against level n therefore bounds the score of
+ * every translation within a 2^n x 2^n block, so whole blocks are discarded
+ * once they can't beat the hypotheses already found.
+ *
+ * A scan scores the mean of the map over its beam ends, the same as the
+ * particle filter's rating.
+ */
+public class GlobalLocalizer
+{
+
+	public static class Hypothesis
+	{
+		private final Pose pose;
+		private final double score;
+
+		Hypothesis(Pose pose, double score)
+		{
+			this.pose = pose;
+			this.score = score;
+		}
+
+		public Pose getPose()
+		{
+			return pose;
+		}
+
+		/**
+		 *
+		 * @return the mean map value at the scan's beam ends, 0 to 1
+		 */
+		public double getScore()
+		{
+			return score;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Hypothesis [" + pose.getX() + "," + pose.getY() + "," + pose.getHeading() + " score=" + score
+					+ "]";
+		}
+	}
+
+	private static final class Candidate
+	{
+		final int heading;
+		final int x;
+		final int y;
+		final int level;
+		final double score;
+
+		Candidate(int heading, int x, int y, int level, double score)
+		{
+			this.heading = heading;
+			this.x = x;
+			this.y = y;
+			this.level = level;
+			this.score = score;
+		}
+	}
+
+	private static final Comparator<Candidate> BEST_FIRST = (a, b) -> Double.compare(b.score, a.score);
+
+	/**
+	 * at most this many beams are matched, the rest add time but little
+	 * information
+	 */
+	private static final int MAX_BEAMS = 200;
+
+	private final double resolution;
+	private final float[][] levels;
+	private final int width;
+	private final int height;
+	private final double originX;
+	private final double originY;
+	private final int minCellX;
+	private final int minCellY;
+	private final int maxCellX;
+	private final int maxCellY;
+
+	/**
+	 *
+	 * @param map
+	 *            typically a LikelihoodField, so a scan a little off the true
+	 *            pose still scores well
+	 * @param resolution
+	 *            in cm of the translations searched, also the precision of
+	 *            the result
+	 * @param levelCount
+	 *            the coarsest level covers 2^(levelCount-1) cells
+	 */
+	public GlobalLocalizer(ProbabilityMapReader map, double resolution, int levelCount)
+	{
+		this.resolution = resolution;
+
+		int mapWidth = (int) Math.ceil((map.getMaxX() - map.getMinX() + map.getBlockSize()) / resolution);
+		int mapHeight = (int) Math.ceil((map.getMaxY() - map.getMinY() + map.getBlockSize()) / resolution);
+
+		// windows starting below the map must still see the map, so pad the
+		// low side by the largest window
+		int pad = (1 << (levelCount - 1)) - 1;
+		width = mapWidth + pad;
+		height = mapHeight + pad;
+		originX = map.getMinX() - (pad * resolution);
+		originY = map.getMinY() - (pad * resolution);
+
+		// the robot can only be within the map
+		minCellX = pad;
+		minCellY = pad;
+		maxCellX = width - 1;
+		maxCellY = height - 1;
+
+		levels = new float[levelCount][];
+		levels[0] = sample(map);
+		for (int level = 1; level < levelCount; level++)
+		{
+			levels[level] = maxOfWindows(levels[level - 1], 1 << (level - 1));
+		}
+	}
+
+	/**
+	 * each cell takes the maximum of the map over the cell, so a scan can't
+	 * miss a narrow peak
+	 */
+	private float[] sample(ProbabilityMapReader map)
+	{
+		float[] grid = new float[width * height];
+		double step = Math.min(resolution, map.getBlockSize());
+		int samples = (int) Math.ceil(resolution / step);
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				double minX = originX + (x * resolution);
+				double minY = originY + (y * resolution);
+				double max = 0;
+				for (int sy = 0; sy < samples; sy++)
+				{
+					for (int sx = 0; sx < samples; sx++)
+					{
+						max = Math.max(max, map.get(minX + (sx * step), minY + (sy * step)));
+					}
+				}
+				grid[(y * width) + x] = (float) max;
+			}
+		}
+		return grid;
+	}
+
+	private float[] maxOfWindows(float[] below, int offset)
+	{
+		float[] grid = new float[width * height];
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				float max = below[(y * width) + x];
+				if (x + offset < width)
+				{
+					max = Math.max(max, below[(y * width) + x + offset]);
+				}
+				if (y + offset < height)
+				{
+					max = Math.max(max, below[((y + offset) * width) + x]);
+					if (x + offset < width)
+					{
+						max = Math.max(max, below[((y + offset) * width) + x + offset]);
+					}
+				}
+				grid[(y * width) + x] = max;
+			}
+		}
+		return grid;
+	}
+
+	/**
+	 *
+	 * @param scan
+	 *            in the robot's frame
+	 * @param maxHypotheses
+	 *            the number of distinct poses wanted
+	 * @param minScore
+	 *            poses scoring below this aren't considered
+	 * @param separation
+	 *            in cm, poses closer than this (and within 4 heading steps)
+	 *            are the same hypothesis
+	 * @return the best scoring poses, best first
+	 */
+	public List<Hypothesis> localize(List<ScanObservation> scan, int maxHypotheses, double minScore,
+			double separation)
+	{
+		double[] beamX = new double[Math.min(scan.size(), MAX_BEAMS)];
+		double[] beamY = new double[beamX.length];
+		double maxRange = resolution;
+		for (int i = 0; i < beamX.length; i++)
+		{
+			// spread the beams used across the scan
+			ScanObservation observation = scan.get((int) ((long) i * scan.size() / beamX.length));
+			beamX[i] = observation.getVector().getX();
+			beamY[i] = observation.getVector().getY();
+			maxRange = Math.max(maxRange, Math.hypot(beamX[i], beamY[i]));
+		}
+		if (beamX.length == 0)
+		{
+			return Collections.emptyList();
+		}
+
+		// the heading step that moves the furthest beam end by one cell
+		double headingStep = Math.acos(1 - ((resolution * resolution) / (2 * maxRange * maxRange)));
+		int headingCount = (int) Math.ceil((2 * Math.PI) / headingStep);
+		headingStep = (2 * Math.PI) / headingCount;
+
+		int[][] offsetX = new int[headingCount][beamX.length];
+		int[][] offsetY = new int[headingCount][beamX.length];
+		for (int h = 0; h < headingCount; h++)
+		{
+			double sin = Math.sin(h * headingStep);
+			double cos = Math.cos(h * headingStep);
+			for (int i = 0; i < beamX.length; i++)
+			{
+				// the robot is at the centre of its cell
+				offsetX[h][i] = (int) Math.round(((beamX[i] * cos) - (beamY[i] * sin)) / resolution);
+				offsetY[h][i] = (int) Math.round(((beamX[i] * sin) + (beamY[i] * cos)) / resolution);
+			}
+		}
+
+		int top = levels.length - 1;
+		int topSize = 1 << top;
+		List<Candidate> candidates = new ArrayList<>();
+		for (int h = 0; h < headingCount; h++)
+		{
+			for (int x = minCellX; x <= maxCellX; x += topSize)
+			{
+				for (int y = minCellY; y <= maxCellY; y += topSize)
+				{
+					double score = score(top, x, y, offsetX[h], offsetY[h]);
+					if (score >= minScore)
+					{
+						candidates.add(new Candidate(h, x, y, top, score));
+					}
+				}
+			}
+		}
+		candidates.sort(BEST_FIRST);
+
+		int headingSeparation = 4;
+		List<Candidate> found = new ArrayList<>();
+		Deque<Candidate> stack = new ArrayDeque<>();
+		for (int i = candidates.size() - 1; i >= 0; i--)
+		{
+			stack.push(candidates.get(i));
+		}
+		List<Candidate> children = new ArrayList<>(4);
+		while (!stack.isEmpty())
+		{
+			Candidate candidate = stack.pop();
+			double bound = found.size() < maxHypotheses ? minScore : found.get(found.size() - 1).score;
+			if (candidate.score < bound || (candidate.score == bound && found.size() == maxHypotheses))
+			{
+				continue;
+			}
+			if (candidate.level == 0)
+			{
+				addDistinct(found, candidate, maxHypotheses, separation / resolution, headingSeparation,
+						headingCount);
+				continue;
+			}
+
+			int level = candidate.level - 1;
+			int half = 1 << level;
+			children.clear();
+			for (int dx = 0; dx <= half; dx += half)
+			{
+				for (int dy = 0; dy <= half; dy += half)
+				{
+					int x = candidate.x + dx;
+					int y = candidate.y + dy;
+					if (x <= maxCellX && y <= maxCellY)
+					{
+						double score = score(level, x, y, offsetX[candidate.heading], offsetY[candidate.heading]);
+						if (score >= bound)
+						{
+							children.add(new Candidate(candidate.heading, x, y, level, score));
+						}
+					}
+				}
+			}
+			// the best child is popped first
+			children.sort(BEST_FIRST);
+			for (int i = children.size() - 1; i >= 0; i--)
+			{
+				stack.push(children.get(i));
+			}
+		}
+
+		List<Hypothesis> result = new ArrayList<>();
+		for (Candidate candidate : found)
+		{
+			double x = originX + ((candidate.x + 0.5) * resolution);
+			double y = originY + ((candidate.y + 0.5) * resolution);
+			result.add(new Hypothesis(new Pose(x, y, Math.toDegrees(candidate.heading * headingStep)),
+					candidate.score));
+		}
+		return result;
+	}
+
+	/**
+	 * keep the best maxHypotheses candidates, best first, replacing a nearby
+	 * candidate rather than adding a second copy of the same pose
+	 */
+	private void addDistinct(List<Candidate> found, Candidate candidate, int maxHypotheses, double separation,
+			int headingSeparation, int headingCount)
+	{
+		for (int i = 0; i < found.size(); i++)
+		{
+			Candidate existing = found.get(i);
+			int headingDifference = Math.abs(existing.heading - candidate.heading);
+			headingDifference = Math.min(headingDifference, headingCount - headingDifference);
+			if (headingDifference <= headingSeparation
+					&& Math.hypot(existing.x - candidate.x, existing.y - candidate.y) <= separation)
+			{
+				if (candidate.score > existing.score)
+				{
+					found.remove(i);
+					break;
+				}
+				return;
+			}
+		}
+		int position = 0;
+		while (position < found.size() && found.get(position).score >= candidate.score)
+		{
+			position++;
+		}
+		found.add(position, candidate);
+		if (found.size() > maxHypotheses)
+		{
+			found.remove(found.size() - 1);
+		}
+	}
+
+	private double score(int level, int x, int y, int[] offsetX, int[] offsetY)
+	{
+		float[] grid = levels[level];
+		double total = 0;
+		for (int i = 0; i < offsetX.length; i++)
+		{
+			int cx = x + offsetX[i];
+			int cy = y + offsetY[i];
+			if (cx >= 0 && cy >= 0 && cx < width && cy < height)
+			{
+				total += grid[(cy * width) + cx];
+			}
+		}
+		return total / offsetX.length;
+	}
+
+	public double getResolution()
+	{
+		return resolution;
+	}
+}
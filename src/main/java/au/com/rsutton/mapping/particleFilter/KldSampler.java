@@ -0,0 +1,138 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.distribution.NormalDistribution;
+
+/**
+ * KLD-sampling (Fox 2003), chooses the number of particles from how many
+ * bins of (x, y, heading) space the particles occupy. Enough particles are
+ * kept that, with probability 1 - delta, the error between the particles and
+ * the true posterior (measured as Kullback-Leibler distance) is below
+ * epsilon.
+ *
+ * A tightly localized filter occupies few bins so needs few particles, a
+ * filter spread across the map needs many more.
+ *
+ * Not safe for concurrent use, the bin table is reused between calls.
+ */
+public class KldSampler
+{
+
+	private final double epsilon;
+	private final double z;
+	private final double binSize;
+	private final double headingBinSize;
+	private final int minParticles;
+	private final int maxParticles;
+
+	private long[] bins = new long[0];
+	private int[] binStamps = new int[0];
+	private int stamp;
+
+	/**
+	 *
+	 * @param epsilon
+	 *            the allowed error
+	 * @param delta
+	 *            the probability of the error exceeding epsilon
+	 * @param binSize
+	 *            in cm
+	 * @param headingBinSize
+	 *            in degrees
+	 */
+	public KldSampler(double epsilon, double delta, double binSize, double headingBinSize, int minParticles,
+			int maxParticles)
+	{
+		this.epsilon = epsilon;
+		this.z = new NormalDistribution(0, 1).inverseCumulativeProbability(1 - delta);
+		this.binSize = binSize;
+		this.headingBinSize = headingBinSize;
+		this.minParticles = minParticles;
+		this.maxParticles = maxParticles;
+	}
+
+	/**
+	 *
+	 * @return the number of particles needed to represent the distribution of
+	 *         the given particles
+	 */
+	public int getParticleCount(ParticleSet particles)
+	{
+		int required = getRequiredParticles(countOccupiedBins(particles), epsilon, z);
+		return Math.max(minParticles, Math.min(maxParticles, required));
+	}
+
+	/**
+	 * the Wilson-Hilferty approximation of the chi-square quantile, with k - 1
+	 * degrees of freedom, divided by 2 epsilon
+	 */
+	static int getRequiredParticles(int occupiedBins, double epsilon, double z)
+	{
+		if (occupiedBins <= 1)
+		{
+			return 0;
+		}
+		double k = occupiedBins - 1;
+		double a = 2.0 / (9.0 * k);
+		double b = 1.0 - a + (Math.sqrt(a) * z);
+		return (int) Math.ceil((k / (2.0 * epsilon)) * b * b * b);
+	}
+
+	int countOccupiedBins(ParticleSet particles)
+	{
+		int size = particles.size();
+		int capacity = Integer.highestOneBit(Math.max(16, size * 2)) << 1;
+		if (bins.length < capacity)
+		{
+			bins = new long[capacity];
+			binStamps = new int[capacity];
+			stamp = 0;
+		}
+		// a new stamp empties the table without clearing it
+		stamp++;
+		if (stamp == 0)
+		{
+			Arrays.fill(binStamps, 0);
+			stamp = 1;
+		}
+
+		int mask = bins.length - 1;
+		int occupied = 0;
+		for (int i = 0; i < size; i++)
+		{
+			long bin = binKey((int) Math.floor(particles.getX(i) / binSize),
+					(int) Math.floor(particles.getY(i) / binSize),
+					(int) Math.floor(normalize(particles.getHeading(i)) / headingBinSize));
+
+			int slot = (int) ((bin * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+			while (true)
+			{
+				if (binStamps[slot] != stamp)
+				{
+					binStamps[slot] = stamp;
+					bins[slot] = bin;
+					occupied++;
+					break;
+				}
+				if (bins[slot] == bin)
+				{
+					break;
+				}
+				slot = (slot + 1) & mask;
+			}
+		}
+		return occupied;
+	}
+
+	private static long binKey(int x, int y, int heading)
+	{
+		return ((x & 0xfffffL) << 40) | ((y & 0xfffffL) << 20) | (heading & 0xfffffL);
+	}
+
+	private static double normalize(double heading)
+	{
+		heading %= 360;
+		return heading < 0 ? heading + 360 : heading;
+	}
+}
@@ -0,0 +1,67 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import au.com.rsutton.mapping.probability.ProbabilityMapReader;
+
+/**
+ * The likelihood field model (Thrun et al., Probabilistic Robotics 6.4), each
+ * beam end is a mixture of a hit, scored by the field, and a random reading.
+ * Beams at or beyond the maximum range are ignored.
+ *
+ * The rating is the geometric mean of the beams' probabilities, normalised so
+ * a perfect fit rates 1. Unlike the endpoint average, one beam far from
+ * anything lowers the rating of the whole scan, but the random term keeps a
+ * few bad beams from ruling a particle out.
+ */
+public class LikelihoodFieldSensorModel extends BeamEndSensorModel
+{
+
+	private final ProbabilityMapReader field;
+	private final double zHit;
+	private final double zRandom;
+	private final double maxRange;
+
+	/**
+	 *
+	 * @param field
+	 *            typically a LikelihoodField, 1 at an obstacle
+	 * @param zHit
+	 *            the weight of the field
+	 * @param zRandom
+	 *            the weight of a random reading
+	 * @param maxRange
+	 *            in cm
+	 */
+	public LikelihoodFieldSensorModel(ProbabilityMapReader field, double zHit, double zRandom, double maxRange,
+			double headingBinSize)
+	{
+		super(headingBinSize);
+		this.field = field;
+		this.zHit = zHit;
+		this.zRandom = zRandom;
+		this.maxRange = maxRange;
+	}
+
+	@Override
+	double rate(double particleX, double particleY, double[] beamX, double[] beamY, int count)
+	{
+		double best = Math.log(zHit + zRandom);
+		double total = 0;
+		int used = 0;
+		double maxRangeSquared = maxRange * maxRange;
+		for (int j = 0; j < count; j++)
+		{
+			if ((beamX[j] * beamX[j]) + (beamY[j] * beamY[j]) >= maxRangeSquared)
+			{
+				continue;
+			}
+			double hit = field.get(particleX + beamX[j], particleY + beamY[j]);
+			total += Math.log((zHit * hit) + zRandom) - best;
+			used++;
+		}
+		if (used == 0)
+		{
+			return 0;
+		}
+		return Math.exp(total / used);
+	}
+}
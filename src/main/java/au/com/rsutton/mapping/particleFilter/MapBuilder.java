@@ -1,13 +1,23 @@
 package au.com.rsutton.mapping.particleFilter;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
 import org.apache.commons.math3.geometry.euclidean.threed.RotationOrder;
@@ -21,13 +31,16 @@ import com.google.common.base.Stopwatch;
 
 import au.com.rsutton.angle.AngleUtil;
 import au.com.rsutton.entryPoint.controllers.HeadingHelper;
-import au.com.rsutton.kalman.RobotPoseSourceNoop;
 import au.com.rsutton.mapping.KitchenMapBuilder;
 import au.com.rsutton.mapping.LoopMapBuilder;
 import au.com.rsutton.mapping.XY;
 import au.com.rsutton.mapping.multimap.ParticleFilterProxy;
+import au.com.rsutton.mapping.probability.CellVisitor;
+import au.com.rsutton.mapping.probability.ConcurrentProbabilityMap;
+import au.com.rsutton.mapping.probability.LikelihoodField;
 import au.com.rsutton.mapping.probability.Occupancy;
 import au.com.rsutton.mapping.probability.ProbabilityMap;
+import au.com.rsutton.mapping.probability.ProbabilityMapFile;
 import au.com.rsutton.mapping.probability.ProbabilityMapIIFc;
 import au.com.rsutton.navigation.Navigator;
 import au.com.rsutton.navigation.NavigatorControl;
@@ -37,6 +50,7 @@ import au.com.rsutton.navigation.graphslam.v3.GraphSlamConstraint;
 import au.com.rsutton.navigation.graphslam.v3.GraphSlamNodeConstructor;
 import au.com.rsutton.navigation.graphslam.v3.GraphSlamNodeImpl;
 import au.com.rsutton.navigation.graphslam.v3.GraphSlamV3;
+import au.com.rsutton.navigation.graphslam.v3.IncrementalPoseGraphSolver;
 import au.com.rsutton.navigation.graphslam.v3.PoseWithMathOperators;
 import au.com.rsutton.navigation.router.RouteOption;
 import au.com.rsutton.robot.RobotInterface;
@@ -67,15 +81,75 @@ public class MapBuilder
 	private static final int CHANGE_COUNTER_RESET = 10;
 	private static final int CHANGE_COUNTER_SWAP_MAP = 5;
 
+	/**
+	 * sub maps with their origin this close to the robot are fitted to the
+	 * scan when choosing which sub map to localize in
+	 */
+	private static final double SUB_MAP_SEARCH_RADIUS = RANGE_LIMIT_FOR_ADD * 2;
+	private static final int SUB_MAP_FIT_ITERATIONS = 10;
+	private static final double MIN_SUB_MAP_SCORE = 0.5;
+
+	/**
+	 * how much better another sub map must fit the scan than the current one
+	 * before handing over to it
+	 */
+	private static final double SUB_MAP_SWITCH_MARGIN = 0.05;
+
+	/**
+	 * the new particle filter takes over after this many localized updates in
+	 * a row, or is abandoned after HANDOVER_TIMEOUT_SECONDS
+	 */
+	private static final int HANDOVER_UPDATES = 5;
+	private static final long HANDOVER_TIMEOUT_SECONDS = 20;
+	private static final double HANDOVER_POSITION_SPREAD = 10;
+	private static final double HANDOVER_HEADING_SPREAD = 3;
+
+	private static final int FULL_SOLVE_INTERVAL = 20;
+
+	private static final int SUB_MAP_FILE_MAGIC = 0x5355424d;
+	private static final int SUB_MAP_FILE_VERSION = 1;
+
+	/**
+	 * the robot is localized in the loaded sub maps from a scan, this many
+	 * hypotheses are tried in each sub map
+	 */
+	private static final double LOAD_LOCALIZE_RESOLUTION = 10;
+	private static final int LOAD_LOCALIZE_LEVELS = 7;
+	private static final int LOAD_LOCALIZE_HYPOTHESES = 3;
+	private static final double LOAD_LOCALIZE_MIN_SCORE = 0.3;
+	private static final double LOAD_LOCALIZE_SEPARATION = 50;
+	private static final long LOAD_SCAN_TIMEOUT_SECONDS = 10;
+
+	private static final File DEFAULT_SUB_MAP_FILE = new File("subMaps.map");
+
+	/**
+	 * where the sub maps are saved as they are built
+	 */
+	private final File subMapFile;
+
+	/**
+	 * the sub maps to start from, null to explore from scratch
+	 */
+	private final File loadFile;
+
+	/**
+	 * every random choice the run makes is split from this seed, logged so the
+	 * run can be repeated
+	 */
+	private final long seed;
+	private final RandomStream simulatorRandom;
+	private final RandomStream targetRandom;
+	private final RandomStream filterRandom;
+
 	double maxUsableDistance = 1000;
 
 	Logger logger = LogManager.getLogger();
 
 	private MapDrawingWindow panel;
 
-	ProbabilityMapIIFc world = new ProbabilityMap(5);
+	ConcurrentProbabilityMap world = new ConcurrentProbabilityMap(5, ProbabilityMap.DEFAULT_PYRAMID_LEVELS);
 
-	ProbabilityMapIIFc slamWorld = new ProbabilityMap(5);
+	ConcurrentProbabilityMap slamWorld = new ConcurrentProbabilityMap(5);
 
 	private NavigatorControl navigatorControl;
 
@@ -123,6 +197,39 @@ public class MapBuilder
 		private Pose mapPose;
 		ProbabilityMapIIFc map;
 		GraphSlamNodeImpl<PoseWithMathOperators> node;
+		private CompletableFuture<LikelihoodField> matchingMap;
+
+		/**
+		 * built on the sub map pool on first use, then shared by every
+		 * particle filter and scan fit against this sub map
+		 */
+		synchronized CompletableFuture<LikelihoodField> buildMatchingMap()
+		{
+			if (matchingMap == null)
+			{
+				matchingMap = CompletableFuture.supplyAsync(() -> ParticleFilterImpl.buildMatchingMap(map),
+						subMapPool);
+			}
+			return matchingMap;
+		}
+
+		/**
+		 * waits for the matching map to be built
+		 */
+		LikelihoodField getMatchingMap()
+		{
+			return buildMatchingMap().join();
+		}
+
+		/**
+		 * 
+		 * @return the matching map, or null if it is still being built
+		 */
+		LikelihoodField getMatchingMapIfBuilt()
+		{
+			CompletableFuture<LikelihoodField> future = buildMatchingMap();
+			return future.isDone() ? future.join() : null;
+		}
 
 		public Pose getSlamMapPose()
 		{
@@ -138,8 +245,43 @@ public class MapBuilder
 
 	SubMapHolder currentMap;
 
+	/**
+	 * the sub maps are fitted on their own pool, so they don't compete with
+	 * the particle filter for the common pool
+	 */
+	private final ForkJoinPool subMapPool = new ForkJoinPool();
+	private final SubMapLocalizer<SubMapHolder> subMapLocalizer = new SubMapLocalizer<>(subMapPool,
+			SUB_MAP_FIT_ITERATIONS);
+	private final AtomicReference<List<ScanObservation>> lastScan = new AtomicReference<>();
+	private SubMapHandover handover;
+
+	/**
+	 * the incremental solves only relinearize around what changed, so the
+	 * whole graph is solved again after each loop closure and every
+	 * FULL_SOLVE_INTERVAL solves
+	 */
+	private final IncrementalPoseGraphSolver<GraphSlamNodeImpl<PoseWithMathOperators>> slamSolver = new IncrementalPoseGraphSolver<>();
+	private int solvesSinceFullSolve;
+
 	GraphSlamV3<GraphSlamNodeImpl<PoseWithMathOperators>, PoseWithMathOperators> slam = new GraphSlamV3<>(
-			getCtorPose());
+			getCtorPose(), slamSolver);
+
+	private void solveSlam()
+	{
+		if (++solvesSinceFullSolve >= FULL_SOLVE_INTERVAL)
+		{
+			slamSolver.requestFullSolve();
+			solvesSinceFullSolve = 0;
+		}
+		slam.solve();
+	}
+
+	private void solveSlamFully()
+	{
+		slamSolver.requestFullSolve();
+		solvesSinceFullSolve = 0;
+		slam.solve();
+	}
 
 	private PoseWithMathOperators createPoseValue(double x, double y, double angle)
 	{
@@ -172,12 +314,51 @@ public class MapBuilder
 	final boolean simulator = false;
 	int maxSpeed = 50;
 
+	/**
+	 * explore from scratch, saving the sub maps to subMaps.map
+	 */
+	public MapBuilder()
+	{
+		this(DEFAULT_SUB_MAP_FILE, null, RandomStream.newSeed());
+	}
+
+	/**
+	 * start from the sub maps saved in the file, saving them back to it as
+	 * they are added to
+	 */
+	public MapBuilder(File subMapFile)
+	{
+		this(subMapFile, subMapFile, RandomStream.newSeed());
+	}
+
+	/**
+	 * 
+	 * @param seed
+	 *            of the run, to repeat a logged run
+	 */
+	public MapBuilder(File subMapFile, long seed)
+	{
+		this(subMapFile, subMapFile, seed);
+	}
+
+	private MapBuilder(File subMapFile, File loadFile, long seed)
+	{
+		this.subMapFile = subMapFile;
+		this.loadFile = loadFile;
+		this.seed = seed;
+		RandomStream random = new RandomStream(seed);
+		simulatorRandom = random.split();
+		targetRandom = random.split();
+		filterRandom = random.split();
+	}
+
 	public void test() throws InterruptedException
 	{
 		try
 		{
 
 			Configurator.setRootLevel(Level.ERROR);
+			logger.error("Map builder seed " + seed);
 			new DataWindow();
 
 			if (simulator)
@@ -187,14 +368,18 @@ public class MapBuilder
 				RobotSimulator robotS;
 				if (useKitchenMap)
 				{
-					robotS = new RobotSimulator(KitchenMapBuilder.buildKitchenMap());
+					ProbabilityMap simulatorMap = KitchenMapBuilder.buildKitchenMap();
+					simulatorMap.createPyramid(ProbabilityMap.DEFAULT_PYRAMID_LEVELS);
+					robotS = new RobotSimulator(simulatorMap, simulatorRandom.nextLong());
 
-					robotS.setLocation(-150, 100, new Random().nextInt(360));
+					robotS.setLocation(-150, 100, simulatorRandom.nextInt(360));
 				} else
 				{
-					robotS = new RobotSimulator(LoopMapBuilder.buildKitchenMap());
+					ProbabilityMap simulatorMap = LoopMapBuilder.buildKitchenMap();
+					simulatorMap.createPyramid(ProbabilityMap.DEFAULT_PYRAMID_LEVELS);
+					robotS = new RobotSimulator(simulatorMap, simulatorRandom.nextLong());
 
-					robotS.setLocation(130, 50, new Random().nextInt(360));
+					robotS.setLocation(130, 50, simulatorRandom.nextInt(360));
 				}
 				this.robot = robotS;
 			} else
@@ -209,6 +394,10 @@ public class MapBuilder
 				public void onMessage(Angle deltaHeading, Distance deltaDistance, List<ScanObservation> robotLocation,
 						boolean bump)
 				{
+					if (robotLocation != null)
+					{
+						lastScan.set(robotLocation);
+					}
 					if (bump)
 					{
 						crashDetected = true;
@@ -241,11 +430,17 @@ public class MapBuilder
 
 			panel.addDataSource(new WrapperForObservedMapInMapUI(world));
 
-			particleFilterProxy = new ParticleFilterProxy(null);
-			this.poseAdjuster = new PoseAdjuster(new Pose(0, 0, 0), new RobotPoseSourceNoop(particleFilterProxy));
+			particleFilterProxy = new ParticleFilterProxy(robot);
+			this.poseAdjuster = new PoseAdjuster(new Pose(0, 0, 0), particleFilterProxy);
 
-			addMap(getZeroPose());
-			currentMap = subMaps.get(0);
+			if (loadFile != null)
+			{
+				loadSubMaps(loadFile);
+			} else
+			{
+				addMap(getZeroPose());
+				saveSubMaps(subMapFile);
+			}
 
 			this.navigatorControl = new Navigator(world, poseAdjuster, getShimmedRobot(robot), maxSpeed);
 
@@ -280,29 +475,16 @@ public class MapBuilder
 
 				update();
 
-				double x = poseAdjuster.getXyPosition().getX().convert(DistanceUnit.CM);
-				double y = poseAdjuster.getXyPosition().getY().convert(DistanceUnit.CM);
-				SubMapHolder nearestmap = findNearestSubMap(x, y);
-				if (nearestmap != currentMap && nearestmap != null)
+				if (handover != null)
 				{
-					Vector3D nearest = new Vector3D(nearestmap.getMapPose().getX(), nearestmap.getMapPose().getY(), 0);
-					Vector3D current = new Vector3D(currentMap.getMapPose().getX(), currentMap.getMapPose().getY(), 0);
-					Vector3D here = new Vector3D(x, y, 0);
-					if (here.distance(current) > here.distance(nearest) + 20 && changeCounter < CHANGE_COUNTER_SWAP_MAP)
+					if (updateHandover())
 					{
-						slam.solve();
-						for (SubMapHolder map : subMaps)
-						{
-							PoseWithMathOperators nodePosition = map.node.getPosition();
-							Pose graphSlamPose = new Pose(nodePosition.getX(), nodePosition.getY(),
-									nodePosition.getAngle());
-							logger.error("Slam Pose: " + graphSlamPose + " actual pose -> " + map.getMapPose());
-
-						}
-
-						setupForSubMapTraversal(nearestmap);
 						changeCounter = CHANGE_COUNTER_RESET;
 					}
+				} else if (changeCounter < CHANGE_COUNTER_SWAP_MAP
+						&& poseAdjuster.getParticleFilterStatus() == ParticleFilterStatus.LOCALIZED)
+				{
+					startHandover();
 				}
 
 				if (poseAdjuster != null && poseAdjuster.getParticleFilterStatus() == ParticleFilterStatus.LOCALIZED)
@@ -314,6 +496,7 @@ public class MapBuilder
 						&& changeCounter < CHANGE_COUNTER_ADD_MAP && localized == true)
 				{
 					// TODO:
+					cancelHandover();
 					navigatorSuspended = true;
 					for (int i = 0; i < 15; i++)
 					{
@@ -323,8 +506,9 @@ public class MapBuilder
 					if (addMap)
 					{
 						addMap(poseAdjuster);
+						saveSubMaps(subMapFile);
 					}
-					slam.solve();
+					solveSlam();
 					for (SubMapHolder map : subMaps)
 					{
 						PoseWithMathOperators nodePosition = map.node.getPosition();
@@ -438,11 +622,38 @@ public class MapBuilder
 		};
 	}
 
+	/**
+	 * the particle filters are created on several threads
+	 */
+	private synchronized long nextFilterSeed()
+	{
+		return filterRandom.nextLong();
+	}
+
 	void addMap(RobotPoseSource pose) throws InterruptedException
 	{
 		ProbabilityMapIIFc map = new SubMapBuilder().buildMap(robot);
-		SubMapHolder currentSubMap = new SubMapHolder(new Pose(pose.getXyPosition().getX().convert(DistanceUnit.CM),
+		SubMapHolder currentSubMap = addSubMap(new Pose(pose.getXyPosition().getX().convert(DistanceUnit.CM),
 				pose.getXyPosition().getY().convert(DistanceUnit.CM), pose.getHeading()), map);
+
+		CountDownLatch latch = new CountDownLatch(2);
+		regernateWorld(world, false, latch);
+		regernateWorld(slamWorld, true, latch);
+		latch.await();
+
+		particleFilterProxy.changeParticleFilter(new ParticleFilterImpl(map, currentSubMap.getMatchingMap(), 1000,
+				DISTANCE_NOISE, HEADING_NOISE, StartPosition.ZERO, robot, null, nextFilterSeed()));
+		poseAdjuster.setPose(currentSubMap.getMapPose());
+
+	}
+
+	/**
+	 * add the sub map to the graph, linked to the current map, and make it the
+	 * current map
+	 */
+	private SubMapHolder addSubMap(Pose pose, ProbabilityMapIIFc map)
+	{
+		SubMapHolder currentSubMap = new SubMapHolder(pose, map);
 		subMaps.add(currentSubMap);
 
 		// TODO: angles are correct, X/Y are broken on slam calculations
@@ -477,7 +688,7 @@ public class MapBuilder
 			currentSubMap.node = slam.addNode("nodeid-" + nodeSeed.incrementAndGet(), slamPose, slamPoseOffset, 1,
 					currentMap.node);
 		}
-		slam.solve();
+		solveSlam();
 		for (SubMapHolder sm : subMaps)
 		{
 			PoseWithMathOperators nodePosition = sm.node.getPosition();
@@ -492,19 +703,164 @@ public class MapBuilder
 		}
 
 		currentMap = currentSubMap;
+		return currentSubMap;
+	}
+
+	/**
+	 * save the sub maps and their poses, so a later session can start from
+	 * them rather than exploring from scratch
+	 */
+	void saveSubMaps(File file) throws IOException
+	{
+		// write alongside and rename over the file, so it is never left half
+		// written and a loaded file that is memory mapped isn't overwritten
+		File directory = file.getAbsoluteFile().getParentFile();
+		File temp = File.createTempFile(file.getName(), ".tmp", directory);
+		try
+		{
+			writeSubMaps(temp);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} finally
+		{
+			Files.deleteIfExists(temp.toPath());
+		}
+	}
+
+	private void writeSubMaps(File file) throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+		{
+			out.writeInt(SUB_MAP_FILE_MAGIC);
+			out.writeInt(SUB_MAP_FILE_VERSION);
+			out.writeInt(subMaps.size());
+			// keep the maps 8 byte aligned
+			out.writeInt(0);
+			for (SubMapHolder subMap : subMaps)
+			{
+				Pose pose = subMap.getMapPose();
+				out.writeDouble(pose.getX());
+				out.writeDouble(pose.getY());
+				out.writeDouble(pose.getHeading());
+			}
+			for (SubMapHolder subMap : subMaps)
+			{
+				if (!(subMap.map instanceof ProbabilityMap))
+				{
+					throw new IOException("Can't save sub map of type " + subMap.map.getClass().getName());
+				}
+				ProbabilityMapFile.write((ProbabilityMap) subMap.map, out);
+			}
+		}
+	}
+
+	/**
+	 * add the sub maps saved by saveSubMaps(), the maps are memory mapped and
+	 * their cells are only read as they are used. The robot is then localized
+	 * in whichever sub map best fits its scan.
+	 */
+	void loadSubMaps(File file) throws IOException, InterruptedException
+	{
+		Stopwatch timer = Stopwatch.createStarted();
+
+		ByteBuffer buffer = ProbabilityMapFile.map(file);
+		if (buffer.getInt() != SUB_MAP_FILE_MAGIC || buffer.getInt() != SUB_MAP_FILE_VERSION)
+		{
+			throw new IOException("Not a sub map file " + file);
+		}
+		int count = buffer.getInt();
+		buffer.getInt();
+
+		List<Pose> poses = new LinkedList<>();
+		for (int i = 0; i < count; i++)
+		{
+			poses.add(new Pose(buffer.getDouble(), buffer.getDouble(), buffer.getDouble()));
+		}
+		for (Pose pose : poses)
+		{
+			addSubMap(pose, ProbabilityMapFile.read(buffer));
+		}
 
 		CountDownLatch latch = new CountDownLatch(2);
 		regernateWorld(world, false, latch);
 		regernateWorld(slamWorld, true, latch);
 		latch.await();
 
-		particleFilterProxy.changeParticleFilter(
-				new ParticleFilterImpl(map, 1000, DISTANCE_NOISE, HEADING_NOISE, StartPosition.ZERO, robot, null));
-		poseAdjuster.setPose(currentSubMap.getMapPose());
+		logger.error("Loaded " + count + " sub maps in " + timer.elapsed(TimeUnit.MILLISECONDS) + "ms");
 
+		localizeInSubMaps();
 	}
 
-	private void regernateWorld(final ProbabilityMapIIFc targetWorld, final boolean useSlam, final CountDownLatch latch)
+	/**
+	 * globally localize the latest scan in each sub map, and start the
+	 * particle filter in the one that fits best. If nothing fits the particle
+	 * filter globally localizes in the first sub map itself.
+	 */
+	private void localizeInSubMaps() throws InterruptedException
+	{
+		List<ScanObservation> scan = waitForScan();
+
+		SubMapHolder bestMap = subMaps.get(0);
+		GlobalLocalizer.Hypothesis best = null;
+		if (scan != null)
+		{
+			List<CompletableFuture<GlobalLocalizer.Hypothesis>> fits = new LinkedList<>();
+			for (SubMapHolder map : subMaps)
+			{
+				fits.add(CompletableFuture.supplyAsync(() -> {
+					List<GlobalLocalizer.Hypothesis> hypotheses = new GlobalLocalizer(map.getMatchingMap(),
+							LOAD_LOCALIZE_RESOLUTION, LOAD_LOCALIZE_LEVELS).localize(scan, LOAD_LOCALIZE_HYPOTHESES,
+									LOAD_LOCALIZE_MIN_SCORE, LOAD_LOCALIZE_SEPARATION);
+					return hypotheses.isEmpty() ? null : hypotheses.get(0);
+				}, subMapPool));
+			}
+			int i = 0;
+			for (CompletableFuture<GlobalLocalizer.Hypothesis> fit : fits)
+			{
+				GlobalLocalizer.Hypothesis hypothesis = fit.join();
+				if (hypothesis != null && (best == null || hypothesis.getScore() > best.getScore()))
+				{
+					best = hypothesis;
+					bestMap = subMaps.get(i);
+				}
+				i++;
+			}
+		}
+
+		currentMap = bestMap;
+		ParticleFilterImpl filter;
+		if (best != null)
+		{
+			logger.error("Localized in sub map " + subMaps.indexOf(bestMap) + " at " + best);
+			filter = new ParticleFilterImpl(currentMap.map, currentMap.getMatchingMap(), 1000, DISTANCE_NOISE,
+					HEADING_NOISE, StartPosition.USE_POSE, robot, best.getPose(), nextFilterSeed());
+			filter.reseed(best.getPose(), HANDOVER_POSITION_SPREAD, HANDOVER_HEADING_SPREAD);
+		} else
+		{
+			logger.error("No sub map fits the scan, localizing globally in the first");
+			filter = new ParticleFilterImpl(currentMap.map, currentMap.getMatchingMap(), 1000, DISTANCE_NOISE,
+					HEADING_NOISE, StartPosition.RANDOM, robot, null, nextFilterSeed());
+		}
+		particleFilterProxy.changeParticleFilter(filter);
+		poseAdjuster.setPose(currentMap.getMapPose());
+	}
+
+	/**
+	 *
+	 * @return the latest scan, or null if none arrived in time
+	 */
+	private List<ScanObservation> waitForScan() throws InterruptedException
+	{
+		Stopwatch timer = Stopwatch.createStarted();
+		while (lastScan.get() == null && timer.elapsed(TimeUnit.SECONDS) < LOAD_SCAN_TIMEOUT_SECONDS)
+		{
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+		return lastScan.get();
+	}
+
+	private void regernateWorld(final ConcurrentProbabilityMap targetWorld, final boolean useSlam,
+			final CountDownLatch latch)
 	{
 		Runnable runner = new Runnable()
 		{
@@ -512,58 +868,40 @@ public class MapBuilder
 			@Override
 			public void run()
 			{
-				targetWorld.erase();
-
-				for (SubMapHolder subMap : subMaps)
-				{
-					int minX = subMap.map.getMinX();
-					int maxX = subMap.map.getMaxX();
-					int minY = subMap.map.getMinY();
-					int maxY = subMap.map.getMaxY();
+				// readers continue to see the previous world until it has been
+				// completely rebuilt
+				targetWorld.update(world -> {
+					world.erase();
 
-					for (int x = minX; x < maxX + 1; x++)
+					for (SubMapHolder subMap : subMaps)
 					{
-						for (int y = minY; y < maxY + 1; y++)
+						Pose pose;
+						if (!useSlam)
 						{
-							double value = subMap.map.get(x, y);
-							Vector3D vector = new Vector3D(x, y, 0);
-							double distance = vector.distance(Vector3D.ZERO);
-							// nearest point is value 1, furthest is 0;
-							double magnetude = Math.max(0, (1000 - distance) / 1000.0);
-							// adjust magnetude to 0 to 0.5
-							magnetude /= 2.0;
-
-							Pose pose;
-							if (!useSlam)
-							{
-								pose = subMap.getMapPose();
-							} else
-							{
-								pose = subMap.getSlamMapPose();
-							}
-							vector = pose.applyTo(vector);
-
-							double targetWorldValue = targetWorld.get((int) vector.getX(), (int) vector.getY());
-
-							if (Math.abs(0.5 - targetWorldValue) < magnetude)
+							pose = subMap.getMapPose();
+						} else
+						{
+							pose = subMap.getSlamMapPose();
+						}
 
+						int blockSize = subMap.map.getBlockSize();
+						CellVisitor visitor = (x, y, value) -> {
+							// sample every cm of the cell, so the rotated cells
+							// leave no holes in the target world
+							int xDirection = x < 0 ? -1 : 1;
+							int yDirection = y < 0 ? -1 : 1;
+							for (int xo = 0; xo < blockSize; xo++)
 							{
-								if (value < 0.5)
-								{
-									targetWorld.resetPoint((int) vector.getX(), (int) vector.getY());
-									targetWorld.updatePoint((int) vector.getX(), (int) vector.getY(), Occupancy.VACANT,
-											0.5 + magnetude, 1);
-								} else if (value > 0.5)
+								for (int yo = 0; yo < blockSize; yo++)
 								{
-									targetWorld.resetPoint((int) vector.getX(), (int) vector.getY());
-									targetWorld.updatePoint((int) vector.getX(), (int) vector.getY(),
-											Occupancy.OCCUPIED, 0.5 + magnetude, 1);
+									mergePoint(world, pose, x + (xo * xDirection), y + (yo * yDirection), value);
 								}
 							}
-
-						}
+						};
+						subMap.map.visitVacant(visitor);
+						subMap.map.visitOccupied(visitor);
 					}
-				}
+				});
 				latch.countDown();
 			}
 		};
@@ -571,79 +909,154 @@ public class MapBuilder
 		new Thread(runner).start();
 	}
 
-	int lastHeading = 0;
+	private void mergePoint(ProbabilityMapIIFc targetWorld, Pose pose, int x, int y, double value)
+	{
+		Vector3D vector = new Vector3D(x, y, 0);
+		double distance = vector.distance(Vector3D.ZERO);
+		// nearest point is value 1, furthest is 0;
+		double magnetude = Math.max(0, (1000 - distance) / 1000.0);
+		// adjust magnetude to 0 to 0.5
+		magnetude /= 2.0;
 
-	private boolean complete = false;
+		vector = pose.applyTo(vector);
 
-	private void setupForSubMapTraversal(SubMapHolder map) throws InterruptedException
-	{
-		navigatorSuspended = true;
+		double targetWorldValue = targetWorld.get((int) vector.getX(), (int) vector.getY());
 
-		robot.freeze(true);
-		robot.publishUpdate();
+		if (Math.abs(0.5 - targetWorldValue) < magnetude)
 
-		boolean stable = false;
-		double x = poseAdjuster.getXyPosition().getX().convert(DistanceUnit.CM);
-		double y = poseAdjuster.getXyPosition().getY().convert(DistanceUnit.CM);
-		double z = poseAdjuster.getHeading();
-		while (!stable)
 		{
-			TimeUnit.MILLISECONDS.sleep(250);
-			double x1 = poseAdjuster.getXyPosition().getX().convert(DistanceUnit.CM);
-			double y1 = poseAdjuster.getXyPosition().getY().convert(DistanceUnit.CM);
-			double z1 = poseAdjuster.getHeading();
-
-			double totalDelta = Math.abs(x - x1) + Math.abs(y - y1) + Math.abs(HeadingHelper.getChangeInHeading(z, z1));
-			z = z1;
-			y = y1;
-			x = x1;
-			if (totalDelta < 5)
+			if (value < 0.5)
 			{
-				stable = true;
-			} else
+				targetWorld.resetPoint((int) vector.getX(), (int) vector.getY());
+				targetWorld.updatePoint((int) vector.getX(), (int) vector.getY(), Occupancy.VACANT, 0.5 + magnetude,
+						1);
+			} else if (value > 0.5)
 			{
-				logger.error("Total Delta: " + totalDelta);
+				targetWorld.resetPoint((int) vector.getX(), (int) vector.getY());
+				targetWorld.updatePoint((int) vector.getX(), (int) vector.getY(), Occupancy.OCCUPIED,
+						0.5 + magnetude, 1);
 			}
-
 		}
+	}
 
-		final DistanceXY currentXY = poseAdjuster.getXyPosition();
-		double currentHeading = poseAdjuster.getHeading();
+	int lastHeading = 0;
 
-		double initialHeading = currentHeading;
+	private boolean complete = false;
 
-		// vector from current map origin to current position
-		Vector3D vector1 = new Vector3D(currentXY.getX().convert(DistanceUnit.CM) - currentMap.getMapPose().getX(),
-				currentXY.getY().convert(DistanceUnit.CM) - currentMap.getMapPose().getY(), 0);
+	/**
+	 * fit the latest scan to the sub maps near the robot, and if one fits
+	 * better than the current sub map start a particle filter on it in the
+	 * background. The current particle filter keeps tracking meanwhile. Sub
+	 * maps whose matching map is still being built are left for a later call.
+	 */
+	private void startHandover()
+	{
+		List<ScanObservation> scan = lastScan.get();
+		if (scan == null)
+		{
+			return;
+		}
+		Vector3D here = getWorldPosition();
+		double heading = poseAdjuster.getHeading();
 
-		// calculate new post to initialise particle filter
-		double angle1 = HeadingHelper.getChangeInHeading(currentHeading, map.getMapPose().heading);
-		Vector3D pos = new Vector3D(currentXY.getX().convert(DistanceUnit.CM),
-				currentXY.getY().convert(DistanceUnit.CM), 0);
-		Pose pose = new Pose(map.getMapPose().applyInverseTo(pos).getX(), map.getMapPose().applyInverseTo(pos).getY(),
-				angle1);
+		List<SubMapLocalizer.Candidate<SubMapHolder>> candidates = new LinkedList<>();
+		for (SubMapHolder map : subMaps)
+		{
+			Vector3D origin = new Vector3D(map.getMapPose().getX(), map.getMapPose().getY(), 0);
+			if (map == currentMap || origin.distance(here) < SUB_MAP_SEARCH_RADIUS)
+			{
+				LikelihoodField matchingMap = map.getMatchingMapIfBuilt();
+				if (matchingMap != null)
+				{
+					candidates.add(
+							new SubMapLocalizer.Candidate<>(map, matchingMap, toSubMapPose(map, here, heading)));
+				}
+			}
+		}
 
-		particleFilterProxy.changeParticleFilter(new ParticleFilterImpl(map.map, 1000, DISTANCE_NOISE, HEADING_NOISE,
-				StartPosition.USE_POSE, robot, pose));
-		poseAdjuster.setPose(map.getMapPose());
+		List<SubMapLocalizer.Match<SubMapHolder>> matches = subMapLocalizer.localize(candidates, scan);
+		if (matches.isEmpty())
+		{
+			return;
+		}
+		double currentScore = 0;
+		for (SubMapLocalizer.Match<SubMapHolder> match : matches)
+		{
+			if (match.getSubMap() == currentMap)
+			{
+				currentScore = match.getScore();
+			}
+		}
+		SubMapLocalizer.Match<SubMapHolder> best = matches.get(0);
+		if (best.getSubMap() != currentMap && best.getScore() >= MIN_SUB_MAP_SCORE
+				&& best.getScore() > currentScore + SUB_MAP_SWITCH_MARGIN)
+		{
+			logger.error("Handing over to sub map " + best.getSubMap().getMapPose() + " " + best
+					+ ", current sub map score " + currentScore);
+			handover = new SubMapHandover(best);
+		}
+	}
 
-		while (poseAdjuster.getParticleFilterStatus() == ParticleFilterStatus.LOCALIZING)
+	/**
+	 * 
+	 * @return true if the new particle filter has taken over
+	 */
+	private boolean updateHandover()
+	{
+		if (handover.pf.isCompletedExceptionally())
 		{
-			TimeUnit.MILLISECONDS.sleep(250);
-			robot.freeze(true);
-			robot.publishUpdate();
+			logger.error("Sub map handover failed");
+			handover = null;
+			return false;
 		}
+		if (handover.pf.isDone() && handover.localizedUpdates >= HANDOVER_UPDATES)
+		{
+			completeHandover(handover.map, handover.pf.join(), handover.poses);
+			handover = null;
+			return true;
+		}
+		if (handover.age.elapsed(TimeUnit.SECONDS) > HANDOVER_TIMEOUT_SECONDS)
+		{
+			logger.error("Sub map handover timed out");
+			cancelHandover();
+		}
+		return false;
+	}
 
-		for (int ctr = 0; ctr < 3; ctr++)
+	private void cancelHandover()
+	{
+		if (handover != null)
 		{
-			TimeUnit.MILLISECONDS.sleep(100);
-			robot.freeze(true);
-			robot.publishUpdate();
+			handover.pf.thenAccept(ParticleFilterImpl::shutdown);
+			handover = null;
 		}
+	}
 
-		// TODO:
-		// DistanceXY newXY = currentXY;
-		DistanceXY newXY = poseAdjuster.getXyPosition();
+	/**
+	 * swap to the new particle filter, and link the sub maps in the graph by
+	 * where each particle filter had the robot at the same moment
+	 */
+	private void completeHandover(SubMapHolder map, ParticleFilterImpl pf, HandoverPoses poses)
+	{
+		final DistanceXY currentXY = poses.currentXY;
+		double initialHeading = poses.currentHeading;
+		DistanceXY subMapXY = poses.subMapXY;
+		double subMapHeading = poses.subMapHeading;
+
+		particleFilterProxy.changeParticleFilter(pf);
+		pf.showUi();
+		poseAdjuster.setPose(map.getMapPose());
+
+		// where the new particle filter has the robot, as the PoseAdjuster
+		// will report it
+		Vector3D newPosition = map.getMapPose().applyTo(new Vector3D(subMapXY.getX().convert(DistanceUnit.CM),
+				subMapXY.getY().convert(DistanceUnit.CM), 0));
+		DistanceXY newXY = new DistanceXY(newPosition.getX(), newPosition.getY(), DistanceUnit.CM);
+		double finalHeading = map.getMapPose().getHeading() + subMapHeading;
+
+		// vector from current map origin to current position
+		Vector3D vector1 = new Vector3D(currentXY.getX().convert(DistanceUnit.CM) - currentMap.getMapPose().getX(),
+				currentXY.getY().convert(DistanceUnit.CM) - currentMap.getMapPose().getY(), 0);
 
 		// vector from newly localized position to origin of new map
 		Vector3D vector2 = new Vector3D(map.getMapPose().getX() - newXY.getX().convert(DistanceUnit.CM),
@@ -657,8 +1070,6 @@ public class MapBuilder
 		Rotation rotation = new Rotation(RotationOrder.XYZ, 0, 0, Math.toRadians(currentMap.getMapPose().getHeading()));
 		xy = rotation.applyInverseTo(xy);
 
-		double finalHeading = poseAdjuster.getHeading();
-
 		// create the pose object
 		double deltaHeading = AngleUtil.delta(initialHeading, finalHeading);
 		logger.error("Initial, final " + initialHeading + " " + finalHeading);
@@ -677,11 +1088,12 @@ public class MapBuilder
 		double certainty = Math.min(0.75, 1.0 / Math.max(1.0, Math.abs(deltaHeading / 1.5)));
 		logger.error("Certainty :" + certainty);
 
-		currentMap.node.addConstraint(map.node, slamPoseOffset, certainty);
+		slam.addConstraint(slamPoseOffset, map.node, certainty, currentMap.node);
 
 		currentMap = map;
 
-		slam.solve();
+		// a loop closure can move the whole graph
+		solveSlamFully();
 		for (SubMapHolder sm : subMaps)
 		{
 			PoseWithMathOperators nodePosition = sm.node.getPosition();
@@ -701,28 +1113,90 @@ public class MapBuilder
 		// TODO: one day we will want to wait when using the map for navigation
 
 		// latch.await();
+	}
 
-		navigatorSuspended = false;
+	private Vector3D getWorldPosition()
+	{
+		DistanceXY xy = poseAdjuster.getXyPosition();
+		return new Vector3D(xy.getX().convert(DistanceUnit.CM), xy.getY().convert(DistanceUnit.CM), 0);
 	}
 
-	private SubMapHolder findNearestSubMap(double x, double y)
+	/**
+	 * 
+	 * @return a pose in the world as seen from the sub map
+	 */
+	private Pose toSubMapPose(SubMapHolder map, Vector3D position, double heading)
 	{
-		double distance = Double.MAX_VALUE;
+		Vector3D local = map.getMapPose().applyInverseTo(position);
+		return new Pose(local.getX(), local.getY(), HeadingHelper.getChangeInHeading(heading, map.getMapPose().heading));
+	}
 
-		Vector3D pos = new Vector3D(x, y, 0);
-		SubMapHolder bestMap = null;
-		for (SubMapHolder map : subMaps)
+	/**
+	 * where the new particle filter has the robot in its sub map, and where
+	 * the current one has it in the world, taken together
+	 */
+	static class HandoverPoses
+	{
+		final DistanceXY subMapXY;
+		final double subMapHeading;
+		final DistanceXY currentXY;
+		final double currentHeading;
+
+		HandoverPoses(DistanceXY subMapXY, double subMapHeading, DistanceXY currentXY, double currentHeading)
 		{
-			Vector3D mapPose = new Vector3D(map.getMapPose().x, map.getMapPose().y, 0);
-			double dis = mapPose.distance(pos);
-			if (dis < distance)
-			{
-				distance = dis;
-				bestMap = map;
-			}
+			this.subMapXY = subMapXY;
+			this.subMapHeading = subMapHeading;
+			this.currentXY = currentXY;
+			this.currentHeading = currentHeading;
+		}
+	}
+
+	/**
+	 * a particle filter warming up on another sub map in the background, it
+	 * tracks the robot alongside the current particle filter until it has
+	 * settled. It has no window unless it takes over.
+	 */
+	class SubMapHandover implements ParticleFilterListener
+	{
+		final SubMapHolder map;
+		final Stopwatch age = Stopwatch.createStarted();
+		final CompletableFuture<ParticleFilterImpl> pf;
+
+		volatile int localizedUpdates;
+		volatile HandoverPoses poses;
+
+		SubMapHandover(SubMapLocalizer.Match<SubMapHolder> match)
+		{
+			map = match.getSubMap();
+			// the correction the fit made to the predicted pose
+			final double dx = match.getPose().getX() - match.getPredictedPose().getX();
+			final double dy = match.getPose().getY() - match.getPredictedPose().getY();
+			final double dh = HeadingHelper.getChangeInHeading(match.getPose().getHeading(),
+					match.getPredictedPose().getHeading());
+			// drawn here rather than on the pool, so the order is the same
+			final long filterSeed = nextFilterSeed();
+
+			pf = CompletableFuture.supplyAsync(() -> {
+				// the robot has moved on since the scan was fitted
+				Pose predicted = toSubMapPose(map, getWorldPosition(), poseAdjuster.getHeading());
+				Pose start = new Pose(predicted.getX() + dx, predicted.getY() + dy, predicted.getHeading() + dh);
+
+				ParticleFilterImpl filter = new ParticleFilterImpl(map.map, map.getMatchingMap(), 1000, DISTANCE_NOISE,
+						HEADING_NOISE, StartPosition.USE_POSE, robot, start, filterSeed, false);
+				filter.reseed(start, HANDOVER_POSITION_SPREAD, HANDOVER_HEADING_SPREAD);
+				filter.addListener(this);
+				return filter;
+			}, subMapPool);
 		}
 
-		return bestMap;
+		@Override
+		public void update(DistanceXY averagePosition, Angle averageHeading, double stdDev,
+				List<ScanObservation> particleFilterObservationSet, ParticleFilterStatus status)
+		{
+			poses = new HandoverPoses(averagePosition, averageHeading.getDegrees(), poseAdjuster.getXyPosition(),
+					poseAdjuster.getHeading());
+			localizedUpdates = status == ParticleFilterStatus.LOCALIZED ? localizedUpdates + 1 : 0;
+		}
 	}
 
 	public void update() throws InterruptedException
@@ -762,7 +1236,7 @@ public class MapBuilder
 
 			} else
 			{
-				SubMapHolder map = subMaps.get((int) (Math.random() * subMaps.size()));
+				SubMapHolder map = subMaps.get(targetRandom.nextInt(subMaps.size()));
 				navigatorControl.calculateRouteTo((int) map.getMapPose().getX(), (int) map.getMapPose().getY(), null,
 						RouteOption.ROUTE_THROUGH_CLEAR_SPACE_ONLY);
 
@@ -0,0 +1,90 @@
+package au.com.rsutton.mapping.particleFilter;
+
+/**
+ * Sums odometry updates into a single displacement in the robot's frame as
+ * it was when accumulation started, so motion arriving while the particle
+ * filter is busy is applied later rather than lost.
+ *
+ * Safe for one thread to add while another takes.
+ */
+public class OdometryAccumulator
+{
+
+	/**
+	 * A move relative to the robot's pose at the start, x is to the robot's
+	 * right and y is straight ahead.
+	 */
+	public static class Displacement
+	{
+		private final double x;
+		private final double y;
+		private final double deltaHeading;
+		private final double distanceTravelled;
+
+		Displacement(double x, double y, double deltaHeading, double distanceTravelled)
+		{
+			this.x = x;
+			this.y = y;
+			this.deltaHeading = deltaHeading;
+			this.distanceTravelled = distanceTravelled;
+		}
+
+		public double getX()
+		{
+			return x;
+		}
+
+		public double getY()
+		{
+			return y;
+		}
+
+		/**
+		 * in degrees
+		 */
+		public double getDeltaHeading()
+		{
+			return deltaHeading;
+		}
+
+		/**
+		 * the total distance moved, which may be more than the length of the
+		 * displacement
+		 */
+		public double getDistanceTravelled()
+		{
+			return distanceTravelled;
+		}
+	}
+
+	private double x;
+	private double y;
+	private double heading;
+	private double distanceTravelled;
+
+	/**
+	 * turn then move, as ParticleUpdate
+	 */
+	public synchronized void add(double deltaHeading, double distance)
+	{
+		heading += deltaHeading;
+		double radians = Math.toRadians(heading);
+		x -= distance * Math.sin(radians);
+		y += distance * Math.cos(radians);
+		distanceTravelled += Math.abs(distance);
+	}
+
+	/**
+	 * 
+	 * @return everything added since the last take, and start again from zero
+	 */
+	public synchronized Displacement take()
+	{
+		Displacement displacement = new Displacement(x, y, heading, distanceTravelled);
+		x = 0;
+		y = 0;
+		heading = 0;
+		distanceTravelled = 0;
+		return displacement;
+	}
+}
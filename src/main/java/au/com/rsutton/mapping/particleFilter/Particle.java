@@ -2,13 +2,13 @@ package au.com.rsutton.mapping.particleFilter;
 
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
 import org.apache.commons.math3.geometry.euclidean.threed.RotationOrder;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
-import au.com.rsutton.mapping.probability.ProbabilityMapIIFc;
+import au.com.rsutton.mapping.probability.MapPyramid;
+import au.com.rsutton.mapping.probability.ProbabilityMapReader;
 
 public class Particle
 {
@@ -18,7 +18,10 @@ public class Particle
 	double heading;
 	private double distanceNoise;
 	private double headingNoise;
-	Random rand = new Random();
+	/**
+	 * created when first needed, most particles are only used to ray cast
+	 */
+	private RandomStream rand;
 
 	List<ScanReference> scanReferences = new LinkedList<>();
 	private double rescaledRating;
@@ -34,6 +37,17 @@ public class Particle
 		this.headingNoise = headingNoise;
 	}
 
+	/**
+	 * 
+	 * @param rand
+	 *            the source of the particle's motion noise
+	 */
+	public Particle(double x, double y, double heading, double distanceNoise, double headingNoise, RandomStream rand)
+	{
+		this(x, y, heading, distanceNoise, headingNoise);
+		this.rand = rand;
+	}
+
 	public Particle(Particle selectedParticle)
 	{
 		this.x = selectedParticle.x;
@@ -41,6 +55,7 @@ public class Particle
 		this.heading = selectedParticle.heading;
 		this.distanceNoise = selectedParticle.distanceNoise;
 		this.headingNoise = selectedParticle.headingNoise;
+		this.rand = selectedParticle.getRandom().split();
 
 		addNoise(1);
 
@@ -82,8 +97,18 @@ public class Particle
 
 	}
 
+	private RandomStream getRandom()
+	{
+		if (rand == null)
+		{
+			rand = new RandomStream(RandomStream.newSeed());
+		}
+		return rand;
+	}
+
 	private void addNoise(double distanceTravelled)
 	{
+		RandomStream rand = getRandom();
 
 		// the amount of noise will affect the size of the point cloud
 		// too little noise and it will fail to track
@@ -106,7 +131,7 @@ public class Particle
 
 	double totalObservations = 0;
 
-	public void addObservation(ProbabilityMapIIFc currentWorld, List<ScanObservation> observations, boolean isLost)
+	public void addObservation(ProbabilityMapReader currentWorld, List<ScanObservation> observations, boolean isLost)
 	{
 
 		for (ScanObservation obs : observations)
@@ -128,7 +153,7 @@ public class Particle
 	 * @param occupancyThreshold
 	 * @return
 	 */
-	public double scoreObservation(ProbabilityMapIIFc currentWorld, ScanObservation observation)
+	public double scoreObservation(ProbabilityMapReader currentWorld, ScanObservation observation)
 	{
 
 		Rotation rotation = new Rotation(RotationOrder.XYZ, 0.0, 0.0, Math.toRadians(heading));
@@ -148,7 +173,7 @@ public class Particle
 	 * @param occupancyThreshold
 	 * @return
 	 */
-	public double simulateObservation(ProbabilityMapIIFc currentWorld, double angle, double maxDistance,
+	public double simulateObservation(ProbabilityMapReader currentWorld, double angle, double maxDistance,
 			double occupancyThreshold)
 	{
 
@@ -158,27 +183,89 @@ public class Particle
 		double hr = Math.toRadians(heading);
 		Rotation rotation = new Rotation(RotationOrder.XYZ, 0.0, 0.0, hr + Math.toRadians(angle));
 		unit = rotation.applyTo(unit);
-		Vector3D location = new Vector3D(x, y, 0);
-		// step size half the world block size
+
+		MapPyramid pyramid = currentWorld.getPyramid();
 
 		double bestMatchDistance = maxDistance;
 		double bestMatchOccupancy = 0;
 
-		for (int i = 0; i < maxDistance; i += inc)
+		// step size the world block size
+		int step = 0;
+		while (step * inc < maxDistance)
 		{
-			double d = currentWorld.get(location.getX(), location.getY());
+			double sx = x + (step * unit.getX());
+			double sy = y + (step * unit.getY());
+
+			if (pyramid != null)
+			{
+				// skip the largest empty coarse cell we're in, nothing in it
+				// could be the best match
+				int skipTo = step;
+				int cellX = pyramid.toCell(sx);
+				int cellY = pyramid.toCell(sy);
+				for (int level = pyramid.getLevelCount() - 1; level > 0; level--)
+				{
+					double max = pyramid.getMax(level, cellX >> level, cellY >> level);
+					if (max < occupancyThreshold || max <= bestMatchOccupancy)
+					{
+						skipTo = getExitStep(pyramid, level, cellX, cellY, sx, sy, unit, step);
+						break;
+					}
+				}
+				if (skipTo > step)
+				{
+					step = skipTo;
+					continue;
+				}
+			}
+
+			double d = currentWorld.get(sx, sy);
 
 			if (d >= occupancyThreshold && d > bestMatchOccupancy)
 			{
-				bestMatchDistance = i;
+				bestMatchDistance = step * inc;
 				bestMatchOccupancy = d;
 
 			}
-			location = location.add(unit);
+			step++;
 		}
 		return bestMatchDistance;
 	}
 
+	/**
+	 * 
+	 * @return the first step along the ray that may lie outside the coarse cell
+	 *         at the given level containing the level 0 cell
+	 */
+	private int getExitStep(MapPyramid pyramid, int level, int cellX, int cellY, double sx, double sy, Vector3D unit,
+			int step)
+	{
+		int size = 1 << level;
+		int minCellX = (cellX >> level) << level;
+		int minCellY = (cellY >> level) << level;
+
+		double exitX = getExitSteps(sx, unit.getX(), pyramid.getCellMin(minCellX),
+				pyramid.getCellMax(minCellX + size - 1));
+		double exitY = getExitSteps(sy, unit.getY(), pyramid.getCellMin(minCellY),
+				pyramid.getCellMax(minCellY + size - 1));
+
+		// back off a little so a step on the boundary is never skipped
+		return step + (int) Math.ceil(Math.min(exitX, exitY) - 0.000001);
+	}
+
+	private double getExitSteps(double position, double stepSize, double min, double max)
+	{
+		if (stepSize > 0)
+		{
+			return (max - position) / stepSize;
+		}
+		if (stepSize < 0)
+		{
+			return (min - position) / stepSize;
+		}
+		return Double.MAX_VALUE;
+	}
+
 	public double getX()
 	{
 		return x;
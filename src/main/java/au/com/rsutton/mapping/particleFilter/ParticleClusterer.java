@@ -0,0 +1,207 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import au.com.rsutton.angle.AngleUtil;
+import au.com.rsutton.entryPoint.controllers.HeadingHelper;
+
+/**
+ * Splits the particles into clusters, so a cloud with two modes (eg. either
+ * end of a symmetric corridor) is reported as two poses rather than one
+ * average pose between them.
+ *
+ * Particles are binned over (x, y, heading), then bins that touch, including
+ * diagonally and across 0/360 degrees, are joined into one cluster.
+ */
+public class ParticleClusterer
+{
+
+	private final double binSize;
+	private final double headingBinSize;
+	private final int headingBins;
+
+	/**
+	 *
+	 * @param binSize
+	 *            in cm
+	 * @param headingBinSize
+	 *            in degrees
+	 */
+	public ParticleClusterer(double binSize, double headingBinSize)
+	{
+		this.binSize = binSize;
+		this.headingBins = (int) Math.ceil(360.0 / headingBinSize);
+		this.headingBinSize = 360.0 / headingBins;
+	}
+
+	/**
+	 *
+	 * @return the clusters, heaviest first
+	 */
+	public List<PoseHypothesis> cluster(ParticleSet particles)
+	{
+		int size = particles.size();
+		if (size == 0)
+		{
+			return new ArrayList<>();
+		}
+
+		// bin the particles
+		Map<Long, Integer> binIndex = new HashMap<>();
+		List<long[]> binCells = new ArrayList<>();
+		int[] particleBin = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			int bx = (int) Math.floor(particles.getX(i) / binSize);
+			int by = (int) Math.floor(particles.getY(i) / binSize);
+			int bh = headingBin(particles.getHeading(i));
+			long key = binKey(bx, by, bh);
+			Integer index = binIndex.get(key);
+			if (index == null)
+			{
+				index = binCells.size();
+				binIndex.put(key, index);
+				binCells.add(new long[] { bx, by, bh });
+			}
+			particleBin[i] = index;
+		}
+
+		// join touching bins
+		int[] parent = new int[binCells.size()];
+		for (int i = 0; i < parent.length; i++)
+		{
+			parent[i] = i;
+		}
+		for (int i = 0; i < parent.length; i++)
+		{
+			long[] cell = binCells.get(i);
+			for (int dx = -1; dx <= 1; dx++)
+			{
+				for (int dy = -1; dy <= 1; dy++)
+				{
+					for (int dh = -1; dh <= 1; dh++)
+					{
+						int bh = (int) ((cell[2] + dh + headingBins) % headingBins);
+						Integer neighbour = binIndex.get(binKey((int) cell[0] + dx, (int) cell[1] + dy, bh));
+						if (neighbour != null)
+						{
+							union(parent, i, neighbour);
+						}
+					}
+				}
+			}
+		}
+
+		int[] clusterOf = new int[parent.length];
+		int clusterCount = 0;
+		for (int i = 0; i < parent.length; i++)
+		{
+			if (find(parent, i) == i)
+			{
+				clusterOf[i] = clusterCount++;
+			}
+		}
+
+		// weighted means, the heading as a circular mean
+		double[] weight = new double[clusterCount];
+		double[] sumX = new double[clusterCount];
+		double[] sumY = new double[clusterCount];
+		double[] sumCos = new double[clusterCount];
+		double[] sumSin = new double[clusterCount];
+		int[] count = new int[clusterCount];
+		int[] particleCluster = new int[size];
+		double totalWeight = 0;
+		for (int i = 0; i < size; i++)
+		{
+			int cluster = clusterOf[find(parent, particleBin[i])];
+			particleCluster[i] = cluster;
+			double w = particles.getWeight(i);
+			double radians = Math.toRadians(particles.getHeading(i));
+			weight[cluster] += w;
+			sumX[cluster] += w * particles.getX(i);
+			sumY[cluster] += w * particles.getY(i);
+			sumCos[cluster] += w * Math.cos(radians);
+			sumSin[cluster] += w * Math.sin(radians);
+			count[cluster]++;
+			totalWeight += w;
+		}
+
+		double[] meanX = new double[clusterCount];
+		double[] meanY = new double[clusterCount];
+		double[] meanHeading = new double[clusterCount];
+		for (int c = 0; c < clusterCount; c++)
+		{
+			double w = Math.max(weight[c], Double.MIN_VALUE);
+			meanX[c] = sumX[c] / w;
+			meanY[c] = sumY[c] / w;
+			meanHeading[c] = AngleUtil.normalize(Math.toDegrees(Math.atan2(sumSin[c], sumCos[c])));
+		}
+
+		double[][][] covariance = new double[clusterCount][3][3];
+		for (int i = 0; i < size; i++)
+		{
+			int c = particleCluster[i];
+			double w = particles.getWeight(i);
+			double[] d = { particles.getX(i) - meanX[c], particles.getY(i) - meanY[c],
+					HeadingHelper.getChangeInHeading(particles.getHeading(i), meanHeading[c]) };
+			for (int r = 0; r < 3; r++)
+			{
+				for (int k = 0; k < 3; k++)
+				{
+					covariance[c][r][k] += w * d[r] * d[k];
+				}
+			}
+		}
+
+		List<PoseHypothesis> hypotheses = new ArrayList<>(clusterCount);
+		for (int c = 0; c < clusterCount; c++)
+		{
+			double w = Math.max(weight[c], Double.MIN_VALUE);
+			for (int r = 0; r < 3; r++)
+			{
+				for (int k = 0; k < 3; k++)
+				{
+					covariance[c][r][k] /= w;
+				}
+			}
+			double share = totalWeight > 0 ? weight[c] / totalWeight : (double) count[c] / size;
+			hypotheses.add(new PoseHypothesis(meanX[c], meanY[c], meanHeading[c], share, count[c], covariance[c]));
+		}
+		hypotheses.sort((a, b) -> Double.compare(b.getWeight(), a.getWeight()));
+		return hypotheses;
+	}
+
+	private int headingBin(double heading)
+	{
+		int bin = (int) Math.floor(AngleUtil.normalize(heading) / headingBinSize);
+		return Math.min(bin, headingBins - 1);
+	}
+
+	private static long binKey(int x, int y, int heading)
+	{
+		return ((x & 0xfffffL) << 40) | ((y & 0xfffffL) << 20) | (heading & 0xfffffL);
+	}
+
+	private static int find(int[] parent, int i)
+	{
+		while (parent[i] != i)
+		{
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+	private static void union(int[] parent, int a, int b)
+	{
+		int rootA = find(parent, a);
+		int rootB = find(parent, b);
+		if (rootA != rootB)
+		{
+			parent[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+		}
+	}
+}
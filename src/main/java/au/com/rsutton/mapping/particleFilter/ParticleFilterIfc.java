@@ -1,5 +1,7 @@
 package au.com.rsutton.mapping.particleFilter;
 
+import java.util.List;
+
 import au.com.rsutton.ui.DataSourceMap;
 import au.com.rsutton.ui.DataSourcePoint;
 
@@ -22,4 +24,10 @@ public interface ParticleFilterIfc
 
 	public abstract void removeListener(ParticleFilterListener listener);
 
+	/**
+	 * 
+	 * @return the clusters of particles, heaviest first
+	 */
+	public abstract List<PoseHypothesis> getHypotheses();
+
 }
\ No newline at end of file
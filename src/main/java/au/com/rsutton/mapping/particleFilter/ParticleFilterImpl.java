@@ -4,32 +4,26 @@ import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
 import org.apache.commons.math3.geometry.euclidean.threed.RotationOrder;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import com.google.common.base.Stopwatch;
 
-import au.com.rsutton.angle.AngleUtil;
-import au.com.rsutton.angle.WeightedAngle;
 import au.com.rsutton.hazelcast.DataLogValue;
 import au.com.rsutton.mapping.array.Dynamic2dSparseArrayFactory;
-import au.com.rsutton.mapping.array.SparseArray;
-import au.com.rsutton.mapping.probability.Occupancy;
-import au.com.rsutton.mapping.probability.ProbabilityMap;
+import au.com.rsutton.mapping.array.FloatSparseArray;
+import au.com.rsutton.mapping.probability.LikelihoodField;
 import au.com.rsutton.mapping.probability.ProbabilityMapIIFc;
 import au.com.rsutton.navigation.feature.DistanceXY;
 import au.com.rsutton.navigation.feature.RobotLocationDeltaListener;
@@ -48,10 +42,65 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 {
 
 	private static final double MINIMUM_MEANINGFUL_RATING = 0.0001;
-	private final List<Particle> particles = new CopyOnWriteArrayList<>();
+
+	/**
+	 * spread in cm of the score around each occupied cell of the matching map
+	 */
+	private static final double MATCH_SIGMA = 8;
+	private static final double MATCH_RADIUS = 25;
+
+	/**
+	 * resample once the effective sample size drops below this fraction of
+	 * the particles
+	 */
+	private static final double RESAMPLE_THRESHOLD = 0.5;
+
+	/**
+	 * or when the particle count should change by more than this fraction
+	 */
+	private static final double PARTICLE_COUNT_TOLERANCE = 0.2;
+
+	/**
+	 * translation resolution in cm of global localization, and the spread of
+	 * the particles seeded around each pose found
+	 */
+	private static final double GLOBAL_RESOLUTION = 10;
+	private static final int GLOBAL_LEVELS = 7;
+	private static final int GLOBAL_HYPOTHESES = 5;
+	private static final double GLOBAL_MIN_SCORE = 0.3;
+	private static final double GLOBAL_HEADING_SPREAD = 2;
+
+	private static final int REFINEMENT_ITERATIONS = 10;
+
+	/**
+	 * a refined pose further than this from the particles (cm) is a poor fit
+	 */
+	private static final double MAX_REFINEMENT_DISTANCE = 30;
+
+	/**
+	 * particles within a bin of each other belong to the same cluster
+	 */
+	private static final double CLUSTER_BIN_SIZE = 25;
+	private static final double CLUSTER_HEADING_BIN_SIZE = 10;
+
+	private Resampler resampler = new SystematicResampler();
+
+	/**
+	 * 5% error with 99% confidence, over 50cm x 50cm x 10 degree bins
+	 */
+	private KldSampler kldSampler = new KldSampler(0.05, 0.01, 50, 10, 100, 5000);
+	private final ParticleSet particles;
 	private volatile int particleQty;
 	private volatile double averageHeading;
 
+	private final ParticleClusterer clusterer = new ParticleClusterer(CLUSTER_BIN_SIZE, CLUSTER_HEADING_BIN_SIZE);
+
+	/**
+	 * statistics of the particles, updated once per filter cycle
+	 */
+	private volatile List<PoseHypothesis> hypotheses = Collections.emptyList();
+	private volatile double stdDev = Double.MAX_VALUE;
+
 	private volatile double bestScanMatchScore = 0;
 
 	private AtomicReference<List<ScanObservation>> lastObservation = new AtomicReference<>();
@@ -65,25 +114,83 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 	Stopwatch lastResample = Stopwatch.createStarted();
 	volatile private double bestRawScore;
 
-	private boolean stop = false;
+	private volatile boolean stop = false;
 	private RobotInterface robot;
-	private ProbabilityMapIIFc map;
+	private LikelihoodField map;
+	private volatile SensorModel sensorModel;
+	private PoseRefiner poseRefiner;
+	private volatile PoseRefiner.Result refinedPose;
+	private GlobalLocalizer globalLocalizer;
+	private volatile boolean globalLocalizationRequested;
 	private RobotLocationDeltaListener observer;
-	private MapDrawingWindow ui;
+	private final ProbabilityMapIIFc occupancyMap;
+	private volatile MapDrawingWindow ui;
 
 	Logger logger = LogManager.getLogger();
 
+	/**
+	 * for the filter's own random choices, the particles have a stream split
+	 * from it
+	 */
+	private final RandomStream random;
+
 	public ParticleFilterImpl(ProbabilityMapIIFc map, int particles, double distanceNoise, double headingNoise,
 			StartPosition startPosition, RobotInterface robot, Pose pose)
 	{
+		this(map, particles, distanceNoise, headingNoise, startPosition, robot, pose, RandomStream.newSeed());
+	}
+
+	/**
+	 * 
+	 * @param seed
+	 *            of every random choice the filter makes, given the same seed
+	 *            and the same sequence of updates the filter produces the
+	 *            same particles
+	 */
+	public ParticleFilterImpl(ProbabilityMapIIFc map, int particles, double distanceNoise, double headingNoise,
+			StartPosition startPosition, RobotInterface robot, Pose pose, long seed)
+	{
+		this(map, buildMatchingMap(map), particles, distanceNoise, headingNoise, startPosition, robot, pose, seed);
+	}
+
+	/**
+	 * 
+	 * @param matchingMap
+	 *            built from map by buildMatchingMap(), so a map that is
+	 *            localized against repeatedly is only processed once
+	 */
+	public ParticleFilterImpl(ProbabilityMapIIFc map, LikelihoodField matchingMap, int particles, double distanceNoise,
+			double headingNoise, StartPosition startPosition, RobotInterface robot, Pose pose, long seed)
+	{
+		this(map, matchingMap, particles, distanceNoise, headingNoise, startPosition, robot, pose, seed, true);
+	}
+
+	/**
+	 * 
+	 * @param showUi
+	 *            false to not open a window until showUi() is called, eg. for
+	 *            a filter that may be short lived
+	 */
+	public ParticleFilterImpl(ProbabilityMapIIFc map, LikelihoodField matchingMap, int particles, double distanceNoise,
+			double headingNoise, StartPosition startPosition, RobotInterface robot, Pose pose, long seed,
+			boolean showUi)
+	{
+		logger.info("Particle filter seed " + seed);
+		this.random = new RandomStream(seed);
 		this.headingNoise = headingNoise;
 		this.distanceNoise = distanceNoise;
 		this.robot = robot;
-		this.map = buildMatchingMap(map);
+		this.map = matchingMap;
+		this.occupancyMap = map;
+		this.sensorModel = new EndpointSensorModel(this.map, ParticleSet.DEFAULT_HEADING_BIN_SIZE);
+		this.particles = new ParticleSet(particles, distanceNoise, headingNoise, ParticleSet.DEFAULT_HEADING_BIN_SIZE,
+				random.split());
 		particleQty = particles;
 		if (startPosition == StartPosition.RANDOM)
 		{
+			// placeholder until the first scan can be globally localized
 			createRandomStart();
+			globalLocalizationRequested = true;
 		} else if (startPosition == StartPosition.USE_POSE)
 		{
 			createFixedStart((int) pose.getX(), (int) pose.getY(), (int) pose.getHeading());
@@ -94,43 +201,108 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 
 		observer = getObserver();
 
+		worker = new Thread(this::processUpdates, "Particle Filter");
+		worker.setDaemon(true);
+		worker.start();
+
 		robot.addMessageListener(observer);
 
-		ui = new MapDrawingWindow("Particle Filter", 1200, 0, 250);
-		addDataSoures(ui);
-		ui.addDataSource(map, new Color(255, 255, 255));
+		if (showUi)
+		{
+			showUi();
+		}
 	}
 
-	ProbabilityMap buildMatchingMap(ProbabilityMapIIFc source)
+	/**
+	 * open a window showing the particles, if there isn't one already. Call
+	 * from the thread that calls shutdown().
+	 */
+	public void showUi()
 	{
-		ProbabilityMap matchMap = new ProbabilityMap(5);
-		matchMap.setDefaultValue(0.0);
-		matchMap.erase();
-		int radius = 25;
+		if (ui == null && !stop)
+		{
+			ui = new MapDrawingWindow("Particle Filter", 1200, 0, 250);
+			addDataSoures(ui);
+			ui.addDataSource(occupancyMap, new Color(255, 255, 255));
+		}
+	}
 
-		int minX = source.getMinX();
-		int maxX = source.getMaxX();
-		int minY = source.getMinY();
-		int maxY = source.getMaxY();
+	public void setResampler(Resampler resampler)
+	{
+		this.resampler = resampler;
+	}
 
-		for (int x = minX; x < maxX + 1; x++)
-		{
-			for (int y = minY; y < maxY + 1; y++)
-			{
-				double value = source.get(x, y);
+	public void setKldSampler(KldSampler kldSampler)
+	{
+		this.kldSampler = kldSampler;
+	}
 
-				if (value > 0.5)
-				{
-					matchMap.updatePoint(x, y, Occupancy.OCCUPIED, 1, radius);
-				}
+	/**
+	 * eg. a LikelihoodFieldSensorModel over getMatchingMap(), or a
+	 * BeamSensorModel over the occupancy map. The default is an
+	 * EndpointSensorModel over getMatchingMap().
+	 */
+	public void setSensorModel(SensorModel sensorModel)
+	{
+		this.sensorModel = sensorModel;
+	}
 
-			}
-		}
+	public LikelihoodField getMatchingMap()
+	{
+		return map;
+	}
 
+	/**
+	 * fit each scan to the map, starting from the particles' pose, and publish
+	 * the fitted pose rather than the particles' average
+	 */
+	public void setPoseRefinement(boolean enabled)
+	{
+		poseRefiner = enabled ? new PoseRefiner(map, REFINEMENT_ITERATIONS) : null;
+		refinedPose = null;
+	}
+
+	/**
+	 * 
+	 * @return the last refined pose and its covariance, or null if refinement
+	 *         is disabled or the last scan couldn't be fitted
+	 */
+	public PoseRefiner.Result getRefinedPose()
+	{
+		return refinedPose;
+	}
+
+	/**
+	 * globally localize against the next scan, reseeding the particles around
+	 * the poses found, eg. after the robot has been moved by hand
+	 */
+	public void relocalize()
+	{
+		globalLocalizationRequested = true;
+	}
+
+	public static LikelihoodField buildMatchingMap(ProbabilityMapIIFc source)
+	{
+		Stopwatch timer = Stopwatch.createStarted();
+		LikelihoodField matchMap = LikelihoodField.build(source, 5, MATCH_SIGMA, MATCH_RADIUS);
+		LogManager.getLogger().info("Built matching map in " + timer.elapsed(TimeUnit.MILLISECONDS) + "ms");
 		return matchMap;
 	}
 
-	ReentrantLock lock = new ReentrantLock();
+	/**
+	 * motion received since the particles were last moved
+	 */
+	private final OdometryAccumulator odometry = new OdometryAccumulator();
+
+	/**
+	 * the latest scan not yet processed, a scan that arrives while another is
+	 * waiting replaces it
+	 */
+	private final AtomicReference<List<ScanObservation>> pendingScan = new AtomicReference<>();
+	private final Semaphore scanAvailable = new Semaphore(0);
+	private final AtomicLong skippedScans = new AtomicLong();
+
+	private Thread worker;
 
 	private RobotLocationDeltaListener getObserver()
 	{
@@ -146,55 +318,84 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 				{
 					return;
 				}
-				if (lock.tryLock())
-				{
-
-					try
-					{
-
-						moveParticles(new ParticleUpdate()
-						{
-
-							@Override
-							public double getDeltaHeading()
-							{
-
-								double degrees = deltaHeading.getDegrees();
-								new DataLogValue("Move Particles DH(1)", "" + degrees).publish();
-								if (degrees > 180)
-								{
-									degrees = 360 - degrees;
 
-								} else
-								{
-									degrees = degrees * -1.0;
-								}
-
-								new DataLogValue("Move Particles DH", "" + degrees).publish();
+				double degrees = deltaHeading.getDegrees();
+				new DataLogValue("Move Particles DH(1)", "" + degrees).publish();
+				if (degrees > 180)
+				{
+					degrees = 360 - degrees;
 
-								return degrees;
-							}
+				} else
+				{
+					degrees = degrees * -1.0;
+				}
 
-							@Override
-							public double getMoveDistance()
-							{
-								return deltaDistance.convert(DistanceUnit.CM);
-							}
-						});
+				new DataLogValue("Move Particles DH", "" + degrees).publish();
 
-						addObservation(resampleObservations(observations));
+				// never lose motion, even if the filter is busy
+				odometry.add(degrees, deltaDistance.convert(DistanceUnit.CM));
 
-					} finally
+				if (observations != null)
+				{
+					if (pendingScan.getAndSet(observations) == null)
 					{
-						lock.unlock();
+						scanAvailable.release();
+					} else
+					{
+						skippedScans.incrementAndGet();
 					}
-
 				}
 			}
 
 		};
 	}
 
+	/**
+	 * move the particles by the motion accumulated so far and score them
+	 * against the latest scan, until shutdown
+	 */
+	private void processUpdates()
+	{
+		while (!stop)
+		{
+			try
+			{
+				scanAvailable.acquire();
+			} catch (InterruptedException e)
+			{
+				return;
+			}
+			List<ScanObservation> observations = pendingScan.getAndSet(null);
+			if (observations == null)
+			{
+				continue;
+			}
+			try
+			{
+				processScan(resampleObservations(observations));
+			} catch (RuntimeException e)
+			{
+				logger.error("Particle filter update failed", e);
+			}
+			new DataLogValue("PF-skipped scans", "" + skippedScans.get()).publish();
+		}
+	}
+
+	/**
+	 * move the particles by the motion since the last scan, then weight and
+	 * resample them against this one, holding the lock throughout so a
+	 * reseed can't happen part way through
+	 */
+	private synchronized void processScan(List<ScanObservation> observations)
+	{
+		moveParticles(odometry.take());
+		if (globalLocalizationRequested)
+		{
+			globalLocalize(observations);
+		}
+		addObservation(observations);
+	}
+
 	void createFixedStart(int x, int y, int heading)
 	{
 		particles.clear();
@@ -202,8 +403,10 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 
 		for (int i = 0; i < particleQty; i++)
 		{
-			particles.add(new Particle(x, y, heading, distanceNoise, headingNoise));
+			particles.add(x, y, heading);
 		}
+		particles.setUniformWeights();
+		updateStatistics();
 	}
 
 	private void createRandomStart()
@@ -218,15 +421,92 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 
 		particles.clear();
 		// generate initial random scattering of particles
-		Random rand = new Random();
+		RandomStream rand = random;
 
 		for (int i = 0; i < particleQty; i++)
 		{
 			double x = (int) ((rand.nextDouble() * xd) + minX);
 			double y = (int) ((rand.nextDouble() * yd) + minY);
 			double heading = (int) (rand.nextDouble() * 360);
-			particles.add(new Particle(x, y, heading, distanceNoise, headingNoise));
+			particles.add(x, y, heading);
 		}
+		particles.setUniformWeights();
+		updateStatistics();
+	}
+
+	/**
+	 * reseed the particles around the best few poses the scan matches, the
+	 * particle count is shared between them by score
+	 */
+	synchronized void globalLocalize(List<ScanObservation> observations)
+	{
+		Stopwatch timer = Stopwatch.createStarted();
+		if (globalLocalizer == null)
+		{
+			globalLocalizer = new GlobalLocalizer(map, GLOBAL_RESOLUTION, GLOBAL_LEVELS);
+		}
+		List<GlobalLocalizer.Hypothesis> hypotheses = globalLocalizer.localize(observations, GLOBAL_HYPOTHESES,
+				GLOBAL_MIN_SCORE, MATCH_RADIUS * 2);
+		logger.info("Global localization found " + hypotheses.size() + " poses in "
+				+ timer.elapsed(TimeUnit.MILLISECONDS) + "ms");
+		if (hypotheses.isEmpty())
+		{
+			// try again with the next scan
+			return;
+		}
+		globalLocalizationRequested = false;
+
+		double totalScore = 0;
+		for (GlobalLocalizer.Hypothesis hypothesis : hypotheses)
+		{
+			totalScore += hypothesis.getScore();
+		}
+
+		particles.clear();
+		RandomStream rand = random;
+		for (GlobalLocalizer.Hypothesis hypothesis : hypotheses)
+		{
+			Pose pose = hypothesis.getPose();
+			int count = (int) Math.ceil(particleQty * hypothesis.getScore() / totalScore);
+			for (int i = 0; i < count && particles.size() < particleQty; i++)
+			{
+				particles.add(pose.getX() + (rand.nextGaussian() * GLOBAL_RESOLUTION),
+						pose.getY() + (rand.nextGaussian() * GLOBAL_RESOLUTION),
+						pose.getHeading() + (rand.nextGaussian() * GLOBAL_HEADING_SPREAD));
+			}
+		}
+		particles.setUniformWeights();
+		particleFilterStatus = ParticleFilterStatus.LOCALIZING;
+		poorMatches = 0;
+		updateStatistics();
+	}
+
+	/**
+	 * replace the particles with a gaussian cloud around a pose, eg. when
+	 * taking over from a tracker that has lost confidence
+	 * 
+	 * @param positionSpread
+	 *            standard deviation in cm
+	 * @param headingSpread
+	 *            standard deviation in degrees
+	 */
+	public synchronized void reseed(Pose pose, double positionSpread, double headingSpread)
+	{
+		particles.clear();
+		for (int i = 0; i < particleQty; i++)
+		{
+			particles.add(pose.getX() + (random.nextGaussian() * positionSpread),
+					pose.getY() + (random.nextGaussian() * positionSpread),
+					pose.getHeading() + (random.nextGaussian() * headingSpread));
+		}
+		particles.setUniformWeights();
+		// motion and scans from before the reseed no longer apply
+		odometry.take();
+		pendingScan.set(null);
+		particleFilterStatus = ParticleFilterStatus.LOCALIZING;
+		poorMatches = 0;
+		refinedPose = null;
+		updateStatistics();
 	}
 
 	public synchronized void addObservation(List<ScanObservation> observationList)
@@ -238,19 +518,61 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 		}
 		lastObservation.set(observationList);
 
-		double stdDev = getStdDev();
-		boolean isLost = stdDev > 100;
-
-		particles.parallelStream().forEach(e -> {
-			e.addObservation(map, observationList, isLost);
-		});
+		particles.score(sensorModel, observationList);
 
 		// adjust the number of particles in the particle filter based on
 		// how well localised it is
-		int newParticleCount = Math.max(500, (int) (20 * stdDev));
+		int newParticleCount = kldSampler.getParticleCount(particles);
 
 		resample(newParticleCount);
 
+		updateStatistics();
+
+		refinePose(observationList);
+
+		publish();
+	}
+
+	private void refinePose(List<ScanObservation> observationList)
+	{
+		PoseRefiner refiner = poseRefiner;
+		if (refiner == null)
+		{
+			return;
+		}
+		List<PoseHypothesis> current = hypotheses;
+		if (current.isEmpty())
+		{
+			return;
+		}
+		Pose start = current.get(0).getPose();
+		PoseRefiner.Result result = refiner.refine(start, observationList);
+		if (result != null && Math.hypot(result.getPose().getX() - start.getX(),
+				result.getPose().getY() - start.getY()) > MAX_REFINEMENT_DISTANCE)
+		{
+			result = null;
+		}
+		refinedPose = result;
+	}
+
+	private void publish()
+	{
+		if (listener == null)
+		{
+			return;
+		}
+		PoseRefiner.Result refined = refinedPose;
+		if (refined != null)
+		{
+			Pose pose = refined.getPose();
+			listener.update(new DistanceXY(pose.getX(), pose.getY(), DistanceUnit.CM),
+					new Angle(pose.getHeading(), AngleUnits.DEGREES), getStdDev(), lastObservation.get(),
+					particleFilterStatus);
+		} else
+		{
+			listener.update(getXyPosition(), new Angle(stablisedHeading, AngleUnits.DEGREES), getStdDev(),
+					lastObservation.get(), particleFilterStatus);
+		}
 	}
 
 	/**
@@ -268,13 +590,13 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 
 		int resolution = 5;
 
-		SparseArray<Double> array = Dynamic2dSparseArrayFactory.getDynamic2dSparseArray(0.0);
+		FloatSparseArray array = Dynamic2dSparseArrayFactory.getDynamic2dFloatSparseArray(0.0f);
 		for (ScanObservation obs : observationList)
 		{
 			// 5cm resolution
 			int x = obs.getX() / resolution;
 			int y = obs.getY() / resolution;
-			array.set(x, y, 1.0);
+			array.set(x, y, 1.0f);
 		}
 
 		int maxX = array.getMaxX();
@@ -294,17 +616,31 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 		return result;
 	}
 
-	public void moveParticles(ParticleUpdate update)
+	/**
+	 *
+	 * @return the motion since the particles were last moved, which they
+	 *         won't now be moved by
+	 */
+	public OdometryAccumulator.Displacement takeOdometry()
+	{
+		return odometry.take();
+	}
+
+	public synchronized void moveParticles(OdometryAccumulator.Displacement displacement)
+	{
+		logger.debug("Delta heading " + displacement.getDeltaHeading() + " Delta move "
+				+ displacement.getDistanceTravelled());
+		particles.move(displacement);
+	}
+
+	public synchronized void moveParticles(ParticleUpdate update)
 	{
 		logger.debug("Delta heading " + update.getDeltaHeading() + " Delta move " + update.getMoveDistance());
 		if (update.getDeltaHeading() > 180 || update.getDeltaHeading() < -180)
 		{
 			logger.error("What hte this is crazy");
 		}
-		for (Particle particle : particles)
-		{
-			particle.move(update);
-		}
+		particles.move(update);
 
 		// stablisedHeading += update.getDeltaHeading();
 		// stablisedHeading = HeadingHelper.normalizeHeading(stablisedHeading);
@@ -317,17 +653,15 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 
 		Stopwatch timer = Stopwatch.createStarted();
 
-		Random rand = new Random();
-		List<Particle> newSet = new LinkedList<>();
-
 		double totalRating = 0;
 		double maxRating = 0;
 		double bestRawSoFar = 1000000;
-		for (Particle selectedParticle : particles)
+		for (int i = 0; i < particles.size(); i++)
 		{
-			bestRawSoFar = Math.min(bestRawSoFar, selectedParticle.getRating());
-			totalRating += selectedParticle.getRating();
-			maxRating = Math.max(maxRating, selectedParticle.getRating());
+			double rating = particles.getRating(i);
+			bestRawSoFar = Math.min(bestRawSoFar, rating);
+			totalRating += rating;
+			maxRating = Math.max(maxRating, rating);
 		}
 
 		new DataLogValue("PF best:", "" + maxRating).publish();
@@ -339,43 +673,26 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 			if (poorMatches > 5 && particleFilterStatus == ParticleFilterStatus.LOCALIZED)
 			{
 				particleFilterStatus = ParticleFilterStatus.POOR_MATCH;
+				// probably kidnapped
+				globalLocalizationRequested = true;
 			}
 		}
 
-		for (Particle selectedParticle : particles)
-		{
-			selectedParticle.setRescaledRating(selectedParticle.getRating() / totalRating);
-		}
-
-		removeUnusableParticles();
-
-		double bestRatingSoFar = 0;
-		for (Particle selectedParticle : particles)
-		{
-			bestRatingSoFar = Math.max(bestRatingSoFar, selectedParticle.getRescaledRating());
-		}
-		if (bestRatingSoFar < MINIMUM_MEANINGFUL_RATING)
-		{
-			for (Particle selectedParticle : particles)
-			{
-				newSet.add(new Particle(selectedParticle));
-
-			}
-		} else
-		{
-			selectNewParticlesV2(newParticleCount, rand, newSet);
-		}
+		double bestRatingSoFar = totalRating > 0 ? maxRating / totalRating : 0;
 		bestScanMatchScore = bestRatingSoFar;
 		bestRawScore = bestRawSoFar;
 		logger.debug("Best rating " + bestScanMatchScore);
-		if (bestScanMatchScore < MINIMUM_MEANINGFUL_RATING && getStdDev() > 60)
+		if (bestScanMatchScore < MINIMUM_MEANINGFUL_RATING && stdDev > 60)
 		{
 			// there is no useful data, re-seed the particle filter
-			// createRandomStart();
-		} else
+			globalLocalizationRequested = true;
+		} else if (bestRatingSoFar < MINIMUM_MEANINGFUL_RATING)
 		{
-			particles.clear();
-			particles.addAll(newSet);
+			particles.resampleAll();
+		} else if (particles.getEffectiveSampleSize() < particles.size() * RESAMPLE_THRESHOLD
+				|| Math.abs(newParticleCount - particles.size()) > particles.size() * PARTICLE_COUNT_TOLERANCE)
+		{
+			particles.resample(resampler, newParticleCount);
 		}
 		particleQty = newParticleCount;
 
@@ -383,125 +700,80 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 
 		logger.debug("Resample took " + timer.elapsed(TimeUnit.MILLISECONDS));
 
-		if (listener != null)
-		{
-			listener.update(getXyPosition(), new Angle(stablisedHeading, AngleUnits.DEGREES), getStdDev(),
-					lastObservation.get(), particleFilterStatus);
-		}
-
-	}
-
-	class ParticleRef implements Comparable<Double>
-	{
-		Particle particle;
-		Double value;
-
-		ParticleRef(Particle particle, double value)
-		{
-			this.particle = particle;
-			this.value = value;
-		}
-
-		@Override
-		public int compareTo(Double arg0)
-		{
-			return value.compareTo(arg0);
-		}
 	}
 
-	private void selectNewParticlesV2(int newParticleCount, Random rand, List<Particle> newSet)
+	/**
+	 * 
+	 * @return the mean of the heaviest cluster, rather than of all the
+	 *         particles which may lie between two clusters
+	 */
+	private DistanceXY getXyPosition()
 	{
-
-		List<ParticleRef> working = new ArrayList<>(particles.size());
-
-		double pos = 0;
-		for (Particle particle : particles)
+		List<PoseHypothesis> current = hypotheses;
+		if (current.isEmpty())
 		{
-			working.add(new ParticleRef(particle, pos));
-			pos += particle.getRescaledRating();
+			averageHeading = particles.getAverageHeading();
+			stablisedHeading = averageHeading;
+			return new DistanceXY(particles.getAverageX(), particles.getAverageY(), DistanceUnit.CM);
 		}
+		PoseHypothesis best = current.get(0);
+		averageHeading = best.getHeading();
 
-		Particle selectedParticle = null;
-		for (int i = 0; i < newParticleCount; i++)
-		{
-			double key = rand.nextDouble() * pos;
-			int rawIdx = Collections.binarySearch(working, key);
-			int idx = rawIdx;
+		stablisedHeading = averageHeading;
+		// stablisedHeading = stablisedHeading
+		// + (HeadingHelper.getChangeInHeading(averageHeading, stablisedHeading)
+		// * 0.1);
 
-			if (idx < 0)
-			{
-				idx = Math.abs(idx) - 2;
-			} else
-			{
-				idx = idx - 1;
-			}
-			selectedParticle = working.get(idx).particle;
-			newSet.add(new Particle(selectedParticle));
-		}
+		return new DistanceXY(best.getX(), best.getY(), DistanceUnit.CM);
 
 	}
 
-	private void removeUnusableParticles()
+	/**
+	 * 
+	 * @return the clusters of particles found in the last filter cycle,
+	 *         heaviest first
+	 */
+	@Override
+	public List<PoseHypothesis> getHypotheses()
 	{
-		List<Particle> particlesToRemove = new LinkedList<>();
-		for (Particle particle : particles)
-		{
-			if (particle.getRescaledRating() <= 1.0 / particles.size())
-			{
-				particlesToRemove.add(particle);
-			}
-		}
-
-		// always keep at least 100 particles, if there are less than 100 good
-		// particles then we probably should keep all our particles
-		if (particlesToRemove.size() + 100 < particles.size())
-		{
-			String message = "removing " + particlesToRemove.size() + " useless particles";
-			logger.debug(message);
-			new DataLogValue("PF-useless particles", "" + particlesToRemove.size()).publish();
-			// strip particles with ratings that are below the minimum threshold
-			particles.removeAll(particlesToRemove);
-
-		}
-
+		return hypotheses;
 	}
 
-	public void dumpTextWorld()
+	/**
+	 * cluster the particles and measure their spread, the results are kept
+	 * until the next cycle so the UI and navigator don't recalculate them
+	 */
+	private void updateStatistics()
 	{
-		for (Particle particle : particles)
+		hypotheses = Collections.unmodifiableList(clusterer.cluster(particles));
+
+		int size = particles.size();
+		double sumX = 0;
+		double sumY = 0;
+		double sumXX = 0;
+		double sumYY = 0;
+		for (int i = 0; i < size; i++)
+		{
+			double x = particles.getX(i);
+			double y = particles.getY(i);
+			sumX += x;
+			sumY += y;
+			sumXX += x * x;
+			sumYY += y * y;
+		}
+		double dev = 0;
+		if (size > 1)
 		{
-			map.updatePoint((int) particle.getX(), (int) particle.getY(), Occupancy.OCCUPIED, 1.0, map.getBlockSize());
+			// sample standard deviation of x plus that of y
+			dev = Math.sqrt(Math.max(0, (sumXX - ((sumX * sumX) / size)) / (size - 1)))
+					+ Math.sqrt(Math.max(0, (sumYY - ((sumY * sumY) / size)) / (size - 1)));
 		}
+		stdDev = dev;
 
-		map.dumpTextWorld();
-	}
-
-	private DistanceXY getXyPosition()
-	{
-		double x = 0;
-		double y = 0;
-
-		List<WeightedAngle> angles = new LinkedList<>();
-
-		for (Particle particle : particles)
+		if (dev < 30 && particleFilterStatus == ParticleFilterStatus.LOCALIZING)
 		{
-			x += particle.getX();
-			y += particle.getY();
-			angles.add(new WeightedAngle(particle.getHeading(), 1));
-
+			particleFilterStatus = ParticleFilterStatus.LOCALIZED;
 		}
-
-		// System.out.println("Average Heading " + h);
-
-		averageHeading = AngleUtil.getAverageAngle(angles);
-
-		stablisedHeading = averageHeading;
-		// stablisedHeading = stablisedHeading
-		// + (HeadingHelper.getChangeInHeading(averageHeading, stablisedHeading)
-		// * 0.1);
-
-		return new DistanceXY((x / particles.size()), (y / particles.size()), DistanceUnit.CM);
-
 	}
 
 	int counter = 10;
@@ -515,24 +787,7 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 	 */
 	private double getStdDev()
 	{
-
-		StandardDeviation xdev = new StandardDeviation();
-		StandardDeviation ydev = new StandardDeviation();
-
-		for (Particle particle : particles)
-		{
-			xdev.increment(particle.x);
-			ydev.increment(particle.y);
-		}
-		double dev = xdev.getResult() + ydev.getResult();
-		// System.out.println("Deviation " + dev);
-
-		if (dev < 30 && particleFilterStatus == ParticleFilterStatus.LOCALIZING)
-		{
-			particleFilterStatus = ParticleFilterStatus.LOCALIZED;
-		}
-
-		return dev;
+		return stdDev;
 	}
 
 	@Override
@@ -546,11 +801,7 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 			{
 				List<Point> points = new LinkedList<>();
 
-				for (Particle particle : particles)
-				{
-					points.add(new Point((int) particle.getX(), (int) particle.getY()));
-
-				}
+				particles.visit((x, y, heading, rating) -> points.add(new Point((int) x, (int) y)));
 				return points;
 			}
 		};
@@ -630,12 +881,9 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 	}
 
 	@Override
-	public void addPendingScan(ParticleFilterObservationSet par)
+	public synchronized void addPendingScan(ParticleFilterObservationSet par)
 	{
-		for (Particle particle : particles)
-		{
-			particle.addScanReference(par);
-		}
+		particles.addScanReference(par);
 
 	}
 
@@ -644,7 +892,12 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 	{
 		stop = true;
 		robot.removeMessageListener(observer);
-		ui.destroy();
+		worker.interrupt();
+		MapDrawingWindow window = ui;
+		if (window != null)
+		{
+			window.destroy();
+		}
 
 	}
 
@@ -704,7 +957,10 @@ public class ParticleFilterImpl implements ParticleFilterIfc
 	@Override
 	public void removeListener(ParticleFilterListener listener)
 	{
-		listener = null;
+		if (this.listener == listener)
+		{
+			this.listener = null;
+		}
 
 	}
 
@@ -0,0 +1,552 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import au.com.rsutton.angle.AngleUtil;
+import au.com.rsutton.mapping.probability.ProbabilityMapReader;
+
+/**
+ * The particles of a particle filter, kept as parallel arrays of x, y,
+ * heading and rating rather than as an object per particle. Moving the
+ * particles allocates nothing, resampling allocates one new set of arrays.
+ * Recording a scan reference allocates a pose and a history node per
+ * particle, and scoring allocates whatever the sensor model does, the beam
+ * model ray casts from a Particle per particle.
+ *
+ * Each particle also has a weight, the product of its ratings since it was
+ * last resampled, so resampling can wait until the weights have degenerated.
+ *
+ * Resampling writes the new particles into new arrays which then replace the
+ * old ones. Arrays that have been in use are never reused or grown, so a
+ * reader holding them only ever sees them change by moves and scoring.
+ *
+ * Only one thread may change the set, and only that thread may use the
+ * indexed getters. Other threads should use visit() and the averages, and may
+ * see particles part way through a move or scoring.
+ */
+public class ParticleSet
+{
+
+	public interface ParticleVisitor
+	{
+		void visit(double x, double y, double heading, double rating);
+	}
+
+	private static final class Buffers
+	{
+		final double[] x;
+		final double[] y;
+		final double[] heading;
+		final double[] rating;
+		final double[] weight;
+		final TrajectoryTree.Node[] trajectories;
+		volatile int size;
+
+		Buffers(int capacity)
+		{
+			x = new double[capacity];
+			y = new double[capacity];
+			heading = new double[capacity];
+			rating = new double[capacity];
+			weight = new double[capacity];
+			trajectories = new TrajectoryTree.Node[capacity];
+		}
+
+		void copy(int from, Buffers target, int to)
+		{
+			target.x[to] = x[from];
+			target.y[to] = y[from];
+			target.heading[to] = heading[from];
+			target.rating[to] = rating[from];
+			target.weight[to] = weight[from];
+			target.trajectories[to] = trajectories[from];
+		}
+	}
+
+	private volatile Buffers current;
+
+	private final double distanceNoise;
+	private final double headingNoise;
+	private final RandomStream random;
+
+	/**
+	 * moves split a random stream per block of this many particles, so the
+	 * blocks can be moved in parallel with the same result every time
+	 */
+	private static final int NOISE_BLOCK_SIZE = 512;
+
+	private interface BlockAction
+	{
+		void apply(int from, int to, RandomStream random);
+	}
+
+	/**
+	 * scan observations in the robot's frame, converted once per scan
+	 */
+	private final Scan scan = new Scan();
+
+	/**
+	 * the particles chosen by the resampler
+	 */
+	private int[] selected = new int[0];
+
+	/**
+	 * scoring rotates the scan once per bin of this many degrees, rather than
+	 * once per particle
+	 */
+	public static final double DEFAULT_HEADING_BIN_SIZE = 0.5;
+
+	private final double headingBinSize;
+
+	/**
+	 * used by score(map, observations), kept while the map is the same
+	 */
+	private EndpointSensorModel endpointModel;
+
+	private final TrajectoryTree trajectories = new TrajectoryTree();
+
+	public ParticleSet(int capacity, double distanceNoise, double headingNoise)
+	{
+		this(capacity, distanceNoise, headingNoise, DEFAULT_HEADING_BIN_SIZE);
+	}
+
+	/**
+	 * 
+	 * @param headingBinSize
+	 *            in degrees, or 0 to rotate the scan exactly to each
+	 *            particle's heading
+	 */
+	public ParticleSet(int capacity, double distanceNoise, double headingNoise, double headingBinSize)
+	{
+		this(capacity, distanceNoise, headingNoise, headingBinSize, new RandomStream(RandomStream.newSeed()));
+	}
+
+	/**
+	 * 
+	 * @param random
+	 *            the source of the motion noise and of the resampler's random
+	 *            choices, a seeded stream makes the set reproducible
+	 */
+	public ParticleSet(int capacity, double distanceNoise, double headingNoise, double headingBinSize,
+			RandomStream random)
+	{
+		this.random = random;
+		this.distanceNoise = distanceNoise;
+		this.headingNoise = headingNoise;
+		current = new Buffers(capacity);
+		this.headingBinSize = headingBinSize;
+	}
+
+	public void clear()
+	{
+		Buffers buffers = current;
+		releaseTrajectories(buffers);
+		trajectories.clearTrunk();
+		buffers.size = 0;
+	}
+
+	/**
+	 * append a particle, call setUniformWeights() once the particles have
+	 * been added so their weights are normalised
+	 */
+	public void add(double x, double y, double heading)
+	{
+		Buffers buffers = current;
+		int index = buffers.size;
+		if (index == buffers.x.length)
+		{
+			// grow without losing the particles already added
+			Buffers larger = new Buffers(index * 2 + 1);
+			for (int i = 0; i < index; i++)
+			{
+				buffers.copy(i, larger, i);
+			}
+			larger.size = index;
+			current = larger;
+			buffers = larger;
+		}
+		buffers.x[index] = x;
+		buffers.y[index] = y;
+		buffers.heading[index] = heading;
+		buffers.rating[index] = 0;
+		buffers.weight[index] = 1;
+		buffers.trajectories[index] = null;
+		buffers.size = index + 1;
+	}
+
+	/**
+	 * weight every particle equally
+	 */
+	public void setUniformWeights()
+	{
+		Buffers buffers = current;
+		double weight = 1.0 / buffers.size;
+		for (int i = 0; i < buffers.size; i++)
+		{
+			buffers.weight[i] = weight;
+		}
+	}
+
+	public int size()
+	{
+		return current.size;
+	}
+
+	/**
+	 * visit each particle, safe to call from threads other than the one
+	 * changing the set. A resample during the visit doesn't affect it, the
+	 * visit carries on over the particles it started with.
+	 */
+	public void visit(ParticleVisitor visitor)
+	{
+		Buffers buffers = current;
+		double[] x = buffers.x;
+		double[] y = buffers.y;
+		double[] heading = buffers.heading;
+		double[] rating = buffers.rating;
+		int size = Math.min(buffers.size, x.length);
+		for (int i = 0; i < size; i++)
+		{
+			visitor.visit(x[i], y[i], heading[i], rating[i]);
+		}
+	}
+
+	public double getX(int index)
+	{
+		return current.x[index];
+	}
+
+	public double getY(int index)
+	{
+		return current.y[index];
+	}
+
+	public double getHeading(int index)
+	{
+		return current.heading[index];
+	}
+
+	/**
+	 * between 0 and 1
+	 *
+	 * @return the average score of the particle against the last scan
+	 */
+	public double getRating(int index)
+	{
+		return current.rating[index];
+	}
+
+	/**
+	 * 
+	 * @return the normalised weight of the particle, the product of its
+	 *         ratings since it was last resampled
+	 */
+	public double getWeight(int index)
+	{
+		return current.weight[index];
+	}
+
+	/**
+	 * 
+	 * @return the scans recorded against the particle and its ancestors,
+	 *         oldest first
+	 */
+	public List<ScanReference> getScanReferences(int index)
+	{
+		return trajectories.getScanReferences(current.trajectories[index]);
+	}
+
+	/**
+	 * move every particle by the same odometry, each then has its own noise
+	 * added
+	 */
+	public void move(ParticleUpdate update)
+	{
+		double distance = update.getMoveDistance();
+		double deltaHeading = update.getDeltaHeading();
+
+		Buffers buffers = current;
+		forEachBlock(buffers.size, (from, to, blockRandom) -> {
+			for (int i = from; i < to; i++)
+			{
+				double heading = buffers.heading[i] + deltaHeading;
+				if (heading < 0)
+				{
+					heading += 360.0;
+				}
+				if (heading > 360)
+				{
+					heading -= 360.0;
+				}
+				buffers.heading[i] = heading;
+
+				// rotate the move (0, distance) to the particle's heading
+				double radians = Math.toRadians(heading);
+				buffers.x[i] -= distance * Math.sin(radians);
+				buffers.y[i] += distance * Math.cos(radians);
+
+				addNoise(buffers, i, Math.abs(distance), blockRandom);
+			}
+		});
+	}
+
+	/**
+	 * move every particle by a displacement in its own frame, each then has
+	 * its own noise added
+	 */
+	public void move(OdometryAccumulator.Displacement displacement)
+	{
+		double dx = displacement.getX();
+		double dy = displacement.getY();
+		double deltaHeading = displacement.getDeltaHeading();
+		double distance = displacement.getDistanceTravelled();
+
+		Buffers buffers = current;
+		forEachBlock(buffers.size, (from, to, blockRandom) -> {
+			for (int i = from; i < to; i++)
+			{
+				double radians = Math.toRadians(buffers.heading[i]);
+				double sin = Math.sin(radians);
+				double cos = Math.cos(radians);
+				buffers.x[i] += (dx * cos) - (dy * sin);
+				buffers.y[i] += (dx * sin) + (dy * cos);
+
+				double heading = (buffers.heading[i] + deltaHeading) % 360.0;
+				if (heading < 0)
+				{
+					heading += 360.0;
+				}
+				buffers.heading[i] = heading;
+
+				addNoise(buffers, i, distance, blockRandom);
+			}
+		});
+	}
+
+	/**
+	 * split a stream for each block of particles, in order, then process the
+	 * blocks in parallel
+	 */
+	private void forEachBlock(int size, BlockAction action)
+	{
+		int blocks = (size + NOISE_BLOCK_SIZE - 1) / NOISE_BLOCK_SIZE;
+		RandomStream[] streams = new RandomStream[blocks];
+		for (int b = 0; b < blocks; b++)
+		{
+			streams[b] = random.split();
+		}
+		IntStream.range(0, blocks).parallel().forEach(b -> action.apply(b * NOISE_BLOCK_SIZE,
+				Math.min(size, (b + 1) * NOISE_BLOCK_SIZE), streams[b]));
+	}
+
+	private void addNoise(Buffers buffers, int index, double distanceTravelled, RandomStream rand)
+	{
+		// the amount of noise will affect the size of the point cloud
+		// too little noise and it will fail to track
+
+		double xn = rand.nextGaussian();
+		double yn = rand.nextGaussian();
+		double hn = rand.nextGaussian();
+
+		double xNoise = Math.max(Math.abs(distanceTravelled * xn * distanceNoise), Math.abs(xn * distanceNoise * 2.0))
+				* Math.signum(xn);
+		double yNoise = Math.max(Math.abs(distanceTravelled * yn * distanceNoise), Math.abs(yn * distanceNoise * 2.0))
+				* Math.signum(yn);
+
+		buffers.x[index] += xNoise;
+		buffers.y[index] += yNoise;
+		buffers.heading[index] += hn * headingNoise;
+	}
+
+	/**
+	 * rate every particle by the average value of the map at each of the
+	 * observations, as seen from the particle, and multiply the particle's
+	 * weight by the rating
+	 */
+	public void score(ProbabilityMapReader map, List<ScanObservation> observations)
+	{
+		if (endpointModel == null || endpointModel.getMap() != map)
+		{
+			endpointModel = new EndpointSensorModel(map, headingBinSize);
+		}
+		score(endpointModel, observations);
+	}
+
+	/**
+	 * rate every particle with the sensor model and multiply the particle's
+	 * weight by the rating
+	 */
+	public void score(SensorModel model, List<ScanObservation> observations)
+	{
+		scan.set(observations);
+
+		Buffers buffers = current;
+		model.score(this, scan, buffers.rating);
+
+		double totalWeight = 0;
+		for (int i = 0; i < buffers.size; i++)
+		{
+			totalWeight += buffers.weight[i] * buffers.rating[i];
+		}
+		if (totalWeight > 0)
+		{
+			for (int i = 0; i < buffers.size; i++)
+			{
+				buffers.weight[i] = (buffers.weight[i] * buffers.rating[i]) / totalWeight;
+			}
+		}
+		// else nothing matched anywhere, the scan tells us nothing
+	}
+
+	/**
+	 * 
+	 * @return 1 / the sum of the squared normalised weights, between 1 when a
+	 *         single particle carries all the weight and size() when every
+	 *         particle is weighted equally
+	 */
+	public double getEffectiveSampleSize()
+	{
+		Buffers buffers = current;
+		double sumOfSquares = 0;
+		for (int i = 0; i < buffers.size; i++)
+		{
+			sumOfSquares += buffers.weight[i] * buffers.weight[i];
+		}
+		return 1.0 / sumOfSquares;
+	}
+
+	/**
+	 * replace the particles with newParticleCount particles chosen by the
+	 * resampler in proportion to their weight, each with noise added. The new
+	 * particles are equally weighted.
+	 */
+	public void resample(Resampler resampler, int newParticleCount)
+	{
+		Buffers buffers = current;
+		if (selected.length < newParticleCount)
+		{
+			selected = new int[newParticleCount];
+		}
+		resampler.select(buffers.weight, buffers.size, selected, newParticleCount, random);
+
+		Buffers resampled = new Buffers(newParticleCount);
+		double weight = 1.0 / newParticleCount;
+		for (int i = 0; i < newParticleCount; i++)
+		{
+			buffers.copy(selected[i], resampled, i);
+			trajectories.retain(resampled.trajectories[i]);
+			resampled.rating[i] = 0;
+			resampled.weight[i] = weight;
+			addNoise(resampled, i, 1, random);
+		}
+		resampled.size = newParticleCount;
+		current = resampled;
+
+		// the particles that were not selected take their history with them
+		releaseTrajectories(buffers);
+		trajectories.collapse(resampled.trajectories, resampled.size);
+	}
+
+	/**
+	 * replace each particle with a copy of itself with noise added
+	 */
+	public void resampleAll()
+	{
+		Buffers buffers = current;
+		Buffers resampled = new Buffers(buffers.size);
+		for (int i = 0; i < buffers.size; i++)
+		{
+			buffers.copy(i, resampled, i);
+			// the copy takes over the particle's history
+			buffers.trajectories[i] = null;
+			resampled.rating[i] = 0;
+			addNoise(resampled, i, 1, random);
+		}
+		resampled.size = buffers.size;
+		current = resampled;
+	}
+
+	private void releaseTrajectories(Buffers buffers)
+	{
+		for (int i = 0; i < buffers.size; i++)
+		{
+			trajectories.release(buffers.trajectories[i]);
+			buffers.trajectories[i] = null;
+		}
+	}
+
+	/**
+	 * record the scan against every particle's current pose
+	 */
+	public void addScanReference(final ParticleFilterObservationSet observations)
+	{
+		Buffers buffers = current;
+		for (int i = 0; i < buffers.size; i++)
+		{
+			Pose pose = new Pose(buffers.x[i], buffers.y[i], buffers.heading[i]);
+			buffers.trajectories[i] = trajectories.append(buffers.trajectories[i], pose, observations);
+		}
+	}
+
+	/**
+	 * 
+	 * @return the number of scan references held in the branches of the
+	 *         particles' history, not counting the trunk they all share
+	 */
+	public int getTrajectoryNodeCount()
+	{
+		return trajectories.getNodeCount();
+	}
+
+	/**
+	 * 
+	 * @return the number of scan references every particle shares
+	 */
+	public int getTrajectoryTrunkLength()
+	{
+		return trajectories.getTrunkLength();
+	}
+
+	public double getAverageX()
+	{
+		Buffers buffers = current;
+		return weightedAverage(buffers.x, buffers.weight, buffers.size);
+	}
+
+	public double getAverageY()
+	{
+		Buffers buffers = current;
+		return weightedAverage(buffers.y, buffers.weight, buffers.size);
+	}
+
+	public double getAverageHeading()
+	{
+		Buffers buffers = current;
+		double[] heading = buffers.heading;
+		double[] weight = buffers.weight;
+		int size = Math.min(buffers.size, Math.min(heading.length, weight.length));
+		double x = 0;
+		double y = 0;
+		for (int i = 0; i < size; i++)
+		{
+			double radians = Math.toRadians(heading[i]);
+			x += Math.cos(radians) * weight[i];
+			y += Math.sin(radians) * weight[i];
+		}
+		return AngleUtil.normalize(Math.toDegrees(Math.atan2(y, x)));
+	}
+
+	private double weightedAverage(double[] values, double[] weight, int size)
+	{
+		size = Math.min(size, Math.min(values.length, weight.length));
+		double total = 0;
+		double totalWeight = 0;
+		for (int i = 0; i < size; i++)
+		{
+			total += values[i] * weight[i];
+			totalWeight += weight[i];
+		}
+		return total / totalWeight;
+	}
+}
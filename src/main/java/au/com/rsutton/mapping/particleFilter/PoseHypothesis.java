@@ -0,0 +1,83 @@
+package au.com.rsutton.mapping.particleFilter;
+
+/**
+ * One mode of the particle cloud, a cluster of particles and its statistics
+ */
+public class PoseHypothesis
+{
+
+	private final double x;
+	private final double y;
+	private final double heading;
+	private final double weight;
+	private final int particleCount;
+	private final double[][] covariance;
+
+	PoseHypothesis(double x, double y, double heading, double weight, int particleCount, double[][] covariance)
+	{
+		this.x = x;
+		this.y = y;
+		this.heading = heading;
+		this.weight = weight;
+		this.particleCount = particleCount;
+		this.covariance = covariance;
+	}
+
+	/**
+	 *
+	 * @return the weighted mean x of the cluster
+	 */
+	public double getX()
+	{
+		return x;
+	}
+
+	public double getY()
+	{
+		return y;
+	}
+
+	/**
+	 *
+	 * @return the weighted circular mean heading of the cluster, in degrees
+	 */
+	public double getHeading()
+	{
+		return heading;
+	}
+
+	/**
+	 *
+	 * @return the cluster's share of the total particle weight, 0 to 1
+	 */
+	public double getWeight()
+	{
+		return weight;
+	}
+
+	public int getParticleCount()
+	{
+		return particleCount;
+	}
+
+	/**
+	 *
+	 * @return the 3x3 weighted covariance of x, y (cm) and heading (degrees)
+	 */
+	public double[][] getCovariance()
+	{
+		return covariance;
+	}
+
+	public Pose getPose()
+	{
+		return new Pose(x, y, heading);
+	}
+
+	@Override
+	public String toString()
+	{
+		return "PoseHypothesis [x=" + x + ", y=" + y + ", heading=" + heading + ", weight=" + weight
+				+ ", particles=" + particleCount + "]";
+	}
+}
@@ -0,0 +1,264 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.DecompositionSolver;
+import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+
+import au.com.rsutton.mapping.probability.LikelihoodField;
+
+/**
+ * Fits a scan to a likelihood field by Gauss-Newton, starting from a pose
+ * that is already close (within a few cells), as in Hector SLAM. Each beam end
+ * should land on a peak of the field, so the residual of a beam is 1 - the
+ * interpolated field at its end.
+ *
+ * The fit also gives a covariance of the pose, from the inverse of the
+ * approximate Hessian scaled by the residual variance.
+ */
+public class PoseRefiner
+{
+
+	public static class Result
+	{
+		private final Pose pose;
+		private final double[][] covariance;
+		private final double score;
+		private final int iterations;
+
+		Result(Pose pose, double[][] covariance, double score, int iterations)
+		{
+			this.pose = pose;
+			this.covariance = covariance;
+			this.score = score;
+			this.iterations = iterations;
+		}
+
+		public Pose getPose()
+		{
+			return pose;
+		}
+
+		/**
+		 *
+		 * @return the 3x3 covariance of x, y (cm) and heading (degrees)
+		 */
+		public double[][] getCovariance()
+		{
+			return covariance;
+		}
+
+		/**
+		 *
+		 * @return the mean interpolated field value at the beam ends
+		 */
+		public double getScore()
+		{
+			return score;
+		}
+
+		public int getIterations()
+		{
+			return iterations;
+		}
+	}
+
+	private final LikelihoodField field;
+	private final int maxIterations;
+
+	/**
+	 * steps smaller than this (cm, and radians * 100) end the fit
+	 */
+	private static final double CONVERGED = 0.01;
+
+	public PoseRefiner(LikelihoodField field, int maxIterations)
+	{
+		this.field = field;
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 *
+	 * @param scan
+	 *            in the robot's frame
+	 * @return the fitted pose, or null if the scan doesn't touch the field
+	 *         near the start pose
+	 */
+	public Result refine(Pose start, List<ScanObservation> scan)
+	{
+		int count = scan.size();
+		if (count < 3)
+		{
+			return null;
+		}
+		double[] beamX = new double[count];
+		double[] beamY = new double[count];
+		for (int i = 0; i < count; i++)
+		{
+			beamX[i] = scan.get(i).getVector().getX();
+			beamY[i] = scan.get(i).getVector().getY();
+		}
+
+		double x = start.getX();
+		double y = start.getY();
+		double theta = Math.toRadians(start.getHeading());
+
+		double[] hessian = new double[9];
+		double[] gradient = new double[3];
+		double[] fieldGradient = new double[2];
+
+		double score = accumulate(x, y, theta, beamX, beamY, hessian, gradient, fieldGradient);
+		int iteration = 0;
+		while (iteration < maxIterations)
+		{
+			iteration++;
+			RealVector step = solve(hessian, gradient);
+			if (step == null)
+			{
+				return null;
+			}
+
+			// halve the step until it doesn't make the fit worse
+			double[] trialHessian = new double[9];
+			double[] trialGradient = new double[3];
+			double scale = 1;
+			double trialScore;
+			do
+			{
+				trialScore = accumulate(x + (step.getEntry(0) * scale), y + (step.getEntry(1) * scale),
+						theta + (step.getEntry(2) * scale), beamX, beamY, trialHessian, trialGradient,
+						fieldGradient);
+				if (trialScore >= score)
+				{
+					break;
+				}
+				scale *= 0.5;
+			} while (scale > 0.01);
+
+			if (trialScore < score)
+			{
+				break;
+			}
+			x += step.getEntry(0) * scale;
+			y += step.getEntry(1) * scale;
+			theta += step.getEntry(2) * scale;
+			score = trialScore;
+			hessian = trialHessian;
+			gradient = trialGradient;
+
+			if (Math.abs(step.getEntry(0) * scale) < CONVERGED && Math.abs(step.getEntry(1) * scale) < CONVERGED
+					&& Math.abs(step.getEntry(2) * scale * 100) < CONVERGED)
+			{
+				break;
+			}
+		}
+
+		if (score <= 0)
+		{
+			return null;
+		}
+		return new Result(new Pose(x, y, Math.toDegrees(theta)),
+				covariance(hessian, x, y, theta, beamX, beamY, fieldGradient), score, iteration);
+	}
+
+	/**
+	 * fill the approximate Hessian (J'J) and gradient (J'r) at the pose
+	 *
+	 * @return the mean field value at the beam ends
+	 */
+	private double accumulate(double x, double y, double theta, double[] beamX, double[] beamY, double[] hessian,
+			double[] gradient, double[] fieldGradient)
+	{
+		Arrays.fill(hessian, 0);
+		Arrays.fill(gradient, 0);
+		double sin = Math.sin(theta);
+		double cos = Math.cos(theta);
+		double total = 0;
+		for (int i = 0; i < beamX.length; i++)
+		{
+			double rx = (beamX[i] * cos) - (beamY[i] * sin);
+			double ry = (beamX[i] * sin) + (beamY[i] * cos);
+			double value = field.interpolate(x + rx, y + ry, fieldGradient);
+			total += value;
+
+			// derivative of the field value with respect to x, y and theta
+			double jx = fieldGradient[0];
+			double jy = fieldGradient[1];
+			double jt = (-ry * jx) + (rx * jy);
+			double residual = 1 - value;
+
+			hessian[0] += jx * jx;
+			hessian[1] += jx * jy;
+			hessian[2] += jx * jt;
+			hessian[4] += jy * jy;
+			hessian[5] += jy * jt;
+			hessian[8] += jt * jt;
+			gradient[0] += jx * residual;
+			gradient[1] += jy * residual;
+			gradient[2] += jt * residual;
+		}
+		hessian[3] = hessian[1];
+		hessian[6] = hessian[2];
+		hessian[7] = hessian[5];
+		return total / beamX.length;
+	}
+
+	private RealVector solve(double[] hessian, double[] gradient)
+	{
+		DecompositionSolver solver = new LUDecomposition(toMatrix(hessian)).getSolver();
+		if (!solver.isNonSingular())
+		{
+			return null;
+		}
+		return solver.solve(new ArrayRealVector(gradient));
+	}
+
+	private double[][] covariance(double[] hessian, double x, double y, double theta, double[] beamX,
+			double[] beamY, double[] fieldGradient)
+	{
+		double sin = Math.sin(theta);
+		double cos = Math.cos(theta);
+		double squaredResiduals = 0;
+		for (int i = 0; i < beamX.length; i++)
+		{
+			double residual = 1 - field.interpolate(x + (beamX[i] * cos) - (beamY[i] * sin),
+					y + (beamX[i] * sin) + (beamY[i] * cos), fieldGradient);
+			squaredResiduals += residual * residual;
+		}
+		double variance = squaredResiduals / Math.max(1, beamX.length - 3);
+
+		DecompositionSolver solver = new LUDecomposition(toMatrix(hessian)).getSolver();
+		if (!solver.isNonSingular())
+		{
+			return null;
+		}
+		RealMatrix covariance = solver.getInverse().scalarMultiply(variance);
+
+		// heading in degrees
+		double[] scale = { 1, 1, Math.toDegrees(1) };
+		double[][] result = new double[3][3];
+		for (int r = 0; r < 3; r++)
+		{
+			for (int c = 0; c < 3; c++)
+			{
+				result[r][c] = covariance.getEntry(r, c) * scale[r] * scale[c];
+			}
+		}
+		return result;
+	}
+
+	private RealMatrix toMatrix(double[] values)
+	{
+		RealMatrix matrix = new Array2DRowRealMatrix(3, 3);
+		for (int i = 0; i < 9; i++)
+		{
+			matrix.setEntry(i / 3, i % 3, values[i]);
+		}
+		return matrix;
+	}
+}
@@ -0,0 +1,94 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.SplittableRandom;
+
+/**
+ * A SplittableRandom with gaussians. Nothing is shared between streams, so
+ * parallel work can split a stream per task up front and draw from it without
+ * contention, and the results are the same however the tasks are scheduled.
+ *
+ * A stream isn't thread safe, split it rather than sharing it.
+ */
+public class RandomStream
+{
+
+	private final SplittableRandom random;
+
+	private double spareGaussian;
+	private boolean hasSpareGaussian;
+
+	public RandomStream(long seed)
+	{
+		this(new SplittableRandom(seed));
+	}
+
+	private RandomStream(SplittableRandom random)
+	{
+		this.random = random;
+	}
+
+	/**
+	 *
+	 * @return a new seed, for a stream that doesn't need to be reproducible
+	 */
+	public static long newSeed()
+	{
+		return new SplittableRandom().nextLong();
+	}
+
+	/**
+	 *
+	 * @return a new independent stream, the same streams are split off in the
+	 *         same order from streams with the same seed
+	 */
+	public RandomStream split()
+	{
+		return new RandomStream(random.split());
+	}
+
+	/**
+	 *
+	 * @return uniformly distributed from 0 (inclusive) to 1 (exclusive)
+	 */
+	public double nextDouble()
+	{
+		return random.nextDouble();
+	}
+
+	public int nextInt(int bound)
+	{
+		return random.nextInt(bound);
+	}
+
+	public long nextLong()
+	{
+		return random.nextLong();
+	}
+
+	/**
+	 * Marsaglia's polar method, generating a pair at a time
+	 *
+	 * @return normally distributed with mean 0 and standard deviation 1
+	 */
+	public double nextGaussian()
+	{
+		if (hasSpareGaussian)
+		{
+			hasSpareGaussian = false;
+			return spareGaussian;
+		}
+		double u;
+		double v;
+		double s;
+		do
+		{
+			u = (random.nextDouble() * 2) - 1;
+			v = (random.nextDouble() * 2) - 1;
+			s = (u * u) + (v * v);
+		} while (s >= 1 || s == 0);
+		double scale = Math.sqrt((-2 * Math.log(s)) / s);
+		spareGaussian = v * scale;
+		hasSpareGaussian = true;
+		return u * scale;
+	}
+}
@@ -0,0 +1,23 @@
+package au.com.rsutton.mapping.particleFilter;
+
+/**
+ * Chooses which particles survive a resample, each in proportion to its
+ * weight.
+ */
+public interface Resampler
+{
+
+	/**
+	 * 
+	 * @param weights
+	 *            of each particle, summing to 1
+	 * @param size
+	 *            the number of particles
+	 * @param selected
+	 *            receives the index of the particle to copy for each new
+	 *            particle, in ascending order
+	 * @param count
+	 *            the number of new particles
+	 */
+	void select(double[] weights, int size, int[] selected, int count, RandomStream rand);
+}
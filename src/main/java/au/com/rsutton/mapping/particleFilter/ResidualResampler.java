@@ -0,0 +1,54 @@
+package au.com.rsutton.mapping.particleFilter;
+
+/**
+ * Each particle is first copied floor(weight * count) times, the remaining
+ * new particles are then chosen systematically from what is left of each
+ * weight.
+ */
+public class ResidualResampler implements Resampler
+{
+
+	@Override
+	public void select(double[] weights, int size, int[] selected, int count, RandomStream rand)
+	{
+		int copiesTotal = 0;
+		double residualTotal = 0;
+		for (int index = 0; index < size; index++)
+		{
+			double expected = weights[index] * count;
+			copiesTotal += (int) expected;
+			residualTotal += expected - (int) expected;
+		}
+		int remaining = Math.max(0, count - copiesTotal);
+
+		double step = remaining > 0 ? residualTotal / remaining : 0;
+		double pointer = rand.nextDouble() * step;
+		double cumulative = 0;
+		int next = 0;
+		for (int index = 0; index < size && next < count; index++)
+		{
+			double expected = weights[index] * count;
+			int copies = Math.min((int) expected, count - next);
+			for (int c = 0; c < copies; c++)
+			{
+				selected[next++] = index;
+			}
+
+			// then any of the residual pointers that fall within this
+			// particle's residual weight
+			cumulative += expected - (int) expected;
+			while (remaining > 0 && pointer <= cumulative && next < count)
+			{
+				selected[next++] = index;
+				pointer += step;
+				remaining--;
+			}
+		}
+
+		// rounding may leave a pointer just beyond the last residual
+		while (next < count)
+		{
+			selected[next++] = size - 1;
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.stream.IntStream;
+
+/**
+ * A scan rotated to each of the headings particles are at, with the headings
+ * quantized into bins. Particles with nearly the same heading share the
+ * rotated scan, so scoring a particle is only a translation of its bin's
+ * beams.
+ *
+ * Once a scan is set the bins needed are marked with require(), then rotated
+ * together with rotate(). The arrays are reused from scan to scan.
+ */
+class RotatedScanCache
+{
+
+	private final double binSize;
+	private final int binCount;
+
+	private final double[][] rotatedX;
+	private final double[][] rotatedY;
+
+	private final boolean[] required;
+	private final int[] requiredBins;
+	private int requiredCount;
+
+	private double[] scanX;
+	private double[] scanY;
+	private int scanSize;
+
+	/**
+	 *
+	 * @param binSize
+	 *            in degrees
+	 */
+	RotatedScanCache(double binSize)
+	{
+		this.binSize = binSize;
+		binCount = (int) Math.ceil(360.0 / binSize);
+		rotatedX = new double[binCount][];
+		rotatedY = new double[binCount][];
+		required = new boolean[binCount];
+		requiredBins = new int[binCount];
+	}
+
+	/**
+	 * start a new scan, forgetting the bins required for the last one
+	 *
+	 * @param x
+	 *            of each beam end in the robot's frame, the array is kept
+	 *            until the next scan
+	 */
+	void setScan(double[] x, double[] y, int size)
+	{
+		scanX = x;
+		scanY = y;
+		scanSize = size;
+		for (int i = 0; i < requiredCount; i++)
+		{
+			required[requiredBins[i]] = false;
+		}
+		requiredCount = 0;
+	}
+
+	/**
+	 *
+	 * @param heading
+	 *            in degrees, any range
+	 * @return the bin nearest the heading
+	 */
+	int getBin(double heading)
+	{
+		int bin = (int) Math.round(heading / binSize) % binCount;
+		return bin < 0 ? bin + binCount : bin;
+	}
+
+	void require(int bin)
+	{
+		if (!required[bin])
+		{
+			required[bin] = true;
+			requiredBins[requiredCount++] = bin;
+		}
+	}
+
+	/**
+	 * rotate the scan to each of the required bins
+	 */
+	void rotate()
+	{
+		IntStream.range(0, requiredCount).parallel().forEach(i -> {
+			int bin = requiredBins[i];
+			if (rotatedX[bin] == null || rotatedX[bin].length < scanSize)
+			{
+				rotatedX[bin] = new double[scanSize];
+				rotatedY[bin] = new double[scanSize];
+			}
+			double[] x = rotatedX[bin];
+			double[] y = rotatedY[bin];
+
+			double radians = Math.toRadians(bin * binSize);
+			double sin = Math.sin(radians);
+			double cos = Math.cos(radians);
+			for (int j = 0; j < scanSize; j++)
+			{
+				x[j] = (scanX[j] * cos) - (scanY[j] * sin);
+				y[j] = (scanX[j] * sin) + (scanY[j] * cos);
+			}
+		});
+	}
+
+	/**
+	 *
+	 * @return the x of each beam end rotated to the bin, only valid for
+	 *         required bins after rotate()
+	 */
+	double[] getX(int bin)
+	{
+		return rotatedX[bin];
+	}
+
+	double[] getY(int bin)
+	{
+		return rotatedY[bin];
+	}
+}
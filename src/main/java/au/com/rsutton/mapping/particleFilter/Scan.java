@@ -0,0 +1,67 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.List;
+
+/**
+ * The beam ends of a scan in the robot's frame, converted once from the
+ * ScanObservations so sensor models can read them as arrays. The arrays are
+ * reused from scan to scan.
+ */
+public class Scan
+{
+
+	double[] x = new double[0];
+	double[] y = new double[0];
+	int size;
+
+	public Scan()
+	{
+	}
+
+	public Scan(List<ScanObservation> observations)
+	{
+		set(observations);
+	}
+
+	public void set(List<ScanObservation> observations)
+	{
+		int count = observations.size();
+		if (x.length < count)
+		{
+			x = new double[count];
+			y = new double[count];
+		}
+		int i = 0;
+		for (ScanObservation observation : observations)
+		{
+			x[i] = observation.getVector().getX();
+			y[i] = observation.getVector().getY();
+			i++;
+		}
+		size = count;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public double getX(int index)
+	{
+		return x[index];
+	}
+
+	public double getY(int index)
+	{
+		return y[index];
+	}
+
+	/**
+	 *
+	 * @return the distance to the beam end in cm
+	 */
+	public double getRange(int index)
+	{
+		return Math.hypot(x[index], y[index]);
+	}
+}
@@ -0,0 +1,22 @@
+package au.com.rsutton.mapping.particleFilter;
+
+/**
+ * Rates how well a scan fits the map as seen from each particle's pose.
+ * Implementations rate all the particles in one call so they can share work
+ * between particles and spread it across threads.
+ *
+ * A model may keep state between calls, so each filter needs its own
+ * instance.
+ */
+public interface SensorModel
+{
+
+	/**
+	 *
+	 * @param ratings
+	 *            receives the rating of each particle, 0 (impossible) to 1
+	 *            (a perfect fit)
+	 */
+	void score(ParticleSet particles, Scan scan, double[] ratings);
+
+}
@@ -0,0 +1,26 @@
+package au.com.rsutton.mapping.particleFilter;
+
+/**
+ * The cumulative weights are divided into count equal strata and one pointer
+ * is placed at random within each.
+ */
+public class StratifiedResampler implements Resampler
+{
+
+	@Override
+	public void select(double[] weights, int size, int[] selected, int count, RandomStream rand)
+	{
+		double step = 1.0 / count;
+		double cumulative = weights[0];
+		int index = 0;
+		for (int i = 0; i < count; i++)
+		{
+			double pointer = (i + rand.nextDouble()) * step;
+			while (pointer > cumulative && index < size - 1)
+			{
+				cumulative += weights[++index];
+			}
+			selected[i] = index;
+		}
+	}
+}
@@ -0,0 +1,155 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import au.com.rsutton.mapping.probability.LikelihoodField;
+
+/**
+ * Fits a scan to several sub maps at once, each from where the robot is
+ * predicted to be in that sub map, to find which sub map it is best
+ * localized in. The fits are split across a fork-join pool, one task per sub
+ * map.
+ *
+ * @param <T>
+ *            the caller's handle on a sub map
+ */
+public class SubMapLocalizer<T>
+{
+
+	public static class Candidate<T>
+	{
+		private final T subMap;
+		private final LikelihoodField field;
+		private final Pose pose;
+
+		/**
+		 *
+		 * @param pose
+		 *            where the robot is predicted to be, in the sub map's frame
+		 */
+		public Candidate(T subMap, LikelihoodField field, Pose pose)
+		{
+			this.subMap = subMap;
+			this.field = field;
+			this.pose = pose;
+		}
+	}
+
+	public static class Match<T>
+	{
+		private final T subMap;
+		private final Pose predicted;
+		private final PoseRefiner.Result fit;
+
+		Match(T subMap, Pose predicted, PoseRefiner.Result fit)
+		{
+			this.subMap = subMap;
+			this.predicted = predicted;
+			this.fit = fit;
+		}
+
+		public T getSubMap()
+		{
+			return subMap;
+		}
+
+		/**
+		 *
+		 * @return the candidate's pose, before fitting
+		 */
+		public Pose getPredictedPose()
+		{
+			return predicted;
+		}
+
+		/**
+		 *
+		 * @return the fitted pose, in the sub map's frame
+		 */
+		public Pose getPose()
+		{
+			return fit.getPose();
+		}
+
+		public double getScore()
+		{
+			return fit.getScore();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Match [" + subMap + " " + fit.getPose() + " score=" + fit.getScore() + "]";
+		}
+	}
+
+	private final ForkJoinPool pool;
+	private final int maxIterations;
+
+	public SubMapLocalizer(ForkJoinPool pool, int maxIterations)
+	{
+		this.pool = pool;
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 *
+	 * @return a match for each candidate the scan could be fitted to, best
+	 *         first
+	 */
+	public List<Match<T>> localize(List<Candidate<T>> candidates, List<ScanObservation> scan)
+	{
+		if (candidates.isEmpty())
+		{
+			return Collections.emptyList();
+		}
+		List<Match<T>> matches = pool.invoke(new FitTask(candidates, 0, candidates.size(), scan));
+		matches.sort((a, b) -> Double.compare(b.getScore(), a.getScore()));
+		return matches;
+	}
+
+	private class FitTask extends RecursiveTask<List<Match<T>>>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final List<Candidate<T>> candidates;
+		private final int start;
+		private final int end;
+		private final List<ScanObservation> scan;
+
+		FitTask(List<Candidate<T>> candidates, int start, int end, List<ScanObservation> scan)
+		{
+			this.candidates = candidates;
+			this.start = start;
+			this.end = end;
+			this.scan = scan;
+		}
+
+		@Override
+		protected List<Match<T>> compute()
+		{
+			if (end - start > 1)
+			{
+				int middle = (start + end) / 2;
+				FitTask upper = new FitTask(candidates, middle, end, scan);
+				upper.fork();
+				List<Match<T>> matches = new FitTask(candidates, start, middle, scan).compute();
+				matches.addAll(upper.join());
+				return matches;
+			}
+
+			List<Match<T>> matches = new ArrayList<>();
+			Candidate<T> candidate = candidates.get(start);
+			PoseRefiner.Result fit = new PoseRefiner(candidate.field, maxIterations).refine(candidate.pose, scan);
+			if (fit != null)
+			{
+				matches.add(new Match<>(candidate.subMap, candidate.pose, fit));
+			}
+			return matches;
+		}
+	}
+}
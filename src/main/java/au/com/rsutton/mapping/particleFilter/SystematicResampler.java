@@ -0,0 +1,28 @@
+package au.com.rsutton.mapping.particleFilter;
+
+/**
+ * Low variance resampling, a single random offset is used to place count
+ * evenly spaced pointers along the cumulative weights. A particle of weight w
+ * is always copied either floor(w * count) or ceil(w * count) times.
+ */
+public class SystematicResampler implements Resampler
+{
+
+	@Override
+	public void select(double[] weights, int size, int[] selected, int count, RandomStream rand)
+	{
+		double step = 1.0 / count;
+		double pointer = rand.nextDouble() * step;
+		double cumulative = weights[0];
+		int index = 0;
+		for (int i = 0; i < count; i++)
+		{
+			while (pointer > cumulative && index < size - 1)
+			{
+				cumulative += weights[++index];
+			}
+			selected[i] = index;
+			pointer += step;
+		}
+	}
+}
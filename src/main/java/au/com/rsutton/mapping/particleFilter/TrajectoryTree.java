@@ -0,0 +1,202 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The scan history of the particles of a ParticleSet, kept as a tree of
+ * immutable nodes pointing at their parents. A particle holds only its latest
+ * node, so a resampled copy shares its parent's whole history at the cost of
+ * one reference, and recording a scan adds a single node per particle.
+ *
+ * Each node counts the particles and child nodes holding it. When the last is
+ * gone the node is dropped and its parent released in turn, so branches that
+ * died out in resampling are pruned as they die and the number of live nodes
+ * is always known.
+ *
+ * Once every particle descends from the same node, that node's ancestors are
+ * the same for every particle. They are collapsed out of the tree into the
+ * trunk, a list shared by all the particles, so the tree only holds the
+ * branches that are still competing.
+ *
+ * Not safe for concurrent use.
+ */
+public class TrajectoryTree
+{
+
+	public static final class Node implements ScanReference
+	{
+		private Node parent;
+		private final int depth;
+		private final Pose scanOrigin;
+		private final ParticleFilterObservationSet scan;
+		private int references = 1;
+
+		private Node(Node parent, Pose scanOrigin, ParticleFilterObservationSet scan)
+		{
+			this.parent = parent;
+			depth = parent == null ? 0 : parent.depth + 1;
+			this.scanOrigin = scanOrigin;
+			this.scan = scan;
+		}
+
+		@Override
+		public ParticleFilterObservationSet getScan()
+		{
+			return scan;
+		}
+
+		@Override
+		public Pose getScanOrigin()
+		{
+			return scanOrigin;
+		}
+	}
+
+	private int nodeCount;
+
+	/**
+	 * the history shared by every particle, oldest first
+	 */
+	private final List<ScanReference> trunk = new ArrayList<>();
+
+	/**
+	 * 
+	 * @param parent
+	 *            the particle's current node, which it gives up in exchange
+	 *            for the new node
+	 * @return the new node, held once by the caller
+	 */
+	Node append(Node parent, Pose scanOrigin, ParticleFilterObservationSet scan)
+	{
+		nodeCount++;
+		return new Node(parent, scanOrigin, scan);
+	}
+
+	/**
+	 * 
+	 * @return the node, now held once more
+	 */
+	Node retain(Node node)
+	{
+		if (node != null)
+		{
+			node.references++;
+		}
+		return node;
+	}
+
+	/**
+	 * give up a hold on the node, pruning it and any ancestors no longer held
+	 */
+	void release(Node node)
+	{
+		while (node != null && --node.references == 0)
+		{
+			Node parent = node.parent;
+			node.parent = null;
+			nodeCount--;
+			node = parent;
+		}
+	}
+
+	/**
+	 * move the ancestors of the nodes' common ancestor, if they have one, out
+	 * of the tree and onto the end of the trunk
+	 *
+	 * @param nodes
+	 *            every particle's current node
+	 */
+	void collapse(Node[] nodes, int size)
+	{
+		Node common = size == 0 ? null : nodes[0];
+		for (int i = 1; i < size && common != null; i++)
+		{
+			common = getCommonAncestor(common, nodes[i]);
+		}
+		if (common == null || common.parent == null)
+		{
+			return;
+		}
+
+		List<ScanReference> collapsed = new ArrayList<>();
+		Node node = common.parent;
+		common.parent = null;
+		while (node != null)
+		{
+			collapsed.add(node);
+			Node parent = node.parent;
+			node.parent = null;
+			nodeCount--;
+			node = parent;
+		}
+		Collections.reverse(collapsed);
+		trunk.addAll(collapsed);
+	}
+
+	private Node getCommonAncestor(Node a, Node b)
+	{
+		while (a != b && a != null && b != null)
+		{
+			if (a.depth >= b.depth)
+			{
+				a = a.parent;
+			} else
+			{
+				b = b.parent;
+			}
+		}
+		return a == b ? a : null;
+	}
+
+	/**
+	 * forget the trunk, once no particle holds a node
+	 */
+	void clearTrunk()
+	{
+		trunk.clear();
+	}
+
+	/**
+	 * 
+	 * @return the number of nodes held by particles or their descendants, not
+	 *         counting the trunk
+	 */
+	public int getNodeCount()
+	{
+		return nodeCount;
+	}
+
+	/**
+	 * 
+	 * @return the number of scans collapsed into the trunk
+	 */
+	public int getTrunkLength()
+	{
+		return trunk.size();
+	}
+
+	/**
+	 * 
+	 * @return the scans recorded against the node and its ancestors, oldest
+	 *         first
+	 */
+	public List<ScanReference> getScanReferences(Node node)
+	{
+		if (node == null)
+		{
+			return Collections.emptyList();
+		}
+		List<ScanReference> branch = new ArrayList<>();
+		for (Node n = node; n != null; n = n.parent)
+		{
+			branch.add(n);
+		}
+		Collections.reverse(branch);
+		List<ScanReference> references = new ArrayList<>(trunk.size() + branch.size());
+		references.addAll(trunk);
+		references.addAll(branch);
+		return references;
+	}
+}
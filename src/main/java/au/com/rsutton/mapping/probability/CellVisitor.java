@@ -0,0 +1,15 @@
+package au.com.rsutton.mapping.probability;
+
+public interface CellVisitor
+{
+	/**
+	 * 
+	 * @param x
+	 *            world coordinate of the cell
+	 * @param y
+	 *            world coordinate of the cell
+	 * @param value
+	 *            the probability the cell is occupied
+	 */
+	void visit(int x, int y, double value);
+}
@@ -0,0 +1,217 @@
+package au.com.rsutton.mapping.probability;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+import au.com.rsutton.mapping.array.CopyOnWriteDoubleSparseArray;
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.ScanObservation;
+
+/**
+ * A ProbabilityMap that can be read from any number of threads while it is
+ * being written.
+ *
+ * Writers take turns on a single lock and change a ProbabilityMap whose tiles
+ * are copy on write, once a change is complete an immutable snapshot of the
+ * map is published. Readers only ever see the latest published snapshot, so
+ * they never wait for a writer and never see a change half made.
+ */
+public class ConcurrentProbabilityMap implements ProbabilityMapIIFc
+{
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	private final ProbabilityMap map;
+
+	private volatile ProbabilityMapSnapshot current;
+
+	public ConcurrentProbabilityMap(int blockSize)
+	{
+		this(blockSize, 0);
+	}
+
+	/**
+	 *
+	 * @param pyramidLevels
+	 *            0 for no pyramid, see ProbabilityMap.createPyramid()
+	 */
+	public ConcurrentProbabilityMap(int blockSize, int pyramidLevels)
+	{
+		map = new ProbabilityMap(blockSize, CopyOnWriteDoubleSparseArray::new);
+		if (pyramidLevels > 0)
+		{
+			map.createPyramid(pyramidLevels);
+		}
+		current = map.snapshot();
+	}
+
+	/**
+	 *
+	 * @return the map as of the last completed change, it will not change
+	 */
+	public ProbabilityMapSnapshot snapshot()
+	{
+		return current;
+	}
+
+	/**
+	 * make a number of changes that readers will see all at once. Reads made
+	 * by the changes through the map passed to them see the changes so far.
+	 */
+	public void update(Consumer<ProbabilityMapIIFc> changes)
+	{
+		writeLock.lock();
+		try
+		{
+			changes.accept(map);
+			current = map.snapshot();
+		} finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public double[][] createGausian(int radius, double sigma, double centerValue)
+	{
+		return map.createGausian(radius, sigma, centerValue);
+	}
+
+	@Override
+	public void resetPoint(int x, int y)
+	{
+		update(world -> world.resetPoint(x, y));
+	}
+
+	@Override
+	public void updatePoint(int x, int y, Occupancy occupied, double certainty, int gausianRadius)
+	{
+		update(world -> world.updatePoint(x, y, occupied, certainty, gausianRadius));
+	}
+
+	@Override
+	public void integrateScan(Pose origin, ScanObservation[] beams, InverseSensorModel model)
+	{
+		update(world -> world.integrateScan(origin, beams, model));
+	}
+
+	@Override
+	public List<Vector3D> getFeatures()
+	{
+		writeLock.lock();
+		try
+		{
+			return new ArrayList<>(map.getFeatures());
+		} finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void drawLine(double x1, double y1, double x2, double y2, Occupancy occupancy, double certainty, int radius)
+	{
+		update(world -> world.drawLine(x1, y1, x2, y2, occupancy, certainty, radius));
+	}
+
+	@Override
+	public void dumpWorld()
+	{
+		update(world -> world.dumpWorld());
+	}
+
+	@Override
+	public void dumpTextWorld()
+	{
+		update(world -> world.dumpTextWorld());
+	}
+
+	@Override
+	public List<Point> getOccupiedPoints()
+	{
+		return current.getOccupiedPoints();
+	}
+
+	@Override
+	public void visitOccupied(CellVisitor visitor)
+	{
+		current.visitOccupied(visitor);
+	}
+
+	@Override
+	public void visitVacant(CellVisitor visitor)
+	{
+		current.visitVacant(visitor);
+	}
+
+	@Override
+	public void erase()
+	{
+		update(world -> world.erase());
+	}
+
+	@Override
+	public long getVersion()
+	{
+		return current.getVersion();
+	}
+
+	/**
+	 * may include changes that have not yet been published, but never misses
+	 * one since the given version
+	 */
+	@Override
+	public List<Rectangle> getChangedRegions(long sinceVersion)
+	{
+		return map.getChangedRegions(sinceVersion);
+	}
+
+	@Override
+	public double get(double x, double y)
+	{
+		return current.get(x, y);
+	}
+
+	@Override
+	public int getBlockSize()
+	{
+		return map.getBlockSize();
+	}
+
+	@Override
+	public int getMaxX()
+	{
+		return current.getMaxX();
+	}
+
+	@Override
+	public int getMinX()
+	{
+		return current.getMinX();
+	}
+
+	@Override
+	public int getMaxY()
+	{
+		return current.getMaxY();
+	}
+
+	@Override
+	public int getMinY()
+	{
+		return current.getMinY();
+	}
+
+	@Override
+	public MapPyramid getPyramid()
+	{
+		return current.getPyramid();
+	}
+
+}
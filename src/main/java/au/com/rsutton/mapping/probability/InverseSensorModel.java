@@ -0,0 +1,45 @@
+package au.com.rsutton.mapping.probability;
+
+/**
+ * how a single range reading updates the map, the cell at the end of the beam
+ * is made more occupied and the cells along the beam are cleared
+ */
+public interface InverseSensorModel
+{
+
+	/**
+	 * readings closer than this (in cm) are ignored altogether
+	 */
+	double getMinDistance();
+
+	/**
+	 * readings further than this (in cm) are not integrated into the map
+	 */
+	double getMaxDistance();
+
+	double getHitCertainty();
+
+	int getHitRadius();
+
+	/**
+	 *
+	 * @param fraction
+	 *            how far along the beam the cell is, 0 at the sensor and 1 at
+	 *            the end of the beam
+	 * @return the certainty to clear the cell with
+	 */
+	double getMissCertainty(double fraction);
+
+	/**
+	 * clearing along a beam stops at a cell that is already at least this
+	 * occupied
+	 */
+	double getBlockingThreshold();
+
+	/**
+	 * the ends of adjacent beams closer together than this (in cm) are joined
+	 * with occupied cells
+	 */
+	double getMaxGap();
+
+}
@@ -0,0 +1,62 @@
+package au.com.rsutton.mapping.probability;
+
+import au.com.rsutton.robot.RobotSimulator;
+
+public class LidarInverseSensorModel implements InverseSensorModel
+{
+
+	private final double maxDistance;
+
+	public LidarInverseSensorModel(double maxDistance)
+	{
+		this.maxDistance = maxDistance;
+	}
+
+	@Override
+	public double getMinDistance()
+	{
+		// we have an issue with the RPLidar reporting something close by behind
+		// the robot consistently, so eliminate it by rejecting anything closer
+		// than 50cm
+		return 50;
+	}
+
+	@Override
+	public double getMaxDistance()
+	{
+		return maxDistance;
+	}
+
+	@Override
+	public double getHitCertainty()
+	{
+		return 0.75;
+	}
+
+	@Override
+	public int getHitRadius()
+	{
+		return 2;
+	}
+
+	@Override
+	public double getMissCertainty(double fraction)
+	{
+		// certainty of the observation is at max 0.3, and dimishes to 0 at the
+		// end of the beam
+		return (1.0 - Math.sqrt(fraction)) * 0.3;
+	}
+
+	@Override
+	public double getBlockingThreshold()
+	{
+		return RobotSimulator.REQUIRED_POINT_CERTAINTY;
+	}
+
+	@Override
+	public double getMaxGap()
+	{
+		return 20;
+	}
+
+}
@@ -0,0 +1,292 @@
+package au.com.rsutton.mapping.probability;
+
+import java.util.Arrays;
+
+/**
+ * A precomputed score for every cell near an obstacle in a map, falling away
+ * from 1 at an occupied cell with a gaussian of the distance to the nearest
+ * occupied cell. Held as a dense grid so get() is a bounds check and an array
+ * read.
+ *
+ * The distances are calculated with an exact euclidean distance transform
+ * (Felzenszwalb and Huttenlocher), so building the field is linear in the
+ * size of the map.
+ */
+public class LikelihoodField implements ProbabilityMapReader
+{
+
+	private static final double FAR = 1e20;
+
+	private final int blockSize;
+	private final int minCellX;
+	private final int minCellY;
+	private final int width;
+	private final int height;
+	private final float[] scores;
+
+	private LikelihoodField(int blockSize, int minCellX, int minCellY, int width, int height, float[] scores)
+	{
+		this.blockSize = blockSize;
+		this.minCellX = minCellX;
+		this.minCellY = minCellY;
+		this.width = width;
+		this.height = height;
+		this.scores = scores;
+	}
+
+	/**
+	 *
+	 * @param source
+	 * @param blockSize
+	 *            the cell size of the field
+	 * @param sigma
+	 *            of the gaussian in cm
+	 * @param maxDistance
+	 *            in cm, beyond this the score is 0
+	 * @return
+	 */
+	public static LikelihoodField build(ProbabilityMapIIFc source, int blockSize, double sigma, double maxDistance)
+	{
+		OccupiedCells occupied = new OccupiedCells();
+		source.visitOccupied((x, y, value) -> occupied.add(x / blockSize, y / blockSize));
+		int occupiedCount = occupied.count;
+		int minX = occupied.minX;
+		int minY = occupied.minY;
+		int maxX = occupied.maxX;
+		int maxY = occupied.maxY;
+
+		if (occupiedCount == 0)
+		{
+			return new LikelihoodField(blockSize, 0, 0, 0, 0, new float[0]);
+		}
+
+		int margin = (int) Math.ceil(maxDistance / blockSize) + 1;
+		int minCellX = minX - margin;
+		int minCellY = minY - margin;
+		int width = (maxX - minX) + 1 + (2 * margin);
+		int height = (maxY - minY) + 1 + (2 * margin);
+
+		double[] distances = new double[width * height];
+		Arrays.fill(distances, FAR);
+		for (int i = 0; i < occupiedCount; i++)
+		{
+			int x = occupied.cells[i * 2] - minCellX;
+			int y = occupied.cells[(i * 2) + 1] - minCellY;
+			distances[(y * width) + x] = 0;
+		}
+
+		squaredDistanceTransform(distances, width, height);
+
+		// convert squared distances in cells to a score
+		float[] scores = new float[width * height];
+		double maxCells = maxDistance / blockSize;
+		double maxSquared = maxCells * maxCells;
+		double scale = (blockSize * blockSize) / (-2.0 * sigma * sigma);
+		for (int i = 0; i < scores.length; i++)
+		{
+			if (distances[i] <= maxSquared)
+			{
+				scores[i] = (float) Math.exp(distances[i] * scale);
+			}
+		}
+
+		return new LikelihoodField(blockSize, minCellX, minCellY, width, height, scores);
+	}
+
+	private static class OccupiedCells
+	{
+		int[] cells = new int[256];
+		int count;
+		int minX = Integer.MAX_VALUE;
+		int minY = Integer.MAX_VALUE;
+		int maxX = Integer.MIN_VALUE;
+		int maxY = Integer.MIN_VALUE;
+
+		void add(int x, int y)
+		{
+			if (count * 2 == cells.length)
+			{
+				cells = Arrays.copyOf(cells, cells.length * 2);
+			}
+			cells[count * 2] = x;
+			cells[(count * 2) + 1] = y;
+			count++;
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+		}
+	}
+
+	/**
+	 * replace each value with the squared distance to the nearest zero, first
+	 * down each column then along each row
+	 */
+	static void squaredDistanceTransform(double[] grid, int width, int height)
+	{
+		int maxLength = Math.max(width, height);
+		double[] f = new double[maxLength];
+		double[] d = new double[maxLength];
+		int[] v = new int[maxLength];
+		double[] z = new double[maxLength + 1];
+
+		for (int x = 0; x < width; x++)
+		{
+			for (int y = 0; y < height; y++)
+			{
+				f[y] = grid[(y * width) + x];
+			}
+			distanceTransform1d(f, height, d, v, z);
+			for (int y = 0; y < height; y++)
+			{
+				grid[(y * width) + x] = d[y];
+			}
+		}
+
+		for (int y = 0; y < height; y++)
+		{
+			System.arraycopy(grid, y * width, f, 0, width);
+			distanceTransform1d(f, width, d, v, z);
+			System.arraycopy(d, 0, grid, y * width, width);
+		}
+	}
+
+	/**
+	 * lower envelope of the parabolas rooted at each sample of f
+	 */
+	private static void distanceTransform1d(double[] f, int n, double[] d, int[] v, double[] z)
+	{
+		int k = 0;
+		v[0] = 0;
+		z[0] = Double.NEGATIVE_INFINITY;
+		z[1] = Double.POSITIVE_INFINITY;
+		for (int q = 1; q < n; q++)
+		{
+			double s = intersection(f, q, v[k]);
+			while (s <= z[k])
+			{
+				k--;
+				s = intersection(f, q, v[k]);
+			}
+			k++;
+			v[k] = q;
+			z[k] = s;
+			z[k + 1] = Double.POSITIVE_INFINITY;
+		}
+
+		k = 0;
+		for (int q = 0; q < n; q++)
+		{
+			while (z[k + 1] < q)
+			{
+				k++;
+			}
+			int offset = q - v[k];
+			d[q] = (offset * offset) + f[v[k]];
+		}
+	}
+
+	private static double intersection(double[] f, int q, int p)
+	{
+		return ((f[q] + ((double) q * q)) - (f[p] + ((double) p * p))) / (2.0 * (q - p));
+	}
+
+	@Override
+	public double get(double x, double y)
+	{
+		int cx = ((int) x / blockSize) - minCellX;
+		int cy = ((int) y / blockSize) - minCellY;
+		if (cx < 0 || cy < 0 || cx >= width || cy >= height)
+		{
+			return 0;
+		}
+		return scores[(cy * width) + cx];
+	}
+
+	/**
+	 * bilinear interpolation between the centres of the cells, smooth enough
+	 * to be differentiated when fitting a scan to the field. The cells are
+	 * those of get(), truncated towards 0, so the cell either side of 0 is
+	 * twice the width and the interpolation jumps across it.
+	 *
+	 * @param gradient
+	 *            receives the partial derivatives of the score in x and y, per
+	 *            cm
+	 * @return the interpolated score
+	 */
+	public double interpolate(double x, double y, double[] gradient)
+	{
+		double u = toCellCoordinate(x) - 0.5 - minCellX;
+		double v = toCellCoordinate(y) - 0.5 - minCellY;
+		int cx = (int) Math.floor(u);
+		int cy = (int) Math.floor(v);
+		double fx = u - cx;
+		double fy = v - cy;
+
+		double s00 = score(cx, cy);
+		double s10 = score(cx + 1, cy);
+		double s01 = score(cx, cy + 1);
+		double s11 = score(cx + 1, cy + 1);
+
+		gradient[0] = ((fy * (s11 - s01)) + ((1 - fy) * (s10 - s00))) / blockSize;
+		gradient[1] = ((fx * (s11 - s10)) + ((1 - fx) * (s01 - s00))) / blockSize;
+
+		return ((1 - fy) * (((1 - fx) * s00) + (fx * s10))) + (fy * (((1 - fx) * s01) + (fx * s11)));
+	}
+
+	/**
+	 * 
+	 * @return the position in cells, where cell n spans n to n + 1
+	 */
+	private double toCellCoordinate(double value)
+	{
+		double cells = value / blockSize;
+		return cells < 0 ? cells + 1 : cells;
+	}
+
+	private double score(int cx, int cy)
+	{
+		if (cx < 0 || cy < 0 || cx >= width || cy >= height)
+		{
+			return 0;
+		}
+		return scores[(cy * width) + cx];
+	}
+
+	@Override
+	public MapPyramid getPyramid()
+	{
+		return null;
+	}
+
+	@Override
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	@Override
+	public int getMaxX()
+	{
+		return (minCellX + width - 1) * blockSize;
+	}
+
+	@Override
+	public int getMinX()
+	{
+		return minCellX * blockSize;
+	}
+
+	@Override
+	public int getMaxY()
+	{
+		return (minCellY + height - 1) * blockSize;
+	}
+
+	@Override
+	public int getMinY()
+	{
+		return minCellY * blockSize;
+	}
+
+}
@@ -0,0 +1,294 @@
+package au.com.rsutton.mapping.probability;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+import com.google.common.base.Preconditions;
+
+import au.com.rsutton.mapping.array.Dynamic2dShortSparseArray;
+import au.com.rsutton.mapping.array.ShortSparseArray;
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.ScanObservation;
+import au.com.rsutton.robot.RobotSimulator;
+
+/**
+ * Occupancy map that holds the log odds of each cell quantized into a short,
+ * a quarter of the size of ProbabilityMap's doubles.
+ *
+ * Integrating an observation is a single add and clamp using precomputed hit
+ * and miss increments, get() converts back to a probability via a lookup
+ * table.
+ */
+public class LogOddsProbabilityMap implements ProbabilityMapIIFc
+{
+
+	/**
+	 * log odds are stored as multiples of 1/SCALE
+	 */
+	static final int SCALE = 128;
+
+	/**
+	 * clamp at a log odds of +-8, a probability of 0.99966, so the map can
+	 * always be changed by new observations
+	 */
+	static final int MAX_LOG_ODDS = 8 * SCALE;
+
+	/**
+	 * certainty is quantized into this many steps to look up its increment
+	 */
+	static final int CERTAINTY_STEPS = 256;
+
+	private static final double[] PROBABILITY = new double[(2 * MAX_LOG_ODDS) + 1];
+
+	private static final short[] INCREMENT = new short[CERTAINTY_STEPS + 1];
+
+	static
+	{
+		for (int logOdds = -MAX_LOG_ODDS; logOdds <= MAX_LOG_ODDS; logOdds++)
+		{
+			PROBABILITY[logOdds + MAX_LOG_ODDS] = 1.0 / (1.0 + Math.exp(-((double) logOdds) / SCALE));
+		}
+
+		for (int i = 0; i <= CERTAINTY_STEPS; i++)
+		{
+			// starting from an unknown cell this gives the same probability as
+			// ProbabilityMap, 0.5 + certainty/2
+			double probability = 0.5 + (0.5 * i) / CERTAINTY_STEPS;
+			double logOdds = Math.log(probability / (1.0 - probability));
+			INCREMENT[i] = (short) Math.min(2 * MAX_LOG_ODDS, Math.round(logOdds * SCALE));
+		}
+	}
+
+	private final int blockSize;
+	private ShortSparseArray world;
+	private final OccupancyIndex index = new OccupancyIndex();
+
+	List<Vector3D> features = new LinkedList<>();
+
+	public LogOddsProbabilityMap(int blockSize)
+	{
+		this.blockSize = blockSize;
+		world = new Dynamic2dShortSparseArray((short) 0);
+	}
+
+	@Override
+	public double[][] createGausian(int radius, double sigma, double centerValue)
+	{
+		return ProbabilityMap.buildGausian(radius, sigma, centerValue);
+	}
+
+	@Override
+	public void resetPoint(int x, int y)
+	{
+		world.set(x / blockSize, y / blockSize, (short) 0);
+		index.update(x / blockSize, y / blockSize, 0.5);
+	}
+
+	@Override
+	public void updatePoint(int x, int y, Occupancy occupied, double certainty, int gausianRadius)
+	{
+		Preconditions.checkArgument(certainty >= 0 && certainty <= 1.0, "Certainty must be between 0.0 and 1.0");
+
+		updateCells(x / blockSize, y / blockSize, occupied, certainty, gausianRadius);
+	}
+
+	private void updateCells(int x, int y, Occupancy occupied, double certainty, int gausianRadius)
+	{
+		// same spread as ProbabilityMap, which never exceeds a radius of 1
+		double[][] kernel = ProbabilityMap.KERNELS[Math.max(0, Math.min(1, gausianRadius / blockSize))];
+		int offset = kernel.length / 2;
+
+		for (int xc = 0; xc < kernel.length; xc++)
+		{
+			for (int yc = 0; yc < kernel.length; yc++)
+			{
+				updateCell(x + xc - offset, y + yc - offset, occupied, certainty * kernel[xc][yc]);
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @param x
+	 *            cell (not world) coordinate
+	 * @param y
+	 *            cell (not world) coordinate
+	 */
+	void updateCell(int x, int y, Occupancy occupied, double certainty)
+	{
+		int increment = INCREMENT[(int) Math.round(certainty * CERTAINTY_STEPS)];
+		if (occupied != Occupancy.OCCUPIED)
+		{
+			increment = -increment;
+		}
+		int logOdds = Math.max(-MAX_LOG_ODDS, Math.min(MAX_LOG_ODDS, world.get(x, y) + increment));
+		world.set(x, y, (short) logOdds);
+		index.update(x, y, toProbability(logOdds));
+	}
+
+	private ScanIntegrator scanIntegrator;
+
+	@Override
+	public void integrateScan(Pose origin, ScanObservation[] beams, InverseSensorModel model)
+	{
+		if (scanIntegrator == null)
+		{
+			scanIntegrator = new ScanIntegrator();
+		}
+		scanIntegrator.integrate(this, origin, beams, model, this::updateCells);
+	}
+
+	@Override
+	public List<Vector3D> getFeatures()
+	{
+		return features;
+	}
+
+	@Override
+	public void drawLine(double x1, double y1, double x2, double y2, Occupancy occupancy, double certainty, int radius)
+	{
+		Vector3D lineStart = new Vector3D(x2, y2, 0);
+		Vector3D lineEnd = new Vector3D(x1, y1, 0);
+		features.add(lineEnd);
+		features.add(lineStart);
+
+		double length = Vector3D.distance(lineStart, lineEnd);
+
+		for (double i = 0; i < length; i++)
+		{
+			double percent = i / length;
+			double x = (x1 * percent) + (x2 * (1.0 - percent));
+			double y = (y1 * percent) + (y2 * (1.0 - percent));
+
+			updatePoint((int) x, (int) y, occupancy, certainty, radius);
+		}
+	}
+
+	@Override
+	public void dumpWorld()
+	{
+		for (int x = world.getMinX() - 1; x < world.getMaxX() + 1; x++)
+		{
+			for (int y = world.getMinY() - 1; y < world.getMaxY() + 1; y++)
+			{
+				System.out.print(String.format("%.4f, ", toProbability(world.get(x, y))));
+			}
+			System.out.println();
+		}
+	}
+
+	@Override
+	public void dumpTextWorld()
+	{
+		System.out.println(world.getMinX() * blockSize + "," + world.getMinY() * blockSize);
+		for (int y = world.getMinY() - 1; y < world.getMaxY() + 1; y += 2)
+		{
+			StringBuilder line = new StringBuilder();
+			for (int x = world.getMinX() - 1; x < world.getMaxX() + 1; x++)
+			{
+				// each character represents 2 rows
+				boolean occupied = toProbability(world.get(x, y)) >= 0.51
+						|| toProbability(world.get(x, y + 1)) >= 0.51;
+				line.append(occupied ? '*' : '.');
+			}
+			System.out.println(line);
+		}
+		System.out.println(world.getMaxX() * blockSize + "," + world.getMaxY() * blockSize);
+	}
+
+	@Override
+	public int getMaxX()
+	{
+		return world.getMaxX() * blockSize;
+	}
+
+	@Override
+	public int getMinX()
+	{
+		return world.getMinX() * blockSize;
+	}
+
+	@Override
+	public int getMaxY()
+	{
+		return world.getMaxY() * blockSize;
+	}
+
+	@Override
+	public int getMinY()
+	{
+		return world.getMinY() * blockSize;
+	}
+
+	@Override
+	public double get(double x, double y)
+	{
+		return toProbability(world.get((int) x / blockSize, (int) y / blockSize));
+	}
+
+	static double toProbability(int logOdds)
+	{
+		return PROBABILITY[logOdds + MAX_LOG_ODDS];
+	}
+
+	@Override
+	public MapPyramid getPyramid()
+	{
+		return null;
+	}
+
+	@Override
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	@Override
+	public List<Point> getOccupiedPoints()
+	{
+		List<Point> points = new LinkedList<>();
+		visitOccupied((x, y, value) -> {
+			if (value >= RobotSimulator.REQUIRED_POINT_CERTAINTY)
+			{
+				points.add(new Point(x, y));
+			}
+		});
+		return points;
+	}
+
+	@Override
+	public void visitOccupied(CellVisitor visitor)
+	{
+		index.visitOccupied((x, y) -> visitor.visit(x * blockSize, y * blockSize, toProbability(world.get(x, y))));
+	}
+
+	@Override
+	public void visitVacant(CellVisitor visitor)
+	{
+		index.visitVacant((x, y) -> visitor.visit(x * blockSize, y * blockSize, toProbability(world.get(x, y))));
+	}
+
+	@Override
+	public void erase()
+	{
+		world = new Dynamic2dShortSparseArray((short) 0);
+		index.clear();
+	}
+
+	@Override
+	public long getVersion()
+	{
+		return index.getVersion();
+	}
+
+	@Override
+	public List<Rectangle> getChangedRegions(long sinceVersion)
+	{
+		return index.getChangedRegions(sinceVersion, blockSize);
+	}
+
+}
@@ -0,0 +1,166 @@
+package au.com.rsutton.mapping.probability;
+
+import java.util.function.DoubleFunction;
+
+import au.com.rsutton.mapping.array.CopyOnWriteDoubleSparseArray;
+import au.com.rsutton.mapping.array.DoubleSparseArray;
+
+/**
+ * Max pooled copies of a map at successively halved resolutions, level 0 is
+ * the map itself and each cell of level n holds the maximum of the 2x2 cells
+ * below it in level n-1. A query can skip a whole coarse cell when its maximum
+ * is too low to matter.
+ *
+ * Kept up to date incrementally, as each cell of the map changes only its
+ * ancestors are revisited and only while their maximum actually changes.
+ */
+public class MapPyramid
+{
+
+	private final DoubleSparseArray[] levels;
+	private final int blockSize;
+
+	/**
+	 *
+	 * @param base
+	 *            the cells of the map, which becomes level 0
+	 * @param blockSize
+	 *            of the cells of the map
+	 * @param levelCount
+	 *            including the map itself
+	 * @param arrayFactory
+	 *            creates the storage for each level from the default value
+	 */
+	MapPyramid(DoubleSparseArray base, int blockSize, int levelCount, DoubleFunction<DoubleSparseArray> arrayFactory)
+	{
+		this.blockSize = blockSize;
+		levels = new DoubleSparseArray[levelCount];
+		levels[0] = base;
+		for (int i = 1; i < levelCount; i++)
+		{
+			levels[i] = arrayFactory.apply(base.getDefaultValue());
+		}
+	}
+
+	private MapPyramid(DoubleSparseArray[] levels, int blockSize)
+	{
+		this.levels = levels;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * 
+	 * @return an immutable copy of the pyramid, all the levels must be
+	 *         CopyOnWriteDoubleSparseArrays
+	 */
+	MapPyramid snapshot()
+	{
+		DoubleSparseArray[] snapshotLevels = new DoubleSparseArray[levels.length];
+		for (int i = 0; i < levels.length; i++)
+		{
+			snapshotLevels[i] = CopyOnWriteDoubleSparseArray.snapshotOf(levels[i]);
+		}
+		return new MapPyramid(snapshotLevels, blockSize);
+	}
+
+	/**
+	 * called after a cell of level 0 has changed
+	 *
+	 * @param x
+	 *            cell (not world) coordinate
+	 * @param y
+	 *            cell (not world) coordinate
+	 */
+	void update(int x, int y, double oldValue, double newValue)
+	{
+		for (int level = 1; level < levels.length; level++)
+		{
+			x >>= 1;
+			y >>= 1;
+			double parent = levels[level].get(x, y);
+			double newParent;
+			if (newValue >= parent)
+			{
+				newParent = newValue;
+			} else if (oldValue < parent)
+			{
+				// the changed cell wasn't the maximum and still isn't
+				return;
+			} else
+			{
+				newParent = maxOfChildren(level, x, y);
+			}
+			if (newParent == parent)
+			{
+				return;
+			}
+			levels[level].set(x, y, newParent);
+			oldValue = parent;
+			newValue = newParent;
+		}
+	}
+
+	private double maxOfChildren(int level, int x, int y)
+	{
+		DoubleSparseArray below = levels[level - 1];
+		int cx = x << 1;
+		int cy = y << 1;
+		return Math.max(Math.max(below.get(cx, cy), below.get(cx + 1, cy)),
+				Math.max(below.get(cx, cy + 1), below.get(cx + 1, cy + 1)));
+	}
+
+	public int getLevelCount()
+	{
+		return levels.length;
+	}
+
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	/**
+	 *
+	 * @param level
+	 * @param x
+	 *            cell coordinate at the given level, ie. the level 0 cell
+	 *            coordinate shifted right by the level
+	 * @param y
+	 *            cell coordinate at the given level
+	 * @return the maximum value of the level 0 cells covered
+	 */
+	public double getMax(int level, int x, int y)
+	{
+		return levels[level].get(x, y);
+	}
+
+	/**
+	 *
+	 * @return the level 0 cell containing the world coordinate
+	 */
+	public int toCell(double value)
+	{
+		return (int) value / blockSize;
+	}
+
+	/**
+	 *
+	 * @return the lowest world coordinate of the level 0 cell, cells either
+	 *         side of 0 are truncated towards 0, so this bound is exclusive
+	 *         for cells <= 0
+	 */
+	public double getCellMin(int cell)
+	{
+		return cell > 0 ? cell * blockSize : (cell - 1) * blockSize;
+	}
+
+	/**
+	 *
+	 * @return the highest world coordinate of the level 0 cell, exclusive
+	 *         for cells >= 0
+	 */
+	public double getCellMax(int cell)
+	{
+		return cell >= 0 ? (cell + 1) * blockSize : cell * blockSize;
+	}
+}
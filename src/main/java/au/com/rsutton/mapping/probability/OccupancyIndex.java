@@ -0,0 +1,219 @@
+package au.com.rsutton.mapping.probability;
+
+import java.awt.Rectangle;
+import java.util.LinkedList;
+import java.util.List;
+
+import au.com.rsutton.mapping.array.TileTable;
+
+/**
+ * Keeps a bitmap per tile of which cells are occupied (above 0.5) and which are
+ * vacant (below 0.5), so the cells that matter can be visited without scanning
+ * the whole bounding box of the map. Only cells that have been written are
+ * indexed.
+ *
+ * Every write also advances a version number, which is recorded against the
+ * tile so consumers can find the tiles that changed since they last looked.
+ * getVersion() and getChangedRegions() are safe to call while another thread
+ * is writing.
+ */
+class OccupancyIndex
+{
+
+	interface CellConsumer
+	{
+		void accept(int cellX, int cellY);
+	}
+
+	interface TileConsumer
+	{
+		void accept(int tileX, int tileY, long[] occupied, long[] vacant);
+	}
+
+	static final int WORDS_PER_TILE = TileTable.CELLS_PER_TILE / 64;
+
+	private static final class TileBits
+	{
+		final long[] occupied = new long[WORDS_PER_TILE];
+		final long[] vacant = new long[WORDS_PER_TILE];
+		int occupiedCount;
+		int vacantCount;
+		volatile long modified;
+	}
+
+	private volatile TileTable<TileBits> tiles = new TileTable<>();
+
+	private int occupiedCount;
+	private int vacantCount;
+
+	private volatile long version;
+	private volatile long clearedVersion;
+
+	/**
+	 * record the new value of a cell
+	 */
+	void update(int cellX, int cellY, double value)
+	{
+		int tx = cellX >> TileTable.TILE_BITS;
+		int ty = cellY >> TileTable.TILE_BITS;
+		TileBits bits = tiles.get(tx, ty);
+		if (bits == null)
+		{
+			bits = new TileBits();
+			tiles.put(tx, ty, bits);
+		}
+		bits.modified = ++version;
+
+		int index = TileTable.cellIndex(cellX, cellY);
+		int word = index >> 6;
+		long mask = 1L << index;
+
+		boolean wasOccupied = (bits.occupied[word] & mask) != 0;
+		boolean wasVacant = (bits.vacant[word] & mask) != 0;
+		boolean isOccupied = value > 0.5;
+		boolean isVacant = value < 0.5;
+
+		if (wasOccupied != isOccupied)
+		{
+			bits.occupied[word] ^= mask;
+			int delta = isOccupied ? 1 : -1;
+			bits.occupiedCount += delta;
+			occupiedCount += delta;
+		}
+		if (wasVacant != isVacant)
+		{
+			bits.vacant[word] ^= mask;
+			int delta = isVacant ? 1 : -1;
+			bits.vacantCount += delta;
+			vacantCount += delta;
+		}
+	}
+
+	/**
+	 * add a tile of cells that were written elsewhere, eg. loaded from a file.
+	 * The tile must not already be indexed.
+	 */
+	void loadTile(int tileX, int tileY, long[] occupied, long[] vacant)
+	{
+		TileBits bits = new TileBits();
+		System.arraycopy(occupied, 0, bits.occupied, 0, WORDS_PER_TILE);
+		System.arraycopy(vacant, 0, bits.vacant, 0, WORDS_PER_TILE);
+		for (int word = 0; word < WORDS_PER_TILE; word++)
+		{
+			bits.occupiedCount += Long.bitCount(occupied[word]);
+			bits.vacantCount += Long.bitCount(vacant[word]);
+		}
+		occupiedCount += bits.occupiedCount;
+		vacantCount += bits.vacantCount;
+		bits.modified = ++version;
+		tiles.put(tileX, tileY, bits);
+	}
+
+	/**
+	 * visit every tile that has been written to, the bitmaps must not be
+	 * modified
+	 */
+	void visitTiles(TileConsumer consumer)
+	{
+		for (TileTable.Tile<TileBits> tile : tiles.getTiles())
+		{
+			consumer.accept(tile.getTileX(), tile.getTileY(), tile.getCells().occupied, tile.getCells().vacant);
+		}
+	}
+
+	int getTileCount()
+	{
+		return tiles.size();
+	}
+
+	long getVersion()
+	{
+		return version;
+	}
+
+	/**
+	 * forget every cell, the version carries on from where it was
+	 */
+	void clear()
+	{
+		tiles = new TileTable<>();
+		occupiedCount = 0;
+		vacantCount = 0;
+		clearedVersion = ++version;
+	}
+
+	/**
+	 *
+	 * @return the world coordinates of each tile written to after the given
+	 *         version, or null if the index has been cleared since then
+	 */
+	List<Rectangle> getChangedRegions(long sinceVersion, int blockSize)
+	{
+		if (sinceVersion < clearedVersion)
+		{
+			return null;
+		}
+		List<Rectangle> regions = new LinkedList<>();
+		for (TileTable.Tile<TileBits> tile : tiles.getTiles())
+		{
+			if (tile.getCells().modified > sinceVersion)
+			{
+				// cells either side of 0 are truncated towards 0, so allow for
+				// a cell's worth of extra width at each end
+				int minX = ((tile.getTileX() << TileTable.TILE_BITS) * blockSize) - (blockSize - 1);
+				int minY = ((tile.getTileY() << TileTable.TILE_BITS) * blockSize) - (blockSize - 1);
+				int size = ((TileTable.TILE_SIZE + 1) * blockSize) - 1;
+				regions.add(new Rectangle(minX, minY, size, size));
+			}
+		}
+		return regions;
+	}
+
+	int getOccupiedCount()
+	{
+		return occupiedCount;
+	}
+
+	int getVacantCount()
+	{
+		return vacantCount;
+	}
+
+	void visitOccupied(CellConsumer consumer)
+	{
+		for (TileTable.Tile<TileBits> tile : tiles.getTiles())
+		{
+			if (tile.getCells().occupiedCount > 0)
+			{
+				visit(tile, tile.getCells().occupied, consumer);
+			}
+		}
+	}
+
+	void visitVacant(CellConsumer consumer)
+	{
+		for (TileTable.Tile<TileBits> tile : tiles.getTiles())
+		{
+			if (tile.getCells().vacantCount > 0)
+			{
+				visit(tile, tile.getCells().vacant, consumer);
+			}
+		}
+	}
+
+	private void visit(TileTable.Tile<TileBits> tile, long[] words, CellConsumer consumer)
+	{
+		int baseX = tile.getTileX() << TileTable.TILE_BITS;
+		int baseY = tile.getTileY() << TileTable.TILE_BITS;
+		for (int word = 0; word < words.length; word++)
+		{
+			long bits = words[word];
+			while (bits != 0)
+			{
+				int index = (word << 6) + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				consumer.accept(baseX + (index & TileTable.TILE_MASK), baseY + (index >> TileTable.TILE_BITS));
+			}
+		}
+	}
+}
@@ -1,16 +1,21 @@
 package au.com.rsutton.mapping.probability;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.function.DoubleFunction;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
 import com.google.common.base.Preconditions;
 
-import au.com.rsutton.mapping.array.Dynamic2dSparseArray;
-import au.com.rsutton.mapping.array.SparseArray;
+import au.com.rsutton.mapping.array.CopyOnWriteDoubleSparseArray;
+import au.com.rsutton.mapping.array.DoubleSparseArray;
+import au.com.rsutton.mapping.array.Dynamic2dDoubleSparseArray;
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.ScanObservation;
 import au.com.rsutton.robot.RobotSimulator;
 import au.com.rsutton.ui.DataSourcePoint;
 
@@ -18,17 +23,109 @@ public class ProbabilityMap implements DataSourcePoint, ProbabilityMapIIFc
 {
 
 	private int blockSize;
-	private SparseArray<Double> world;
+	private DoubleSparseArray world;
 	private double defaultValue = 0.5;
+	private final OccupancyIndex index;
+
+	/**
+	 * 5cm cells pooled up to 160cm
+	 */
+	public static final int DEFAULT_PYRAMID_LEVELS = 6;
+
+	private MapPyramid pyramid;
+	private int pyramidLevels;
+
+	private final DoubleFunction<DoubleSparseArray> arrayFactory;
 
 	public ProbabilityMap(int blockSize)
 	{
+		this(blockSize, Dynamic2dDoubleSparseArray::new);
+	}
 
-		world = new Dynamic2dSparseArray<>(defaultValue);
+	/**
+	 * 
+	 * @param arrayFactory
+	 *            creates the storage for the map from the default value
+	 */
+	ProbabilityMap(int blockSize, DoubleFunction<DoubleSparseArray> arrayFactory)
+	{
+		this.arrayFactory = arrayFactory;
+
+		world = arrayFactory.apply(defaultValue);
+		index = new OccupancyIndex();
 
 		this.blockSize = blockSize;
 	}
 
+	/**
+	 * a map over cells that were written elsewhere, see ProbabilityMapFile
+	 * 
+	 * @param index
+	 *            of every tile of the cells that has been written to
+	 */
+	ProbabilityMap(int blockSize, DoubleSparseArray world, OccupancyIndex index)
+	{
+		this.arrayFactory = Dynamic2dDoubleSparseArray::new;
+		this.world = world;
+		this.index = index;
+		this.defaultValue = world.getDefaultValue();
+		this.blockSize = blockSize;
+	}
+
+	public ProbabilityMap(int blockSize, int pyramidLevels)
+	{
+		this(blockSize);
+		createPyramid(pyramidLevels);
+	}
+
+	/**
+	 * start maintaining a max pooled pyramid of the map, see getPyramid()
+	 * 
+	 * @param levels
+	 *            including the map itself
+	 */
+	public void createPyramid(int levels)
+	{
+		pyramidLevels = levels;
+		MapPyramid newPyramid = new MapPyramid(world, blockSize, levels, arrayFactory);
+		OccupancyIndex.CellConsumer consumer = (x, y) -> newPyramid.update(x, y, world.getDefaultValue(),
+				world.get(x, y));
+		index.visitOccupied(consumer);
+		index.visitVacant(consumer);
+		pyramid = newPyramid;
+	}
+
+	@Override
+	public MapPyramid getPyramid()
+	{
+		return pyramid;
+	}
+
+	/**
+	 * 
+	 * @return an immutable copy of the map, it must have been created with a
+	 *         CopyOnWriteDoubleSparseArray factory
+	 */
+	ProbabilityMapSnapshot snapshot()
+	{
+		return new ProbabilityMapSnapshot(blockSize, CopyOnWriteDoubleSparseArray.snapshotOf(world),
+				pyramid == null ? null : pyramid.snapshot(), index.getVersion());
+	}
+
+	OccupancyIndex getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * 
+	 * @return the storage of the map's cells, which must not be modified
+	 */
+	DoubleSparseArray getCells()
+	{
+		return world;
+	}
+
 	public void setDefaultValue(double defaultValue)
 	{
 		this.defaultValue = defaultValue;
@@ -43,6 +140,11 @@ public class ProbabilityMap implements DataSourcePoint, ProbabilityMapIIFc
 	 */
 	@Override
 	public double[][] createGausian(int radius, double sigma, double centerValue)
+	{
+		return buildGausian(radius, sigma, centerValue);
+	}
+
+	static double[][] buildGausian(int radius, double sigma, double centerValue)
 	{
 
 		int W = (radius * 2) + 1;
@@ -87,7 +189,7 @@ public class ProbabilityMap implements DataSourcePoint, ProbabilityMapIIFc
 	{
 		x = x / blockSize;
 		y = y / blockSize;
-		world.set(x, y, world.getDefaultValue());
+		setCell(x, y, world.getDefaultValue());
 	}
 
 	/*
@@ -105,42 +207,50 @@ public class ProbabilityMap implements DataSourcePoint, ProbabilityMapIIFc
 
 		// scale gausianRadis by blockSize
 
-		x = x / blockSize;
-		y = y / blockSize;
-
-		int gr = Math.min(1, gausianRadius / blockSize);
-		double[][] occupancyProbability = createGausian(gr, 1.0, 1.0);
+		updateCells(x / blockSize, y / blockSize, occupied, certainty, gausianRadius);
+	}
 
-		// occupancyProbability = shiftProbability(occupancyProbability, 0.2,
-		// 0.3);
-		// scale x and y by blocksize
+	/**
+	 * the kernels used by updatePoint, which never spreads an update beyond a
+	 * radius of 1 cell
+	 */
+	static final double[][][] KERNELS = new double[][][] {
+			buildGausian(0, 1.0, 1.0), buildGausian(1, 1.0, 1.0) };
 
-		int xl = occupancyProbability.length;
-		int yl = occupancyProbability[0].length;
-		if (xl % 2 != 1 || yl % 2 != 1)
-		{
-			throw new RuntimeException("OccupancyProbability array must be an odd number of rows and colums");
-		}
+	/**
+	 * 
+	 * @param x
+	 *            cell (not world) coordinate
+	 * @param y
+	 *            cell (not world) coordinate
+	 */
+	private void updateCells(int x, int y, Occupancy occupied, double certainty, int gausianRadius)
+	{
+		double[][] occupancyProbability = KERNELS[Math.max(0, Math.min(1, gausianRadius / blockSize))];
 
-		int xstart = -xl / 2;
-		int ystart = -yl / 2;
+		int offset = occupancyProbability.length / 2;
 
-		for (int xc = 0; xc < xl; xc++)
+		for (int xc = 0; xc < occupancyProbability.length; xc++)
 		{
-			for (int yc = 0; yc < yl; yc++)
+			for (int yc = 0; yc < occupancyProbability.length; yc++)
 			{
-				int xpos = x + xc + xstart;
-				int ypos = y + yc + ystart;
-
-				double gausian = occupancyProbability[xc][yc];
-
-				double centered = certainty * gausian;
-
-				updatePoint(xpos, ypos, occupied, centered);
+				double centered = certainty * occupancyProbability[xc][yc];
 
+				updatePoint(x + xc - offset, y + yc - offset, occupied, centered);
 			}
+		}
+	}
+
+	private ScanIntegrator scanIntegrator;
 
+	@Override
+	public void integrateScan(Pose origin, ScanObservation[] beams, InverseSensorModel model)
+	{
+		if (scanIntegrator == null)
+		{
+			scanIntegrator = new ScanIntegrator();
 		}
+		scanIntegrator.integrate(this, origin, beams, model, this::updateCells);
 	}
 
 	List<Vector3D> features = new LinkedList<>();
@@ -280,11 +390,11 @@ public class ProbabilityMap implements DataSourcePoint, ProbabilityMapIIFc
 		if (occupied == Occupancy.OCCUPIED)
 		{
 			double delta = certainty * (1.0 - currentValue);
-			world.set(x, y, currentValue + delta);
+			setCell(x, y, currentValue + delta);
 		} else
 		{
 			double delta = certainty * currentValue;
-			world.set(x, y, currentValue - delta);
+			setCell(x, y, currentValue - delta);
 		}
 
 	}
@@ -442,31 +552,132 @@ public class ProbabilityMap implements DataSourcePoint, ProbabilityMapIIFc
 	public List<Point> getOccupiedPoints()
 	{
 		List<Point> points = new LinkedList<>();
-		for (int x = world.getMinX() - 1; x < world.getMaxX() + 1; x += 1)
-		{
-			for (int y = world.getMinY() - 1; y < world.getMaxY() + 1; y += 1)
+		visitOccupied((x, y, value) -> {
+			if (value >= RobotSimulator.REQUIRED_POINT_CERTAINTY)
 			{
-				if (world.get(x, y) >= RobotSimulator.REQUIRED_POINT_CERTAINTY)
-				{
-					points.add(new Point(x * blockSize, y * blockSize));
-				}
+				points.add(new Point(x, y));
 			}
-
-		}
+		});
 		return points;
 	}
 
+	@Override
+	public void visitOccupied(CellVisitor visitor)
+	{
+		index.visitOccupied((x, y) -> visitor.visit(x * blockSize, y * blockSize, world.get(x, y)));
+	}
+
+	@Override
+	public void visitVacant(CellVisitor visitor)
+	{
+		index.visitVacant((x, y) -> visitor.visit(x * blockSize, y * blockSize, world.get(x, y)));
+	}
+
 	@Override
 	public void erase()
 	{
-		world = new Dynamic2dSparseArray<>(defaultValue);
+		world = arrayFactory.apply(defaultValue);
+		index.clear();
+		if (pyramid != null)
+		{
+			pyramid = new MapPyramid(world, blockSize, pyramidLevels, arrayFactory);
+		}
+	}
+
+	@Override
+	public long getVersion()
+	{
+		return index.getVersion();
+	}
 
+	@Override
+	public List<Rectangle> getChangedRegions(long sinceVersion)
+	{
+		return index.getChangedRegions(sinceVersion, blockSize);
 	}
 
 	public void writeRadius(int x, int y, double value, int radius)
 	{
 		for (int ox = -radius; ox < radius; ox += blockSize)
 			for (int oy = -radius; oy < radius; oy += blockSize)
-				world.set((x + ox) / blockSize, (y + oy) / blockSize, value);
+				setCell((x + ox) / blockSize, (y + oy) / blockSize, value);
+	}
+
+	/**
+	 * as writeRadius, but only cells within the clip are written
+	 * 
+	 * @param clip
+	 *            in cell (not world) coordinates, inclusive of its far edges
+	 */
+	public void writeRadius(int x, int y, double value, int radius, Rectangle clip)
+	{
+		for (int ox = -radius; ox < radius; ox += blockSize)
+			for (int oy = -radius; oy < radius; oy += blockSize)
+			{
+				int cx = (x + ox) / blockSize;
+				int cy = (y + oy) / blockSize;
+				if (cx >= clip.x && cy >= clip.y && cx <= clip.x + clip.width && cy <= clip.y + clip.height)
+				{
+					setCell(cx, cy, value);
+				}
+			}
+	}
+
+	/**
+	 * set every cell within radius of a square of side size, eg. a cell of a
+	 * map with a different block size, so it is inflated by the same amount on
+	 * every side
+	 * 
+	 * @param x
+	 *            the lowest x of the square
+	 * @param y
+	 *            the lowest y of the square
+	 */
+	public void writeInflated(int x, int y, int size, double value, int radius)
+	{
+		writeInflated(x, y, size, value, radius, null);
+	}
+
+	/**
+	 * as writeInflated, but only cells within the clip are written
+	 * 
+	 * @param clip
+	 *            in cell (not world) coordinates, inclusive of its far edges,
+	 *            or null for no clip
+	 */
+	public void writeInflated(int x, int y, int size, double value, int radius, Rectangle clip)
+	{
+		int minX = (x - radius) / blockSize;
+		int minY = (y - radius) / blockSize;
+		int maxX = (x + size - 1 + radius) / blockSize;
+		int maxY = (y + size - 1 + radius) / blockSize;
+		if (clip != null)
+		{
+			minX = Math.max(minX, clip.x);
+			minY = Math.max(minY, clip.y);
+			maxX = Math.min(maxX, clip.x + clip.width);
+			maxY = Math.min(maxY, clip.y + clip.height);
+		}
+		for (int cx = minX; cx <= maxX; cx++)
+		{
+			for (int cy = minY; cy <= maxY; cy++)
+			{
+				setCell(cx, cy, value);
+			}
+		}
+	}
+
+	private void setCell(int x, int y, double value)
+	{
+		if (pyramid != null)
+		{
+			double oldValue = world.get(x, y);
+			world.set(x, y, value);
+			pyramid.update(x, y, oldValue, value);
+		} else
+		{
+			world.set(x, y, value);
+		}
+		index.update(x, y, value);
 	}
 }
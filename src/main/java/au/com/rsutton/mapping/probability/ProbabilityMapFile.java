@@ -0,0 +1,210 @@
+package au.com.rsutton.mapping.probability;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+import au.com.rsutton.mapping.array.DoubleSparseArray;
+import au.com.rsutton.mapping.array.MappedDoubleSparseArray;
+import au.com.rsutton.mapping.array.TileTable;
+
+/**
+ * Binary file format for a ProbabilityMap, laid out so it can be memory mapped
+ * and used without being parsed.
+ *
+ * <pre>
+ * header      magic, format version, block size, tile bits, default value,
+ *             cell bounds, feature count, tile count
+ * features    x, y of each feature
+ * tile index  x, y, occupied bitmap and vacant bitmap of each tile
+ * payloads    the cells of each tile as raw doubles, in tile index order
+ * </pre>
+ *
+ * Everything is big endian and 8 byte aligned. The tile index is read
+ * straight into the map's OccupancyIndex, the payloads are only copied out of
+ * the file as each tile is first used.
+ */
+public class ProbabilityMapFile
+{
+
+	private static final int MAGIC = 0x50424d50;
+
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int TILE_BYTES = TileTable.CELLS_PER_TILE * Double.BYTES;
+
+	private ProbabilityMapFile()
+	{
+	}
+
+	private static final class TileEntry
+	{
+		final int tileX;
+		final int tileY;
+		final long[] occupied;
+		final long[] vacant;
+
+		TileEntry(int tileX, int tileY, long[] occupied, long[] vacant)
+		{
+			this.tileX = tileX;
+			this.tileY = tileY;
+			this.occupied = occupied;
+			this.vacant = vacant;
+		}
+	}
+
+	public static void save(ProbabilityMap map, File file) throws IOException
+	{
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file))))
+		{
+			write(map, out);
+		}
+	}
+
+	/**
+	 * memory map the file, only the header and tile index are read up front
+	 */
+	public static ProbabilityMap load(File file) throws IOException
+	{
+		return read(map(file));
+	}
+
+	/**
+	 *
+	 * @return the whole file, mapped read only. The mapping remains valid
+	 *         after the file is closed.
+	 */
+	public static MappedByteBuffer map(File file) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	public static void write(ProbabilityMap map, DataOutput out) throws IOException
+	{
+		DoubleSparseArray cells = map.getCells();
+
+		List<TileEntry> tiles = new ArrayList<>();
+		map.getIndex().visitTiles(
+				(tileX, tileY, occupied, vacant) -> tiles.add(new TileEntry(tileX, tileY, occupied, vacant)));
+
+		List<Vector3D> features = map.getFeatures();
+
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(map.getBlockSize());
+		out.writeInt(TileTable.TILE_BITS);
+		out.writeDouble(cells.getDefaultValue());
+		out.writeInt(cells.getMinX());
+		out.writeInt(cells.getMinY());
+		out.writeInt(cells.getMaxX());
+		out.writeInt(cells.getMaxY());
+		out.writeInt(features.size());
+		out.writeInt(tiles.size());
+
+		for (Vector3D feature : features)
+		{
+			out.writeDouble(feature.getX());
+			out.writeDouble(feature.getY());
+		}
+
+		for (TileEntry tile : tiles)
+		{
+			out.writeInt(tile.tileX);
+			out.writeInt(tile.tileY);
+			for (long word : tile.occupied)
+			{
+				out.writeLong(word);
+			}
+			for (long word : tile.vacant)
+			{
+				out.writeLong(word);
+			}
+		}
+
+		for (TileEntry tile : tiles)
+		{
+			int baseX = tile.tileX << TileTable.TILE_BITS;
+			int baseY = tile.tileY << TileTable.TILE_BITS;
+			for (int index = 0; index < TileTable.CELLS_PER_TILE; index++)
+			{
+				out.writeDouble(
+						cells.get(baseX + (index & TileTable.TILE_MASK), baseY + (index >> TileTable.TILE_BITS)));
+			}
+		}
+	}
+
+	/**
+	 * read a map starting at the buffer's position, leaving the position at
+	 * the end of the map. The map keeps using the buffer for its cells.
+	 */
+	public static ProbabilityMap read(ByteBuffer buffer) throws IOException
+	{
+		ByteBuffer section = buffer.slice();
+
+		if (section.getInt() != MAGIC)
+		{
+			throw new IOException("Not a probability map");
+		}
+		int formatVersion = section.getInt();
+		if (formatVersion != FORMAT_VERSION)
+		{
+			throw new IOException("Unsupported probability map format version " + formatVersion);
+		}
+		int blockSize = section.getInt();
+		int tileBits = section.getInt();
+		if (tileBits != TileTable.TILE_BITS)
+		{
+			throw new IOException("Probability map was written with tiles of " + tileBits + " bits");
+		}
+		double defaultValue = section.getDouble();
+		int minX = section.getInt();
+		int minY = section.getInt();
+		int maxX = section.getInt();
+		int maxY = section.getInt();
+		int featureCount = section.getInt();
+		int tileCount = section.getInt();
+
+		List<Vector3D> features = new ArrayList<>(featureCount);
+		for (int i = 0; i < featureCount; i++)
+		{
+			features.add(new Vector3D(section.getDouble(), section.getDouble(), 0));
+		}
+
+		int payloadStart = section.position() + (tileCount * (8 + (OccupancyIndex.WORDS_PER_TILE * 2 * 8)));
+
+		MappedDoubleSparseArray cells = new MappedDoubleSparseArray(section, defaultValue, minX, minY, maxX, maxY);
+		OccupancyIndex index = new OccupancyIndex();
+		long[] occupied = new long[OccupancyIndex.WORDS_PER_TILE];
+		long[] vacant = new long[OccupancyIndex.WORDS_PER_TILE];
+		for (int i = 0; i < tileCount; i++)
+		{
+			int tileX = section.getInt();
+			int tileY = section.getInt();
+			section.asLongBuffer().get(occupied).get(vacant);
+			section.position(section.position() + (OccupancyIndex.WORDS_PER_TILE * 2 * 8));
+
+			index.loadTile(tileX, tileY, occupied, vacant);
+			cells.addTile(tileX, tileY, payloadStart + (i * TILE_BYTES));
+		}
+
+		buffer.position(buffer.position() + payloadStart + (tileCount * TILE_BYTES));
+
+		ProbabilityMap map = new ProbabilityMap(blockSize, cells, index);
+		map.getFeatures().addAll(features);
+		return map;
+	}
+}
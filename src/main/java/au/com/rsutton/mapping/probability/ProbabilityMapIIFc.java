@@ -1,13 +1,16 @@
 package au.com.rsutton.mapping.probability;
 
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.util.List;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.ScanObservation;
 import au.com.rsutton.ui.DataSourcePoint;
 
-public interface ProbabilityMapIIFc extends DataSourcePoint
+public interface ProbabilityMapIIFc extends DataSourcePoint, ProbabilityMapReader
 {
 
 	double[][] createGausian(int radius, double sigma, double centerValue);
@@ -28,6 +31,17 @@ public interface ProbabilityMapIIFc extends DataSourcePoint
 	 */
 	void updatePoint(int x, int y, Occupancy occupied, double certainty, int gausianRadius);
 
+	/**
+	 * integrate a whole scan into the map, each cell is updated at most once
+	 * 
+	 * @param origin
+	 *            of the scan
+	 * @param beams
+	 *            relative to the origin
+	 * @param model
+	 */
+	void integrateScan(Pose origin, ScanObservation[] beams, InverseSensorModel model);
+
 	List<Vector3D> getFeatures();
 
 	void drawLine(double x1, double y1, double x2, double y2, Occupancy occupancy, double certainty, int radius);
@@ -36,21 +50,37 @@ public interface ProbabilityMapIIFc extends DataSourcePoint
 
 	void dumpTextWorld();
 
-	int getMaxX();
-
-	int getMinX();
-
-	int getMaxY();
+	@Override
+	List<Point> getOccupiedPoints();
 
-	int getMinY();
+	/**
+	 * visit each cell that is more likely occupied than not, without scanning
+	 * the unknown space of the map
+	 */
+	void visitOccupied(CellVisitor visitor);
 
-	double get(double x, double y);
+	/**
+	 * visit each cell that is more likely vacant than not, without scanning the
+	 * unknown space of the map
+	 */
+	void visitVacant(CellVisitor visitor);
 
-	int getBlockSize();
+	void erase();
 
-	@Override
-	List<Point> getOccupiedPoints();
+	/**
+	 * 
+	 * @return a number that increases every time the map is changed
+	 */
+	long getVersion();
 
-	void erase();
+	/**
+	 * 
+	 * @param sinceVersion
+	 *            from a previous call to getVersion()
+	 * @return the world coordinates of the regions of the map that have
+	 *         changed since the version, or null if the whole map must be
+	 *         treated as changed (ie. it has been erased)
+	 */
+	List<Rectangle> getChangedRegions(long sinceVersion);
 
 }
\ No newline at end of file
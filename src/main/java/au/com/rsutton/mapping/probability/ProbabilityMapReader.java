@@ -0,0 +1,29 @@
+package au.com.rsutton.mapping.probability;
+
+/**
+ * the read only part of a map, all that is needed to score or simulate
+ * observations against it
+ */
+public interface ProbabilityMapReader
+{
+
+	double get(double x, double y);
+
+	int getBlockSize();
+
+	int getMaxX();
+
+	int getMinX();
+
+	int getMaxY();
+
+	int getMinY();
+
+	/**
+	 * 
+	 * @return a max pooled pyramid of the map, or null if the map doesn't
+	 *         maintain one
+	 */
+	MapPyramid getPyramid();
+
+}
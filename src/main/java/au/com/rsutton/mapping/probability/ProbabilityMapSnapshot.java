@@ -0,0 +1,127 @@
+package au.com.rsutton.mapping.probability;
+
+import java.awt.Point;
+import java.util.LinkedList;
+import java.util.List;
+
+import au.com.rsutton.mapping.array.CopyOnWriteDoubleSparseArray;
+import au.com.rsutton.mapping.array.TileTable;
+import au.com.rsutton.robot.RobotSimulator;
+
+/**
+ * An immutable copy of a map at a point in time, safe to read from any number
+ * of threads while the map continues to be changed.
+ */
+public class ProbabilityMapSnapshot implements ProbabilityMapReader
+{
+
+	private final int blockSize;
+	private final CopyOnWriteDoubleSparseArray.Snapshot world;
+	private final MapPyramid pyramid;
+	private final long version;
+
+	ProbabilityMapSnapshot(int blockSize, CopyOnWriteDoubleSparseArray.Snapshot world, MapPyramid pyramid,
+			long version)
+	{
+		this.blockSize = blockSize;
+		this.world = world;
+		this.pyramid = pyramid;
+		this.version = version;
+	}
+
+	@Override
+	public double get(double x, double y)
+	{
+		return world.get((int) x / blockSize, (int) y / blockSize);
+	}
+
+	@Override
+	public int getBlockSize()
+	{
+		return blockSize;
+	}
+
+	@Override
+	public int getMaxX()
+	{
+		return world.getMaxX() * blockSize;
+	}
+
+	@Override
+	public int getMinX()
+	{
+		return world.getMinX() * blockSize;
+	}
+
+	@Override
+	public int getMaxY()
+	{
+		return world.getMaxY() * blockSize;
+	}
+
+	@Override
+	public int getMinY()
+	{
+		return world.getMinY() * blockSize;
+	}
+
+	@Override
+	public MapPyramid getPyramid()
+	{
+		return pyramid;
+	}
+
+	/**
+	 * 
+	 * @return the version of the map the snapshot was taken at
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	public void visitOccupied(CellVisitor visitor)
+	{
+		visit(visitor, true);
+	}
+
+	public void visitVacant(CellVisitor visitor)
+	{
+		visit(visitor, false);
+	}
+
+	/**
+	 * walks the cells of every tile that has been written to
+	 */
+	private void visit(CellVisitor visitor, boolean occupied)
+	{
+		for (TileTable.Tile<double[]> tile : world.getTiles())
+		{
+			double[] cells = tile.getCells();
+			int baseX = tile.getTileX() << TileTable.TILE_BITS;
+			int baseY = tile.getTileY() << TileTable.TILE_BITS;
+			for (int i = 0; i < cells.length; i++)
+			{
+				double value = cells[i];
+				if (occupied ? value > 0.5 : value < 0.5)
+				{
+					int x = baseX + (i & TileTable.TILE_MASK);
+					int y = baseY + (i >> TileTable.TILE_BITS);
+					visitor.visit(x * blockSize, y * blockSize, value);
+				}
+			}
+		}
+	}
+
+	public List<Point> getOccupiedPoints()
+	{
+		List<Point> points = new LinkedList<>();
+		visitOccupied((x, y, value) -> {
+			if (value >= RobotSimulator.REQUIRED_POINT_CERTAINTY)
+			{
+				points.add(new Point(x, y));
+			}
+		});
+		return points;
+	}
+}
@@ -0,0 +1,231 @@
+package au.com.rsutton.mapping.probability;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
+import org.apache.commons.math3.geometry.euclidean.threed.RotationOrder;
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.ScanObservation;
+
+/**
+ * Works out the cell updates for a whole scan before any are applied. Beams are
+ * traced through cells with Bresenham's line algorithm, and a cell crossed by
+ * several beams is only updated once - a hit wins over a miss, otherwise the
+ * strongest miss is used.
+ *
+ * The updates are collected in a dense window around the scan origin that is
+ * reused between scans, so it is not safe to share an instance between
+ * threads.
+ */
+class ScanIntegrator
+{
+
+	interface CellUpdater
+	{
+		void updateCell(int cellX, int cellY, Occupancy occupied, double certainty, int gausianRadius);
+	}
+
+	private float[] hits = new float[0];
+	private float[] misses = new float[0];
+	private int[] touched = new int[0];
+	private int touchedCount;
+
+	private int windowMinX;
+	private int windowMinY;
+	private int windowSize;
+
+	void integrate(ProbabilityMapReader map, Pose origin, ScanObservation[] beams, InverseSensorModel model,
+			CellUpdater updater)
+	{
+		int blockSize = map.getBlockSize();
+		int originX = (int) origin.getX() / blockSize;
+		int originY = (int) origin.getY() / blockSize;
+
+		int radius = (int) Math.ceil(model.getMaxDistance() / blockSize) + 2;
+		setWindow(originX - radius, originY - radius, (radius * 2) + 1);
+
+		Rotation rotation = new Rotation(RotationOrder.XYZ, 0, 0, Math.toRadians(origin.getHeading()));
+		Vector3D offset = new Vector3D(origin.getX(), origin.getY(), 0);
+
+		float hitCertainty = (float) model.getHitCertainty();
+		int lastX = 0;
+		int lastY = 0;
+		Vector3D lastPoint = null;
+
+		for (ScanObservation beam : beams)
+		{
+			Vector3D vector = beam.getVector();
+			double distance = vector.getNorm();
+			if (distance <= model.getMinDistance())
+			{
+				continue;
+			}
+
+			Vector3D point = rotation.applyTo(vector).add(offset);
+			int x = (int) point.getX() / blockSize;
+			int y = (int) point.getY() / blockSize;
+
+			if (distance < model.getMaxDistance())
+			{
+				traceFree(map, originX, originY, x, y, model);
+				markHit(x, y, hitCertainty);
+			}
+
+			if (lastPoint != null)
+			{
+				double gap = Vector3D.distance(point, lastPoint);
+				if (gap > 1 && gap < model.getMaxGap())
+				{
+					traceHits(lastX, lastY, x, y, hitCertainty);
+				}
+			}
+			lastPoint = point;
+			lastX = x;
+			lastY = y;
+		}
+
+		apply(model, updater);
+	}
+
+	private void setWindow(int minX, int minY, int size)
+	{
+		windowMinX = minX;
+		windowMinY = minY;
+		if (size != windowSize)
+		{
+			windowSize = size;
+			hits = new float[size * size];
+			misses = new float[size * size];
+			touched = new int[size * size];
+		}
+	}
+
+	/**
+	 * clear the cells from the origin up to but not including the end cell
+	 */
+	private void traceFree(ProbabilityMapReader map, int x, int y, int endX, int endY, InverseSensorModel model)
+	{
+		int blockSize = map.getBlockSize();
+		int dx = Math.abs(endX - x);
+		int dy = -Math.abs(endY - y);
+		int sx = x < endX ? 1 : -1;
+		int sy = y < endY ? 1 : -1;
+		int error = dx + dy;
+		int steps = Math.max(dx, -dy);
+
+		for (int i = 0; i < steps; i++)
+		{
+			if (map.get(x * blockSize, y * blockSize) >= model.getBlockingThreshold())
+			{
+				// don't clear beyond a definite point
+				return;
+			}
+			markMiss(x, y, (float) model.getMissCertainty(((double) i) / steps));
+
+			int error2 = 2 * error;
+			if (error2 >= dy)
+			{
+				error += dy;
+				x += sx;
+			}
+			if (error2 <= dx)
+			{
+				error += dx;
+				y += sy;
+			}
+		}
+	}
+
+	private void traceHits(int x, int y, int endX, int endY, float certainty)
+	{
+		int dx = Math.abs(endX - x);
+		int dy = -Math.abs(endY - y);
+		int sx = x < endX ? 1 : -1;
+		int sy = y < endY ? 1 : -1;
+		int error = dx + dy;
+
+		while (true)
+		{
+			markHit(x, y, certainty);
+			if (x == endX && y == endY)
+			{
+				return;
+			}
+			int error2 = 2 * error;
+			if (error2 >= dy)
+			{
+				error += dy;
+				x += sx;
+			}
+			if (error2 <= dx)
+			{
+				error += dx;
+				y += sy;
+			}
+		}
+	}
+
+	private void markHit(int x, int y, float certainty)
+	{
+		int index = index(x, y);
+		if (index >= 0 && certainty > 0)
+		{
+			touch(index);
+			hits[index] = Math.max(hits[index], certainty);
+		}
+	}
+
+	private void markMiss(int x, int y, float certainty)
+	{
+		int index = index(x, y);
+		if (index >= 0 && certainty > 0)
+		{
+			touch(index);
+			misses[index] = Math.max(misses[index], certainty);
+		}
+	}
+
+	private void touch(int index)
+	{
+		if (hits[index] == 0 && misses[index] == 0)
+		{
+			touched[touchedCount++] = index;
+		}
+	}
+
+	/**
+	 *
+	 * @return the index of the cell in the window, or -1 if it is outside the
+	 *         window
+	 */
+	private int index(int x, int y)
+	{
+		int wx = x - windowMinX;
+		int wy = y - windowMinY;
+		if (wx < 0 || wy < 0 || wx >= windowSize || wy >= windowSize)
+		{
+			return -1;
+		}
+		return (wy * windowSize) + wx;
+	}
+
+	private void apply(InverseSensorModel model, CellUpdater updater)
+	{
+		for (int i = 0; i < touchedCount; i++)
+		{
+			int index = touched[i];
+			int x = windowMinX + (index % windowSize);
+			int y = windowMinY + (index / windowSize);
+			if (hits[index] > 0)
+			{
+				updater.updateCell(x, y, Occupancy.OCCUPIED, hits[index], model.getHitRadius());
+			} else if (misses[index] > 0)
+			{
+				updater.updateCell(x, y, Occupancy.VACANT, misses[index], 0);
+			}
+			hits[index] = 0;
+			misses[index] = 0;
+		}
+		touchedCount = 0;
+	}
+}
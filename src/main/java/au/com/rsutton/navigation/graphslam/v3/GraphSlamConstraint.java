@@ -56,6 +56,15 @@ public class GraphSlamConstraint<T extends MathOperators<T>>
 		return true;
 	}
 
+	/**
+	 * 
+	 * @return the total certainty of the observations of the offset
+	 */
+	public double getCertainty()
+	{
+		return observations.getWeight();
+	}
+
 	public void addValue(WeightedPose<T> offset2)
 	{
 		observations.addWeightedValueForAverage(offset2);
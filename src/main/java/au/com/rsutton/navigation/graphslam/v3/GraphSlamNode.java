@@ -8,6 +8,8 @@ public interface GraphSlamNode<T extends MathOperators<T>>
 
 	public T getPosition();
 
+	void setPosition(T position);
+
 	void setIsRoot(boolean isRoot);
 
 	boolean isRoot();
@@ -52,6 +52,12 @@ public class GraphSlamNodeImpl<T extends MathOperators<T>> implements GraphSlamN
 		return position;
 	}
 
+	@Override
+	public void setPosition(T position)
+	{
+		this.position = position;
+	}
+
 	@Override
 	public void addConstraint(GraphSlamNode<T> node, T offset, double certainty)
 	{
@@ -0,0 +1,20 @@
+package au.com.rsutton.navigation.graphslam.v3;
+
+import java.util.List;
+
+/**
+ * Moves the nodes of a graph to best satisfy the constraints between them,
+ * root nodes stay where they are.
+ */
+public interface GraphSlamSolver<N extends GraphSlamNode<V>, V extends MathOperators<V>>
+{
+	void solve(List<N> nodes);
+
+	/**
+	 * a constraint from referenceNode to node has been added or observed
+	 * again, for solvers that keep track of what changed between solves
+	 */
+	default void constraintChanged(N referenceNode, N node)
+	{
+	}
+}
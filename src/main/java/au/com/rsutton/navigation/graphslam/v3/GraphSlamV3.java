@@ -1,6 +1,6 @@
 package au.com.rsutton.navigation.graphslam.v3;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.logging.log4j.Level;
@@ -14,16 +14,29 @@ public class GraphSlamV3<N extends GraphSlamNode<V>, V extends MathOperators<V>>
 
 	private Logger logger = LogManager.getLogger();
 
-	private List<N> nodes = new LinkedList<>();
+	private List<N> nodes = new ArrayList<>();
 
 	private GraphSlamNodeConstructor<N, V> ctor;
 
+	private final GraphSlamSolver<N, V> solver;
+
 	private final N root;
 
 	public GraphSlamV3(GraphSlamNodeConstructor<N, V> ctor)
+	{
+		this(ctor, new RelaxationSolver<>());
+	}
+
+	/**
+	 * 
+	 * @param solver
+	 *            eg. a PoseGraphSolver for PoseWithMathOperators
+	 */
+	public GraphSlamV3(GraphSlamNodeConstructor<N, V> ctor, GraphSlamSolver<N, V> solver)
 	{
 		LogLevelHelper.setLevel(logger, Level.ERROR);
 		this.ctor = ctor;
+		this.solver = solver;
 		root = this.ctor.construct("init", ctor.zero());
 		root.setIsRoot(true);
 		nodes.add(root);
@@ -62,46 +75,12 @@ public class GraphSlamV3<N extends GraphSlamNode<V>, V extends MathOperators<V>>
 
 		// node.addConstraint(referenceNode, offset.inverse(), certainty);
 		referenceNode.addConstraint(node, offset, certainty);
+		solver.constraintChanged(referenceNode, node);
 	}
 
 	public void solve()
 	{
-		int ctr = 0;
-		while (ctr < 1000)
-		{
-			ctr++;
-			V error = updatePositions();
-
-		}
-		if (ctr > 4)
-		{
-			logger.info("Rounds " + ctr);
-		}
-	}
-
-	private V updatePositions()
-	{
-		for (N node : nodes)
-		{
-			node.clearError();
-		}
-		for (N node : nodes)
-		{
-			for (GraphSlamConstraint<V> constraint : node.getConstraints())
-			{
-				constraint.getNode().addCalculatedError(constraint);
-			}
-
-		}
-		for (N node : nodes)
-		{
-			if (!node.isRoot())
-			{
-				node.adjustPosition();
-			}
-		}
-		// logger.info("Total Error " + totalError);
-		return null;
+		solver.solve(nodes);
 	}
 
 	public void dump()
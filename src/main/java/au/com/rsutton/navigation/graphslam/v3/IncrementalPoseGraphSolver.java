@@ -0,0 +1,286 @@
+package au.com.rsutton.navigation.graphslam.v3;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import au.com.rsutton.entryPoint.controllers.HeadingHelper;
+
+/**
+ * Solves a growing pose graph incrementally, in the spirit of iSAM. Only the
+ * nodes a change touches are solved for, starting from the ends of the
+ * constraints that were added or observed again, the rest of the graph
+ * holding still around them. The cost of a solve depends on how far the
+ * change spreads, not on the size of the graph.
+ *
+ * The change to each node held still next to the solved nodes is tracked as
+ * how far its solved neighbours have moved, over any number of solves. Once
+ * that passes the threshold it is freed as well and the nodes solved again,
+ * so a loop closure spreads as far around the loop as it has to and no
+ * further.
+ *
+ * The first solve, and the next one after requestFullSolve(), solves the
+ * whole graph. Changes have to be made through GraphSlamV3, which tells the
+ * solver about them, anything else is only seen by a full solve.
+ */
+public class IncrementalPoseGraphSolver<N extends GraphSlamNode<PoseWithMathOperators>>
+		implements GraphSlamSolver<N, PoseWithMathOperators>
+{
+
+	/**
+	 * in cm plus degrees
+	 */
+	private static final double DEFAULT_CHANGE_THRESHOLD = 0.5;
+
+	private final PoseGraphSolver<N> solver = new PoseGraphSolver<>();
+	private final double changeThreshold;
+
+	private final Set<GraphSlamConstraint<PoseWithMathOperators>> known = Collections
+			.newSetFromMap(new IdentityHashMap<>());
+	private final Map<GraphSlamNode<PoseWithMathOperators>, List<GraphSlamConstraint<PoseWithMathOperators>>> touching = new IdentityHashMap<>();
+
+	/**
+	 * the ends of the constraints that changed since the last solve
+	 */
+	private final Set<GraphSlamNode<PoseWithMathOperators>> changed = new LinkedHashSet<>();
+
+	/**
+	 * how far the neighbours of each node held still have moved since it was
+	 * last solved for
+	 */
+	private final Map<GraphSlamNode<PoseWithMathOperators>, Double> pendingChange = new IdentityHashMap<>();
+
+	private boolean fullSolveRequested = true;
+	private int solvedNodes;
+
+	public IncrementalPoseGraphSolver()
+	{
+		this(DEFAULT_CHANGE_THRESHOLD);
+	}
+
+	/**
+	 *
+	 * @param changeThreshold
+	 *            how far the neighbours of a node can move (cm plus degrees)
+	 *            before it is solved for too
+	 */
+	public IncrementalPoseGraphSolver(double changeThreshold)
+	{
+		this.changeThreshold = changeThreshold;
+	}
+
+	/**
+	 * relinearize and solve the whole graph on the next solve
+	 */
+	public void requestFullSolve()
+	{
+		fullSolveRequested = true;
+	}
+
+	@Override
+	public void constraintChanged(N referenceNode, N node)
+	{
+		for (GraphSlamConstraint<PoseWithMathOperators> constraint : referenceNode.getConstraints())
+		{
+			if (constraint.getNode() == node)
+			{
+				addConstraint(constraint);
+			}
+		}
+		changed.add(referenceNode);
+		changed.add(node);
+	}
+
+	@Override
+	public void solve(List<N> nodes)
+	{
+		if (fullSolveRequested)
+		{
+			known.clear();
+			touching.clear();
+			for (N node : nodes)
+			{
+				for (GraphSlamConstraint<PoseWithMathOperators> constraint : node.getConstraints())
+				{
+					addConstraint(constraint);
+				}
+			}
+			solver.solve(nodes);
+			fullSolveRequested = false;
+			solvedNodes = nodes.size();
+			changed.clear();
+			pendingChange.clear();
+			return;
+		}
+
+		Set<GraphSlamNode<PoseWithMathOperators>> free = new LinkedHashSet<>();
+		for (GraphSlamNode<PoseWithMathOperators> node : changed)
+		{
+			if (!node.isRoot())
+			{
+				free.add(node);
+			}
+		}
+		changed.clear();
+
+		int hops = 1;
+		while (!free.isEmpty())
+		{
+			List<GraphSlamNode<PoseWithMathOperators>> spread = solveFor(free);
+			if (spread.isEmpty())
+			{
+				break;
+			}
+			// widen further each time, so a change that spreads around a
+			// large loop takes few solves to get there
+			addNeighbours(free, spread, hops);
+			hops *= 2;
+		}
+
+		solvedNodes = free.size();
+		pendingChange.keySet().removeAll(free);
+	}
+
+	/**
+	 *
+	 * @return the number of nodes the last solve moved
+	 */
+	public int getSolvedNodes()
+	{
+		return solvedNodes;
+	}
+
+	/**
+	 *
+	 * @return the number of iterations the last partial or full solve took
+	 */
+	public int getIterations()
+	{
+		return solver.getIterations();
+	}
+
+	/**
+	 * solve for the free nodes, holding their other neighbours still
+	 *
+	 * @return the neighbours held still whose solved neighbours have moved by
+	 *         more than the threshold
+	 */
+	private List<GraphSlamNode<PoseWithMathOperators>> solveFor(Set<GraphSlamNode<PoseWithMathOperators>> free)
+	{
+		List<GraphSlamNode<PoseWithMathOperators>> nodes = new ArrayList<>(free);
+		Set<GraphSlamNode<PoseWithMathOperators>> members = Collections.newSetFromMap(new IdentityHashMap<>());
+		members.addAll(free);
+		Set<GraphSlamConstraint<PoseWithMathOperators>> constraints = Collections
+				.newSetFromMap(new IdentityHashMap<>());
+		for (GraphSlamNode<PoseWithMathOperators> node : free)
+		{
+			for (GraphSlamConstraint<PoseWithMathOperators> constraint : touching(node))
+			{
+				if (constraints.add(constraint))
+				{
+					if (members.add(constraint.getParentNode()))
+					{
+						nodes.add(constraint.getParentNode());
+					}
+					if (members.add(constraint.getNode()))
+					{
+						nodes.add(constraint.getNode());
+					}
+				}
+			}
+		}
+
+		boolean[] fixed = new boolean[nodes.size()];
+		List<PoseWithMathOperators> before = new ArrayList<>();
+		for (int i = 0; i < fixed.length; i++)
+		{
+			fixed[i] = i >= free.size();
+			before.add(nodes.get(i).getPosition());
+		}
+
+		solver.solve(nodes, fixed, new ArrayList<>(constraints));
+
+		Map<GraphSlamNode<PoseWithMathOperators>, Double> change = new IdentityHashMap<>();
+		for (int i = 0; i < free.size(); i++)
+		{
+			PoseWithMathOperators was = before.get(i);
+			PoseWithMathOperators now = nodes.get(i).getPosition();
+			change.put(nodes.get(i), Math.hypot(now.getX() - was.getX(), now.getY() - was.getY())
+					+ Math.abs(HeadingHelper.getChangeInHeading(now.getAngle(), was.getAngle())));
+		}
+
+		List<GraphSlamNode<PoseWithMathOperators>> spread = new ArrayList<>();
+		for (GraphSlamConstraint<PoseWithMathOperators> constraint : constraints)
+		{
+			boolean parentFree = change.containsKey(constraint.getParentNode());
+			GraphSlamNode<PoseWithMathOperators> inside = parentFree ? constraint.getParentNode()
+					: constraint.getNode();
+			GraphSlamNode<PoseWithMathOperators> outside = parentFree ? constraint.getNode()
+					: constraint.getParentNode();
+			if (!change.containsKey(outside) && !outside.isRoot())
+			{
+				double pending = pendingChange.merge(outside, change.get(inside), Double::sum);
+				if (pending > changeThreshold)
+				{
+					spread.add(outside);
+				}
+			}
+		}
+		return spread;
+	}
+
+	/**
+	 * add the nodes, and every node up to hops constraints from them, to free
+	 */
+	private void addNeighbours(Set<GraphSlamNode<PoseWithMathOperators>> free,
+			List<GraphSlamNode<PoseWithMathOperators>> nodes, int hops)
+	{
+		List<GraphSlamNode<PoseWithMathOperators>> frontier = new ArrayList<>();
+		for (GraphSlamNode<PoseWithMathOperators> node : nodes)
+		{
+			if (free.add(node))
+			{
+				frontier.add(node);
+			}
+		}
+		for (int hop = 1; hop < hops && !frontier.isEmpty(); hop++)
+		{
+			List<GraphSlamNode<PoseWithMathOperators>> next = new ArrayList<>();
+			for (GraphSlamNode<PoseWithMathOperators> node : frontier)
+			{
+				for (GraphSlamConstraint<PoseWithMathOperators> constraint : touching(node))
+				{
+					GraphSlamNode<PoseWithMathOperators> other = constraint.getNode() == node
+							? constraint.getParentNode()
+							: constraint.getNode();
+					if (!other.isRoot() && free.add(other))
+					{
+						next.add(other);
+					}
+				}
+			}
+			frontier = next;
+		}
+	}
+
+	private void addConstraint(GraphSlamConstraint<PoseWithMathOperators> constraint)
+	{
+		if (known.add(constraint))
+		{
+			touching(constraint.getParentNode()).add(constraint);
+			if (constraint.getNode() != constraint.getParentNode())
+			{
+				touching(constraint.getNode()).add(constraint);
+			}
+		}
+	}
+
+	private List<GraphSlamConstraint<PoseWithMathOperators>> touching(GraphSlamNode<PoseWithMathOperators> node)
+	{
+		return touching.computeIfAbsent(node, n -> new ArrayList<>());
+	}
+}
@@ -0,0 +1,564 @@
+package au.com.rsutton.navigation.graphslam.v3;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import au.com.rsutton.angle.AngleUtil;
+
+/**
+ * Solves a graph of 2D poses by Levenberg-Marquardt, the least squares
+ * formulation of pose graph SLAM (Grisetti et al. 2010). Stops when an
+ * iteration no longer reduces the error meaningfully.
+ *
+ * Each constraint is weighted by its certainty, an error of one degree
+ * counting as much as an error of 1cm.
+ *
+ * The information matrix is sparse, one 3x3 block per node and per
+ * constraint. The nodes are ordered by reverse Cuthill-McKee and the matrix
+ * is stored and factored in profile (skyline) form, each row from its first
+ * non zero. A graph of sub maps is mostly a chain with a few loop closures,
+ * so the profile stays narrow and the factorization is close to linear in
+ * the number of nodes.
+ */
+public class PoseGraphSolver<N extends GraphSlamNode<PoseWithMathOperators>>
+		implements GraphSlamSolver<N, PoseWithMathOperators>
+{
+
+	private static final double ANGLE_INFORMATION = Math.pow(180 / Math.PI, 2);
+
+	private static final int MAX_ITERATIONS = 50;
+
+	/**
+	 * converged when an iteration reduces the error by less than this fraction
+	 */
+	private static final double CONVERGED_ERROR_CHANGE = 1e-9;
+
+	private static final double INITIAL_LAMBDA = 1e-5;
+	private static final double MAX_LAMBDA = 1e10;
+
+	/**
+	 * keeps the matrix positive definite if part of the graph isn't connected
+	 * to a root
+	 */
+	private static final double MIN_INFORMATION = 1e-9;
+
+	private int iterations;
+	private double error;
+
+	// the constraints
+	private int[] from;
+	private int[] to;
+	private double[] offsetX;
+	private double[] offsetY;
+	private double[] offsetAngle;
+	private double[] certainty;
+
+	// the variable of each node, or -1 for a root
+	private int[] variable;
+	private int variableCount;
+
+	// the profile, by scalar row
+	private int[] firstColumn;
+	private int[] rowStart;
+
+	@Override
+	public void solve(List<N> nodes)
+	{
+		Set<GraphSlamNode<PoseWithMathOperators>> members = new HashSet<>(nodes);
+		List<GraphSlamConstraint<PoseWithMathOperators>> constraints = new ArrayList<>();
+		for (N node : nodes)
+		{
+			for (GraphSlamConstraint<PoseWithMathOperators> constraint : node.getConstraints())
+			{
+				if (members.contains(constraint.getNode()))
+				{
+					constraints.add(constraint);
+				}
+			}
+		}
+
+		boolean[] fixed = new boolean[nodes.size()];
+		boolean anyRoot = false;
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			fixed[i] = nodes.get(i).isRoot();
+			anyRoot |= fixed[i];
+		}
+		if (!anyRoot && !nodes.isEmpty())
+		{
+			// something has to stay put
+			fixed[0] = true;
+		}
+		solve(new ArrayList<GraphSlamNode<PoseWithMathOperators>>(nodes), fixed, constraints);
+	}
+
+	/**
+	 * move the nodes that aren't fixed to best satisfy the constraints, the
+	 * fixed nodes anchor them. Every end of every constraint must be one of
+	 * the nodes.
+	 */
+	void solve(List<GraphSlamNode<PoseWithMathOperators>> nodes, boolean[] fixed,
+			List<GraphSlamConstraint<PoseWithMathOperators>> constraints)
+	{
+		int nodeCount = nodes.size();
+		double[] x = new double[nodeCount];
+		double[] y = new double[nodeCount];
+		double[] angle = new double[nodeCount];
+		Map<GraphSlamNode<PoseWithMathOperators>, Integer> index = new HashMap<>();
+		for (int i = 0; i < nodeCount; i++)
+		{
+			GraphSlamNode<PoseWithMathOperators> node = nodes.get(i);
+			index.put(node, i);
+			x[i] = node.getPosition().getX();
+			y[i] = node.getPosition().getY();
+			angle[i] = Math.toRadians(node.getPosition().getAngle());
+		}
+
+		collectConstraints(constraints, index);
+		orderVariables(fixed);
+		buildProfile();
+
+		optimize(x, y, angle);
+
+		for (int i = 0; i < nodeCount; i++)
+		{
+			if (variable[i] >= 0)
+			{
+				nodes.get(i).setPosition(
+						new PoseWithMathOperators(x[i], y[i], AngleUtil.normalize(Math.toDegrees(angle[i]))));
+			}
+		}
+	}
+
+	/**
+	 *
+	 * @return the number of iterations the last solve took
+	 */
+	public int getIterations()
+	{
+		return iterations;
+	}
+
+	/**
+	 *
+	 * @return the weighted sum of squared errors after the last solve
+	 */
+	public double getError()
+	{
+		return error;
+	}
+
+	private void collectConstraints(List<GraphSlamConstraint<PoseWithMathOperators>> constraints,
+			Map<GraphSlamNode<PoseWithMathOperators>, Integer> index)
+	{
+		int count = constraints.size();
+		from = new int[count];
+		to = new int[count];
+		offsetX = new double[count];
+		offsetY = new double[count];
+		offsetAngle = new double[count];
+		certainty = new double[count];
+		for (int c = 0; c < count; c++)
+		{
+			GraphSlamConstraint<PoseWithMathOperators> constraint = constraints.get(c);
+			PoseWithMathOperators offset = constraint.getOffset();
+			from[c] = index.get(constraint.getParentNode());
+			to[c] = index.get(constraint.getNode());
+			offsetX[c] = offset.getX();
+			offsetY[c] = offset.getY();
+			offsetAngle[c] = Math.toRadians(offset.getAngle());
+			certainty[c] = constraint.getCertainty();
+		}
+	}
+
+	/**
+	 * number the nodes that aren't fixed by reverse Cuthill-McKee, which
+	 * keeps connected nodes close together and so the profile narrow
+	 */
+	private void orderVariables(boolean[] fixed)
+	{
+		int nodeCount = fixed.length;
+		List<List<Integer>> neighbours = new ArrayList<>();
+		for (int i = 0; i < nodeCount; i++)
+		{
+			neighbours.add(new ArrayList<>());
+		}
+		for (int c = 0; c < from.length; c++)
+		{
+			if (from[c] != to[c])
+			{
+				neighbours.get(from[c]).add(to[c]);
+				neighbours.get(to[c]).add(from[c]);
+			}
+		}
+
+		boolean[] visited = Arrays.copyOf(fixed, nodeCount);
+		variable = new int[nodeCount];
+		Arrays.fill(variable, -1);
+
+		Integer[] byDegree = new Integer[nodeCount];
+		for (int i = 0; i < nodeCount; i++)
+		{
+			byDegree[i] = i;
+		}
+		Arrays.sort(byDegree, (a, b) -> Integer.compare(neighbours.get(a).size(), neighbours.get(b).size()));
+
+		List<Integer> order = new ArrayList<>();
+		Deque<Integer> queue = new ArrayDeque<>();
+		for (int start : byDegree)
+		{
+			if (visited[start])
+			{
+				continue;
+			}
+			visited[start] = true;
+			queue.add(start);
+			while (!queue.isEmpty())
+			{
+				int node = queue.poll();
+				order.add(node);
+				List<Integer> next = new ArrayList<>();
+				for (int neighbour : neighbours.get(node))
+				{
+					if (!visited[neighbour])
+					{
+						visited[neighbour] = true;
+						next.add(neighbour);
+					}
+				}
+				next.sort((a, b) -> Integer.compare(neighbours.get(a).size(), neighbours.get(b).size()));
+				queue.addAll(next);
+			}
+		}
+
+		variableCount = order.size();
+		for (int i = 0; i < variableCount; i++)
+		{
+			variable[order.get(i)] = variableCount - 1 - i;
+		}
+	}
+
+	private void buildProfile()
+	{
+		int[] firstBlock = new int[variableCount];
+		for (int v = 0; v < variableCount; v++)
+		{
+			firstBlock[v] = v;
+		}
+		for (int c = 0; c < from.length; c++)
+		{
+			int a = variable[from[c]];
+			int b = variable[to[c]];
+			if (a >= 0 && b >= 0)
+			{
+				firstBlock[Math.max(a, b)] = Math.min(firstBlock[Math.max(a, b)], Math.min(a, b));
+			}
+		}
+
+		int size = variableCount * 3;
+		firstColumn = new int[size];
+		rowStart = new int[size + 1];
+		for (int row = 0; row < size; row++)
+		{
+			firstColumn[row] = firstBlock[row / 3] * 3;
+			rowStart[row + 1] = rowStart[row] + (row - firstColumn[row] + 1);
+		}
+	}
+
+	private void optimize(double[] x, double[] y, double[] angle)
+	{
+		int size = variableCount * 3;
+		double[] information = new double[rowStart[size]];
+		double[] factor = new double[information.length];
+		double[] gradient = new double[size];
+		double[] step = new double[size];
+		double[] trialX = new double[x.length];
+		double[] trialY = new double[x.length];
+		double[] trialAngle = new double[x.length];
+
+		error = computeError(x, y, angle);
+		double lambda = INITIAL_LAMBDA;
+		iterations = 0;
+		while (iterations < MAX_ITERATIONS && size > 0)
+		{
+			iterations++;
+			linearize(x, y, angle, information, gradient);
+
+			boolean accepted = false;
+			double trialError = error;
+			while (!accepted && lambda < MAX_LAMBDA)
+			{
+				System.arraycopy(information, 0, factor, 0, information.length);
+				for (int row = 0; row < size; row++)
+				{
+					int diagonal = index(row, row);
+					factor[diagonal] += (lambda * factor[diagonal]) + MIN_INFORMATION;
+				}
+				if (!factorize(factor))
+				{
+					lambda *= 10;
+					continue;
+				}
+				for (int row = 0; row < size; row++)
+				{
+					step[row] = -gradient[row];
+				}
+				substitute(factor, step);
+
+				for (int i = 0; i < x.length; i++)
+				{
+					int v = variable[i];
+					trialX[i] = x[i] + (v >= 0 ? step[v * 3] : 0);
+					trialY[i] = y[i] + (v >= 0 ? step[(v * 3) + 1] : 0);
+					trialAngle[i] = angle[i] + (v >= 0 ? step[(v * 3) + 2] : 0);
+				}
+				trialError = computeError(trialX, trialY, trialAngle);
+				if (trialError <= error)
+				{
+					accepted = true;
+					lambda = Math.max(lambda / 10, 1e-12);
+				} else
+				{
+					lambda *= 10;
+				}
+			}
+			if (!accepted)
+			{
+				break;
+			}
+
+			System.arraycopy(trialX, 0, x, 0, x.length);
+			System.arraycopy(trialY, 0, y, 0, y.length);
+			System.arraycopy(trialAngle, 0, angle, 0, angle.length);
+			double reduction = error - trialError;
+			error = trialError;
+			if (reduction <= CONVERGED_ERROR_CHANGE * (error + reduction))
+			{
+				break;
+			}
+		}
+	}
+
+	private double computeError(double[] x, double[] y, double[] angle)
+	{
+		double total = 0;
+		double[] residual = new double[3];
+		for (int c = 0; c < from.length; c++)
+		{
+			residual(c, x, y, angle, residual, null, null);
+			total += certainty[c] * ((residual[0] * residual[0]) + (residual[1] * residual[1])
+					+ (ANGLE_INFORMATION * residual[2] * residual[2]));
+		}
+		return total;
+	}
+
+	/**
+	 * the error of the constraint, the offset it observed from its parent
+	 * compared to the offset between the nodes, in the observed frame.
+	 * Optionally with the jacobians of the error by the parent's pose and by
+	 * the child's pose.
+	 */
+	private void residual(int c, double[] x, double[] y, double[] angle, double[] residual, double[][] parentJacobian,
+			double[][] childJacobian)
+	{
+		int i = from[c];
+		int j = to[c];
+		double cosI = Math.cos(angle[i]);
+		double sinI = Math.sin(angle[i]);
+		double cosZ = Math.cos(offsetAngle[c]);
+		double sinZ = Math.sin(offsetAngle[c]);
+
+		double dx = x[j] - x[i];
+		double dy = y[j] - y[i];
+		// the child's position in the parent's frame
+		double localX = (cosI * dx) + (sinI * dy);
+		double localY = (-sinI * dx) + (cosI * dy);
+		double ex = localX - offsetX[c];
+		double ey = localY - offsetY[c];
+
+		residual[0] = (cosZ * ex) + (sinZ * ey);
+		residual[1] = (-sinZ * ex) + (cosZ * ey);
+		double angleError = angle[j] - angle[i] - offsetAngle[c];
+		residual[2] = Math.atan2(Math.sin(angleError), Math.cos(angleError));
+
+		if (parentJacobian != null)
+		{
+			double cosA = Math.cos(angle[i] + offsetAngle[c]);
+			double sinA = Math.sin(angle[i] + offsetAngle[c]);
+
+			childJacobian[0][0] = cosA;
+			childJacobian[0][1] = sinA;
+			childJacobian[0][2] = 0;
+			childJacobian[1][0] = -sinA;
+			childJacobian[1][1] = cosA;
+			childJacobian[1][2] = 0;
+			childJacobian[2][0] = 0;
+			childJacobian[2][1] = 0;
+			childJacobian[2][2] = 1;
+
+			parentJacobian[0][0] = -cosA;
+			parentJacobian[0][1] = -sinA;
+			parentJacobian[0][2] = (cosZ * localY) - (sinZ * localX);
+			parentJacobian[1][0] = sinA;
+			parentJacobian[1][1] = -cosA;
+			parentJacobian[1][2] = (-sinZ * localY) - (cosZ * localX);
+			parentJacobian[2][0] = 0;
+			parentJacobian[2][1] = 0;
+			parentJacobian[2][2] = -1;
+		}
+	}
+
+	private void linearize(double[] x, double[] y, double[] angle, double[] information, double[] gradient)
+	{
+		Arrays.fill(information, 0);
+		Arrays.fill(gradient, 0);
+		double[] residual = new double[3];
+		double[][] parentJacobian = new double[3][3];
+		double[][] childJacobian = new double[3][3];
+		double[] weights = new double[3];
+		for (int c = 0; c < from.length; c++)
+		{
+			residual(c, x, y, angle, residual, parentJacobian, childJacobian);
+			weights[0] = certainty[c];
+			weights[1] = certainty[c];
+			weights[2] = certainty[c] * ANGLE_INFORMATION;
+
+			int a = variable[from[c]];
+			int b = variable[to[c]];
+			addBlock(information, a, a, parentJacobian, parentJacobian, weights);
+			addBlock(information, b, b, childJacobian, childJacobian, weights);
+			if (a != b)
+			{
+				addBlock(information, a, b, parentJacobian, childJacobian, weights);
+			}
+			addGradient(gradient, a, parentJacobian, residual, weights);
+			addGradient(gradient, b, childJacobian, residual, weights);
+		}
+	}
+
+	/**
+	 * add J1' W J2 to the block (row, column), the lower triangle is all that
+	 * is stored
+	 */
+	private void addBlock(double[] information, int rowVariable, int columnVariable, double[][] rowJacobian,
+			double[][] columnJacobian, double[] weights)
+	{
+		if (rowVariable < 0 || columnVariable < 0)
+		{
+			return;
+		}
+		for (int r = 0; r < 3; r++)
+		{
+			for (int k = 0; k < 3; k++)
+			{
+				double value = 0;
+				for (int e = 0; e < 3; e++)
+				{
+					value += rowJacobian[e][r] * weights[e] * columnJacobian[e][k];
+				}
+				int row = (rowVariable * 3) + r;
+				int column = (columnVariable * 3) + k;
+				if (column <= row)
+				{
+					information[index(row, column)] += value;
+				} else if (rowVariable != columnVariable)
+				{
+					information[index(column, row)] += value;
+				}
+			}
+		}
+	}
+
+	private void addGradient(double[] gradient, int variable, double[][] jacobian, double[] residual,
+			double[] weights)
+	{
+		if (variable < 0)
+		{
+			return;
+		}
+		for (int r = 0; r < 3; r++)
+		{
+			double value = 0;
+			for (int e = 0; e < 3; e++)
+			{
+				value += jacobian[e][r] * weights[e] * residual[e];
+			}
+			gradient[(variable * 3) + r] += value;
+		}
+	}
+
+	private int index(int row, int column)
+	{
+		return rowStart[row] + (column - firstColumn[row]);
+	}
+
+	/**
+	 * Cholesky factorization in place, within the profile
+	 *
+	 * @return false if the matrix isn't positive definite
+	 */
+	private boolean factorize(double[] matrix)
+	{
+		int size = firstColumn.length;
+		for (int row = 0; row < size; row++)
+		{
+			int rowFirst = firstColumn[row];
+			for (int column = rowFirst; column <= row; column++)
+			{
+				int start = Math.max(rowFirst, firstColumn[column]);
+				double sum = matrix[index(row, column)];
+				int rowOffset = index(row, start);
+				int columnOffset = index(column, start);
+				for (int k = start; k < column; k++)
+				{
+					sum -= matrix[rowOffset++] * matrix[columnOffset++];
+				}
+				if (column == row)
+				{
+					if (sum <= 0 || Double.isNaN(sum))
+					{
+						return false;
+					}
+					matrix[index(row, row)] = Math.sqrt(sum);
+				} else
+				{
+					matrix[index(row, column)] = sum / matrix[index(column, column)];
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * solve L L' x = b in place, with L from factorize()
+	 */
+	private void substitute(double[] factor, double[] vector)
+	{
+		int size = firstColumn.length;
+		for (int row = 0; row < size; row++)
+		{
+			double sum = vector[row];
+			for (int k = firstColumn[row]; k < row; k++)
+			{
+				sum -= factor[index(row, k)] * vector[k];
+			}
+			vector[row] = sum / factor[index(row, row)];
+		}
+		for (int row = size - 1; row >= 0; row--)
+		{
+			vector[row] /= factor[index(row, row)];
+			double value = vector[row];
+			for (int k = firstColumn[row]; k < row; k++)
+			{
+				vector[k] -= factor[index(row, k)] * value;
+			}
+		}
+	}
+}
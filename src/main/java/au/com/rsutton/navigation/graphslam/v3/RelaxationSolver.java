@@ -0,0 +1,45 @@
+package au.com.rsutton.navigation.graphslam.v3;
+
+import java.util.List;
+
+/**
+ * Repeatedly moves each node towards where its constraints place it, for a
+ * fixed number of sweeps. Works for any MathOperators.
+ */
+public class RelaxationSolver<N extends GraphSlamNode<V>, V extends MathOperators<V>> implements GraphSlamSolver<N, V>
+{
+
+	private static final int SWEEPS = 1000;
+
+	@Override
+	public void solve(List<N> nodes)
+	{
+		for (int ctr = 0; ctr < SWEEPS; ctr++)
+		{
+			updatePositions(nodes);
+		}
+	}
+
+	private void updatePositions(List<N> nodes)
+	{
+		for (N node : nodes)
+		{
+			node.clearError();
+		}
+		for (N node : nodes)
+		{
+			for (GraphSlamConstraint<V> constraint : node.getConstraints())
+			{
+				constraint.getNode().addCalculatedError(constraint);
+			}
+
+		}
+		for (N node : nodes)
+		{
+			if (!node.isRoot())
+			{
+				node.adjustPosition();
+			}
+		}
+	}
+}
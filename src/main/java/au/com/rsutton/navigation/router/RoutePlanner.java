@@ -1,5 +1,6 @@
 package au.com.rsutton.navigation.router;
 
+import java.awt.Rectangle;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -8,8 +9,8 @@ import java.util.concurrent.PriorityBlockingQueue;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 
-import au.com.rsutton.mapping.array.Dynamic2dSparseArray;
-import au.com.rsutton.mapping.array.SparseArray;
+import au.com.rsutton.mapping.array.Dynamic2dFloatSparseArray;
+import au.com.rsutton.mapping.array.FloatSparseArray;
 import au.com.rsutton.mapping.probability.ProbabilityMap;
 import au.com.rsutton.mapping.probability.ProbabilityMapIIFc;
 
@@ -18,13 +19,23 @@ public class RoutePlanner
 
 	private ProbabilityMapIIFc sourceMap;
 
-	private ProbabilityMapIIFc augmentedMap;
+	private ProbabilityMap augmentedMap;
+
+	/**
+	 * the version of the source map the augmented map was last brought up to
+	 * date with
+	 */
+	private long augmentedVersion;
 
 	static final int WALL = 1000000;
 
 	int blockSize = 5;
 
-	private SparseArray<RouteDataPoint> route;
+	/**
+	 * total cost to reach the target from each block, costs are whole numbers
+	 * below WALL so are held exactly by a float
+	 */
+	private FloatSparseArray route;
 
 	private int targetX;
 
@@ -36,21 +47,6 @@ public class RoutePlanner
 
 	private int robotRadius = 15;
 
-	class RouteDataPoint
-	{
-		public RouteDataPoint(int totalCost)
-		{
-			this.totalCost = totalCost;
-		}
-
-		int totalCost;
-
-		public boolean isTotalCostLessThan(RouteDataPoint min)
-		{
-			return totalCost < min.totalCost;
-		}
-	}
-
 	public RoutePlanner(ProbabilityMapIIFc world)
 	{
 		this.sourceMap = world;
@@ -67,7 +63,7 @@ public class RoutePlanner
 	{
 		wallChecks.clear();
 
-		augmentedMap = createAugmentedMap(sourceMap);
+		updateAugmentedMap();
 
 		if (!routeOption.isPointRoutable(augmentedMap.get(toX, toY)))
 		{
@@ -81,7 +77,7 @@ public class RoutePlanner
 
 		PriorityBlockingQueue<ExpansionPoint> immediatePoints = new PriorityBlockingQueue<>();
 
-		route = new Dynamic2dSparseArray<>(new RouteDataPoint(WALL));
+		route = new Dynamic2dFloatSparseArray(WALL);
 
 		int x = toX / blockSize;
 		int y = toY / blockSize;
@@ -113,44 +109,96 @@ public class RoutePlanner
 	 * @param source
 	 * @return
 	 */
-	ProbabilityMapIIFc createAugmentedMap(ProbabilityMapIIFc source)
+	ProbabilityMap createAugmentedMap(ProbabilityMapIIFc source)
 	{
 		ProbabilityMap matchMap = new ProbabilityMap(5);
 		matchMap.setDefaultValue(0.5);
 		matchMap.erase();
 		int radius = robotRadius + minimumClearance;
+		int sourceBlockSize = source.getBlockSize();
+
+		source.visitVacant((x, y, value) -> matchMap.writeInflated(x, y, sourceBlockSize, 0, robotRadius));
+
+		source.visitOccupied((x, y, value) -> matchMap.writeInflated(x, y, sourceBlockSize, 1, radius));
+
+		return matchMap;
+	}
+
+	/**
+	 * only the parts of the augmented map affected by changes to the source
+	 * map are rebuilt, unless the source map has been erased or replaced
+	 */
+	private void updateAugmentedMap()
+	{
+		long version = sourceMap.getVersion();
+		List<Rectangle> changedRegions = null;
+		if (augmentedMap != null)
+		{
+			changedRegions = sourceMap.getChangedRegions(augmentedVersion);
+		}
+
+		if (changedRegions == null)
+		{
+			augmentedMap = createAugmentedMap(sourceMap);
+		} else
+		{
+			for (Rectangle region : changedRegions)
+			{
+				patchAugmentedMap(augmentedMap, sourceMap, region);
+			}
+		}
+		augmentedVersion = version;
+	}
+
+	/**
+	 * rebuild the cells of the augmented map within reach of the changed region
+	 * from all of the source cells that can reach them
+	 */
+	void patchAugmentedMap(ProbabilityMap matchMap, ProbabilityMapIIFc source, Rectangle region)
+	{
+		int radius = robotRadius + minimumClearance;
 
-		int minX = source.getMinX();
-		int maxX = source.getMaxX();
-		int minY = source.getMinY();
-		int maxY = source.getMaxY();
+		// the augmented cells the region can reach
+		Rectangle clip = new Rectangle((region.x - radius) / blockSize, (region.y - radius) / blockSize, 0, 0);
+		clip.add((region.x + region.width + radius) / blockSize, (region.y + region.height + radius) / blockSize);
 
-		for (int x = minX; x < maxX + 1; x++)
+		for (int x = clip.x; x <= clip.x + clip.width; x++)
 		{
-			for (int y = minY; y < maxY + 1; y++)
+			for (int y = clip.y; y <= clip.y + clip.height; y++)
 			{
-				double value = source.get(x, y);
-				if (value < 0.5)
-				{
-					matchMap.writeRadius(x, y, 0, robotRadius);
+				matchMap.resetPoint(x * blockSize, y * blockSize);
+			}
+		}
+
+		// the source cells that can reach the clip
+		int sourceBlockSize = source.getBlockSize();
+		int minX = ((clip.x * blockSize) - radius - blockSize - sourceBlockSize) / sourceBlockSize;
+		int minY = ((clip.y * blockSize) - radius - blockSize - sourceBlockSize) / sourceBlockSize;
+		int maxX = (((clip.x + clip.width) * blockSize) + radius + blockSize) / sourceBlockSize;
+		int maxY = (((clip.y + clip.height) * blockSize) + radius + blockSize) / sourceBlockSize;
 
+		for (int x = minX; x <= maxX; x++)
+		{
+			for (int y = minY; y <= maxY; y++)
+			{
+				if (source.get(x * sourceBlockSize, y * sourceBlockSize) < 0.5)
+				{
+					matchMap.writeInflated(x * sourceBlockSize, y * sourceBlockSize, sourceBlockSize, 0, robotRadius,
+							clip);
 				}
 			}
 		}
 
-		for (int x = minX; x < maxX + 1; x++)
+		for (int x = minX; x <= maxX; x++)
 		{
-			for (int y = minY; y < maxY + 1; y++)
+			for (int y = minY; y <= maxY; y++)
 			{
-				double value = source.get(x, y);
-				if (value > 0.5)
+				if (source.get(x * sourceBlockSize, y * sourceBlockSize) > 0.5)
 				{
-					matchMap.writeRadius(x, y, 1, radius);
+					matchMap.writeInflated(x * sourceBlockSize, y * sourceBlockSize, sourceBlockSize, 1, radius, clip);
 				}
 			}
 		}
-
-		return matchMap;
 	}
 
 	/**
@@ -185,7 +233,7 @@ public class RoutePlanner
 		ExpansionPoint temp = new ExpansionPoint(x, y, 0);
 		if (isPointWithinWorldBountries(temp))
 			if (routeOption.isPointRoutable(augmentedMap.get(temp.x * blockSize, temp.y * blockSize))
-					&& route.get(temp.x, temp.y).totalCost > distanceToTarget)
+					&& route.get(temp.x, temp.y) > distanceToTarget)
 			{
 
 				// radius in blocks
@@ -195,9 +243,9 @@ public class RoutePlanner
 				int penalty = (int) ((radius - distanceToWall) * 10);
 
 				int totalCost = (int) (distanceToTarget + 1 + penalty);
-				if (route.get(temp.x, temp.y).totalCost > totalCost)
+				if (route.get(temp.x, temp.y) > totalCost)
 				{
-					route.set(temp.x, temp.y, new RouteDataPoint(totalCost));
+					route.set(temp.x, temp.y, totalCost);
 
 					tempPoints.add(new ExpansionPoint(x, y, totalCost));
 				}
@@ -271,12 +319,12 @@ public class RoutePlanner
 		points.add(new ExpansionPoint(-radius, -radius, 0));
 
 		ExpansionPoint target = null;
-		RouteDataPoint min = route.get(rx, ry);
+		float min = route.get(rx, ry);
 		// System.out.println("pre min " + min + "rx,ry " + rx + "," + ry);
 		for (ExpansionPoint point : points)
 		{
-			RouteDataPoint value = route.get(rx + point.x, ry + point.y);
-			if (value.isTotalCostLessThan(min))
+			float value = route.get(rx + point.x, ry + point.y);
+			if (value < min)
 			{
 				min = value;
 				target = new ExpansionPoint(x + point.x, y + point.y, 0);
@@ -314,7 +362,7 @@ public class RoutePlanner
 		{
 			for (int x = route.getMinX(); x < route.getMaxX(); x++)
 			{
-				System.out.print(route.get(x, y).totalCost + " ");
+				System.out.print((int) route.get(x, y) + " ");
 			}
 			System.out.println("");
 		}
@@ -6,7 +6,6 @@ import java.awt.Point;
 import java.awt.image.BufferedImage;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Random;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 
@@ -20,6 +19,7 @@ import au.com.rsutton.entryPoint.controllers.HeadingHelper;
 import au.com.rsutton.hazelcast.DataLogValue;
 import au.com.rsutton.hazelcast.RobotLocation;
 import au.com.rsutton.mapping.particleFilter.Particle;
+import au.com.rsutton.mapping.particleFilter.RandomStream;
 import au.com.rsutton.mapping.particleFilter.ScanObservation;
 import au.com.rsutton.mapping.probability.ProbabilityMapIIFc;
 import au.com.rsutton.navigation.feature.RobotLocationDeltaListener;
@@ -39,7 +39,15 @@ public class RobotSimulator implements DataSourceMap, RobotInterface, Runnable,
 
 	Logger logger = LogManager.getLogger();
 
-	Random random = new Random();
+	/**
+	 * motion noise, used by the robot's thread
+	 */
+	private final RandomStream random;
+
+	/**
+	 * scan noise, scans are taken on the message pump's thread
+	 */
+	private final RandomStream scanRandom;
 	private ProbabilityMapIIFc map;
 
 	double x = 0;
@@ -47,7 +55,7 @@ public class RobotSimulator implements DataSourceMap, RobotInterface, Runnable,
 
 	double totalDistanceTravelled = 0;
 
-	volatile double headingOffset = random.nextInt(360);
+	volatile double headingOffset;
 
 	double heading;
 	private volatile boolean freeze;
@@ -61,6 +69,21 @@ public class RobotSimulator implements DataSourceMap, RobotInterface, Runnable,
 
 	public RobotSimulator(ProbabilityMapIIFc map)
 	{
+		this(map, RandomStream.newSeed());
+	}
+
+	/**
+	 * 
+	 * @param seed
+	 *            of the simulator's noise, so a run can be repeated
+	 */
+	public RobotSimulator(ProbabilityMapIIFc map, long seed)
+	{
+		logger.info("Robot simulator seed " + seed);
+		RandomStream seeded = new RandomStream(seed);
+		random = seeded.split();
+		scanRandom = seeded.split();
+		headingOffset = seeded.nextInt(360);
 		this.map = map;
 
 		messsagePump = new RobotLocationDeltaMessagePump(this);
@@ -139,7 +162,7 @@ public class RobotSimulator implements DataSourceMap, RobotInterface, Runnable,
 
 		Particle particle = new Particle(x, y, heading, 2, 2);
 
-		Random rand = new Random();
+		RandomStream rand = scanRandom;
 		double stepSize = 1.9;
 		double stepNoise = 1.2;
 
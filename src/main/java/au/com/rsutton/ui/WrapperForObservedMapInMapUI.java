@@ -3,11 +3,10 @@ package au.com.rsutton.ui;
 import java.awt.Color;
 import java.awt.Graphics;
 import java.awt.Point;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
 
 import au.com.rsutton.mapping.probability.ProbabilityMapIIFc;
 
@@ -21,31 +20,111 @@ public class WrapperForObservedMapInMapUI implements DataSourceMap
 		this.world = world;
 	}
 
-	Map<Point, Double> pointValues = new HashMap<>();
+	private static final int STEP = 3;
+	private static final int BORDER = 30;
 
+	private long sampledVersion = -1;
+	private int sampledMinX;
+	private int sampledMinY;
+	private int sampledWidth;
+	private int sampledHeight;
+	private float[] values = new float[0];
+	private List<Point> points = new ArrayList<>();
+
+	/**
+	 * the points are only rebuilt when the bounds of the map change, otherwise
+	 * just the points in the regions of the map that changed since the last
+	 * call are re-sampled
+	 */
 	@Override
-	public List<Point> getPoints()
+	public synchronized List<Point> getPoints()
 	{
-		List<Point> points = new LinkedList<>();
-		for (int y = world.getMinY() - 30; y <= world.getMaxY() + 30; y += 3)
+		long version = world.getVersion();
+		if (version == sampledVersion)
 		{
-			for (int x = world.getMinX() - 30; x <= world.getMaxX() + 30; x += 3)
-			{
-				Point point = new Point(x, y);
-				points.add(point);
+			return points;
+		}
+
+		if (world.getMaxX() < world.getMinX() || world.getMaxY() < world.getMinY())
+		{
+			// empty map
+			points = new ArrayList<>();
+			sampledWidth = 0;
+			sampledHeight = 0;
+			sampledVersion = version;
+			return points;
+		}
+
+		int minX = world.getMinX() - BORDER;
+		int minY = world.getMinY() - BORDER;
+		int width = ((world.getMaxX() + BORDER - minX) / STEP) + 1;
+		int height = ((world.getMaxY() + BORDER - minY) / STEP) + 1;
 
+		List<Rectangle> changedRegions = world.getChangedRegions(sampledVersion);
+
+		if (changedRegions == null || minX != sampledMinX || minY != sampledMinY || width != sampledWidth
+				|| height != sampledHeight)
+		{
+			sampledMinX = minX;
+			sampledMinY = minY;
+			sampledWidth = width;
+			sampledHeight = height;
+			values = new float[width * height];
+			List<Point> newPoints = new ArrayList<>(width * height);
+			for (int y = 0; y < height; y++)
+			{
+				for (int x = 0; x < width; x++)
+				{
+					Point point = new Point(minX + (x * STEP), minY + (y * STEP));
+					newPoints.add(point);
+					values[(y * width) + x] = (float) world.get(point.x, point.y);
+				}
+			}
+			points = newPoints;
+		} else
+		{
+			for (Rectangle region : changedRegions)
+			{
+				resample(region);
 			}
 		}
+		sampledVersion = version;
 		return points;
 	}
 
+	private void resample(Rectangle region)
+	{
+		int startX = Math.max(0, (region.x - sampledMinX) / STEP);
+		int startY = Math.max(0, (region.y - sampledMinY) / STEP);
+		int endX = Math.min(sampledWidth - 1, ((region.x + region.width - sampledMinX) / STEP) + 1);
+		int endY = Math.min(sampledHeight - 1, ((region.y + region.height - sampledMinY) / STEP) + 1);
+		for (int y = startY; y <= endY; y++)
+		{
+			for (int x = startX; x <= endX; x++)
+			{
+				values[(y * sampledWidth) + x] = (float) world.get(sampledMinX + (x * STEP), sampledMinY + (y * STEP));
+			}
+		}
+	}
+
+	private synchronized double getValue(double originalX, double originalY)
+	{
+		int x = ((int) originalX - sampledMinX) / STEP;
+		int y = ((int) originalY - sampledMinY) / STEP;
+		if (x >= 0 && y >= 0 && x < sampledWidth && y < sampledHeight)
+		{
+			return values[(y * sampledWidth) + x];
+		}
+		return world.get(originalX, originalY);
+	}
+
 	@Override
 	public void drawPoint(BufferedImage image, double pointOriginX, double pointOriginY, double scale, double originalX,
 			double originalY)
 	{
 		Graphics graphics = image.getGraphics();
 
-		double value = world.get(originalX, originalY);
+		double value = getValue(originalX, originalY);
 
 		Color color = new Color((int) (value * 255), (int) (value * 255), (int) (value * 255));
 
@@ -0,0 +1,158 @@
+package au.com.rsutton.kalman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import au.com.rsutton.entryPoint.controllers.HeadingHelper;
+import au.com.rsutton.mapping.KitchenMapBuilder;
+import au.com.rsutton.mapping.particleFilter.OdometryAccumulator;
+import au.com.rsutton.mapping.particleFilter.ParticleFilterStatus;
+import au.com.rsutton.mapping.particleFilter.ParticleSet;
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.PoseRefiner;
+import au.com.rsutton.mapping.particleFilter.ScanObservation;
+import au.com.rsutton.mapping.particleFilter.ScanSimulator;
+import au.com.rsutton.mapping.probability.LikelihoodField;
+import au.com.rsutton.mapping.probability.ProbabilityMap;
+import au.com.rsutton.units.Angle;
+import au.com.rsutton.units.AngleUnits;
+import au.com.rsutton.units.Distance;
+import au.com.rsutton.units.DistanceUnit;
+
+public class EkfPoseTrackerTest
+{
+
+	private double[][] diagonal(double x, double y, double heading)
+	{
+		return new double[][] { { x, 0, 0 }, { 0, y, 0 }, { 0, 0, heading } };
+	}
+
+	/**
+	 * as the robot reports a turn, the inverse of the particle filter's
+	 * conversion
+	 */
+	private Angle turn(double degrees)
+	{
+		return new Angle(degrees > 0 ? 360 - degrees : -degrees, AngleUnits.DEGREES);
+	}
+
+	@Test
+	public void testTracksWithBiasedOdometry()
+	{
+		ProbabilityMap world = KitchenMapBuilder.buildKitchenMap();
+		LikelihoodField field = LikelihoodField.build(world, 5, 8, 25);
+		EkfPoseTracker tracker = new EkfPoseTracker(new PoseEkf(0.05, 0.05, 0.02), new PoseRefiner(field, 10));
+
+		double x = -100;
+		double y = 100;
+		double heading = 0;
+		tracker.reset(new Pose(x, y, heading), diagonal(25, 25, 4));
+
+		Random rand = new Random(11);
+		long trackingTime = 0;
+		int scans = 0;
+		for (int step = 0; step < 30; step++)
+		{
+			double deltaHeading = 1.5;
+			double distance = 4;
+			heading += deltaHeading;
+			x -= distance * Math.sin(Math.toRadians(heading));
+			y += distance * Math.cos(Math.toRadians(heading));
+
+			// the wheels over report distance and under report turns
+			Angle reportedTurn = turn((deltaHeading * 0.9) + (rand.nextGaussian() * 0.2));
+			Distance reportedDistance = new Distance((distance * 1.05) + (rand.nextGaussian() * 0.2),
+					DistanceUnit.CM);
+			List<ScanObservation> scan = null;
+			if (step % 2 == 1)
+			{
+				scan = ScanSimulator.simulateScan(world, x, y, heading);
+			}
+
+			tracker.onMessage(reportedTurn, reportedDistance, null, false);
+			if (scan != null)
+			{
+				// fit the scan here rather than on the tracker's thread
+				long start = System.nanoTime();
+				tracker.update(scan);
+				trackingTime += System.nanoTime() - start;
+				scans++;
+			}
+		}
+		tracker.shutdown();
+
+		Pose pose = tracker.getPose();
+		double error = Math.hypot(pose.getX() - x, pose.getY() - y);
+		System.out.println("Tracking error " + error + "cm, heading "
+				+ HeadingHelper.getChangeInHeading(pose.getHeading(), heading) + ", innovation "
+				+ tracker.getLastInnovation());
+		assertTrue(error < 3);
+		// lags behind the under reported turns
+		assertEquals(0, HeadingHelper.getChangeInHeading(pose.getHeading(), heading), 1.5);
+		assertEquals(ParticleFilterStatus.LOCALIZED, tracker.getParticleFilterStatus());
+		assertTrue(tracker.getStdDev() < 10);
+
+		// compare with the particle filter's work for the same scan
+		List<ScanObservation> scan = ScanSimulator.simulateScan(world, x, y, heading);
+		ParticleSet particles = new ParticleSet(500, 0, 0);
+		for (int i = 0; i < 500; i++)
+		{
+			particles.add(x + (rand.nextGaussian() * 10), y + (rand.nextGaussian() * 10),
+					heading + (rand.nextGaussian() * 3));
+		}
+		long start = System.nanoTime();
+		for (int cycle = 0; cycle < 20; cycle++)
+		{
+			particles.score(field, scan);
+		}
+		long particleTime = (System.nanoTime() - start) / 20;
+		System.out.println("EKF update " + (trackingTime / (scans * 1000)) + "us, scoring 500 particles "
+				+ (particleTime / 1000) + "us");
+	}
+
+	@Test
+	public void testReportsPoorMatchWhenLost() throws InterruptedException
+	{
+		ProbabilityMap world = KitchenMapBuilder.buildKitchenMap();
+		LikelihoodField field = LikelihoodField.build(world, 5, 8, 25);
+		EkfPoseTracker tracker = new EkfPoseTracker(new PoseEkf(0.05, 0.05, 0.02), new PoseRefiner(field, 10));
+
+		// confidently in the wrong place
+		tracker.reset(new Pose(-100, 100, 90), diagonal(4, 4, 1));
+		List<ScanObservation> scan = ScanSimulator.simulateScan(world, 50, -200, 135);
+		// the scans are fitted on the tracker's thread
+		long deadline = System.currentTimeMillis() + 60000;
+		while (tracker.getParticleFilterStatus() != ParticleFilterStatus.POOR_MATCH
+				&& System.currentTimeMillis() < deadline)
+		{
+			tracker.onMessage(turn(0), new Distance(0, DistanceUnit.CM), scan, false);
+			Thread.sleep(50);
+		}
+		tracker.shutdown();
+		assertEquals(ParticleFilterStatus.POOR_MATCH, tracker.getParticleFilterStatus());
+	}
+
+	@Test
+	public void testResetAppliesTheMotionSinceThePose()
+	{
+		ProbabilityMap world = KitchenMapBuilder.buildKitchenMap();
+		LikelihoodField field = LikelihoodField.build(world, 5, 8, 25);
+		EkfPoseTracker tracker = new EkfPoseTracker(new PoseEkf(0.05, 0.05, 0.02), new PoseRefiner(field, 10));
+
+		// turned to face 90 degrees, then 10cm ahead
+		OdometryAccumulator odometry = new OdometryAccumulator();
+		odometry.add(90, 10);
+		tracker.reset(new Pose(-100, 100, 0), diagonal(4, 4, 1), odometry.take());
+		tracker.shutdown();
+
+		Pose pose = tracker.getPose();
+		assertEquals(-110, pose.getX(), 0.000001);
+		assertEquals(100, pose.getY(), 0.000001);
+		assertEquals(90, pose.getHeading(), 0.000001);
+	}
+}
@@ -0,0 +1,196 @@
+package au.com.rsutton.kalman;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import au.com.rsutton.mapping.KitchenMapBuilder;
+import au.com.rsutton.mapping.particleFilter.ParticleFilterImpl;
+import au.com.rsutton.mapping.particleFilter.ParticleFilterStatus;
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.PoseRefiner;
+import au.com.rsutton.mapping.particleFilter.RandomStream;
+import au.com.rsutton.mapping.particleFilter.StartPosition;
+import au.com.rsutton.mapping.probability.ProbabilityMap;
+import au.com.rsutton.navigation.feature.DistanceXY;
+import au.com.rsutton.navigation.feature.RobotLocationDeltaListener;
+import au.com.rsutton.robot.RobotInterface;
+import au.com.rsutton.units.Angle;
+import au.com.rsutton.units.AngleUnits;
+import au.com.rsutton.units.Distance;
+import au.com.rsutton.units.DistanceUnit;
+import au.com.rsutton.units.Speed;
+
+public class LocalizationSupervisorTest
+{
+
+	/**
+	 * passes messages sent by the test to the listeners
+	 */
+	private static class TestRobot implements RobotInterface
+	{
+		private final List<RobotLocationDeltaListener> listeners = new CopyOnWriteArrayList<>();
+
+		void move(double distance)
+		{
+			for (RobotLocationDeltaListener listener : listeners)
+			{
+				listener.onMessage(new Angle(0, AngleUnits.DEGREES), new Distance(distance, DistanceUnit.CM), null,
+						false);
+			}
+		}
+
+		@Override
+		public void freeze(boolean b)
+		{
+		}
+
+		@Override
+		public void setSpeed(Speed speed)
+		{
+		}
+
+		@Override
+		public void turn(double normalizeHeading)
+		{
+		}
+
+		@Override
+		public void publishUpdate()
+		{
+		}
+
+		@Override
+		public void addMessageListener(RobotLocationDeltaListener listener)
+		{
+			listeners.add(listener);
+		}
+
+		@Override
+		public void removeMessageListener(RobotLocationDeltaListener listener)
+		{
+			listeners.remove(listener);
+		}
+
+		@Override
+		public double getRadius()
+		{
+			return 15;
+		}
+	}
+
+	/**
+	 * a tracker the test can tell to lose the pose
+	 */
+	private static class LosableTracker extends EkfPoseTracker
+	{
+		volatile boolean lost;
+
+		LosableTracker(PoseRefiner refiner)
+		{
+			super(new PoseEkf(0.05, 0.05, 0.02), refiner);
+		}
+
+		@Override
+		public ParticleFilterStatus getParticleFilterStatus()
+		{
+			return lost ? ParticleFilterStatus.POOR_MATCH : super.getParticleFilterStatus();
+		}
+	}
+
+	private TestRobot robot;
+	private ParticleFilterImpl pf;
+	private LosableTracker tracker;
+	private LocalizationSupervisor supervisor;
+
+	@Before
+	public void setUp()
+	{
+		ProbabilityMap world = KitchenMapBuilder.buildKitchenMap();
+		robot = new TestRobot();
+		// every particle at the same pose, so the filter has converged
+		pf = new ParticleFilterImpl(world, ParticleFilterImpl.buildMatchingMap(world), 1000, 1, 1,
+				StartPosition.USE_POSE, robot, new Pose(-100, 100, 0), RandomStream.newSeed(), false);
+		tracker = new LosableTracker(new PoseRefiner(pf.getMatchingMap(), 10));
+		supervisor = new LocalizationSupervisor(pf, robot, tracker);
+	}
+
+	@After
+	public void tearDown()
+	{
+		supervisor.shutdown();
+		pf.shutdown();
+	}
+
+	private void converge()
+	{
+		for (int i = 0; i < 3; i++)
+		{
+			supervisor.update(new DistanceXY(-100, 100, DistanceUnit.CM), new Angle(0, AngleUnits.DEGREES), 1,
+					null, ParticleFilterStatus.LOCALIZED);
+		}
+	}
+
+	@Test
+	public void testTracksOnceConvergedFromWhereTheFilterLeftOff()
+	{
+		// moves after the particle filter's last update
+		robot.move(10);
+		assertEquals(LocalizationSupervisor.Mode.PARTICLE_FILTER, supervisor.getMode());
+
+		converge();
+
+		assertEquals(LocalizationSupervisor.Mode.TRACKING, supervisor.getMode());
+		Pose pose = tracker.getPose();
+		assertEquals(-100, pose.getX(), 0.01);
+		assertEquals(110, pose.getY(), 0.01);
+		// the particle filter has nothing left over
+		assertEquals(0, pf.takeOdometry().getDistanceTravelled(), 0.0);
+	}
+
+	@Test
+	public void testResumesTheFilterWhenTrackingIsLost()
+	{
+		converge();
+		Pose last = tracker.getPose();
+
+		tracker.lost = true;
+		robot.move(0);
+
+		assertEquals(LocalizationSupervisor.Mode.PARTICLE_FILTER, supervisor.getMode());
+		assertEquals(ParticleFilterStatus.LOCALIZING, supervisor.getParticleFilterStatus());
+		// reseeded around where the tracker lost the pose
+		Pose best = pf.getHypotheses().get(0).getPose();
+		assertEquals(last.getX(), best.getX(), 5);
+		assertEquals(last.getY(), best.getY(), 5);
+		// and collecting odometry again
+		robot.move(10);
+		assertEquals(10, pf.takeOdometry().getDistanceTravelled(), 0.000001);
+	}
+
+	@Test
+	public void testReportsThePoseOfTheActiveSource()
+	{
+		supervisor.update(new DistanceXY(5, 6, DistanceUnit.CM), new Angle(30, AngleUnits.DEGREES), 40, null,
+				ParticleFilterStatus.LOCALIZING);
+		assertEquals(5, supervisor.getXyPosition().getX().convert(DistanceUnit.CM), 0.000001);
+		assertEquals(6, supervisor.getXyPosition().getY().convert(DistanceUnit.CM), 0.000001);
+		assertEquals(30, supervisor.getHeading(), 0.000001);
+		assertEquals(40, supervisor.getStdDev(), 0.000001);
+		assertEquals(ParticleFilterStatus.LOCALIZING, supervisor.getParticleFilterStatus());
+
+		converge();
+		robot.move(10);
+
+		assertEquals(tracker.getXyPosition().getY().convert(DistanceUnit.CM),
+				supervisor.getXyPosition().getY().convert(DistanceUnit.CM), 0.000001);
+		assertEquals(tracker.getHeading(), supervisor.getHeading(), 0.000001);
+		assertEquals(tracker.getStdDev(), supervisor.getStdDev(), 0.000001);
+		assertEquals(ParticleFilterStatus.LOCALIZED, supervisor.getParticleFilterStatus());
+	}
+}
@@ -0,0 +1,78 @@
+package au.com.rsutton.kalman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import au.com.rsutton.entryPoint.controllers.HeadingHelper;
+import au.com.rsutton.mapping.particleFilter.Pose;
+
+public class PoseEkfTest
+{
+
+	private double[][] diagonal(double x, double y, double heading)
+	{
+		return new double[][] { { x, 0, 0 }, { 0, y, 0 }, { 0, 0, heading } };
+	}
+
+	@Test
+	public void testPredictMovesInRobotFrame()
+	{
+		PoseEkf ekf = new PoseEkf(0.1, 0.1, 0);
+		ekf.reset(new Pose(10, 20, 90), diagonal(1, 1, 1));
+
+		// 10cm ahead while facing 90 degrees
+		ekf.predict(0, 10, 5, 10);
+		Pose pose = ekf.getPose();
+		assertEquals(0, pose.getX(), 0.000001);
+		assertEquals(20, pose.getY(), 0.000001);
+		assertEquals(95, pose.getHeading(), 0.000001);
+
+		double[][] covariance = ekf.getCovariance();
+		// the heading uncertainty spreads along the direction of travel
+		assertTrue(covariance[1][1] > covariance[0][0]);
+		assertEquals(1 + Math.pow(0.5, 2), covariance[2][2], 0.000001);
+		assertEquals(covariance[0][2], covariance[2][0], 0.000001);
+	}
+
+	@Test
+	public void testUpdateAveragesEqualUncertainties()
+	{
+		PoseEkf ekf = new PoseEkf(0.1, 0.1, 0);
+		ekf.reset(new Pose(0, 0, 358), diagonal(4, 4, 4));
+
+		Pose measured = new Pose(10, -10, 4);
+		assertEquals((100.0 + 100.0 + 36.0) / 8, ekf.getInnovation(measured, diagonal(4, 4, 4)), 0.000001);
+
+		ekf.update(measured, diagonal(4, 4, 4));
+		Pose pose = ekf.getPose();
+		assertEquals(5, pose.getX(), 0.000001);
+		assertEquals(-5, pose.getY(), 0.000001);
+		// the short way round, across north
+		assertEquals(0, HeadingHelper.getChangeInHeading(pose.getHeading(), 1), 0.000001);
+
+		double[][] covariance = ekf.getCovariance();
+		assertEquals(2, covariance[0][0], 0.000001);
+		assertEquals(2, covariance[2][2], 0.000001);
+	}
+
+	@Test
+	public void testHeadingStaysWithinACircle()
+	{
+		PoseEkf ekf = new PoseEkf(0.1, 0.1, 0);
+		ekf.reset(new Pose(0, 0, 350), diagonal(4, 4, 4));
+
+		ekf.predict(0, 0, 20, 0);
+		assertEquals(10, ekf.getPose().getHeading(), 0.01);
+
+		ekf.predict(0, 0, -30, 0);
+		assertEquals(340, ekf.getPose().getHeading(), 0.01);
+
+		// corrected across north
+		ekf.update(new Pose(0, 0, 2), diagonal(0.0001, 0.0001, 0.0001));
+		double heading = ekf.getPose().getHeading();
+		assertTrue(heading >= 0 && heading < 360);
+		assertEquals(0, HeadingHelper.getChangeInHeading(heading, 2), 0.05);
+	}
+}
@@ -0,0 +1,107 @@
+package au.com.rsutton.mapping.array;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+
+public class DoubleSparseArrayTest
+{
+
+	@Test
+	public void testDiagonal()
+	{
+		int min = -99999;
+		int max = 99999;
+
+		Stopwatch timer = Stopwatch.createStarted();
+		DoubleSparseArray map = Dynamic2dSparseArrayFactory.getDynamic2dDoubleSparseArray(0.5);
+		for (int i = min; i < max; i++)
+		{
+			map.set(i, i, i);
+		}
+
+		for (int i = min; i < max; i++)
+		{
+			assertEquals(i, map.get(i, i), 0.0);
+		}
+
+		System.out.println("Elapsed " + timer.elapsed(TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void testDefaultAndBounds()
+	{
+		DoubleSparseArray map = Dynamic2dSparseArrayFactory.getDynamic2dDoubleSparseArray(0.5);
+
+		// cells either side of the tile boundaries around zero
+		map.set(-1, -1, 0.1);
+		map.set(0, 0, 0.2);
+		map.set(-33, 31, 0.3);
+		map.set(32, -32, 0.4);
+
+		assertEquals(0.1, map.get(-1, -1), 0.0);
+		assertEquals(0.2, map.get(0, 0), 0.0);
+		assertEquals(0.3, map.get(-33, 31), 0.0);
+		assertEquals(0.4, map.get(32, -32), 0.0);
+
+		// untouched cells in allocated and unallocated tiles
+		assertEquals(0.5, map.get(1, 1), 0.0);
+		assertEquals(0.5, map.get(-2, -1), 0.0);
+		assertEquals(0.5, map.get(1000, 1000), 0.0);
+
+		assertEquals(-33, map.getMinX());
+		assertEquals(32, map.getMaxX());
+		assertEquals(-32, map.getMinY());
+		assertEquals(31, map.getMaxY());
+	}
+
+	@Test
+	public void testBeyondSegmentTreeLimit()
+	{
+		// the old segment tree was limited to +-50^3 cells
+		DoubleSparseArray map = Dynamic2dSparseArrayFactory.getDynamic2dDoubleSparseArray(0.5);
+		int[] coords = { -2000000000, -125001, -125000, 0, 124999, 125000, 2000000000 };
+		for (int x : coords)
+		{
+			for (int y : coords)
+			{
+				map.set(x, y, x / 3.0 + y);
+			}
+		}
+		for (int x : coords)
+		{
+			for (int y : coords)
+			{
+				assertEquals(x / 3.0 + y, map.get(x, y), 0.0);
+			}
+		}
+		assertEquals(-2000000000, map.getMinX());
+		assertEquals(2000000000, map.getMaxY());
+	}
+
+	@Test
+	public void testFloat()
+	{
+		FloatSparseArray map = Dynamic2dSparseArrayFactory.getDynamic2dFloatSparseArray(0.0f);
+		for (int x = -100; x < 100; x++)
+		{
+			for (int y = -100; y < 100; y++)
+			{
+				map.set(x, y, x * 1000 + y);
+			}
+		}
+		for (int x = -100; x < 100; x++)
+		{
+			for (int y = -100; y < 100; y++)
+			{
+				assertEquals(x * 1000 + y, map.get(x, y), 0.0f);
+			}
+		}
+		assertEquals(0.0f, map.get(100, 100), 0.0f);
+	}
+
+}
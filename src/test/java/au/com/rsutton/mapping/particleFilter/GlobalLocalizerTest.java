@@ -0,0 +1,71 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+
+import au.com.rsutton.entryPoint.controllers.HeadingHelper;
+import au.com.rsutton.mapping.KitchenMapBuilder;
+import au.com.rsutton.mapping.probability.LikelihoodField;
+import au.com.rsutton.mapping.probability.ProbabilityMap;
+import au.com.rsutton.robot.lidar.LidarObservation;
+
+public class GlobalLocalizerTest
+{
+
+	@Test
+	public void testFindsPose()
+	{
+		ProbabilityMap world = KitchenMapBuilder.buildKitchenMap();
+		LikelihoodField field = LikelihoodField.build(world, 5, 8, 25);
+
+		Stopwatch timer = Stopwatch.createStarted();
+		GlobalLocalizer localizer = new GlobalLocalizer(field, 5, 7);
+		System.out.println("Built localizer in " + timer.elapsed(TimeUnit.MILLISECONDS) + "ms");
+
+		double[][] poses = { { -100, 100, 0 }, { 50, -200, 135 }, { -150, 300, 270 }, { -30, 100, 45 } };
+		for (double[] pose : poses)
+		{
+			List<ScanObservation> scan = ScanSimulator.simulateScan(world, pose[0], pose[1], pose[2], 2);
+
+			timer = Stopwatch.createStarted();
+			List<GlobalLocalizer.Hypothesis> hypotheses = localizer.localize(scan, 5, 0.3, 50);
+			System.out.println("Localized in " + timer.elapsed(TimeUnit.MILLISECONDS) + "ms " + hypotheses.get(0));
+
+			assertFalse(hypotheses.isEmpty());
+			Pose best = hypotheses.get(0).getPose();
+			assertEquals(pose[0], best.getX(), 15);
+			assertEquals(pose[1], best.getY(), 15);
+			assertEquals(0, HeadingHelper.getChangeInHeading(best.getHeading(), pose[2]), 5);
+
+			for (int i = 1; i < hypotheses.size(); i++)
+			{
+				assertTrue(hypotheses.get(i).getScore() <= hypotheses.get(i - 1).getScore());
+			}
+		}
+	}
+
+	@Test
+	public void testNothingBelowMinScore()
+	{
+		ProbabilityMap world = KitchenMapBuilder.buildKitchenMap();
+		GlobalLocalizer localizer = new GlobalLocalizer(LikelihoodField.build(world, 5, 8, 25), 5, 7);
+
+		// a single wall far longer than anything in the kitchen
+		List<ScanObservation> scan = new ArrayList<>();
+		for (int x = -2000; x <= 2000; x += 20)
+		{
+			scan.add(new LidarObservation(new Vector3D(x, 100, 0)));
+		}
+		assertTrue(localizer.localize(scan, 5, 0.9, 50).isEmpty());
+	}
+}
@@ -0,0 +1,83 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.apache.commons.math3.distribution.ChiSquaredDistribution;
+import org.apache.commons.math3.distribution.NormalDistribution;
+import org.junit.Test;
+
+public class KldSamplerTest
+{
+
+	@Test
+	public void testRequiredParticlesMatchesChiSquare()
+	{
+		double epsilon = 0.05;
+		double delta = 0.01;
+		double z = new NormalDistribution(0, 1).inverseCumulativeProbability(1 - delta);
+		for (int bins = 2; bins < 5000; bins += 37)
+		{
+			double exact = new ChiSquaredDistribution(bins - 1).inverseCumulativeProbability(1 - delta)
+					/ (2 * epsilon);
+			assertEquals(exact, KldSampler.getRequiredParticles(bins, epsilon, z), exact * 0.02 + 1);
+		}
+		assertEquals(0, KldSampler.getRequiredParticles(1, epsilon, z));
+	}
+
+	@Test
+	public void testCountOccupiedBins()
+	{
+		KldSampler sampler = new KldSampler(0.05, 0.01, 50, 10, 100, 5000);
+		ParticleSet particles = new ParticleSet(10, 0, 0);
+		particles.add(10, 10, 5);
+		particles.add(20, 40, 9);
+		particles.add(-10, 10, 5);
+		particles.add(10, 10, 365);
+		particles.add(10, 10, -5);
+		particles.add(10, 1000, 5);
+		assertEquals(4, sampler.countOccupiedBins(particles));
+
+		// the table is reused
+		particles.clear();
+		particles.add(0, 0, 0);
+		assertEquals(1, sampler.countOccupiedBins(particles));
+	}
+
+	@Test
+	public void testParticleCountFollowsSpread()
+	{
+		KldSampler sampler = new KldSampler(0.05, 0.01, 50, 10, 100, 5000);
+		Random rand = new Random(9);
+
+		// tracking, about 10cm and 3 degrees of spread
+		ParticleSet tracking = new ParticleSet(1000, 0, 0);
+		for (int i = 0; i < 1000; i++)
+		{
+			tracking.add(rand.nextGaussian() * 10, rand.nextGaussian() * 10, 90 + rand.nextGaussian() * 3);
+		}
+		int trackingCount = sampler.getParticleCount(tracking);
+		assertTrue("" + trackingCount, trackingCount >= 100 && trackingCount < 500);
+
+		// global localization over a 10m x 10m map
+		ParticleSet global = new ParticleSet(5000, 0, 0);
+		for (int i = 0; i < 5000; i++)
+		{
+			global.add(rand.nextDouble() * 1000, rand.nextDouble() * 1000, rand.nextDouble() * 360);
+		}
+		assertEquals(5000, sampler.getParticleCount(global));
+
+		// a few distinct hypotheses
+		ParticleSet ambiguous = new ParticleSet(1000, 0, 0);
+		for (int i = 0; i < 1000; i++)
+		{
+			int hypothesis = i % 4;
+			ambiguous.add(hypothesis * 300 + rand.nextGaussian() * 10, rand.nextGaussian() * 10,
+					hypothesis * 90 + rand.nextGaussian() * 3);
+		}
+		int ambiguousCount = sampler.getParticleCount(ambiguous);
+		assertTrue("" + ambiguousCount, ambiguousCount > trackingCount && ambiguousCount < 5000);
+	}
+}
@@ -0,0 +1,85 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OdometryAccumulatorTest
+{
+
+	private ParticleUpdate update(final double distance, final double deltaHeading)
+	{
+		return new ParticleUpdate()
+		{
+
+			@Override
+			public double getMoveDistance()
+			{
+				return distance;
+			}
+
+			@Override
+			public double getDeltaHeading()
+			{
+				return deltaHeading;
+			}
+		};
+	}
+
+	@Test
+	public void testAccumulatedMotionMatchesEachMove()
+	{
+		Random rand = new Random(17);
+		for (int trial = 0; trial < 20; trial++)
+		{
+			double x = rand.nextInt(400) - 200;
+			double y = rand.nextInt(400) - 200;
+			double heading = rand.nextInt(360);
+			Particle particle = new Particle(x, y, heading, 0, 0);
+			ParticleSet set = new ParticleSet(1, 0, 0);
+			set.add(x, y, heading);
+
+			OdometryAccumulator odometry = new OdometryAccumulator();
+			double travelled = 0;
+			for (int i = 0; i < 10; i++)
+			{
+				double distance = rand.nextDouble() * 20 - 5;
+				double deltaHeading = rand.nextDouble() * 30 - 15;
+				particle.move(update(distance, deltaHeading));
+				odometry.add(deltaHeading, distance);
+				travelled += Math.abs(distance);
+			}
+
+			OdometryAccumulator.Displacement displacement = odometry.take();
+			assertEquals(travelled, displacement.getDistanceTravelled(), 0.000001);
+			set.move(displacement);
+
+			assertEquals(particle.getX(), set.getX(0), 0.000001);
+			assertEquals(particle.getY(), set.getY(0), 0.000001);
+			assertEquals(0, headingDifference(particle.getHeading(), set.getHeading(0)), 0.000001);
+
+			// taking resets the accumulator
+			OdometryAccumulator.Displacement empty = odometry.take();
+			assertEquals(0, empty.getX(), 0.0);
+			assertEquals(0, empty.getY(), 0.0);
+			assertEquals(0, empty.getDeltaHeading(), 0.0);
+			assertEquals(0, empty.getDistanceTravelled(), 0.0);
+		}
+	}
+
+	private double headingDifference(double a, double b)
+	{
+		double delta = (a - b) % 360;
+		if (delta > 180)
+		{
+			delta -= 360;
+		}
+		if (delta < -180)
+		{
+			delta += 360;
+		}
+		return delta;
+	}
+}
@@ -0,0 +1,65 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import au.com.rsutton.entryPoint.controllers.HeadingHelper;
+
+public class ParticleClustererTest
+{
+
+	@Test
+	public void testSeparatesModes()
+	{
+		Random rand = new Random(3);
+		ParticleSet set = new ParticleSet(1000, 0, 0);
+		// either end of a corridor, facing opposite ways
+		for (int i = 0; i < 700; i++)
+		{
+			set.add(rand.nextGaussian() * 10, rand.nextGaussian() * 10, 90 + (rand.nextGaussian() * 3));
+		}
+		for (int i = 0; i < 300; i++)
+		{
+			set.add(1000 + (rand.nextGaussian() * 10), rand.nextGaussian() * 10, 270 + (rand.nextGaussian() * 3));
+		}
+
+		List<PoseHypothesis> hypotheses = new ParticleClusterer(25, 10).cluster(set);
+		assertEquals(2, hypotheses.size());
+
+		PoseHypothesis first = hypotheses.get(0);
+		assertEquals(0.7, first.getWeight(), 0.000001);
+		assertEquals(700, first.getParticleCount());
+		assertEquals(0, first.getX(), 2);
+		assertEquals(0, first.getY(), 2);
+		assertEquals(90, first.getHeading(), 1);
+		assertEquals(100, first.getCovariance()[0][0], 20);
+		assertEquals(100, first.getCovariance()[1][1], 20);
+		assertEquals(9, first.getCovariance()[2][2], 2);
+
+		PoseHypothesis second = hypotheses.get(1);
+		assertEquals(0.3, second.getWeight(), 0.000001);
+		assertEquals(1000, second.getX(), 2);
+		assertEquals(270, second.getHeading(), 1);
+	}
+
+	@Test
+	public void testJoinsAcrossNorth()
+	{
+		Random rand = new Random(5);
+		ParticleSet set = new ParticleSet(500, 0, 0);
+		for (int i = 0; i < 500; i++)
+		{
+			set.add(rand.nextGaussian() * 5, rand.nextGaussian() * 5, rand.nextGaussian() * 4);
+		}
+
+		List<PoseHypothesis> hypotheses = new ParticleClusterer(25, 10).cluster(set);
+		assertEquals(1, hypotheses.size());
+		assertEquals(1, hypotheses.get(0).getWeight(), 0.000001);
+		assertEquals(0, HeadingHelper.getChangeInHeading(hypotheses.get(0).getHeading(), 0), 1);
+		assertEquals(16, hypotheses.get(0).getCovariance()[2][2], 4);
+	}
+}
@@ -0,0 +1,291 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.junit.Test;
+
+import au.com.rsutton.mapping.KitchenMapBuilder;
+import au.com.rsutton.mapping.probability.LikelihoodField;
+import au.com.rsutton.robot.lidar.LidarObservation;
+
+public class ParticleSetTest
+{
+
+	private ParticleUpdate update(final double distance, final double deltaHeading)
+	{
+		return new ParticleUpdate()
+		{
+
+			@Override
+			public double getMoveDistance()
+			{
+				return distance;
+			}
+
+			@Override
+			public double getDeltaHeading()
+			{
+				return deltaHeading;
+			}
+		};
+	}
+
+	private List<ScanObservation> createScan()
+	{
+		List<ScanObservation> observations = new ArrayList<>();
+		for (int angle = 0; angle < 360; angle++)
+		{
+			double radians = Math.toRadians(angle);
+			double distance = 100 + (angle % 50) * 4;
+			observations
+					.add(new LidarObservation(new Vector3D(Math.sin(radians) * distance, Math.cos(radians) * distance, 0)));
+		}
+		return observations;
+	}
+
+	@Test
+	public void testMoveAndScoreMatchParticle()
+	{
+		LikelihoodField map = LikelihoodField.build(KitchenMapBuilder.buildKitchenMap(), 5, 8, 25);
+		List<ScanObservation> observations = createScan();
+
+		Random rand = new Random(7);
+		ParticleSet set = new ParticleSet(10, 0, 0, 0);
+		List<Particle> particles = new ArrayList<>();
+		for (int i = 0; i < 50; i++)
+		{
+			double x = rand.nextInt(400) - 200;
+			double y = rand.nextInt(600) - 300;
+			double heading = rand.nextInt(360);
+			set.add(x, y, heading);
+			particles.add(new Particle(x, y, heading, 0, 0));
+		}
+
+		ParticleUpdate update = update(12, -20);
+		set.move(update);
+		set.score(map, observations);
+		for (int i = 0; i < particles.size(); i++)
+		{
+			Particle particle = particles.get(i);
+			particle.move(update);
+			particle.addObservation(map, observations, false);
+
+			assertEquals(particle.getX(), set.getX(i), 0.000001);
+			assertEquals(particle.getY(), set.getY(i), 0.000001);
+			assertEquals(particle.getHeading(), set.getHeading(i), 0.000001);
+			assertEquals(particle.getRating(), set.getRating(i), 0.000001);
+		}
+	}
+
+	@Test
+	public void testHeadingBinnedScoreMatchesExact()
+	{
+		LikelihoodField map = LikelihoodField.build(KitchenMapBuilder.buildKitchenMap(), 5, 8, 25);
+		List<ScanObservation> observations = createScan();
+
+		Random rand = new Random(13);
+		ParticleSet exact = new ParticleSet(10, 0, 0, 0);
+		ParticleSet binned = new ParticleSet(10, 0, 0, ParticleSet.DEFAULT_HEADING_BIN_SIZE);
+		for (int i = 0; i < 500; i++)
+		{
+			double x = rand.nextInt(400) - 200;
+			double y = rand.nextInt(600) - 300;
+			// a tracking cloud, with headings either side of 0 as happens
+			// when noise is added
+			double heading = rand.nextGaussian() * 5;
+			exact.add(x, y, heading);
+			binned.add(x, y, heading);
+		}
+
+		long exactTime = 0;
+		long binnedTime = 0;
+		for (int cycle = 0; cycle < 20; cycle++)
+		{
+			long start = System.nanoTime();
+			exact.score(map, observations);
+			exactTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			binned.score(map, observations);
+			binnedTime += System.nanoTime() - start;
+		}
+
+		for (int i = 0; i < exact.size(); i++)
+		{
+			// a quarter of a degree moves the furthest beam less than a cell
+			assertEquals(exact.getRating(i), binned.getRating(i), 0.02);
+		}
+		System.out.println("Scoring 500 particles, exact rotation " + (exactTime / 20000) + "us, heading bins "
+				+ (binnedTime / 20000) + "us");
+	}
+
+	@Test
+	public void testResampleSelectsRatedParticles()
+	{
+		LikelihoodField map = LikelihoodField.build(KitchenMapBuilder.buildKitchenMap(), 5, 8, 25);
+		List<ScanObservation> observations = createScan();
+
+		ParticleSet set = new ParticleSet(10, 0, 0);
+		// only the first particle can see anything in the map
+		set.add(0, 0, 0);
+		set.add(100000, 100000, 0);
+		set.add(-100000, 100000, 0);
+		set.score(map, observations);
+		assertTrue(set.getRating(0) > 0);
+		assertEquals(0, set.getRating(1), 0.0);
+
+		set.resample(new SystematicResampler(), 500);
+		assertEquals(500, set.size());
+		for (int i = 0; i < set.size(); i++)
+		{
+			assertEquals(0, set.getX(i), 0.0);
+			assertEquals(0, set.getY(i), 0.0);
+			assertEquals(0, set.getRating(i), 0.0);
+		}
+
+		set.resample(new SystematicResampler(), 20);
+		assertEquals(20, set.size());
+	}
+
+	@Test
+	public void testWeightsAccumulateUntilResampled()
+	{
+		LikelihoodField map = LikelihoodField.build(KitchenMapBuilder.buildKitchenMap(), 5, 8, 25);
+		List<ScanObservation> observations = createScan();
+
+		ParticleSet set = new ParticleSet(10, 0, 0);
+		set.add(0, 0, 0);
+		set.add(10, 10, 30);
+		set.setUniformWeights();
+		assertEquals(2, set.getEffectiveSampleSize(), 0.000001);
+
+		set.score(map, observations);
+		double first = set.getRating(0);
+		double second = set.getRating(1);
+		assertEquals(first / (first + second), set.getWeight(0), 0.000001);
+
+		set.score(map, observations);
+		double expected = (first * first) / ((first * first) + (second * second));
+		assertEquals(expected, set.getWeight(0), 0.000001);
+		assertEquals(1 / ((expected * expected) + ((1 - expected) * (1 - expected))), set.getEffectiveSampleSize(),
+				0.000001);
+
+		set.resample(new SystematicResampler(), 4);
+		assertEquals(4, set.getEffectiveSampleSize(), 0.000001);
+	}
+
+	@Test
+	public void testVisitIsUnaffectedByResampling()
+	{
+		ParticleSet set = new ParticleSet(10, 1, 1);
+		for (int i = 0; i < 10; i++)
+		{
+			set.add(i, i, 0);
+		}
+		set.setUniformWeights();
+
+		List<Double> visited = new ArrayList<>();
+		set.visit((x, y, heading, rating) -> {
+			if (visited.isEmpty())
+			{
+				// as if the filter resampled, growing the set, while a slow
+				// reader was part way through
+				set.resample(new SystematicResampler(), 10);
+				set.resample(new SystematicResampler(), 100);
+				set.resample(new SystematicResampler(), 1000);
+			}
+			visited.add(x);
+			assertEquals(x, y, 0.0);
+		});
+
+		assertEquals(10, visited.size());
+		for (int i = 0; i < 10; i++)
+		{
+			assertEquals(i, visited.get(i), 0.0);
+		}
+		assertEquals(1000, set.size());
+	}
+
+	@Test
+	public void testSeededSetsAreReproducible()
+	{
+		LikelihoodField map = LikelihoodField.build(KitchenMapBuilder.buildKitchenMap(), 5, 8, 25);
+		List<ScanObservation> observations = createScan();
+
+		ParticleSet first = new ParticleSet(10, 1, 1, ParticleSet.DEFAULT_HEADING_BIN_SIZE, new RandomStream(42));
+		ParticleSet second = new ParticleSet(10, 1, 1, ParticleSet.DEFAULT_HEADING_BIN_SIZE, new RandomStream(42));
+		// several noise blocks, moved in parallel
+		for (int i = 0; i < 3000; i++)
+		{
+			first.add(0, 0, 0);
+			second.add(0, 0, 0);
+		}
+
+		for (int cycle = 0; cycle < 10; cycle++)
+		{
+			for (ParticleSet set : new ParticleSet[] { first, second })
+			{
+				set.move(update(5, 3));
+				set.score(map, observations);
+				set.resample(new SystematicResampler(), 2000 + (cycle * 100));
+			}
+		}
+
+		assertEquals(first.size(), second.size());
+		for (int i = 0; i < first.size(); i++)
+		{
+			assertEquals(first.getX(i), second.getX(i), 0.0);
+			assertEquals(first.getY(i), second.getY(i), 0.0);
+			assertEquals(first.getHeading(i), second.getHeading(i), 0.0);
+			assertEquals(first.getWeight(i), second.getWeight(i), 0.0);
+		}
+	}
+
+	@Test
+	public void benchmarkUpdate()
+	{
+		LikelihoodField map = LikelihoodField.build(KitchenMapBuilder.buildKitchenMap(), 5, 8, 25);
+		List<ScanObservation> observations = createScan();
+		ParticleUpdate update = update(2, 1);
+
+		ParticleSet set = new ParticleSet(1000, 1, 1);
+		List<Particle> particles = new ArrayList<>();
+		for (int i = 0; i < 1000; i++)
+		{
+			set.add(0, 0, 0);
+			particles.add(new Particle(0, 0, 0, 1, 1));
+		}
+
+		long setTime = 0;
+		long particleTime = 0;
+		for (int cycle = 0; cycle < 40; cycle++)
+		{
+			long start = System.nanoTime();
+			set.move(update);
+			set.score(map, observations);
+			set.resample(new SystematicResampler(), 1000);
+			setTime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			List<Particle> moved = new ArrayList<>();
+			particles.parallelStream().forEach(particle -> {
+				particle.move(update);
+				particle.addObservation(map, observations, false);
+			});
+			for (Particle particle : particles)
+			{
+				moved.add(new Particle(particle));
+			}
+			particles = moved;
+			particleTime += System.nanoTime() - start;
+		}
+		System.out.println("1000 particles x 360 beams, Particle objects " + (particleTime / 40000) + "us, ParticleSet "
+				+ (setTime / 40000) + "us");
+	}
+}
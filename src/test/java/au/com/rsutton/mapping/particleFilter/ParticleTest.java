@@ -1,7 +1,10 @@
 package au.com.rsutton.mapping.particleFilter;
 
+import static org.junit.Assert.assertEquals;
+
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.commons.math3.geometry.euclidean.threed.Rotation;
 import org.apache.commons.math3.geometry.euclidean.threed.RotationOrder;
@@ -9,6 +12,7 @@ import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import org.junit.Test;
 
 import au.com.rsutton.mapping.KitchenMapBuilder;
+import au.com.rsutton.mapping.probability.ProbabilityMap;
 import au.com.rsutton.mapping.probability.ProbabilityMapIIFc;
 import au.com.rsutton.navigation.router.ExpansionPoint;
 import au.com.rsutton.navigation.router.RouteOption;
@@ -18,6 +22,36 @@ import au.com.rsutton.robot.lidar.LidarObservation;
 public class ParticleTest
 {
 
+	@Test
+	public void testSimulateObservationWithPyramid()
+	{
+		ProbabilityMap map = KitchenMapBuilder.buildKitchenMap();
+		ProbabilityMap pyramidMap = KitchenMapBuilder.buildKitchenMap();
+		pyramidMap.createPyramid(ProbabilityMap.DEFAULT_PYRAMID_LEVELS);
+
+		Random rand = new Random(3);
+		long plainTime = 0;
+		long pyramidTime = 0;
+		for (int i = 0; i < 200; i++)
+		{
+			Particle particle = new Particle(rand.nextInt(800) - 400, rand.nextInt(1000) - 500, rand.nextInt(360), 0,
+					0);
+			for (int angle = 0; angle < 360; angle += 7)
+			{
+				long start = System.nanoTime();
+				double expected = particle.simulateObservation(map, angle, 1000, 0.75);
+				plainTime += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				double actual = particle.simulateObservation(pyramidMap, angle, 1000, 0.75);
+				pyramidTime += System.nanoTime() - start;
+
+				assertEquals(expected, actual, 0.0);
+			}
+		}
+		System.out.println("Ray casts " + (plainTime / 1000) + "us, with pyramid " + (pyramidTime / 1000) + "us");
+	}
+
 	@Test
 	public void test()
 	{
@@ -0,0 +1,67 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import au.com.rsutton.entryPoint.controllers.HeadingHelper;
+import au.com.rsutton.mapping.KitchenMapBuilder;
+import au.com.rsutton.mapping.probability.LikelihoodField;
+import au.com.rsutton.mapping.probability.ProbabilityMap;
+
+public class PoseRefinerTest
+{
+
+	@Test
+	public void testConvergesFromNearbyPose()
+	{
+		ProbabilityMap world = KitchenMapBuilder.buildKitchenMap();
+		LikelihoodField field = LikelihoodField.build(world, 5, 8, 25);
+		PoseRefiner refiner = new PoseRefiner(field, 20);
+
+		double[][] poses = { { -100, 100, 0 }, { 50, -200, 135 }, { -150, 300, 270 } };
+		for (double[] pose : poses)
+		{
+			List<ScanObservation> scan = ScanSimulator.simulateScan(world, pose[0], pose[1], pose[2]);
+			Pose start = new Pose(pose[0] + 9, pose[1] - 7, pose[2] + 3);
+
+			PoseRefiner.Result result = refiner.refine(start, scan);
+			assertNotNull(result);
+			Pose refined = result.getPose();
+
+			double refinedError = Math.hypot(refined.getX() - pose[0], refined.getY() - pose[1]);
+			System.out.println("Refined error " + refinedError + "cm in " + result.getIterations()
+					+ " iterations, heading " + refined.getHeading());
+			// started 11cm away
+			assertTrue(refinedError < 2);
+			assertEquals(0, HeadingHelper.getChangeInHeading(refined.getHeading(), pose[2]), 1);
+
+			double[][] covariance = result.getCovariance();
+			for (int i = 0; i < 3; i++)
+			{
+				assertTrue(covariance[i][i] > 0);
+			}
+		}
+	}
+
+	@Test
+	public void testInterpolatedGradient()
+	{
+		LikelihoodField field = LikelihoodField.build(KitchenMapBuilder.buildKitchenMap(), 5, 8, 25);
+		double[] gradient = new double[2];
+		double[] ignored = new double[2];
+		for (double x = -130; x < -110; x += 1.3)
+		{
+			double y = 100.7;
+			field.interpolate(x, y, gradient);
+			double dx = (field.interpolate(x + 0.01, y, ignored) - field.interpolate(x - 0.01, y, ignored)) / 0.02;
+			double dy = (field.interpolate(x, y + 0.01, ignored) - field.interpolate(x, y - 0.01, ignored)) / 0.02;
+			assertEquals(dx, gradient[0], 0.001);
+			assertEquals(dy, gradient[1], 0.001);
+		}
+	}
+}
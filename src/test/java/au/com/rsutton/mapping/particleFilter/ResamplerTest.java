@@ -0,0 +1,116 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+import org.junit.Test;
+
+public class ResamplerTest
+{
+
+	private double[] createWeights(RandomStream rand, int size)
+	{
+		double[] weights = new double[size];
+		double total = 0;
+		for (int i = 0; i < size; i++)
+		{
+			// mostly small weights with a few dominant particles
+			weights[i] = rand.nextInt(10) == 0 ? rand.nextDouble() * 50 : rand.nextDouble();
+			total += weights[i];
+		}
+		for (int i = 0; i < size; i++)
+		{
+			weights[i] /= total;
+		}
+		return weights;
+	}
+
+	private int[] countCopies(Resampler resampler, double[] weights, int count, RandomStream rand)
+	{
+		int[] selected = new int[count];
+		resampler.select(weights, weights.length, selected, count, rand);
+		int[] copies = new int[weights.length];
+		for (int i = 0; i < count; i++)
+		{
+			if (i > 0)
+			{
+				assertTrue(selected[i] >= selected[i - 1]);
+			}
+			copies[selected[i]]++;
+		}
+		return copies;
+	}
+
+	@Test
+	public void testLowVarianceResamplers()
+	{
+		RandomStream rand = new RandomStream(11);
+		for (Resampler resampler : new Resampler[] { new SystematicResampler(), new ResidualResampler() })
+		{
+			for (int trial = 0; trial < 50; trial++)
+			{
+				double[] weights = createWeights(rand, 1 + rand.nextInt(300));
+				int count = 1 + rand.nextInt(1500);
+				int[] copies = countCopies(resampler, weights, count, rand);
+
+				int total = 0;
+				for (int i = 0; i < weights.length; i++)
+				{
+					double expected = weights[i] * count;
+					// systematic copies are within 1 of the expected count,
+					// residual copies are at least the floor of it
+					assertTrue(resampler.getClass().getSimpleName() + " " + copies[i] + " " + expected,
+							copies[i] >= Math.floor(expected) - 0.000001 && copies[i] <= Math.ceil(expected) + 1);
+					total += copies[i];
+				}
+				assertEquals(count, total);
+			}
+		}
+	}
+
+	@Test
+	public void testResamplersAreUnbiased()
+	{
+		RandomStream rand = new RandomStream(5);
+		double[] weights = createWeights(rand, 20);
+		int count = 100;
+		int trials = 2000;
+		for (Resampler resampler : new Resampler[] { new SystematicResampler(), new StratifiedResampler(),
+				new ResidualResampler() })
+		{
+			double[] totals = new double[weights.length];
+			for (int trial = 0; trial < trials; trial++)
+			{
+				int[] copies = countCopies(resampler, weights, count, rand);
+				for (int i = 0; i < weights.length; i++)
+				{
+					totals[i] += copies[i];
+				}
+			}
+			for (int i = 0; i < weights.length; i++)
+			{
+				assertEquals(resampler.getClass().getSimpleName(), weights[i] * count, totals[i] / trials, 0.1);
+			}
+		}
+	}
+
+	@Test
+	public void benchmarkResample()
+	{
+		RandomStream rand = new RandomStream(3);
+		double[] weights = createWeights(rand, 5000);
+		int[] selected = new int[5000];
+		for (Resampler resampler : new Resampler[] { new SystematicResampler(), new StratifiedResampler(),
+				new ResidualResampler() })
+		{
+			long start = System.nanoTime();
+			for (int i = 0; i < 1000; i++)
+			{
+				resampler.select(weights, weights.length, selected, selected.length, rand);
+			}
+			System.out.println(resampler.getClass().getSimpleName() + " 5000 particles "
+					+ ((System.nanoTime() - start) / 1000000) + "us");
+		}
+	}
+}
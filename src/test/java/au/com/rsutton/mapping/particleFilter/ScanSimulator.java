@@ -0,0 +1,55 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+
+import au.com.rsutton.mapping.probability.ProbabilityMapReader;
+import au.com.rsutton.robot.lidar.LidarObservation;
+
+/**
+ * Ray casts the scan a robot would see from a pose in a map, for tests
+ */
+public class ScanSimulator
+{
+
+	private static final double MAX_RANGE = 1000;
+	private static final double OCCUPANCY_THRESHOLD = 0.5;
+
+	private ScanSimulator()
+	{
+	}
+
+	/**
+	 * a beam every degree
+	 */
+	public static List<ScanObservation> simulateScan(ProbabilityMapReader world, double x, double y, double heading)
+	{
+		return simulateScan(world, x, y, heading, 1);
+	}
+
+	/**
+	 *
+	 * @param angleStep
+	 *            in degrees between beams
+	 * @return the beams that hit something within range, in the robot's frame
+	 */
+	public static List<ScanObservation> simulateScan(ProbabilityMapReader world, double x, double y, double heading,
+			int angleStep)
+	{
+		Particle particle = new Particle(x, y, heading, 0, 0);
+		List<ScanObservation> scan = new ArrayList<>();
+		for (int angle = 0; angle < 360; angle += angleStep)
+		{
+			double distance = particle.simulateObservation(world, angle, MAX_RANGE, OCCUPANCY_THRESHOLD);
+			if (distance < MAX_RANGE)
+			{
+				double radians = Math.toRadians(angle);
+				scan.add(new LidarObservation(new Vector3D(-Math.sin(radians) * distance,
+						Math.cos(radians) * distance, 0)));
+			}
+		}
+		return scan;
+	}
+}
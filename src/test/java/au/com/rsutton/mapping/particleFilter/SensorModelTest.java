@@ -0,0 +1,102 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import au.com.rsutton.mapping.KitchenMapBuilder;
+import au.com.rsutton.mapping.probability.LikelihoodField;
+import au.com.rsutton.mapping.probability.ProbabilityMap;
+
+public class SensorModelTest
+{
+
+	private final ProbabilityMap world = KitchenMapBuilder.buildKitchenMap();
+	private final LikelihoodField field = LikelihoodField.build(world, 5, 8, 25);
+
+	private List<SensorModel> createModels()
+	{
+		List<SensorModel> models = new ArrayList<>();
+		models.add(new EndpointSensorModel(field, ParticleSet.DEFAULT_HEADING_BIN_SIZE));
+		models.add(new LikelihoodFieldSensorModel(field, 0.9, 0.1, 1000, ParticleSet.DEFAULT_HEADING_BIN_SIZE));
+		world.createPyramid(6);
+		models.add(new BeamSensorModel(world, 1000, 0.5, 10, 0.9, 0.1, 4));
+		return models;
+	}
+
+	@Test
+	public void testTruePoseRatesBest()
+	{
+		List<ScanObservation> observations = ScanSimulator.simulateScan(world, -100, 100, 30);
+		Scan scan = new Scan(observations);
+
+		ParticleSet set = new ParticleSet(10, 0, 0);
+		set.add(-100, 100, 30);
+		set.add(-80, 100, 30);
+		set.add(-100, 115, 30);
+		set.add(-100, 100, 40);
+		// the other side of a wall
+		set.add(-100, 200, 30);
+
+		for (SensorModel model : createModels())
+		{
+			double[] ratings = new double[set.size()];
+			model.score(set, scan, ratings);
+			assertEquals(model.getClass().getSimpleName(), 1, ratings[0], 0.1);
+			for (int i = 1; i < ratings.length; i++)
+			{
+				assertTrue(model.getClass().getSimpleName() + " " + i, ratings[i] < ratings[0]);
+				assertTrue(ratings[i] >= 0);
+			}
+		}
+	}
+
+	@Test
+	public void testScoreUpdatesWeights()
+	{
+		List<ScanObservation> observations = ScanSimulator.simulateScan(world, -100, 100, 30);
+
+		ParticleSet set = new ParticleSet(10, 0, 0);
+		set.add(-100, 100, 30);
+		set.add(-80, 100, 30);
+		SensorModel model = new LikelihoodFieldSensorModel(field, 0.9, 0.1, 1000, 0);
+		set.score(model, observations);
+
+		double first = set.getRating(0);
+		double second = set.getRating(1);
+		assertEquals(first / (first + second), set.getWeight(0), 0.000001);
+	}
+
+	@Test
+	public void benchmarkModels()
+	{
+		List<ScanObservation> observations = ScanSimulator.simulateScan(world, -100, 100, 30);
+		Scan scan = new Scan(observations);
+
+		Random rand = new Random(11);
+		ParticleSet set = new ParticleSet(1000, 0, 0);
+		for (int i = 0; i < 1000; i++)
+		{
+			set.add(-100 + (rand.nextGaussian() * 20), 100 + (rand.nextGaussian() * 20), 30 + (rand.nextGaussian() * 5));
+		}
+		double[] ratings = new double[set.size()];
+
+		for (SensorModel model : createModels())
+		{
+			// warm up
+			model.score(set, scan, ratings);
+			long start = System.nanoTime();
+			for (int cycle = 0; cycle < 5; cycle++)
+			{
+				model.score(set, scan, ratings);
+			}
+			System.out.println("1000 particles x " + observations.size() + " beams, "
+					+ model.getClass().getSimpleName() + " " + ((System.nanoTime() - start) / 5000) + "us");
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import au.com.rsutton.mapping.KitchenMapBuilder;
+import au.com.rsutton.mapping.LoopMapBuilder;
+import au.com.rsutton.mapping.probability.LikelihoodField;
+import au.com.rsutton.mapping.probability.ProbabilityMap;
+
+public class SubMapLocalizerTest
+{
+
+	@Test
+	public void testPicksTheSubMapTheScanFits()
+	{
+		ProbabilityMap kitchen = KitchenMapBuilder.buildKitchenMap();
+		LikelihoodField kitchenField = ParticleFilterImpl.buildMatchingMap(kitchen);
+		LikelihoodField loopField = ParticleFilterImpl.buildMatchingMap(LoopMapBuilder.buildKitchenMap());
+		List<ScanObservation> scan = ScanSimulator.simulateScan(kitchen, -100, 100, 30);
+
+		List<SubMapLocalizer.Candidate<String>> candidates = new ArrayList<>();
+		candidates.add(new SubMapLocalizer.Candidate<>("loop", loopField, new Pose(-100, 100, 30)));
+		candidates.add(new SubMapLocalizer.Candidate<>("kitchen", kitchenField, new Pose(-92, 106, 33)));
+		// the same sub map, but predicted somewhere else
+		candidates.add(new SubMapLocalizer.Candidate<>("kitchen elsewhere", kitchenField, new Pose(50, -200, 135)));
+
+		ForkJoinPool pool = new ForkJoinPool(3);
+		List<SubMapLocalizer.Match<String>> matches = new SubMapLocalizer<String>(pool, 10).localize(candidates,
+				scan);
+		pool.shutdown();
+
+		assertTrue(matches.size() > 1);
+		SubMapLocalizer.Match<String> best = matches.get(0);
+		assertEquals("kitchen", best.getSubMap());
+		assertEquals(-100, best.getPose().getX(), 2);
+		assertEquals(100, best.getPose().getY(), 2);
+		assertEquals(-92, best.getPredictedPose().getX(), 0.0);
+		for (int i = 1; i < matches.size(); i++)
+		{
+			assertTrue(matches.get(i).getScore() <= best.getScore());
+		}
+		System.out.println(matches);
+	}
+}
@@ -0,0 +1,163 @@
+package au.com.rsutton.mapping.particleFilter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.DoubleBinaryOperator;
+
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.junit.Test;
+
+import au.com.rsutton.mapping.probability.MapPyramid;
+import au.com.rsutton.mapping.probability.ProbabilityMapReader;
+import au.com.rsutton.robot.lidar.LidarObservation;
+import au.com.rsutton.units.Angle;
+
+public class TrajectoryTreeTest
+{
+
+	private final List<ScanObservation> scan = Collections
+			.singletonList(new LidarObservation(new Vector3D(0, 10, 0)));
+
+	private ProbabilityMapReader createMap(final DoubleBinaryOperator values)
+	{
+		return new ProbabilityMapReader()
+		{
+
+			@Override
+			public double get(double x, double y)
+			{
+				return values.applyAsDouble(x, y);
+			}
+
+			@Override
+			public int getBlockSize()
+			{
+				return 1;
+			}
+
+			@Override
+			public int getMaxX()
+			{
+				return 0;
+			}
+
+			@Override
+			public int getMinX()
+			{
+				return 0;
+			}
+
+			@Override
+			public int getMaxY()
+			{
+				return 0;
+			}
+
+			@Override
+			public int getMinY()
+			{
+				return 0;
+			}
+
+			@Override
+			public MapPyramid getPyramid()
+			{
+				return null;
+			}
+		};
+	}
+
+	private ParticleFilterObservationSet createObservationSet()
+	{
+		return new ParticleFilterObservationSet()
+		{
+
+			@Override
+			public List<ScanObservation> getObservations()
+			{
+				return scan;
+			}
+
+			@Override
+			public Angle getDeadReaconingHeading()
+			{
+				return null;
+			}
+		};
+	}
+
+	@Test
+	public void testCopiesShareHistory()
+	{
+		ParticleSet set = new ParticleSet(10, 0, 0);
+		set.add(0, 0, 0);
+		set.add(100, 0, 0);
+
+		ParticleFilterObservationSet first = createObservationSet();
+		ParticleFilterObservationSet second = createObservationSet();
+		set.addScanReference(first);
+		set.addScanReference(second);
+		assertEquals(4, set.getTrajectoryNodeCount());
+
+		// only the second particle survives
+		set.score(createMap((x, y) -> x > 50 ? 1 : 0), scan);
+		set.resample(new SystematicResampler(), 5);
+
+		// the first particle's history has been pruned, and the survivors'
+		// shared first scan collapsed into the trunk
+		assertEquals(1, set.getTrajectoryNodeCount());
+		assertEquals(1, set.getTrajectoryTrunkLength());
+		for (int i = 0; i < set.size(); i++)
+		{
+			List<ScanReference> references = set.getScanReferences(i);
+			assertEquals(2, references.size());
+			assertSame(first, references.get(0).getScan());
+			assertSame(second, references.get(1).getScan());
+			assertEquals(100, references.get(0).getScanOrigin().getX(), 0.0);
+		}
+
+		set.resampleAll();
+		assertEquals(1, set.getTrajectoryNodeCount());
+		assertEquals(2, set.getScanReferences(4).size());
+
+		set.clear();
+		assertEquals(0, set.getTrajectoryNodeCount());
+		assertEquals(0, set.getTrajectoryTrunkLength());
+	}
+
+	@Test
+	public void testMemoryStaysFlat()
+	{
+		Random rand = new Random(21);
+		int particles = 500;
+		ParticleSet set = new ParticleSet(particles, 0, 0);
+		for (int i = 0; i < particles; i++)
+		{
+			set.add(i, 0, 0);
+		}
+
+		// a few particles carry most of the weight, as is usual
+		ProbabilityMapReader map = createMap((x, y) -> rand.nextInt(20) == 0 ? 1 : 0.01);
+		ParticleFilterObservationSet observations = createObservationSet();
+		int maxNodes = 0;
+		int scans = 2000;
+		for (int s = 0; s < scans; s++)
+		{
+			set.addScanReference(observations);
+			set.score(map, scan);
+			set.resample(new SystematicResampler(), particles);
+			maxNodes = Math.max(maxNodes, set.getTrajectoryNodeCount());
+		}
+
+		assertEquals(scans, set.getScanReferences(0).size());
+		// the shared history is collapsed into the trunk, leaving only the
+		// recent branches in the tree
+		assertTrue("" + maxNodes, maxNodes < particles * 10);
+		assertTrue(set.getTrajectoryTrunkLength() > scans / 2);
+	}
+}
@@ -0,0 +1,100 @@
+package au.com.rsutton.mapping.probability;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConcurrentProbabilityMapTest
+{
+
+	@Test
+	public void testSnapshotIsUnchangedByLaterWrites()
+	{
+		ConcurrentProbabilityMap world = new ConcurrentProbabilityMap(5, 4);
+		world.updatePoint(100, 100, Occupancy.OCCUPIED, 1.0, 0);
+
+		ProbabilityMapSnapshot snapshot = world.snapshot();
+
+		world.updatePoint(100, 100, Occupancy.VACANT, 1.0, 0);
+		world.updatePoint(-500, 20, Occupancy.OCCUPIED, 1.0, 0);
+
+		assertEquals(1.0, snapshot.get(100, 100), 0.0);
+		assertEquals(0.5, snapshot.get(-500, 20), 0.0);
+		assertEquals(1.0, snapshot.getPyramid().getMax(3, 20 >> 3, 20 >> 3), 0.0);
+		assertEquals(100, snapshot.getMaxX());
+
+		assertEquals(0.0, world.get(100, 100), 0.0);
+		assertEquals(1.0, world.get(-500, 20), 0.0);
+		assertEquals(-500, world.getMinX());
+		assertTrue(world.getVersion() > snapshot.getVersion());
+	}
+
+	@Test
+	public void testReadersNeverSeeAPartialUpdate() throws InterruptedException
+	{
+		ConcurrentProbabilityMap world = new ConcurrentProbabilityMap(5);
+		AtomicBoolean done = new AtomicBoolean();
+		AtomicInteger inconsistent = new AtomicInteger();
+
+		Thread reader = new Thread(() -> {
+			while (!done.get())
+			{
+				ProbabilityMapSnapshot snapshot = world.snapshot();
+				// every update changes both ends of the line together
+				if (snapshot.get(0, 0) != snapshot.get(1000, 1000))
+				{
+					inconsistent.incrementAndGet();
+				}
+			}
+		});
+		reader.start();
+
+		for (int i = 0; i < 2000; i++)
+		{
+			Occupancy occupancy = i % 2 == 0 ? Occupancy.OCCUPIED : Occupancy.VACANT;
+			world.update(map -> {
+				map.resetPoint(0, 0);
+				map.updatePoint(0, 0, occupancy, 1.0, 0);
+				map.resetPoint(1000, 1000);
+				map.updatePoint(1000, 1000, occupancy, 1.0, 0);
+			});
+		}
+		done.set(true);
+		reader.join();
+
+		assertEquals(0, inconsistent.get());
+	}
+
+	@Test
+	public void testVisitMatchesProbabilityMap()
+	{
+		ProbabilityMapIIFc expected = new ProbabilityMap(5);
+		ConcurrentProbabilityMap world = new ConcurrentProbabilityMap(5);
+		for (ProbabilityMapIIFc map : new ProbabilityMapIIFc[] { expected, world })
+		{
+			map.drawLine(-100, -50, 200, 80, Occupancy.OCCUPIED, 0.8, 2);
+			map.drawLine(-300, 0, 0, 300, Occupancy.VACANT, 0.6, 2);
+		}
+
+		AtomicInteger expectedCount = new AtomicInteger();
+		expected.visitOccupied((x, y, value) -> expectedCount.incrementAndGet());
+		expected.visitVacant((x, y, value) -> expectedCount.incrementAndGet());
+
+		AtomicInteger count = new AtomicInteger();
+		world.visitOccupied((x, y, value) -> {
+			count.incrementAndGet();
+			assertEquals(expected.get(x, y), value, 0.0);
+			assertTrue(value > 0.5);
+		});
+		world.visitVacant((x, y, value) -> {
+			count.incrementAndGet();
+			assertEquals(expected.get(x, y), value, 0.0);
+			assertTrue(value < 0.5);
+		});
+		assertEquals(expectedCount.get(), count.get());
+	}
+}
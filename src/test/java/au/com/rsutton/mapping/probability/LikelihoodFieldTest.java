@@ -0,0 +1,96 @@
+package au.com.rsutton.mapping.probability;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+
+import au.com.rsutton.mapping.KitchenMapBuilder;
+
+public class LikelihoodFieldTest
+{
+
+	@Test
+	public void testDistanceTransformMatchesBruteForce()
+	{
+		int width = 37;
+		int height = 23;
+		Random rand = new Random(7);
+
+		double[] grid = new double[width * height];
+		Arrays.fill(grid, 1e20);
+		for (int i = 0; i < 12; i++)
+		{
+			grid[rand.nextInt(grid.length)] = 0;
+		}
+		double[] seeds = grid.clone();
+
+		LikelihoodField.squaredDistanceTransform(grid, width, height);
+
+		for (int y = 0; y < height; y++)
+		{
+			for (int x = 0; x < width; x++)
+			{
+				double best = Double.MAX_VALUE;
+				for (int i = 0; i < seeds.length; i++)
+				{
+					if (seeds[i] == 0)
+					{
+						int dx = x - (i % width);
+						int dy = y - (i / width);
+						best = Math.min(best, (dx * dx) + (dy * dy));
+					}
+				}
+				assertEquals("at " + x + "," + y, best, grid[(y * width) + x], 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testScore()
+	{
+		ProbabilityMapIIFc world = new ProbabilityMap(5);
+		world.updatePoint(100, 100, Occupancy.OCCUPIED, 1.0, 0);
+
+		LikelihoodField field = LikelihoodField.build(world, 5, 8, 25);
+
+		assertEquals(1.0, field.get(100, 100), 0.0);
+		assertEquals(Math.exp(-0.5 * 100 / 64), field.get(110, 100), 0.0001);
+		assertEquals(0, field.get(130, 100), 0.0);
+		assertEquals(0, field.get(-1000, 100), 0.0);
+	}
+
+	@Test
+	public void testEmptyMap()
+	{
+		LikelihoodField field = LikelihoodField.build(new ProbabilityMap(5), 5, 8, 25);
+		assertEquals(0, field.get(0, 0), 0.0);
+	}
+
+	@Test
+	public void benchmarkBuild()
+	{
+		ProbabilityMapIIFc world = KitchenMapBuilder.buildKitchenMap();
+
+		// warm up
+		LikelihoodField.build(world, 5, 8, 25);
+
+		int iterations = 10;
+		Stopwatch timer = Stopwatch.createStarted();
+		LikelihoodField field = null;
+		for (int i = 0; i < iterations; i++)
+		{
+			field = LikelihoodField.build(world, 5, 8, 25);
+		}
+		long elapsed = timer.elapsed(TimeUnit.MICROSECONDS) / iterations;
+		System.out.println("Likelihood field build " + elapsed + "us");
+
+		assertTrue(field.getMaxX() > field.getMinX());
+	}
+}
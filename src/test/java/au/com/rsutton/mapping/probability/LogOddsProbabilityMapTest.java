@@ -0,0 +1,79 @@
+package au.com.rsutton.mapping.probability;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class LogOddsProbabilityMapTest
+{
+
+	@Test
+	public void testFirstUpdateMatchesProbabilityMap()
+	{
+		for (double certainty = 0; certainty < 1.0; certainty += 0.05)
+		{
+			ProbabilityMapIIFc expected = new ProbabilityMap(5);
+			ProbabilityMapIIFc world = new LogOddsProbabilityMap(5);
+
+			expected.updatePoint(10, 10, Occupancy.OCCUPIED, certainty, 2);
+			world.updatePoint(10, 10, Occupancy.OCCUPIED, certainty, 2);
+			assertEquals(expected.get(10, 10), world.get(10, 10), 0.005);
+
+			expected.updatePoint(-10, -10, Occupancy.VACANT, certainty, 2);
+			world.updatePoint(-10, -10, Occupancy.VACANT, certainty, 2);
+			assertEquals(expected.get(-10, -10), world.get(-10, -10), 0.005);
+		}
+	}
+
+	@Test
+	public void testClamp()
+	{
+		ProbabilityMapIIFc world = new LogOddsProbabilityMap(5);
+
+		assertEquals(0.5, world.get(1, 1), 0.0);
+
+		for (int i = 0; i < 20; i++)
+		{
+			world.updatePoint(1, 1, Occupancy.OCCUPIED, 1.0, 2);
+		}
+		assertTrue(world.get(1, 1) > 0.999);
+		assertTrue(world.get(1, 1) < 1.0);
+
+		// a few misses should be enough to clear a saturated cell
+		for (int i = 0; i < 3; i++)
+		{
+			world.updatePoint(1, 1, Occupancy.VACANT, 0.9, 2);
+		}
+		assertTrue(world.get(1, 1) < 0.5);
+
+		world.resetPoint(1, 1);
+		assertEquals(0.5, world.get(1, 1), 0.0);
+	}
+
+	@Test
+	public void testGausianSpread()
+	{
+		ProbabilityMapIIFc world = new LogOddsProbabilityMap(5);
+		world.updatePoint(50, 50, Occupancy.OCCUPIED, 0.75, 5);
+
+		assertTrue(world.get(50, 50) > world.get(55, 50));
+		assertTrue(world.get(55, 50) > world.get(55, 55));
+		assertTrue(world.get(55, 55) > 0.5);
+		assertEquals(0.5, world.get(60, 50), 0.0);
+	}
+
+	@Test
+	public void drawWorld()
+	{
+		ProbabilityMapIIFc world = new LogOddsProbabilityMap(10);
+		world.drawLine(0, 0, 0, 89, Occupancy.OCCUPIED, 1.0, 2);
+		world.drawLine(0, 0, -141, 0, Occupancy.OCCUPIED, 1.0, 2);
+		world.drawLine(-141, 0, -141, 42, Occupancy.OCCUPIED, 1.0, 2);
+		world.drawLine(-141, 42, -266, 42, Occupancy.OCCUPIED, 1.0, 2);
+
+		world.dumpTextWorld();
+
+		assertTrue(world.getOccupiedPoints().size() > 0);
+	}
+}
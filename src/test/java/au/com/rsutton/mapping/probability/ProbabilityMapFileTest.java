@@ -0,0 +1,108 @@
+package au.com.rsutton.mapping.probability;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.base.Stopwatch;
+
+import au.com.rsutton.mapping.KitchenMapBuilder;
+import au.com.rsutton.mapping.array.MappedDoubleSparseArray;
+
+public class ProbabilityMapFileTest
+{
+
+	@Test
+	public void testSaveAndLoad() throws IOException
+	{
+		ProbabilityMap map = KitchenMapBuilder.buildKitchenMap();
+		map.updatePoint(-1000, -1000, Occupancy.VACANT, 0.7, 0);
+
+		File file = File.createTempFile("probabilityMap", ".map");
+		file.deleteOnExit();
+		ProbabilityMapFile.save(map, file);
+
+		Stopwatch timer = Stopwatch.createStarted();
+		ProbabilityMap loaded = ProbabilityMapFile.load(file);
+		System.out.println("Loaded " + file.length() + " bytes in " + timer.elapsed(TimeUnit.MICROSECONDS) + "us");
+
+		MappedDoubleSparseArray cells = (MappedDoubleSparseArray) loaded.getCells();
+		assertEquals(0, cells.getLoadedTileCount());
+
+		assertEquals(map.getBlockSize(), loaded.getBlockSize());
+		assertEquals(map.getMinX(), loaded.getMinX());
+		assertEquals(map.getMinY(), loaded.getMinY());
+		assertEquals(map.getMaxX(), loaded.getMaxX());
+		assertEquals(map.getMaxY(), loaded.getMaxY());
+		assertEquals(map.getFeatures(), loaded.getFeatures());
+		assertEquals(map.getVersion() > 0, loaded.getVersion() > 0);
+
+		assertEquals(0.15, loaded.get(-1000, -1000), 0.0001);
+		assertEquals(1, cells.getLoadedTileCount());
+
+		for (int x = map.getMinX() - 20; x < map.getMaxX() + 20; x++)
+		{
+			for (int y = map.getMinY() - 20; y < map.getMaxY() + 20; y++)
+			{
+				assertEquals(map.get(x, y), loaded.get(x, y), 0.0);
+			}
+		}
+
+		assertEquals(countCells(map), countCells(loaded));
+
+		// a loaded map can still be updated
+		loaded.updatePoint(5000, 5000, Occupancy.OCCUPIED, 1.0, 0);
+		loaded.updatePoint(-5000, 5000, Occupancy.OCCUPIED, 1.0, 0);
+		assertEquals(1.0, loaded.get(5000, 5000), 0.0);
+		assertEquals(1.0, loaded.get(-5000, 5000), 0.0);
+		assertEquals(5000, loaded.getMaxX());
+		assertEquals(countCells(map) + 2, countCells(loaded));
+	}
+
+	@Test
+	public void testReadConsecutiveMaps() throws IOException
+	{
+		ProbabilityMap first = new ProbabilityMap(5);
+		first.drawLine(0, 0, 100, 0, Occupancy.OCCUPIED, 1.0, 0);
+		ProbabilityMap second = new ProbabilityMap(10);
+		second.drawLine(0, 0, 0, -300, Occupancy.VACANT, 1.0, 0);
+		ProbabilityMap empty = new ProbabilityMap(5);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (DataOutputStream out = new DataOutputStream(bytes))
+		{
+			ProbabilityMapFile.write(first, out);
+			ProbabilityMapFile.write(second, out);
+			ProbabilityMapFile.write(empty, out);
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+		ProbabilityMap firstLoaded = ProbabilityMapFile.read(buffer);
+		ProbabilityMap secondLoaded = ProbabilityMapFile.read(buffer);
+		ProbabilityMap emptyLoaded = ProbabilityMapFile.read(buffer);
+		assertEquals(0, buffer.remaining());
+
+		assertEquals(5, firstLoaded.getBlockSize());
+		assertEquals(1.0, firstLoaded.get(50, 0), 0.0);
+		assertEquals(10, secondLoaded.getBlockSize());
+		assertEquals(0.0, secondLoaded.get(0, -150), 0.0);
+		assertEquals(0.5, secondLoaded.get(50, 0), 0.0);
+		assertEquals(0, countCells(emptyLoaded));
+	}
+
+	private int countCells(ProbabilityMapIIFc map)
+	{
+		AtomicInteger count = new AtomicInteger();
+		map.visitOccupied((x, y, value) -> count.incrementAndGet());
+		map.visitVacant((x, y, value) -> count.incrementAndGet());
+		return count.get();
+	}
+}
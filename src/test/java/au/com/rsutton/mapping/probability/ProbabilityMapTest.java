@@ -1,9 +1,26 @@
 package au.com.rsutton.mapping.probability;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
 import org.junit.Test;
 
+import com.google.common.base.Stopwatch;
+
+import au.com.rsutton.mapping.particleFilter.Pose;
+import au.com.rsutton.mapping.particleFilter.ScanObservation;
+import au.com.rsutton.robot.lidar.LidarObservation;
+
 public class ProbabilityMapTest
 {
 
@@ -79,4 +96,139 @@ public class ProbabilityMapTest
 
 	}
 
+	@Test
+	public void testIntegrateScan()
+	{
+		ProbabilityMapIIFc world = new ProbabilityMap(5);
+		InverseSensorModel model = new LidarInverseSensorModel(1000);
+
+		ScanObservation[] scan = buildCircularScan(200);
+		world.integrateScan(new Pose(0, 0, 0), scan, model);
+
+		// every beam crosses the origin, but it is only cleared once
+		assertEquals(0.5 * (1.0 - model.getMissCertainty(0)), world.get(0, 0), 0.0001);
+
+		assertTrue(world.get(0, 100) < 0.5);
+		assertTrue(world.get(0, 200) > 0.5);
+		assertTrue(world.get(200, 0) > 0.5);
+		assertEquals(0.5, world.get(0, 300), 0.0);
+	}
+
+	@Test
+	public void benchmarkIntegrateScan()
+	{
+		ProbabilityMapIIFc world = new ProbabilityMap(5);
+		InverseSensorModel model = new LidarInverseSensorModel(1000);
+		ScanObservation[] scan = buildCircularScan(600);
+
+		int iterations = 100;
+		Stopwatch timer = Stopwatch.createStarted();
+		for (int i = 0; i < iterations; i++)
+		{
+			world.integrateScan(new Pose(i, 0, i), scan, model);
+		}
+		System.out.println("Integrate scan " + (timer.elapsed(TimeUnit.MICROSECONDS) / iterations) + "us");
+	}
+
+	@Test
+	public void testVisitMatchesFullScan()
+	{
+		ProbabilityMapIIFc world = new ProbabilityMap(5);
+		world.integrateScan(new Pose(-40, 30, 10), buildCircularScan(300), new LidarInverseSensorModel(1000));
+		world.resetPoint(0, 300);
+
+		Set<Point> occupied = new HashSet<>();
+		Set<Point> vacant = new HashSet<>();
+		for (int x = world.getMinX(); x <= world.getMaxX(); x += world.getBlockSize())
+		{
+			for (int y = world.getMinY(); y <= world.getMaxY(); y += world.getBlockSize())
+			{
+				if (world.get(x, y) > 0.5)
+				{
+					occupied.add(new Point(x, y));
+				} else if (world.get(x, y) < 0.5)
+				{
+					vacant.add(new Point(x, y));
+				}
+			}
+		}
+
+		Set<Point> visitedOccupied = new HashSet<>();
+		world.visitOccupied((x, y, value) -> assertTrue(visitedOccupied.add(new Point(x, y))));
+		Set<Point> visitedVacant = new HashSet<>();
+		world.visitVacant((x, y, value) -> assertTrue(visitedVacant.add(new Point(x, y))));
+
+		assertTrue(!occupied.isEmpty());
+		assertEquals(occupied, visitedOccupied);
+		assertEquals(vacant, visitedVacant);
+	}
+
+	@Test
+	public void testChangedRegions()
+	{
+		ProbabilityMapIIFc world = new ProbabilityMap(5);
+		world.updatePoint(10, 10, Occupancy.OCCUPIED, 1.0, 0);
+		long version = world.getVersion();
+
+		assertTrue(world.getChangedRegions(version).isEmpty());
+
+		world.updatePoint(-1000, 500, Occupancy.OCCUPIED, 1.0, 0);
+		List<Rectangle> regions = world.getChangedRegions(version);
+		assertEquals(1, regions.size());
+		assertTrue(regions.get(0).contains(-1000, 500));
+		assertTrue(world.getVersion() > version);
+
+		world.erase();
+		assertNull(world.getChangedRegions(version));
+		assertTrue(world.getChangedRegions(world.getVersion()).isEmpty());
+	}
+
+	@Test
+	public void testPyramidIsMaxOfCells()
+	{
+		ProbabilityMap world = new ProbabilityMap(5);
+		Random rand = new Random(11);
+		for (int i = 0; i < 2000; i++)
+		{
+			world.updatePoint(rand.nextInt(400) - 200, rand.nextInt(400) - 200,
+					rand.nextBoolean() ? Occupancy.OCCUPIED : Occupancy.VACANT, rand.nextDouble(), 5);
+			if (i == 1000)
+			{
+				// half built before the pyramid, half after
+				world.createPyramid(4);
+			}
+		}
+
+		MapPyramid pyramid = world.getPyramid();
+		for (int level = 1; level < pyramid.getLevelCount(); level++)
+		{
+			for (int x = -50; x < 50; x++)
+			{
+				for (int y = -50; y < 50; y++)
+				{
+					double max = 0;
+					for (int cx = x << level; cx < (x + 1) << level; cx++)
+					{
+						for (int cy = y << level; cy < (y + 1) << level; cy++)
+						{
+							max = Math.max(max, world.get(cx * 5, cy * 5));
+						}
+					}
+					assertEquals(max, pyramid.getMax(level, x, y), 0.0);
+				}
+			}
+		}
+	}
+
+	private ScanObservation[] buildCircularScan(double radius)
+	{
+		ScanObservation[] scan = new ScanObservation[360];
+		for (int i = 0; i < scan.length; i++)
+		{
+			double angle = Math.toRadians(i);
+			scan[i] = new LidarObservation(new Vector3D(Math.sin(angle) * radius, Math.cos(angle) * radius, 0));
+		}
+		return scan;
+	}
+
 }
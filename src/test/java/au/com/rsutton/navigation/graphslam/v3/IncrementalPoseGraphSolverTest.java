@@ -0,0 +1,183 @@
+package au.com.rsutton.navigation.graphslam.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class IncrementalPoseGraphSolverTest
+{
+
+	private static final int COUNT = 500;
+
+	private GraphSlamNodeConstructor<GraphSlamNodeImpl<PoseWithMathOperators>, PoseWithMathOperators> getCtorPose()
+	{
+		return new GraphSlamNodeConstructor<GraphSlamNodeImpl<PoseWithMathOperators>, PoseWithMathOperators>()
+		{
+
+			@Override
+			public PoseWithMathOperators zero()
+			{
+				return new PoseWithMathOperators(0, 0, 0);
+			}
+
+			@Override
+			public GraphSlamNodeImpl<PoseWithMathOperators> construct(String name,
+					PoseWithMathOperators initialPosition)
+			{
+				return new GraphSlamNodeImpl<>(name, initialPosition, zero());
+			}
+		};
+	}
+
+	/**
+	 * the offset of b as seen from a
+	 */
+	private PoseWithMathOperators offset(PoseWithMathOperators a, PoseWithMathOperators b, Random rand,
+			double noise)
+	{
+		double radians = Math.toRadians(a.getAngle());
+		double dx = b.getX() - a.getX();
+		double dy = b.getY() - a.getY();
+		double x = (Math.cos(radians) * dx) + (Math.sin(radians) * dy);
+		double y = (-Math.sin(radians) * dx) + (Math.cos(radians) * dy);
+		return new PoseWithMathOperators(x + (rand.nextGaussian() * noise), y + (rand.nextGaussian() * noise),
+				b.getAngle() - a.getAngle() + (rand.nextGaussian() * noise));
+	}
+
+	private List<PoseWithMathOperators> circle()
+	{
+		List<PoseWithMathOperators> truth = new ArrayList<>();
+		for (int i = 0; i < COUNT; i++)
+		{
+			double phi = (Math.PI * 2 * i) / COUNT;
+			truth.add(new PoseWithMathOperators(1000 * Math.sin(phi), 1000 - (1000 * Math.cos(phi)),
+					Math.toDegrees(phi)));
+		}
+		return truth;
+	}
+
+	@Test
+	public void testAddingANodeOnlySolvesTheNewConstraint()
+	{
+		Random rand = new Random(17);
+		List<PoseWithMathOperators> truth = circle();
+		IncrementalPoseGraphSolver<GraphSlamNodeImpl<PoseWithMathOperators>> solver = new IncrementalPoseGraphSolver<>();
+		GraphSlamV3<GraphSlamNodeImpl<PoseWithMathOperators>, PoseWithMathOperators> slam = new GraphSlamV3<>(
+				getCtorPose(), solver);
+		List<GraphSlamNodeImpl<PoseWithMathOperators>> nodes = new ArrayList<>();
+		nodes.add(slam.getRoot());
+		for (int i = 1; i < COUNT - 1; i++)
+		{
+			PoseWithMathOperators odometry = offset(truth.get(i - 1), truth.get(i), rand, 0.5);
+			nodes.add(slam.addNode("" + i, nodes.get(i - 1).getPosition().applyOffset(odometry), odometry, 1,
+					nodes.get(i - 1)));
+			if (i >= 50 && i % 10 == 0)
+			{
+				slam.addConstraint(offset(truth.get(i - 50), truth.get(i), rand, 0.1), nodes.get(i), 10,
+						nodes.get(i - 50));
+			}
+		}
+		slam.solve();
+		assertEquals(COUNT - 1, solver.getSolvedNodes());
+
+		List<PoseWithMathOperators> before = new ArrayList<>();
+		for (GraphSlamNodeImpl<PoseWithMathOperators> node : nodes)
+		{
+			before.add(node.getPosition());
+		}
+
+		PoseWithMathOperators odometry = offset(truth.get(COUNT - 2), truth.get(COUNT - 1), rand, 0.5);
+		PoseWithMathOperators expected = nodes.get(COUNT - 2).getPosition().applyOffset(odometry);
+		GraphSlamNodeImpl<PoseWithMathOperators> last = slam.addNode("last",
+				new PoseWithMathOperators(expected.getX() + 50, expected.getY() - 50, expected.getAngle() + 10),
+				odometry, 1, nodes.get(COUNT - 2));
+		slam.solve();
+
+		// the new node and the one it was added to
+		assertEquals(2, solver.getSolvedNodes());
+		assertEquals(expected.getX(), last.getPosition().getX(), 0.01);
+		assertEquals(expected.getY(), last.getPosition().getY(), 0.01);
+		assertEquals(expected.getAngle(), last.getPosition().getAngle(), 0.01);
+		for (int i = 0; i < COUNT - 2; i++)
+		{
+			assertTrue(before.get(i) == nodes.get(i).getPosition());
+		}
+
+		// nothing changed
+		slam.solve();
+		assertEquals(0, solver.getSolvedNodes());
+	}
+
+	@Test
+	public void testSolvingAsTheGraphGrows()
+	{
+		Random rand = new Random(17);
+		List<PoseWithMathOperators> truth = circle();
+		IncrementalPoseGraphSolver<GraphSlamNodeImpl<PoseWithMathOperators>> solver = new IncrementalPoseGraphSolver<>();
+		GraphSlamV3<GraphSlamNodeImpl<PoseWithMathOperators>, PoseWithMathOperators> slam = new GraphSlamV3<>(
+				getCtorPose(), solver);
+		List<GraphSlamNodeImpl<PoseWithMathOperators>> nodes = new ArrayList<>();
+		nodes.add(slam.getRoot());
+
+		// solve after every change, as the map builder does
+		long start = System.nanoTime();
+		int totalSolved = 0;
+		for (int i = 1; i < COUNT; i++)
+		{
+			PoseWithMathOperators odometry = offset(truth.get(i - 1), truth.get(i), rand, 0.5);
+			nodes.add(slam.addNode("" + i, nodes.get(i - 1).getPosition().applyOffset(odometry), odometry, 1,
+					nodes.get(i - 1)));
+			slam.solve();
+			totalSolved += solver.getSolvedNodes();
+			if (i >= 50 && i % 10 == 0)
+			{
+				slam.addConstraint(offset(truth.get(i - 50), truth.get(i), rand, 0.1), nodes.get(i), 10,
+						nodes.get(i - 50));
+				slam.solve();
+				totalSolved += solver.getSolvedNodes();
+			}
+		}
+		// close the loop back to the start
+		slam.addConstraint(offset(truth.get(COUNT - 1), truth.get(0), rand, 0.1), slam.getRoot(), 10,
+				nodes.get(COUNT - 1));
+		slam.solve();
+		totalSolved += solver.getSolvedNodes();
+		long elapsed = System.nanoTime() - start;
+
+		List<PoseWithMathOperators> incremental = new ArrayList<>();
+		for (GraphSlamNodeImpl<PoseWithMathOperators> node : nodes)
+		{
+			incremental.add(node.getPosition());
+		}
+
+		solver.requestFullSolve();
+		long fullStart = System.nanoTime();
+		slam.solve();
+		long fullElapsed = System.nanoTime() - fullStart;
+		assertEquals(COUNT, solver.getSolvedNodes());
+
+		double total = 0;
+		double worst = 0;
+		for (int i = 0; i < COUNT; i++)
+		{
+			PoseWithMathOperators full = nodes.get(i).getPosition();
+			double difference = Math.hypot(full.getX() - incremental.get(i).getX(),
+					full.getY() - incremental.get(i).getY());
+			total += difference;
+			worst = Math.max(worst, difference);
+		}
+
+		System.out.println("incremental solves " + (elapsed / 1000000) + "ms for " + totalSolved
+				+ " node solves, a full solve " + (fullElapsed / 1000000) + "ms, mean difference " + (total / COUNT)
+				+ " worst " + worst);
+		// far fewer than solving every node every time
+		assertTrue(totalSolved < COUNT * COUNT / 20);
+		assertTrue(total / COUNT < 1);
+		assertTrue(worst < 5);
+	}
+}
@@ -0,0 +1,164 @@
+package au.com.rsutton.navigation.graphslam.v3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import au.com.rsutton.entryPoint.controllers.HeadingHelper;
+
+public class PoseGraphSolverTest
+{
+
+	private GraphSlamNodeConstructor<GraphSlamNodeImpl<PoseWithMathOperators>, PoseWithMathOperators> getCtorPose()
+	{
+		return new GraphSlamNodeConstructor<GraphSlamNodeImpl<PoseWithMathOperators>, PoseWithMathOperators>()
+		{
+
+			@Override
+			public PoseWithMathOperators zero()
+			{
+				return new PoseWithMathOperators(0, 0, 0);
+			}
+
+			@Override
+			public GraphSlamNodeImpl<PoseWithMathOperators> construct(String name,
+					PoseWithMathOperators initialPosition)
+			{
+				return new GraphSlamNodeImpl<>(name, initialPosition, zero());
+			}
+		};
+	}
+
+	/**
+	 * the offset of b as seen from a
+	 */
+	private PoseWithMathOperators offset(PoseWithMathOperators a, PoseWithMathOperators b, Random rand,
+			double noise)
+	{
+		double radians = Math.toRadians(a.getAngle());
+		double dx = b.getX() - a.getX();
+		double dy = b.getY() - a.getY();
+		double x = (Math.cos(radians) * dx) + (Math.sin(radians) * dy);
+		double y = (-Math.sin(radians) * dx) + (Math.cos(radians) * dy);
+		return new PoseWithMathOperators(x + (rand.nextGaussian() * noise), y + (rand.nextGaussian() * noise),
+				b.getAngle() - a.getAngle() + (rand.nextGaussian() * noise));
+	}
+
+	@Test
+	public void testWeightsConstraintsByCertainty()
+	{
+		PoseGraphSolver<GraphSlamNodeImpl<PoseWithMathOperators>> solver = new PoseGraphSolver<>();
+		GraphSlamV3<GraphSlamNodeImpl<PoseWithMathOperators>, PoseWithMathOperators> slam = new GraphSlamV3<>(
+				getCtorPose(), solver);
+
+		GraphSlamNodeImpl<PoseWithMathOperators> node1 = slam.addNode("one", new PoseWithMathOperators(10, 0, 0),
+				new PoseWithMathOperators(10, 0, 0), 1, slam.getRoot());
+		GraphSlamNodeImpl<PoseWithMathOperators> node2 = slam.addNode("two", new PoseWithMathOperators(3, 0, 0),
+				new PoseWithMathOperators(3, 0, 0), 1, slam.getRoot());
+		slam.addConstraint(new PoseWithMathOperators(9, 0, 0), node1, 1, slam.getRoot());
+		slam.addConstraint(new PoseWithMathOperators(4, 0, 0), node2, 1, slam.getRoot());
+		slam.addConstraint(new PoseWithMathOperators(-7, 0, 0), node2, 1, node1);
+
+		slam.solve();
+
+		// the least squares solution, the root constraints are observed twice
+		assertEquals(9.75, node1.getPosition().getX(), 0.001);
+		assertEquals(3.25, node2.getPosition().getX(), 0.001);
+		assertEquals(0, node1.getPosition().getY(), 0.001);
+		assertEquals(0, slam.getRoot().getPosition().getX(), 0.0);
+		assertTrue(solver.getIterations() < 5);
+	}
+
+	@Test
+	public void testRotatedOffsets()
+	{
+		GraphSlamV3<GraphSlamNodeImpl<PoseWithMathOperators>, PoseWithMathOperators> slam = new GraphSlamV3<>(
+				getCtorPose(), new PoseGraphSolver<>());
+
+		GraphSlamNodeImpl<PoseWithMathOperators> node1 = slam.addNode("one", new PoseWithMathOperators(0, 0, 0),
+				new PoseWithMathOperators(10, 0, 90), 1, slam.getRoot());
+		GraphSlamNodeImpl<PoseWithMathOperators> node2 = slam.addNode("two", new PoseWithMathOperators(0, 0, 0),
+				new PoseWithMathOperators(10, 0, 90), 1, node1);
+
+		slam.solve();
+
+		assertEquals(10, node1.getPosition().getX(), 0.01);
+		assertEquals(0, node1.getPosition().getY(), 0.01);
+		assertEquals(90, node1.getPosition().getAngle(), 0.01);
+		// 10 ahead of node one, which faces along y
+		assertEquals(10, node2.getPosition().getX(), 0.01);
+		assertEquals(10, node2.getPosition().getY(), 0.01);
+		assertEquals(180, node2.getPosition().getAngle(), 0.01);
+	}
+
+	@Test
+	public void testLoopClosure()
+	{
+		Random rand = new Random(17);
+		int count = 500;
+		List<PoseWithMathOperators> truth = new ArrayList<>();
+		for (int i = 0; i < count; i++)
+		{
+			double phi = (Math.PI * 2 * i) / count;
+			truth.add(new PoseWithMathOperators(1000 * Math.sin(phi), 1000 - (1000 * Math.cos(phi)),
+					Math.toDegrees(phi)));
+		}
+
+		PoseGraphSolver<GraphSlamNodeImpl<PoseWithMathOperators>> solver = new PoseGraphSolver<>();
+		GraphSlamV3<GraphSlamNodeImpl<PoseWithMathOperators>, PoseWithMathOperators> slam = new GraphSlamV3<>(
+				getCtorPose(), solver);
+		List<GraphSlamNodeImpl<PoseWithMathOperators>> nodes = new ArrayList<>();
+		nodes.add(slam.getRoot());
+		PoseWithMathOperators deadReckoning = slam.getRoot().getPosition();
+		for (int i = 1; i < count; i++)
+		{
+			// noisy odometry between neighbours
+			PoseWithMathOperators odometry = offset(truth.get(i - 1), truth.get(i), rand, 0.5);
+			deadReckoning = deadReckoning.applyOffset(odometry);
+			nodes.add(slam.addNode("" + i, deadReckoning, odometry, 1, nodes.get(i - 1)));
+		}
+		// precise loop closures
+		for (int i = 50; i < count; i += 10)
+		{
+			slam.addConstraint(offset(truth.get(i - 50), truth.get(i), rand, 0.1), nodes.get(i), 10,
+					nodes.get(i - 50));
+		}
+		slam.addConstraint(offset(truth.get(count - 1), truth.get(0), rand, 0.1), slam.getRoot(), 10,
+				nodes.get(count - 1));
+
+		double before = meanError(nodes, truth);
+		long start = System.nanoTime();
+		slam.solve();
+		long elapsed = System.nanoTime() - start;
+		double after = meanError(nodes, truth);
+
+		System.out.println(count + " nodes solved in " + (elapsed / 1000000) + "ms, " + solver.getIterations()
+				+ " iterations, mean error " + before + " -> " + after);
+		assertTrue(after < 5);
+		assertTrue(after < before / 10);
+		for (int i = 0; i < count; i++)
+		{
+			// headings wander by 0.5 degrees a step between the loop closures
+			assertEquals(0,
+					HeadingHelper.getChangeInHeading(nodes.get(i).getPosition().getAngle(), truth.get(i).getAngle()),
+					3);
+		}
+	}
+
+	private double meanError(List<GraphSlamNodeImpl<PoseWithMathOperators>> nodes,
+			List<PoseWithMathOperators> truth)
+	{
+		double total = 0;
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			PoseWithMathOperators position = nodes.get(i).getPosition();
+			total += Math.hypot(position.getX() - truth.get(i).getX(), position.getY() - truth.get(i).getY());
+		}
+		return total / nodes.size();
+	}
+}
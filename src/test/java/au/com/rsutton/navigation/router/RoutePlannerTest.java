@@ -1,8 +1,17 @@
 package au.com.rsutton.navigation.router;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Rectangle;
+import java.util.List;
+
 import org.junit.Test;
 
 import au.com.rsutton.mapping.KitchenMapBuilder;
+import au.com.rsutton.mapping.probability.Occupancy;
+import au.com.rsutton.mapping.probability.ProbabilityMap;
+import au.com.rsutton.mapping.probability.ProbabilityMapIIFc;
 
 public class RoutePlannerTest
 {
@@ -35,4 +44,62 @@ public class RoutePlannerTest
 
 	}
 
+	@Test
+	public void testPatchedAugmentedMapMatchesRebuild()
+	{
+		ProbabilityMapIIFc world = KitchenMapBuilder.buildKitchenMap();
+		RoutePlanner planner = new RoutePlanner(world);
+
+		ProbabilityMap patched = planner.createAugmentedMap(world);
+		long version = world.getVersion();
+
+		world.drawLine(-100, 50, 20, 120, Occupancy.OCCUPIED, 1.0, 2);
+		world.drawLine(-60, -200, -60, -100, Occupancy.VACANT, 1.0, 2);
+
+		List<Rectangle> changedRegions = world.getChangedRegions(version);
+		assertTrue(!changedRegions.isEmpty());
+		for (Rectangle region : changedRegions)
+		{
+			planner.patchAugmentedMap(patched, world, region);
+		}
+
+		ProbabilityMap rebuilt = planner.createAugmentedMap(world);
+		for (int x = rebuilt.getMinX() - 50; x <= rebuilt.getMaxX() + 50; x += 5)
+		{
+			for (int y = rebuilt.getMinY() - 50; y <= rebuilt.getMaxY() + 50; y += 5)
+			{
+				assertEquals("at " + x + "," + y, rebuilt.get(x, y), patched.get(x, y), 0.0);
+			}
+		}
+	}
+
+	@Test
+	public void testObstaclesAreInflatedEquallyOnEverySide()
+	{
+		ProbabilityMap world = new ProbabilityMap(5);
+		world.setDefaultValue(0.5);
+		world.erase();
+		// a single occupied cell, covering 100 to 104 on each axis
+		world.writeInflated(100, 100, 5, 1, 0);
+
+		RoutePlanner planner = new RoutePlanner(world);
+		ProbabilityMap augmented = planner.createAugmentedMap(world);
+
+		// robot radius plus minimum clearance
+		int radius = 25;
+		for (int along = 100; along <= 104; along++)
+		{
+			// -x and +x
+			assertEquals(1, augmented.get(100 - radius, along), 0.0);
+			assertEquals(0.5, augmented.get(100 - radius - 1, along), 0.0);
+			assertEquals(1, augmented.get(104 + radius, along), 0.0);
+			assertEquals(0.5, augmented.get(104 + radius + 1, along), 0.0);
+			// -y and +y
+			assertEquals(1, augmented.get(along, 100 - radius), 0.0);
+			assertEquals(0.5, augmented.get(along, 100 - radius - 1), 0.0);
+			assertEquals(1, augmented.get(along, 104 + radius), 0.0);
+			assertEquals(0.5, augmented.get(along, 104 + radius + 1), 0.0);
+		}
+	}
+
 }